@@ -34,7 +34,9 @@ CREATE TABLE medias(
 	PRIMARY KEY(id)
 );
 
-CREATE INDEX entityUpdated_idx ON medias (lastUpdatedDate, entityId);
+CREATE INDEX medias_entity_updated_idx ON medias (entityId, lastUpdatedDate DESC, id DESC);
+CREATE INDEX medias_entity_mimetype_idx ON medias (entityId, mimeType);
+CREATE INDEX medias_entity_author_idx ON medias (entityId, author, lastUpdatedDate DESC, id DESC);
 
 -- {
 --   "id": string,
@@ -62,11 +64,40 @@ CREATE TABLE avatars(
 	entityId TEXT NOT NULL
 );
 
+CREATE INDEX previews_media_size_idx ON previews (mediaId, height, width);
+
 CREATE UNIQUE INDEX entity_idx ON avatars (entityId);
+CREATE INDEX avatars_media_idx ON avatars (mediaId);
+
+CREATE TABLE channel_sequences (entityId TEXT NOT NULL PRIMARY KEY,
+                                seq BIGINT NOT NULL,
+                                purgedSeq BIGINT DEFAULT 0 NOT NULL);
+
+CREATE TABLE media_changes (mediaId TEXT NOT NULL PRIMARY KEY,
+                            entityId TEXT NOT NULL,
+                            seq BIGINT NOT NULL,
+                            deleted BOOLEAN NOT NULL,
+                            changedDate TIMESTAMP NOT NULL);
+
+CREATE INDEX media_changes_entity_seq_idx ON media_changes (entityId, seq);
+
+CREATE TABLE "configuration" ("key" TEXT NOT NULL,
+            "value" TEXT NOT NULL,
+            "updated" TIMESTAMP);
 
 -- Add a schema_version table!
 CREATE TABLE schema_version (version INT NOT NULL PRIMARY KEY,
                              "when" TIMESTAMP,
                              description TEXT);
 INSERT INTO schema_version (version, "when", description)
-       VALUES (1, NOW(), 'DB schema versioning, drop not null from fileExtension column in medias table');
\ No newline at end of file
+       VALUES (1, NOW(), 'DB schema versioning, drop not null from fileExtension column in medias table');
+INSERT INTO schema_version (version, "when", description)
+       VALUES (2, NOW(), 'Added configuration table');
+INSERT INTO schema_version (version, "when", description)
+       VALUES (3, NOW(), 'Index medias for keyset pagination of channel listings');
+INSERT INTO schema_version (version, "when", description)
+       VALUES (4, NOW(), 'Index medias for filtered channel listings');
+INSERT INTO schema_version (version, "when", description)
+       VALUES (5, NOW(), 'Change sequence and tombstones for delta sync');
+INSERT INTO schema_version (version, "when", description)
+       VALUES (6, NOW(), 'Index previews and avatars by media');
\ No newline at end of file
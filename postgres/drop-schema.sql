@@ -1,4 +1,7 @@
 DROP TABLE IF EXISTS previews CASCADE;
 DROP TABLE IF EXISTS medias CASCADE;
 DROP TABLE IF EXISTS avatars CASCADE;
+DROP TABLE IF EXISTS media_changes CASCADE;
+DROP TABLE IF EXISTS channel_sequences CASCADE;
+DROP TABLE IF EXISTS "configuration" CASCADE;
 DROP TABLE IF EXISTS schema_version CASCADE;
@@ -0,0 +1,10 @@
+BEGIN TRANSACTION;
+
+-- Channel listings filter on entityId and page by (lastUpdatedDate, id)
+DROP INDEX IF EXISTS entityUpdated_idx;
+CREATE INDEX medias_entity_updated_idx ON medias (entityId, lastUpdatedDate DESC, id DESC);
+
+INSERT INTO schema_version (version, "when", description)
+       VALUES (3, NOW(), 'Index medias for keyset pagination of channel listings');
+
+COMMIT;
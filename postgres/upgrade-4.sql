@@ -0,0 +1,10 @@
+BEGIN TRANSACTION;
+
+-- Channel listings can be filtered by mime type prefix (LIKE 'image/%') and author
+CREATE INDEX medias_entity_mimetype_idx ON medias (entityId, mimeType text_pattern_ops);
+CREATE INDEX medias_entity_author_idx ON medias (entityId, author, lastUpdatedDate DESC, id DESC);
+
+INSERT INTO schema_version (version, "when", description)
+       VALUES (4, NOW(), 'Index medias for filtered channel listings');
+
+COMMIT;
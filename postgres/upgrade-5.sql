@@ -0,0 +1,28 @@
+BEGIN TRANSACTION;
+
+-- Per-channel change sequence, for delta sync of channel listings
+CREATE TABLE channel_sequences (entityId TEXT NOT NULL PRIMARY KEY,
+                                seq BIGINT NOT NULL,
+                                purgedSeq BIGINT NOT NULL DEFAULT 0);
+
+-- Last change of each media; deleted media are kept as tombstones for a while
+CREATE TABLE media_changes (mediaId TEXT NOT NULL PRIMARY KEY,
+                            entityId TEXT NOT NULL,
+                            seq BIGINT NOT NULL,
+                            deleted BOOLEAN NOT NULL,
+                            changedDate TIMESTAMP NOT NULL);
+
+CREATE INDEX media_changes_entity_seq_idx ON media_changes (entityId, seq);
+
+-- Existing media count as changed in last updated order
+INSERT INTO media_changes (mediaId, entityId, seq, deleted, changedDate)
+       SELECT id, entityId, ROW_NUMBER() OVER (PARTITION BY entityId ORDER BY lastUpdatedDate, id),
+              FALSE, lastUpdatedDate
+       FROM medias;
+INSERT INTO channel_sequences (entityId, seq, purgedSeq)
+       SELECT entityId, COUNT(*), 0 FROM medias GROUP BY entityId;
+
+INSERT INTO schema_version (version, "when", description)
+       VALUES (5, NOW(), 'Change sequence and tombstones for delta sync');
+
+COMMIT;
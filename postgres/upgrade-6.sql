@@ -0,0 +1,12 @@
+BEGIN TRANSACTION;
+
+-- Sized preview lookups, and the previews listed and deleted along with a media
+CREATE INDEX previews_media_size_idx ON previews (mediaId, height, width);
+
+-- Deleting a media checks that no avatar references it
+CREATE INDEX avatars_media_idx ON avatars (mediaId);
+
+INSERT INTO schema_version (version, "when", description)
+       VALUES (6, NOW(), 'Index previews and avatars by media');
+
+COMMIT;
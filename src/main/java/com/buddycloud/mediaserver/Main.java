@@ -15,6 +15,9 @@
  */
 package com.buddycloud.mediaserver;
 
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
 import java.util.Properties;
 
 import org.jivesoftware.smack.ConnectionConfiguration;
@@ -34,18 +37,30 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.xmpp.component.ComponentException;
 
+import com.buddycloud.mediaserver.business.jdbc.schema.MigrationRunner;
 import com.buddycloud.mediaserver.commons.MediaServerConfiguration;
 import com.buddycloud.mediaserver.web.MediaServerApplication;
 import com.buddycloud.mediaserver.xmpp.MediaServerComponent;
+import com.buddycloud.mediaserver.xmpp.XMPPConnectionPool;
 import com.buddycloud.mediaserver.xmpp.XMPPToolBox;
 
 public class Main {
 	private static Logger LOGGER = LoggerFactory.getLogger(Main.class);
 
+	// resource of the pooled XMPP client connections, followed by their index
+	private static final String CONNECTION_RESOURCE = "mediaserver-";
+
 	public static void main(String[] args) throws InterruptedException {
 		Properties configuration = MediaServerConfiguration.getInstance()
 				.getConfiguration();
 
+		try {
+			migrateSchema(configuration);
+		} catch (Exception e) {
+			LOGGER.error("Error while migrating database schema", e);
+			System.exit(1);
+		}
+
 		try {
 			startRestletComponent(configuration);
 		} catch (Exception e) {
@@ -67,12 +82,29 @@ public class Main {
         }
     }
 
+	private static void migrateSchema(Properties configuration) throws Exception {
+		if (!Boolean.valueOf(configuration.getProperty(MediaServerConfiguration.JDBC_MIGRATIONS_ENABLED))) {
+			return;
+		}
+
+		Class.forName(configuration.getProperty(MediaServerConfiguration.JDBC_DRIVER_CLASS_PROPERTY));
+		Connection connection = DriverManager.getConnection(
+				configuration.getProperty(MediaServerConfiguration.JDBC_DB_URL_PROPERTY));
+		try {
+			new MigrationRunner(new File(configuration.getProperty(
+					MediaServerConfiguration.JDBC_MIGRATIONS_DIR))).migrate(connection);
+		} finally {
+			connection.close();
+		}
+	}
+
 	private static void startRestletComponent(Properties configuration)
 			throws Exception {
 		Component component = new Component();
 
+		Server server;
 		if (Boolean.valueOf(configuration.getProperty(MediaServerConfiguration.HTTPS_ENABLED))) {
-			Server server = component.getServers().add(Protocol.HTTPS,
+			server = component.getServers().add(Protocol.HTTPS,
 					Integer.valueOf(configuration.getProperty(MediaServerConfiguration.HTTPS_PORT)));
 
 			server.getContext()
@@ -97,9 +129,10 @@ public class Main {
 					.add("keystoreType",
 							configuration.getProperty(MediaServerConfiguration.HTTPS_KEYSTORE_TYPE));
 		} else {
-			component.getServers().add(Protocol.HTTP,
+			server = component.getServers().add(Protocol.HTTP,
 					Integer.valueOf(configuration.getProperty(MediaServerConfiguration.HTTP_PORT)));
 		}
+		configureExecution(server, configuration);
 
 		Context context = component.getContext().createChildContext();
 		component.getDefaultHost().attach(new MediaServerApplication(context));
@@ -109,6 +142,28 @@ public class Main {
 		LOGGER.info("Buddycloud Media Server HTTP server started!");
 	}
 
+	/**
+	 * In elastic mode, the connector starts a thread per request on demand
+	 * and lets it go once idle, rather than queueing requests behind a fixed
+	 * pool of threads that may all be waiting on XMPP replies.
+	 */
+	private static void configureExecution(Server server, Properties configuration) {
+		String mode = configuration.getProperty(MediaServerConfiguration.HTTP_EXECUTION_MODE);
+		if (!"elastic".equalsIgnoreCase(mode)) {
+			return;
+		}
+
+		server.getContext().getParameters().add("threadPool.minThreads", "1");
+		server.getContext().getParameters().add("threadPool.maxThreads",
+				configuration.getProperty(MediaServerConfiguration.HTTP_ELASTIC_MAX_THREADS));
+		server.getContext().getParameters().add("threadPool.idleTimeout",
+				configuration.getProperty(MediaServerConfiguration.HTTP_ELASTIC_IDLE_TIMEOUT));
+
+		LOGGER.info("HTTP requests run in elastic mode, up to "
+				+ configuration.getProperty(MediaServerConfiguration.HTTP_ELASTIC_MAX_THREADS)
+				+ " threads");
+	}
+
     private static void setXMPPReplyTimeout(Properties configuration) {
         int xmppReplyTimeout = Integer.valueOf(configuration.getProperty(
         		MediaServerConfiguration.XMPP_REPLY_TIMEOUT));
@@ -119,12 +174,11 @@ public class Main {
 			throws InterruptedException {
         setXMPPReplyTimeout(configuration);
 
-        XMPPConnection connection = null;
+        XMPPConnectionPool connectionPool = createConnectionPool(configuration);
         
         while (true) {
 			try {
-				connection = createAndStartConnection(configuration);
-				addTraceListeners(connection);
+				connectionPool.start();
 		        LOGGER.info("Buddycloud Media Server XMPP client connection started!");
 		        break;
 			} catch (Exception e) {
@@ -146,7 +200,25 @@ public class Main {
 			Thread.sleep(30000);
 		}
         
-		XMPPToolBox.getInstance().start(component, connection, configuration);
+		XMPPToolBox.getInstance().start(component, connectionPool, configuration);
+	}
+
+	private static XMPPConnectionPool createConnectionPool(final Properties configuration) {
+		XMPPConnectionPool.ConnectionFactory factory = new XMPPConnectionPool.ConnectionFactory() {
+			public org.jivesoftware.smack.Connection create(int index) {
+				XMPPConnection connection = createAndStartConnection(configuration, index);
+				addTraceListeners(connection);
+
+				return connection;
+			}
+		};
+
+		return new XMPPConnectionPool(factory,
+				Integer.valueOf(configuration.getProperty(MediaServerConfiguration.XMPP_CONNECTION_POOL_SIZE)),
+				Integer.valueOf(configuration.getProperty(MediaServerConfiguration.XMPP_CONNECTION_POOL_MAX_IN_FLIGHT)),
+				XMPPConnectionPool.Strategy.fromString(configuration.getProperty(
+						MediaServerConfiguration.XMPP_CONNECTION_POOL_STRATEGY)),
+				Long.valueOf(configuration.getProperty(MediaServerConfiguration.XMPP_REPLY_TIMEOUT)));
 	}
 
 	private static MediaServerComponent createXMPPComponent(
@@ -200,7 +272,7 @@ public class Main {
 	}
 
 	private static XMPPConnection createAndStartConnection(
-			Properties configuration) {
+			Properties configuration, int index) {
 
 		String serviceName = configuration
 				.getProperty(MediaServerConfiguration.XMPP_CONNECTION_SERVICENAME);
@@ -215,12 +287,15 @@ public class Main {
 				.getProperty(MediaServerConfiguration.XMPP_CONNECTION_SASL)));
 		cc.setSecurityMode(SecurityMode.valueOf(configuration
 				.getProperty(MediaServerConfiguration.XMPP_CONNECTION_SECURITY)));
+		// failed connections are replaced by the pool
+		cc.setReconnectionAllowed(false);
 
 		XMPPConnection connection = new XMPPConnection(cc);
 		try {
 			connection.connect();
 			connection.login(userName,
-					configuration.getProperty(MediaServerConfiguration.XMPP_CONNECTION_PASSWORD));
+					configuration.getProperty(MediaServerConfiguration.XMPP_CONNECTION_PASSWORD),
+					CONNECTION_RESOURCE + index);
 		} catch (org.jivesoftware.smack.XMPPException e) {
 			LOGGER.error("XMPP connection coudn't be started", e);
 			try {
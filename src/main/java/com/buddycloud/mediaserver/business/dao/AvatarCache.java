@@ -0,0 +1,108 @@
+/*
+ * Copyright 2012 buddycloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.buddycloud.mediaserver.business.dao;
+
+import java.util.List;
+
+import com.buddycloud.mediaserver.commons.CachedAvatar;
+import com.buddycloud.mediaserver.commons.cache.InvalidationStamps;
+import com.buddycloud.mediaserver.commons.cache.LRUCache;
+
+/**
+ * In-memory cache of avatar bytes, keyed by entity and size. Only the
+ * original avatar and the precomputed sizes are kept, so all cached
+ * variants of an entity are known and can be dropped together.
+ */
+public class AvatarCache {
+
+	private static final String ORIGINAL = "original";
+
+	private final LRUCache<String, CachedAvatar> cache;
+	private final List<Integer> sizes;
+	private final long maxBytes;
+
+	// moved on every invalidation of an entity, so loads of its avatar that started before are not cached
+	private final InvalidationStamps stamps = new InvalidationStamps();
+
+	public AvatarCache(int maxEntries, long maxBytes, List<Integer> sizes) {
+		this.sizes = sizes;
+		this.maxBytes = maxBytes;
+		this.cache = new LRUCache<String, CachedAvatar>(maxEntries, maxBytes) {
+			@Override
+			protected long weigh(CachedAvatar value) {
+				return value.getMediaFile().length;
+			}
+		};
+	}
+
+	/**
+	 * Whether the given size is one of the precomputed ones (or the original, if both are null).
+	 */
+	public boolean isCacheable(Integer maxHeight, Integer maxWidth) {
+		if (maxHeight == null && maxWidth == null) {
+			return true;
+		}
+		return maxHeight != null && maxHeight.equals(maxWidth) && sizes.contains(maxHeight);
+	}
+
+	/**
+	 * Whether an avatar of {@code size} bytes would be kept, so it is worth buffering.
+	 */
+	public boolean fits(long size) {
+		return size <= maxBytes;
+	}
+
+	public CachedAvatar get(String entityId, Integer maxHeight, Integer maxWidth) {
+		return cache.get(key(entityId, maxHeight, maxWidth));
+	}
+
+	/**
+	 * Returns a stamp to be passed to {@link #put(String, Integer, Integer, CachedAvatar, InvalidationStamps.Stamp)}.
+	 * Must be taken before the avatars are loaded, and may be used for several of them.
+	 */
+	public InvalidationStamps.Stamp stamp() {
+		return stamps.stamp();
+	}
+
+	/**
+	 * Caches an avatar, unless the entity's avatar was invalidated since {@code stamp} was taken.
+	 */
+	public synchronized void put(String entityId, Integer maxHeight, Integer maxWidth,
+			CachedAvatar avatar, InvalidationStamps.Stamp stamp) {
+		if (stamps.isCurrent(entityId, stamp) && isCacheable(maxHeight, maxWidth)) {
+			cache.put(key(entityId, maxHeight, maxWidth), avatar);
+		}
+	}
+
+	/**
+	 * Drops every cached variant of an entity's avatar.
+	 */
+	public synchronized void invalidate(String entityId) {
+		stamps.invalidate(entityId);
+
+		cache.remove(key(entityId, null, null));
+		for (Integer size : sizes) {
+			cache.remove(key(entityId, size, size));
+		}
+	}
+
+	private String key(String entityId, Integer maxHeight, Integer maxWidth) {
+		if (maxHeight == null && maxWidth == null) {
+			return entityId + "/" + ORIGINAL;
+		}
+		return entityId + "/" + maxHeight + "x" + maxWidth;
+	}
+}
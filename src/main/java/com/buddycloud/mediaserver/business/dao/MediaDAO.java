@@ -15,25 +15,55 @@
  */
 package com.buddycloud.mediaserver.business.dao;
 
+import com.buddycloud.mediaserver.business.jdbc.BatchWriter;
 import com.buddycloud.mediaserver.business.jdbc.MetaDataSource;
+import com.buddycloud.mediaserver.business.jdbc.UnitOfWork;
+import com.buddycloud.mediaserver.business.jobs.AudioTranscodingJob;
+import com.buddycloud.mediaserver.business.jobs.HLSPackagingJob;
+import com.buddycloud.mediaserver.business.jobs.JobExecutor;
+import com.buddycloud.mediaserver.business.jobs.WaveformJob;
+import com.buddycloud.mediaserver.business.journal.JournalApplier;
+import com.buddycloud.mediaserver.business.journal.JournalRecord;
+import com.buddycloud.mediaserver.business.journal.MetadataJournal;
+import com.buddycloud.mediaserver.business.model.ChannelSequence;
 import com.buddycloud.mediaserver.business.model.Media;
+import com.buddycloud.mediaserver.business.model.MediaChange;
+import com.buddycloud.mediaserver.business.model.MediaCursor;
+import com.buddycloud.mediaserver.business.model.MediaFilter;
+import com.buddycloud.mediaserver.business.model.MediaPreview;
 import com.buddycloud.mediaserver.business.model.Preview;
+import com.buddycloud.mediaserver.business.model.SyncToken;
 import com.buddycloud.mediaserver.business.util.AudioUtils;
+import com.buddycloud.mediaserver.business.util.HLSPackager;
 import com.buddycloud.mediaserver.business.util.ImageUtils;
 import com.buddycloud.mediaserver.business.util.MimeTypeMapping;
 import com.buddycloud.mediaserver.business.util.VideoUtils;
+import com.buddycloud.mediaserver.commons.AvatarContent;
+import com.buddycloud.mediaserver.commons.CachedAvatar;
 import com.buddycloud.mediaserver.commons.Constants;
 import com.buddycloud.mediaserver.commons.MediaFile;
 import com.buddycloud.mediaserver.commons.MediaServerConfiguration;
+import com.buddycloud.mediaserver.commons.MediasInfo;
+import com.buddycloud.mediaserver.commons.SignedURLs;
+import com.buddycloud.mediaserver.commons.StreamedAvatar;
+import com.buddycloud.mediaserver.commons.cache.InvalidationStamps;
+import com.buddycloud.mediaserver.commons.concurrent.Bulkhead;
+import com.buddycloud.mediaserver.commons.exception.BulkheadFullException;
 import com.buddycloud.mediaserver.commons.exception.InvalidPreviewFormatException;
 import com.buddycloud.mediaserver.commons.exception.MediaNotFoundException;
+import com.buddycloud.mediaserver.commons.exception.MetadataPendingException;
 import com.buddycloud.mediaserver.commons.exception.MetadataSourceException;
+import com.buddycloud.mediaserver.commons.exception.SyncTokenExpiredException;
 import com.buddycloud.mediaserver.commons.exception.UserNotAllowedException;
+import com.buddycloud.mediaserver.commons.json.ISO8601DateTypeAdapter;
 import com.buddycloud.mediaserver.xmpp.XMPPToolBox;
 import com.buddycloud.mediaserver.xmpp.pubsub.PubSubClient;
 import com.buddycloud.mediaserver.xmpp.pubsub.capabilities.*;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonWriter;
 import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.fileupload.FileItem;
 import org.apache.commons.fileupload.FileUploadException;
@@ -54,9 +84,18 @@ import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.text.DateFormat;
+import java.io.Writer;
+import java.lang.reflect.Type;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * Provides a Data Access Object to metadata
@@ -68,17 +107,193 @@ public class MediaDAO {
 
 	private static Logger LOGGER = LoggerFactory.getLogger(MediaDAO.class);
 
+	public static final String WAVEFORM_MIME_TYPE = "application/octet-stream";
+
+	private static final Type MEDIA_LIST_TYPE = new TypeToken<List<Media>>(){}.getType();
+
+	private static final String JOURNAL_CHARSET = "UTF-8";
+	private static final long JOURNAL_AWAIT_TIMEOUT = 10000;
+
 	protected MetaDataSource dataSource;
 	protected Properties configuration;
 	protected Gson gson;
+	protected List<Integer> avatarSizes;
+	protected AvatarCache avatarCache;
+	protected BatchWriter batchWriter;
+	protected Bulkhead previewRendering;
+	protected MetadataJournal journal;
+	protected JournalApplier journalApplier;
+
+	// id -> journal record of the medias not stored yet
+	protected final ConcurrentMap<String, Long> journaledMedias = new ConcurrentHashMap<String, Long>();
 
 	
 	protected MediaDAO() {
 		this.dataSource = new MetaDataSource();
-		this.gson = new GsonBuilder().setDateFormat(DateFormat.FULL,
-				DateFormat.FULL).create();
+		this.gson = new GsonBuilder().registerTypeHierarchyAdapter(Date.class,
+				new ISO8601DateTypeAdapter()).create();
 		this.configuration = MediaServerConfiguration.getInstance()
 				.getConfiguration();
+
+		this.avatarSizes = new ArrayList<Integer>();
+		for (String size : configuration.getProperty(
+				MediaServerConfiguration.AVATAR_SIZES).split(",")) {
+			if (size.trim().length() > 0) {
+				avatarSizes.add(Integer.valueOf(size.trim()));
+			}
+		}
+
+		this.avatarCache = new AvatarCache(
+				Integer.valueOf(configuration.getProperty(
+						MediaServerConfiguration.AVATAR_CACHE_MAX_ENTRIES)),
+				Long.valueOf(configuration.getProperty(
+						MediaServerConfiguration.AVATAR_CACHE_MAX_BYTES)),
+				avatarSizes);
+
+		this.batchWriter = new BatchWriter(dataSource,
+				Integer.valueOf(configuration.getProperty(
+						MediaServerConfiguration.METADATA_BATCH_MAX_SIZE)),
+				Long.valueOf(configuration.getProperty(
+						MediaServerConfiguration.METADATA_BATCH_WINDOW)),
+				Long.valueOf(configuration.getProperty(
+						MediaServerConfiguration.METADATA_BATCH_TIMEOUT)));
+		batchWriter.start();
+
+		int renderConcurrency = Integer.valueOf(configuration.getProperty(
+				MediaServerConfiguration.MEDIA_PREVIEW_RENDER_CONCURRENCY));
+		this.previewRendering = new Bulkhead("Preview rendering",
+				renderConcurrency > 0 ? renderConcurrency : Runtime.getRuntime().availableProcessors(),
+				Long.valueOf(configuration.getProperty(
+						MediaServerConfiguration.MEDIA_PREVIEW_RENDER_MAX_WAIT)));
+
+		if (Boolean.valueOf(configuration.getProperty(
+				MediaServerConfiguration.METADATA_JOURNAL_ENABLED))) {
+			openJournal();
+		}
+	}
+
+	/**
+	 * Opens the metadata journal and queues what it still holds to be stored.
+	 * If it can't be opened, metadata is stored directly in the database.
+	 */
+	private void openJournal() {
+		String directory = configuration.getProperty(MediaServerConfiguration.METADATA_JOURNAL_DIR);
+		File journalDirectory = directory != null ? new File(directory) : new File(
+				configuration.getProperty(MediaServerConfiguration.MEDIA_STORAGE_ROOT_PROPERTY),
+				".journal");
+
+		MetadataJournal journal = new MetadataJournal(journalDirectory, Integer.valueOf(
+				configuration.getProperty(MediaServerConfiguration.METADATA_JOURNAL_SEGMENT_SIZE)));
+		JournalApplier journalApplier = new JournalApplier(journal, new JournalApplier.Handler() {
+			public void apply(List<JournalRecord> records) throws Exception {
+				List<StoredMedia> medias = new ArrayList<StoredMedia>();
+				for (JournalRecord record : records) {
+					medias.add(gson.fromJson(new String(record.getPayload(), JOURNAL_CHARSET),
+							StoredMedia.class));
+				}
+				storeMetadata(medias);
+			}
+
+			public boolean isPermanent(Exception e) {
+				return isRefusedMetadata(e);
+			}
+
+			public void discard(JournalRecord record) {
+				discardJournaledMedia(record);
+			}
+		}, Integer.valueOf(configuration.getProperty(MediaServerConfiguration.METADATA_JOURNAL_BATCH_SIZE)),
+				Long.valueOf(configuration.getProperty(MediaServerConfiguration.METADATA_JOURNAL_RETRY_DELAY)),
+				Integer.valueOf(configuration.getProperty(MediaServerConfiguration.METADATA_JOURNAL_MAX_ATTEMPTS)));
+
+		try {
+			for (JournalRecord record : journal.open()) {
+				StoredMedia stored = gson.fromJson(new String(record.getPayload(), JOURNAL_CHARSET),
+						StoredMedia.class);
+				dataSource.addPendingMedia(stored.media);
+				journaledMedias.put(stored.media.getId(), record.getSeq());
+				journalApplier.submit(record);
+			}
+		} catch (IOException e) {
+			LOGGER.error("Could not open metadata journal, storing metadata synchronously", e);
+			return;
+		}
+
+		journalApplier.start();
+		this.journal = journal;
+		this.journalApplier = journalApplier;
+	}
+
+	/**
+	 * @return whether storing metadata failed because of the metadata itself:
+	 * a journal record that can't be read, or data or constraints the database
+	 * refused (SQL states 22 and 23), rather than the database being unavailable.
+	 */
+	private static boolean isRefusedMetadata(Throwable t) {
+		for (; t != null; t = t.getCause()) {
+			if (t instanceof JsonParseException) {
+				return true;
+			}
+
+			if (t instanceof SQLException) {
+				for (SQLException e = (SQLException) t; e != null; e = e.getNextException()) {
+					String state = e.getSQLState();
+					if (state != null && (state.startsWith("22") || state.startsWith("23"))) {
+						return true;
+					}
+				}
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * Forgets a media whose journal record was given up. Without metadata,
+	 * nobody could find its file, so it is deleted as well.
+	 */
+	private void discardJournaledMedia(JournalRecord record) {
+		StoredMedia stored;
+		try {
+			stored = gson.fromJson(new String(record.getPayload(), JOURNAL_CHARSET),
+					StoredMedia.class);
+		} catch (Exception e) {
+			LOGGER.error("Could not read discarded journal record " + record.getSeq(), e);
+			return;
+		}
+
+		Media media = stored.media;
+		LOGGER.error("Metadata of media " + media.getId() + " could not be stored, deleting it");
+
+		dataSource.removePendingMedia(media.getId());
+		journaledMedias.remove(media.getId());
+		new File(getDirectory(media.getEntityId()), media.getId()).delete();
+	}
+
+	/**
+	 * Waits for a media still in the journal to reach the database, so it can be
+	 * changed or referenced there.
+	 * @throws MetadataPendingException if the media is still not stored, so
+	 * whatever depends on its row must not go ahead.
+	 */
+	protected void awaitJournal(String mediaId) throws MetadataPendingException {
+		Long seq = journaledMedias.get(mediaId);
+		if (journalApplier == null || seq == null) {
+			return;
+		}
+
+		boolean applied;
+		try {
+			applied = journalApplier.awaitApplied(seq, JOURNAL_AWAIT_TIMEOUT);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			applied = false;
+		}
+
+		if (!applied) {
+			LOGGER.warn("Media still not stored after " + JOURNAL_AWAIT_TIMEOUT
+					+ "ms. Media ID: " + mediaId);
+			throw new MetadataPendingException("Media metadata not stored yet", mediaId);
+		}
 	}
 
 	/**
@@ -95,12 +310,15 @@ public class MediaDAO {
 			UserNotAllowedException {
 
 		boolean isAvatar = isAvatar(mediaId);
-		if (isAvatar) {
-			mediaId = dataSource.getEntityAvatarId(entityId);
+		Media mediaInfo = isAvatar ? dataSource.getEntityAvatar(entityId)
+				: dataSource.getMedia(mediaId);
+
+		if (mediaInfo == null) {
+			throw new MediaNotFoundException(mediaId, entityId);
 		}
 
-		boolean isUploader = dataSource.getMediaUploader(mediaId)
-				.equals(userJID);
+		mediaId = mediaInfo.getId();
+		boolean isUploader = mediaInfo.getAuthor().equals(userJID);
 
 		if (!isUploader) {
 			if (!isUserAllowed(userJID, entityId, new OwnerDecorator(new ModeratorDecorator()))) {
@@ -119,33 +337,52 @@ public class MediaDAO {
 		}
 
 		LOGGER.debug("Deleting media. Media ID: " + mediaId);
+		awaitJournal(mediaId);
 
-		if (isAvatar) {
-			// delete avatars table entry
-			dataSource.deleteEntityAvatar(entityId);
-		}
+		// delete all metadata at once, files only go after it is committed
+		List<String> previews;
+		UnitOfWork unitOfWork = dataSource.beginUnitOfWork();
+		try {
+			if (isAvatar) {
+				// delete avatars table entry
+				dataSource.deleteEntityAvatar(entityId);
+			}
 
-		// delete existent previews from media
-		deletePreviews(mediaId, fullDirectoryPath);
+			previews = deletePreviews(mediaId);
+			dataSource.deleteMedia(mediaId);
 
-		// delete file and metadata. Best effort
+			unitOfWork.commit();
+		} finally {
+			unitOfWork.close();
+		}
+
+		// delete previews, packaged and transcoded derivatives and the file. Best effort
+		for (String previewId : previews) {
+			new File(fullDirectoryPath + File.separator + previewId).delete();
+		}
+		deleteDerivatives(mediaId, fullDirectoryPath);
 		media.delete();
-		dataSource.deleteMedia(mediaId);
+
+		if (isAvatar) {
+			avatarCache.invalidate(entityId);
+		}
 	}
 
-	protected void deletePreviews(String mediaId, String dirPath)
+	protected List<String> deletePreviews(String mediaId)
 			throws MetadataSourceException {
 		List<String> previews = dataSource.getPreviewsFromMedia(mediaId);
 
 		if (!previews.isEmpty()) {
-			for (String previewId : previews) {
-				File preview = new File(dirPath + File.separator + previewId);
-                // Best effort
-				preview.delete();
-			}
-
 			dataSource.deletePreviewsFromMedia(mediaId);
 		}
+
+		return previews;
+	}
+
+	protected void deleteDerivatives(String mediaId, String dirPath) {
+		FileUtils.deleteQuietly(getHLSDirectory(dirPath, mediaId));
+		FileUtils.deleteQuietly(getWaveformFile(dirPath, mediaId));
+		FileUtils.deleteQuietly(getAudioRenditionFile(dirPath, mediaId));
 	}
 
     /**
@@ -161,12 +398,12 @@ public class MediaDAO {
             throws UserNotAllowedException, MetadataSourceException, MediaNotFoundException {
         if (isAvatar(mediaId)) {
             LOGGER.debug("Getting media info for " + entityId + " avatar");
-            mediaId = dataSource.getEntityAvatarId(entityId);
-            if (mediaId == null) {
+            Media avatar = dataSource.getEntityAvatar(entityId);
+            if (avatar == null) {
                 throw new MediaNotFoundException("avatar", entityId);
             }
 
-            return gson.toJson(dataSource.getMedia(mediaId));
+            return gson.toJson(avatar);
         }
 
         if (userJID != null) {
@@ -190,15 +427,132 @@ public class MediaDAO {
     }
 
 	/**
-	 * Gets an information list from all medias in a channel.
+	 * Gets an information list from the medias in a channel, most recently updated first.
 	 * @param userJID the user that is trying to request the media lsit.
 	 * @param entityId media channel's id.
+	 * @param max maximum number of medias, or null for all of them.
+	 * @param after cursor token returned with the previous page, or the id of
+	 * the last media of that page.
+	 * @param filter the medias and fields to return, or null for all of them.
+	 * @return the medias, the cursor of the next page if this one is full, and the
+	 * sync token to get the changes made since.
+	 * @throws MetadataSourceException if something goes wrong while retrieving media's metadata.
+	 * @throws UserNotAllowedException this {@param userJID} is not allowed to perform this operation.
+	 */
+	public MediasInfo getMediasInfo(String userJID, String entityId, Integer max, String after,
+			MediaFilter filter) throws UserNotAllowedException, MetadataSourceException {
+		checkListingAllowed(userJID, entityId);
+
+		LOGGER.debug("Getting medias info from: " + entityId);
+
+		// taken first, so changes made while listing are synced again rather than missed
+		String syncToken = new SyncToken(dataSource.getChannelSequence(entityId).getSeq()).encode();
+
+		MediaCursor cursor = null;
+		if (after != null) {
+			cursor = MediaCursor.decode(after);
+
+			if (cursor == null) {
+				// older clients page with the id of the last media they got
+				cursor = dataSource.getMediaCursor(after);
+				if (cursor == null) {
+					return toMediasInfo(new ArrayList<Media>(), null, syncToken);
+				}
+			}
+		}
+
+		if (max == null) {
+			return streamMediasInfo(entityId, cursor, filter, syncToken);
+		}
+
+		List<Media> medias = dataSource.getMediasInfo(entityId, max, cursor, filter);
+
+		String nextCursor = null;
+		if (!medias.isEmpty() && medias.size() == max) {
+			nextCursor = MediaCursor.after(medias.get(medias.size() - 1)).encode();
+		}
+
+		if (filter != null) {
+			for (Media media : medias) {
+				filter.project(media);
+			}
+		}
+
+		return toMediasInfo(medias, nextCursor, syncToken);
+	}
+
+	/**
+	 * Gets the changes made to the medias of a channel since a sync token, as a JSON
+	 * object with the new "token", the "changed" medias and the ids of the "deleted" ones.
+	 * @param userJID the user that is trying to request the changes.
+	 * @param entityId media channel's id.
+	 * @param since token returned with a listing or previous changes.
+	 * @throws SyncTokenExpiredException if the token predates the deletions still
+	 * remembered, or is ahead of the channel's sequence. The channel must be
+	 * listed again. Tokens only hold a sequence number, so one handed out for
+	 * another channel is only noticed when it is ahead.
 	 * @throws MetadataSourceException if something goes wrong while retrieving media's metadata.
 	 * @throws UserNotAllowedException this {@param userJID} is not allowed to perform this operation.
 	 */
-	public String getMediasInfo(String userJID, String entityId, Integer max, String after)
-			throws UserNotAllowedException, MetadataSourceException {
+	public MediasInfo getMediaChanges(String userJID, String entityId, SyncToken since)
+			throws UserNotAllowedException, MetadataSourceException, SyncTokenExpiredException {
+		checkListingAllowed(userJID, entityId);
+
+		LOGGER.debug("Getting media changes from: " + entityId);
+
+		// both from the primary: a lagging replica may not have the changes the
+		// token already covers, and would take it for one from the future
+		final List<MediaChange> changes;
+		ChannelSequence sequence;
+		UnitOfWork unitOfWork = dataSource.beginUnitOfWork();
+		try {
+			changes = dataSource.getMediaChanges(entityId, since.getSeq());
+
+			// read after the changes, so tombstones purged meanwhile are noticed
+			sequence = dataSource.getChannelSequence(entityId);
+			unitOfWork.commit();
+		} finally {
+			unitOfWork.close();
+		}
 
+		if (since.getSeq() < sequence.getPurgedSeq() || since.getSeq() > sequence.getSeq()) {
+			throw new SyncTokenExpiredException(entityId);
+		}
+
+		long seq = changes.isEmpty() ? since.getSeq() : changes.get(changes.size() - 1).getSeq();
+		final String syncToken = new SyncToken(seq).encode();
+
+		return new MediasInfo(null, syncToken) {
+			@Override
+			public void write(Writer writer) throws IOException {
+				JsonWriter jsonWriter = new JsonWriter(writer);
+				jsonWriter.beginObject();
+				jsonWriter.name("token").value(syncToken);
+
+				jsonWriter.name("changed").beginArray();
+				for (MediaChange change : changes) {
+					if (!change.isDeleted()) {
+						gson.toJson(change.getMedia(), Media.class, jsonWriter);
+					}
+				}
+				jsonWriter.endArray();
+
+				jsonWriter.name("deleted").beginArray();
+				for (MediaChange change : changes) {
+					if (change.isDeleted()) {
+						jsonWriter.value(change.getMediaId());
+					}
+				}
+				jsonWriter.endArray();
+
+				jsonWriter.endObject();
+				jsonWriter.flush();
+			}
+		};
+	}
+
+	private void checkListingAllowed(String userJID, String entityId)
+			throws UserNotAllowedException {
 		if (userJID != null) {
 			if (!isUserAllowed(userJID, entityId, new OwnerDecorator(new ModeratorDecorator(
                     new PublisherDecorator(new MemberDecorator()))))) {
@@ -208,12 +562,59 @@ public class MediaDAO {
 				throw new UserNotAllowedException(userJID);
 			}
 		}
+	}
 
-		LOGGER.debug("Getting medias info from: " + entityId);
+	private MediasInfo toMediasInfo(final List<Media> medias, String nextCursor, String syncToken) {
+		return new MediasInfo(nextCursor, syncToken) {
+			@Override
+			public void write(Writer writer) throws IOException {
+				JsonWriter jsonWriter = new JsonWriter(writer);
+				gson.toJson(medias, MEDIA_LIST_TYPE, jsonWriter);
+				jsonWriter.flush();
+			}
+		};
+	}
 
-		List<Media> medias = dataSource.getMediasInfo(entityId, max, after);
+	/**
+	 * Unpaginated listings are read in pages of {@code jdbc.fetch.size} media, each
+	 * written before the next is read, so they take the same memory whatever the
+	 * channel size. No connection is held while a page is sent to the client.
+	 */
+	private MediasInfo streamMediasInfo(final String entityId, final MediaCursor cursor,
+			final MediaFilter filter, String syncToken) {
+		final int pageSize = Integer.valueOf(configuration.getProperty(
+				MediaServerConfiguration.JDBC_FETCH_SIZE));
+
+		return new MediasInfo(null, syncToken) {
+			@Override
+			public void write(Writer writer) throws IOException {
+				JsonWriter jsonWriter = new JsonWriter(writer);
+				jsonWriter.beginArray();
+
+				MediaCursor after = cursor;
+				List<Media> page;
+				do {
+					try {
+						page = dataSource.getMediasInfo(entityId, pageSize, after, filter);
+					} catch (MetadataSourceException e) {
+						throw new IOException("Error while streaming medias info", e);
+					}
 
-		return gson.toJson(medias);
+					if (!page.isEmpty()) {
+						after = MediaCursor.after(page.get(page.size() - 1));
+					}
+					for (Media media : page) {
+						if (filter != null) {
+							filter.project(media);
+						}
+						gson.toJson(media, Media.class, jsonWriter);
+					}
+				} while (page.size() == pageSize);
+
+				jsonWriter.endArray();
+				jsonWriter.flush();
+			}
+		};
 	}
 
 	/**
@@ -230,6 +631,24 @@ public class MediaDAO {
 	public MediaFile<File> getMedia(String userJID, String entityId, String mediaId)
 			throws MetadataSourceException, MediaNotFoundException,
 			IOException, UserNotAllowedException {
+		return getMedia(userJID, entityId, mediaId, false);
+	}
+
+	/**
+	 * Gets a media file, or its streaming rendition when one was produced.
+	 * @param userJID the user that is trying to get the media.
+	 * @param entityId media channel's id.
+	 * @param mediaId media to be fetched.
+	 * @param preferRendition whether the transcoded rendition should be returned, if available.
+	 * @return media file.
+	 * @throws MetadataSourceException if something goes wrong while retrieving media's metadata.
+	 * @throws MediaNotFoundException there is no media with such id.
+	 * @throws IOException if something goes wrong while getting media file.
+	 * @throws UserNotAllowedException this {@param userJID} is not allowed to perform this operation.
+	 */
+	public MediaFile<File> getMedia(String userJID, String entityId, String mediaId,
+			boolean preferRendition) throws MetadataSourceException, MediaNotFoundException,
+			IOException, UserNotAllowedException {
 
 		if (isAvatar(mediaId)) {
 			return getAvatar(entityId);
@@ -255,6 +674,16 @@ public class MediaDAO {
 			throw new MediaNotFoundException(mediaId, entityId);
 		}
 
+		if (preferRendition) {
+			File rendition = getAudioRenditionFile(fullDirectoryPath, mediaId);
+
+			if (rendition.exists()) {
+				LOGGER.debug("Serving transcoded rendition. Media ID: " + mediaId);
+				return new MediaFile<File>(AudioUtils.TRANSCODED_MIME_TYPE, rendition,
+						media.getLastUpdatedDate());
+			}
+		}
+
         return new MediaFile<File>(media.getMimeType(), file, media.getLastUpdatedDate());
 	}
 
@@ -267,8 +696,8 @@ public class MediaDAO {
 	 */
 	public MediaFile<File> getAvatar(String entityId) throws MetadataSourceException,
             MediaNotFoundException, IOException {
-		String mediaId = dataSource.getEntityAvatarId(entityId);
-        if (mediaId == null) {
+		Media media = dataSource.getEntityAvatar(entityId);
+        if (media == null) {
             throw new MediaNotFoundException("avatar", entityId);
         }
 
@@ -276,15 +705,294 @@ public class MediaDAO {
 
 		String fullDirectoryPath = getDirectory(entityId);
 
-		File file = new File(fullDirectoryPath + File.separator + mediaId);
+		File file = new File(fullDirectoryPath + File.separator + media.getId());
 
 		if (!file.exists()) {
+			throw new MediaNotFoundException(media.getId(), entityId);
+		}
+
+		return new MediaFile<File>(media.getMimeType(), file, media.getLastUpdatedDate());
+	}
+
+	/**
+	 * Gets a channel avatar's content, from memory when possible. The original avatar and
+	 * the precomputed sizes are cached, other sizes go through the regular preview flow.
+	 * @param entityId avatar's channel.
+	 * @param maxHeight preview height limit, or null for the original avatar.
+	 * @param maxWidth preview width limit, or null for the original avatar.
+	 * @return avatar content: its bytes, or its file if it is an original
+	 * avatar too large to be cached, which should be streamed.
+	 * @throws MetadataSourceException if something goes wrong while retrieving avatar's metadata.
+	 * @throws MediaNotFoundException there is no media representing {@param entityId} avatar.
+	 * @throws IOException if something goes wrong while reading the avatar file.
+	 * @throws InvalidPreviewFormatException if the avatar can't be resized.
+	 */
+	public AvatarContent getAvatarContent(String entityId, Integer maxHeight, Integer maxWidth)
+			throws MetadataSourceException, MediaNotFoundException, IOException,
+			InvalidPreviewFormatException {
+		CachedAvatar cached = avatarCache.get(entityId, maxHeight, maxWidth);
+		if (cached != null) {
+			LOGGER.debug("Avatar served from memory. Entity ID: " + entityId);
+			return cached;
+		}
+
+		InvalidationStamps.Stamp stamp = avatarCache.stamp();
+
+		MediaPreview mediaPreview;
+		if (maxHeight == null && maxWidth == null) {
+			Media media = dataSource.getEntityAvatar(entityId);
+			mediaPreview = media != null ? new MediaPreview(media, null) : null;
+		} else {
+			mediaPreview = dataSource.getEntityAvatarWithPreview(entityId, maxHeight, maxWidth);
+		}
+
+		if (mediaPreview == null) {
+			throw new MediaNotFoundException("avatar", entityId);
+		}
+
+		return loadAvatarContent(entityId, mediaPreview, maxHeight, maxWidth, stamp);
+	}
+
+	/**
+	 * Gets the avatar ETags and URLs of several channels, resolved with a single query.
+	 * @param entityIds avatars' channels.
+	 * @param size square size of the avatars, or null for the original ones.
+	 * @param baseURL the media server URL the avatar URLs are built on.
+	 * @return a JSON map of channel to its avatar etag and url. Channels without avatar are left out.
+	 * @throws MetadataSourceException if something goes wrong while retrieving avatars' metadata.
+	 */
+	public String getAvatarsInfo(List<String> entityIds, Integer size, String baseURL)
+			throws MetadataSourceException {
+		LOGGER.debug("Getting avatars info from " + entityIds.size() + " channels");
+
+		Map<String, Media> avatars = dataSource.getEntitiesAvatars(entityIds);
+		Map<String, Map<String, String>> result = new LinkedHashMap<String, Map<String, String>>();
+
+		for (String entityId : entityIds) {
+			Media media = avatars.get(entityId);
+			if (media == null) {
+				continue;
+			}
+
+			String url = baseURL + "/" + entityId + "/" + Constants.AVATAR_ARG;
+			if (size != null) {
+				url += "?" + Constants.MAX_HEIGHT_QUERY + "=" + size + "&"
+						+ Constants.MAX_WIDTH_QUERY + "=" + size;
+			}
+
+			Map<String, String> info = new LinkedHashMap<String, String>();
+			info.put("etag", getAvatarTag(media.getLastUpdatedDate(), size, size));
+			info.put("url", url);
+
+			result.put(entityId, info);
+		}
+
+		return gson.toJson(result);
+	}
+
+	/**
+	 * Gets the avatars of several channels, resolved with a single query and
+	 * served from memory when possible.
+	 * @param entityIds avatars' channels.
+	 * @param size square size of the avatars, or null for the original ones.
+	 * @return each channel's avatar, in the requested order, as its bytes or as the file
+	 * of an original avatar too large to be cached. Channels without avatar are left out.
+	 * @throws MetadataSourceException if something goes wrong while retrieving avatars' metadata.
+	 * @throws IOException if something goes wrong while reading an avatar file.
+	 * @throws InvalidPreviewFormatException if an avatar can't be resized.
+	 */
+	public Map<String, AvatarContent> getAvatarsContent(List<String> entityIds, Integer size)
+			throws MetadataSourceException, IOException, InvalidPreviewFormatException {
+		LOGGER.debug("Getting avatars from " + entityIds.size() + " channels");
+
+		InvalidationStamps.Stamp stamp = avatarCache.stamp();
+		Map<String, AvatarContent> result = new LinkedHashMap<String, AvatarContent>();
+
+		// preview lookups of uncached sizes share the connection, which is given
+		// back before any avatar is read or rendered
+		Map<String, MediaPreview> uncached = new LinkedHashMap<String, MediaPreview>();
+		UnitOfWork unitOfWork = dataSource.beginReadUnitOfWork(entityIds);
+		try {
+			Map<String, Media> avatars = dataSource.getEntitiesAvatars(entityIds);
+
+			for (String entityId : entityIds) {
+				Media media = avatars.get(entityId);
+				if (media == null) {
+					continue;
+				}
+
+				CachedAvatar avatar = avatarCache.get(entityId, size, size);
+				if (avatar != null) {
+					result.put(entityId, avatar);
+					continue;
+				}
+
+				MediaPreview mediaPreview = size == null ? new MediaPreview(media, null)
+						: dataSource.getMediaWithPreview(media.getId(), size, size);
+				if (mediaPreview == null) {
+					LOGGER.debug("Avatar file missing. Entity ID: " + entityId);
+					continue;
+				}
+
+				// holds the channel's place in the requested order
+				result.put(entityId, null);
+				uncached.put(entityId, mediaPreview);
+			}
+
+			unitOfWork.commit();
+		} finally {
+			unitOfWork.close();
+		}
+
+		for (Map.Entry<String, MediaPreview> entry : uncached.entrySet()) {
+			String entityId = entry.getKey();
+			try {
+				result.put(entityId, loadAvatarContent(entityId, entry.getValue(), size, size, stamp));
+			} catch (MediaNotFoundException e) {
+				LOGGER.debug("Avatar file missing. Entity ID: " + entityId);
+				result.remove(entityId);
+			}
+		}
+
+		return result;
+	}
+
+	/**
+	 * Builds a media entity tag. A media and its transcoded rendition share their
+	 * last updated date, so the type served tells them apart.
+	 */
+	public static String getMediaTag(Date lastModified, String mimeType) {
+		return Long.toHexString(lastModified != null ? lastModified.getTime() : 0) + "-" + mimeType;
+	}
+
+	/**
+	 * Builds an avatar entity tag. A new avatar always has a new last updated date,
+	 * so the date and the requested size are enough to tell versions apart.
+	 */
+	public static String getAvatarTag(Date lastModified, Integer maxHeight, Integer maxWidth) {
+		String tag = Long.toHexString(lastModified != null ? lastModified.getTime() : 0);
+		if (maxHeight != null || maxWidth != null) {
+			tag += "-" + maxHeight + "x" + maxWidth;
+		}
+
+		return tag;
+	}
+
+	/**
+	 * Loads an avatar, and caches it unless it was invalidated since {@code stamp}
+	 * was taken. Original avatars the cache wouldn't keep are not read, their file
+	 * is returned.
+	 */
+	private AvatarContent loadAvatarContent(String entityId, MediaPreview mediaPreview,
+			Integer maxHeight, Integer maxWidth, InvalidationStamps.Stamp stamp)
+			throws MetadataSourceException, MediaNotFoundException, IOException,
+			InvalidPreviewFormatException {
+		String fullDirectoryPath = getDirectory(entityId);
+		Media media = mediaPreview.getMedia();
+
+		CachedAvatar avatar;
+		if (maxHeight == null && maxWidth == null) {
+			File file = new File(fullDirectoryPath + File.separator + media.getId());
+			if (!file.exists()) {
+				throw new MediaNotFoundException(media.getId(), entityId);
+			}
+
+			if (!avatarCache.fits(file.length())) {
+				return new StreamedAvatar(media.getMimeType(), file, media.getLastUpdatedDate());
+			}
+
+			avatar = new CachedAvatar(media.getMimeType(),
+					FileUtils.readFileToByteArray(file), media.getLastUpdatedDate());
+		} else {
+			MediaFile<byte[]> preview = getPreview(entityId, mediaPreview, maxHeight, maxWidth,
+					fullDirectoryPath);
+			avatar = new CachedAvatar(preview.getMimeType(), preview.getMediaFile(),
+					preview.getLastModified());
+		}
+
+		avatarCache.put(entityId, maxHeight, maxWidth, avatar, stamp);
+		return avatar;
+	}
+
+	/**
+	 * Gets a file from the HLS package of a media (its playlist or one of its segments).
+	 * @param userJID the user that is trying to get the media.
+	 * @param entityId media channel's id.
+	 * @param mediaId packaged media.
+	 * @param fileName playlist or segment name.
+	 * @return the requested playlist or segment.
+	 * @throws MetadataSourceException if something goes wrong while retrieving media's metadata.
+	 * @throws MediaNotFoundException there is no such media, or it wasn't packaged (yet).
+	 * @throws UserNotAllowedException this {@param userJID} is not allowed to perform this operation.
+	 */
+	public MediaFile<File> getMediaHLSFile(String userJID, String entityId, String mediaId,
+			String fileName) throws MetadataSourceException, MediaNotFoundException,
+			UserNotAllowedException {
+
+		if (userJID != null) {
+            if (!isUserAllowed(userJID, entityId, new OwnerDecorator(new ModeratorDecorator(
+                    new PublisherDecorator(new MemberDecorator()))))) {
+				LOGGER.debug("User '" + userJID
+						+ "' not allowed to peform get operation on: "
+						+ entityId);
+				throw new UserNotAllowedException(userJID);
+			}
+		}
+
+		LOGGER.debug("Getting media HLS file. Media ID: " + mediaId + ", file: " + fileName);
+
+		if (isAvatar(mediaId) || !HLSPackager.isHLSFile(fileName)) {
 			throw new MediaNotFoundException(mediaId, entityId);
 		}
 
-        Media media = dataSource.getMedia(mediaId);
+		File file = new File(getHLSDirectory(getDirectory(entityId), mediaId), fileName);
+		Media media = dataSource.getMedia(mediaId);
 
-		return new MediaFile<File>(media.getMimeType(), file, media.getLastUpdatedDate());
+		if (!file.exists() || (null == media)) {
+			throw new MediaNotFoundException(mediaId, entityId);
+		}
+
+		return new MediaFile<File>(HLSPackager.getMimeType(fileName), file,
+				media.getLastUpdatedDate());
+	}
+
+	/**
+	 * Gets the waveform peaks computed for an audio media.
+	 * @param userJID the user that is trying to get the waveform.
+	 * @param entityId media channel's id.
+	 * @param mediaId audio media.
+	 * @return the peaks file, see {@link AudioUtils#createWaveformPeaks(File, int)}.
+	 * @throws MetadataSourceException if something goes wrong while retrieving media's metadata.
+	 * @throws MediaNotFoundException there is no such media, or its waveform wasn't computed (yet).
+	 * @throws UserNotAllowedException this {@param userJID} is not allowed to perform this operation.
+	 */
+	public MediaFile<File> getMediaWaveform(String userJID, String entityId, String mediaId)
+			throws MetadataSourceException, MediaNotFoundException, UserNotAllowedException {
+
+		if (userJID != null) {
+            if (!isUserAllowed(userJID, entityId, new OwnerDecorator(new ModeratorDecorator(
+                    new PublisherDecorator(new MemberDecorator()))))) {
+				LOGGER.debug("User '" + userJID
+						+ "' not allowed to peform get info operation on: "
+						+ entityId);
+				throw new UserNotAllowedException(userJID);
+			}
+		}
+
+		LOGGER.debug("Getting media waveform. Media ID: " + mediaId);
+
+		if (isAvatar(mediaId)) {
+			throw new MediaNotFoundException(mediaId, entityId);
+		}
+
+		File file = getWaveformFile(getDirectory(entityId), mediaId);
+		Media media = dataSource.getMedia(mediaId);
+
+		if (!file.exists() || (null == media)) {
+			throw new MediaNotFoundException(mediaId, entityId);
+		}
+
+		return new MediaFile<File>(WAVEFORM_MIME_TYPE, file, media.getLastUpdatedDate());
 	}
 
 	/**
@@ -321,19 +1029,78 @@ public class MediaDAO {
 
 		LOGGER.debug("Getting media preview. Media ID: " + mediaId);
 
-		return getPreview(entityId, mediaId, maxHeight, maxWidth,
+		MediaPreview mediaPreview = dataSource.getMediaWithPreview(mediaId, maxHeight, maxWidth);
+		if (mediaPreview == null) {
+			throw new MediaNotFoundException(mediaId, entityId);
+		}
+
+		return getPreview(entityId, mediaPreview, maxHeight, maxWidth,
 				getDirectory(entityId));
 	}
 
+	/**
+	 * Mints a URL of a media, or of one of its previews, that can be fetched
+	 * without authentication until it expires.
+	 * @param userJID user that is sharing the media, or null for public channels.
+	 * @param entityId media channel's id.
+	 * @param mediaId media to be shared.
+	 * @param maxHeight preview height limit, or null for the media itself.
+	 * @param maxWidth preview width limit, or null for the media itself.
+	 * @param lifetime how long the URL is valid, in seconds.
+	 * @param baseURL the media server URL the media URL is built on.
+	 * @return a JSON object with the url and when it expires.
+	 * @throws MetadataSourceException if something goes wrong while retrieving media's metadata.
+	 * @throws MediaNotFoundException there is no media with such id in the channel.
+	 * @throws UserNotAllowedException this {@param userJID} is not allowed to get the media.
+	 */
+	public String getSignedMediaURL(String userJID, String entityId, String mediaId,
+			Integer maxHeight, Integer maxWidth, long lifetime, String baseURL)
+			throws MetadataSourceException, MediaNotFoundException, UserNotAllowedException {
+		if (userJID != null && !isUserAllowed(userJID, entityId, new OwnerDecorator(
+				new ModeratorDecorator(new PublisherDecorator(new MemberDecorator()))))) {
+			LOGGER.debug("User '" + userJID + "' not allowed to share media on: " + entityId);
+			throw new UserNotAllowedException(userJID);
+		}
+
+		Media media = dataSource.getMedia(mediaId);
+		if (media == null || !entityId.equals(media.getEntityId())) {
+			throw new MediaNotFoundException(mediaId, entityId);
+		}
+
+		long expires = System.currentTimeMillis() / 1000 + lifetime;
+		String signature = SignedURLs.getInstance().sign(entityId, mediaId, maxHeight, maxWidth,
+				expires);
+
+		StringBuilder url = new StringBuilder(baseURL).append("/").append(entityId)
+				.append("/").append(mediaId).append("?");
+		if (maxHeight != null) {
+			url.append(Constants.MAX_HEIGHT_QUERY).append("=").append(maxHeight).append("&");
+		}
+		if (maxWidth != null) {
+			url.append(Constants.MAX_WIDTH_QUERY).append("=").append(maxWidth).append("&");
+		}
+		url.append(Constants.EXPIRES_QUERY).append("=").append(expires).append("&")
+				.append(Constants.SIGNATURE_QUERY).append("=").append(signature);
+
+		Map<String, Object> result = new LinkedHashMap<String, Object>();
+		result.put("url", url.toString());
+		result.put("expires", new Date(expires * 1000));
+
+		return gson.toJson(result);
+	}
+
 	private MediaFile<byte[]> getAvatarPreview(String entityId,
 			Integer maxHeight, Integer maxWidth)
 					throws MetadataSourceException, MediaNotFoundException,
 					IOException, InvalidPreviewFormatException {
-		String mediaId = dataSource.getEntityAvatarId(entityId);
-
 		LOGGER.debug("Getting avatar preview. Avatar ID: " + entityId);
 
-		return getPreview(entityId, mediaId, maxHeight, maxWidth,
+		MediaPreview mediaPreview = dataSource.getEntityAvatarWithPreview(entityId, maxHeight, maxWidth);
+		if (mediaPreview == null) {
+			throw new MediaNotFoundException("avatar", entityId);
+		}
+
+		return getPreview(entityId, mediaPreview, maxHeight, maxWidth,
 				getDirectory(entityId));
 	}
 
@@ -348,11 +1115,13 @@ public class MediaDAO {
 	public String getMediaType(String entityId, String mediaId)
 			throws MetadataSourceException, MediaNotFoundException {
 		if (isAvatar(mediaId)) {
-			mediaId = dataSource.getEntityAvatarId(entityId);
+			Media avatar = dataSource.getEntityAvatar(entityId);
 
-			if (mediaId == null) {
+			if (avatar == null) {
 				throw new MediaNotFoundException("avatar", entityId);
 			}
+
+			return avatar.getMimeType();
 		}
 
 		return dataSource.getMediaMimeType(mediaId);
@@ -373,12 +1142,16 @@ public class MediaDAO {
 			Form form) throws MetadataSourceException, MediaNotFoundException, 
 			UserNotAllowedException {
 
-		if (isAvatar(mediaId)) {
-			mediaId = dataSource.getEntityAvatarId(entityId);
+		String requestedId = mediaId;
+		Media media = isAvatar(mediaId) ? dataSource.getEntityAvatar(entityId)
+				: dataSource.getMedia(mediaId);
+
+		if (media == null) {
+			throw new MediaNotFoundException(mediaId, entityId);
 		}
 
-		boolean isUploader = dataSource.getMediaUploader(mediaId)
-				.equals(userJID);
+		mediaId = media.getId();
+		boolean isUploader = media.getAuthor().equals(userJID);
 
 		if (!isUploader) {
             if (!isUserAllowed(userJID, entityId, new OwnerDecorator(new ModeratorDecorator()))) {
@@ -389,12 +1162,6 @@ public class MediaDAO {
 			}
 		}
 
-		Media media = dataSource.getMedia(mediaId);
-
-		if (media == null) {
-			throw new MediaNotFoundException(mediaId, entityId);
-		}
-
 		// get form fields
 		String fileName = form.getFirstValue(Constants.NAME_FIELD);
 		if (fileName != null) {
@@ -411,12 +1178,16 @@ public class MediaDAO {
 			media.setDescription(description);
 		}
 
+		// fields and last updated date go in the same statement
+		media.setLastUpdatedDate(new Date());
+		awaitJournal(media.getId());
 		dataSource.updateMediaFields(media);
-
-		// Update last updated date
-		dataSource.updateMediaLastUpdated(mediaId);
 		LOGGER.debug("Media sucessfully updated. Media ID: " + media.getId());
 
+		if (isAvatar(requestedId)) {
+			avatarCache.invalidate(entityId);
+		}
+
 		return gson.toJson(media);
 	}
 
@@ -429,9 +1200,11 @@ public class MediaDAO {
 	 * @return media's metadata, if the upload ends with success
 	 * @throws FileUploadException the is something wrong with the request.
 	 * @throws UserNotAllowedException the user {@param userJID} is now allowed to upload media in this channel.
+	 * @throws MetadataSourceException if the media's metadata can't be stored.
 	 */
 	public String insertWebFormMedia(String userJID, String entityId, Form form,
-			boolean isAvatar) throws FileUploadException, UserNotAllowedException {
+			boolean isAvatar) throws FileUploadException, UserNotAllowedException,
+			MetadataSourceException {
 
 		LOGGER.debug("User '" + userJID
 				+ "' trying to upload web-form media on: " + entityId);
@@ -498,9 +1271,11 @@ public class MediaDAO {
 	 * @return media's metadata, if the upload ends with success
 	 * @throws FileUploadException the is something wrong with the request.
 	 * @throws UserNotAllowedException the user {@param userJID} is now allowed to upload media in this channel.
+	 * @throws MetadataSourceException if the media's metadata can't be stored.
 	 */
 	public String insertFormDataMedia(String userJID, String entityId, Request request,
-			boolean isAvatar) throws FileUploadException, UserNotAllowedException {
+			boolean isAvatar) throws FileUploadException, UserNotAllowedException,
+			MetadataSourceException {
 
 		LOGGER.debug("User '" + userJID
 				+ "' trying to upload form-data media in: " + entityId);
@@ -577,15 +1352,15 @@ public class MediaDAO {
 
 	protected Media storeMedia(String fileName, String title,
 			String description, String author, String entityId,
-			String mimeType, byte[] data, final boolean isAvatar)
-					throws FileUploadException {
+			String mimeType, byte[] data, boolean isAvatar)
+					throws FileUploadException, MetadataSourceException {
 
 		String directory = getDirectory(entityId);
 		mkdir(directory);
 
 		// TODO assert id uniqueness
 		String mediaId = RandomStringUtils.randomAlphanumeric(20);
-		String filePath = directory + File.separator + mediaId;
+		final String filePath = directory + File.separator + mediaId;
 		File file = new File(filePath);
 		
 		LOGGER.debug("Storing new media: " + file.getAbsolutePath());
@@ -600,45 +1375,188 @@ public class MediaDAO {
 			throw new FileUploadException(e.getMessage());
 		}
 
-		final Media media = createMedia(mediaId, fileName, title, description,
+		Media media = createMedia(mediaId, fileName, title, description,
 				author, entityId, mimeType, file, isAvatar);
-		
+
 		// store media's metadata
-		new Thread() {
-			public void start() {
-				try {
-					dataSource.storeMedia(media);
-
-					if (isAvatar) {
-						if (dataSource.getEntityAvatarId(media.getEntityId()) != null) {
-							dataSource.updateEntityAvatar(media.getEntityId(),
-									media.getId());
-						} else {
-							dataSource.storeAvatar(media);
+		try {
+			if (journal != null) {
+				journalMedia(new StoredMedia(media, isAvatar));
+			} else {
+				storeMetadata(Collections.singletonList(new StoredMedia(media, isAvatar)));
+			}
+		} catch (MetadataPendingException e) {
+			// its write is under way, so the file must stay for it
+			LOGGER.warn("Media metadata not stored yet. Media ID: " + mediaId);
+			if (!isAvatar) {
+				scheduleJobs(media, new File(filePath));
+			}
+			throw e;
+		} catch (MetadataSourceException e) {
+			// the write was given up, nobody could find the file without its metadata
+			LOGGER.error("Could not store media metadata. Media ID: " + mediaId, e);
+			file.delete();
+			throw e;
+		}
+
+		if (!isAvatar) {
+			scheduleJobs(media, new File(filePath));
+		}
+
+		return media;
+	}
+
+	/**
+	 * Records a media in the journal, to be stored in the database in the background.
+	 * Until then it is read from the journal.
+	 */
+	private void journalMedia(StoredMedia stored) throws MetadataSourceException {
+		byte[] payload;
+		try {
+			payload = gson.toJson(stored).getBytes(JOURNAL_CHARSET);
+		} catch (IOException e) {
+			throw new MetadataSourceException("Could not write metadata journal", e);
+		}
+
+		// records reach the applier in sequence order, or later ones could be
+		// checkpointed before earlier ones are stored
+		synchronized (journal) {
+			long seq;
+			try {
+				seq = journal.append(payload);
+			} catch (IOException e) {
+				throw new MetadataSourceException("Could not write metadata journal", e);
+			}
+
+			dataSource.addPendingMedia(stored.media);
+			journaledMedias.put(stored.media.getId(), seq);
+			journalApplier.submit(new JournalRecord(seq, payload));
+		}
+	}
+
+	/**
+	 * Stores medias and their avatar entries through the batch writer, so they
+	 * share transactions with concurrent uploads. Medias already stored are
+	 * skipped, so journal records can be replayed.
+	 * @throws MetadataSourceException if any media could not be stored; the others are.
+	 */
+	protected void storeMetadata(List<StoredMedia> medias) throws MetadataSourceException {
+		List<BatchWriter.PendingWrite> writes = new ArrayList<BatchWriter.PendingWrite>();
+		for (StoredMedia entry : medias) {
+			writes.add(batchWriter.submitMedia(entry.media, entry.avatar));
+		}
+
+		MetadataSourceException failure = null;
+		for (int i = 0; i < medias.size(); i++) {
+			final Media media = medias.get(i).media;
+			try {
+				writes.get(i).await();
+			} catch (MetadataPendingException e) {
+				if (medias.get(i).avatar) {
+					// its sizes will be rendered on demand, but the old avatar must go
+					writes.get(i).onComplete(new Runnable() {
+						public void run() {
+							avatarCache.invalidate(media.getEntityId());
 						}
-					}
-				} catch (MetadataSourceException e) {
-					// do nothing
-					LOGGER.error("Database error", e);
+					});
 				}
+				failure = e;
+				continue;
+			} catch (MetadataSourceException e) {
+				failure = e;
+				continue;
 			}
-		}.start();
 
-		return media;
+			dataSource.removePendingMedia(media.getId());
+			journaledMedias.remove(media.getId());
+
+			if (medias.get(i).avatar && writes.get(i).isStored()) {
+				storeAvatarSizes(media, getDirectory(media.getEntityId())
+						+ File.separator + media.getId());
+				avatarCache.invalidate(media.getEntityId());
+			}
+		}
+
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	// Renders the configured avatar sizes up front, so they never go through the on-demand preview flow
+	protected void storeAvatarSizes(Media media, String filePath) {
+		if (!ImageUtils.isImage(media.getFileExtension())) {
+			return;
+		}
+
+		try {
+			previewRendering.acquire();
+		} catch (BulkheadFullException e) {
+			// the media is already stored; its sizes will be rendered on demand
+			LOGGER.warn("Avatar sizes not rendered, " + e.getMessage() + ". Media ID: " + media.getId());
+			return;
+		}
+
+		try {
+			BufferedImage img = ImageIO.read(new File(filePath));
+			String directory = new File(filePath).getParent();
+
+			for (Integer size : avatarSizes) {
+				new StorePreviewThread(RandomStringUtils.randomAlphanumeric(20), directory,
+						media.getId(), media.getMimeType(), size, size,
+						media.getFileExtension(), img).start();
+			}
+		} catch (IOException e) {
+			LOGGER.error("Error while rendering avatar sizes. Media ID: " + media.getId(), e);
+		} finally {
+			previewRendering.release();
+		}
+	}
+
+	protected void scheduleJobs(Media media, File file) {
+		String extension = media.getFileExtension();
+
+		if (AudioUtils.isAudio(extension) && Boolean.valueOf(configuration
+				.getProperty(MediaServerConfiguration.MEDIA_WAVEFORM_ENABLED))) {
+			int buckets = Integer.valueOf(configuration
+					.getProperty(MediaServerConfiguration.MEDIA_WAVEFORM_BUCKETS));
+
+			JobExecutor.getInstance().submit("Waveform of " + media.getId(),
+					new WaveformJob(file, getWaveformFile(file.getParent(), media.getId()),
+							buckets));
+		}
+
+		if (AudioUtils.isTranscodable(extension) && Boolean.valueOf(configuration
+				.getProperty(MediaServerConfiguration.MEDIA_AUDIO_TRANSCODING_ENABLED))) {
+			int bitRate = Integer.valueOf(configuration
+					.getProperty(MediaServerConfiguration.MEDIA_AUDIO_TRANSCODING_BITRATE));
+
+			JobExecutor.getInstance().submit("Audio transcoding of " + media.getId(),
+					new AudioTranscodingJob(file, getAudioRenditionFile(file.getParent(),
+							media.getId()), bitRate));
+		}
+
+		if (VideoUtils.isVideo(extension) && Boolean.valueOf(configuration
+				.getProperty(MediaServerConfiguration.MEDIA_HLS_ENABLED))) {
+			int segmentDuration = Integer.valueOf(configuration
+					.getProperty(MediaServerConfiguration.MEDIA_HLS_SEGMENT_DURATION));
+
+			JobExecutor.getInstance().submit("HLS packaging of " + media.getId(),
+					new HLSPackagingJob(file, getHLSDirectory(file.getParent(), media.getId()),
+							segmentDuration));
+		}
 	}
 
-	protected MediaFile<byte[]> getPreview(String entityId, String mediaId, Integer maxHeight,
+	protected MediaFile<byte[]> getPreview(String entityId, MediaPreview mediaPreview, Integer maxHeight,
 			Integer maxWidth, String mediaDirectory) throws MetadataSourceException, IOException,
             InvalidPreviewFormatException, MediaNotFoundException {
-		File file = new File(mediaDirectory + File.separator + mediaId);
+        Media media = mediaPreview.getMedia();
+		File file = new File(mediaDirectory + File.separator + media.getId());
 
 		if (!file.exists()) {
-			throw new MediaNotFoundException(mediaId, entityId);
+			throw new MediaNotFoundException(media.getId(), entityId);
 		}
 
-        Media media = dataSource.getMedia(mediaId);
-        String previewId = dataSource
-				.getPreviewId(mediaId, maxHeight, maxWidth);
+        String previewId = mediaPreview.getPreview() != null ? mediaPreview.getPreview().getId() : null;
 
         if (previewId != null) {
             File preview = new File(mediaDirectory + File.separator + previewId);
@@ -646,7 +1564,7 @@ public class MediaDAO {
             if (!preview.exists()) {
                 dataSource.deletePreview(previewId);
             } else {
-                return new MediaFile<byte[]>(dataSource.getPreviewMimeType(previewId),
+                return new MediaFile<byte[]>(mediaPreview.getPreview().getMimeType(),
 						IOUtils.toByteArray(FileUtils.openInputStream(preview)),
                         media.getLastUpdatedDate());
 			}
@@ -661,6 +1579,22 @@ public class MediaDAO {
 	private MediaFile<byte[]> buildNewPreview(File file, Media media, String previewId, String mediaDirectory,
 			Integer maxHeight, Integer maxWidth) throws MetadataSourceException, IOException, InvalidPreviewFormatException {
 		String extension = media.getFileExtension();
+		if (!ImageUtils.isImage(extension) && !VideoUtils.isVideo(extension)) {
+			throw new InvalidPreviewFormatException(extension);
+		}
+
+		// rendering is CPU bound, only a few run at once however many requests wait
+		previewRendering.acquire();
+		try {
+			return renderNewPreview(file, media, previewId, mediaDirectory, maxHeight, maxWidth);
+		} finally {
+			previewRendering.release();
+		}
+	}
+
+	private MediaFile<byte[]> renderNewPreview(File file, Media media, String previewId, String mediaDirectory,
+			Integer maxHeight, Integer maxWidth) throws IOException, InvalidPreviewFormatException {
+		String extension = media.getFileExtension();
 
 		BufferedImage previewImg;
         MediaFile<byte[]> thumbnail;
@@ -736,6 +1670,10 @@ public class MediaDAO {
 		media.setTitle(title);
 		media.setMimeType(mimeType);
 
+		Date now = new Date();
+		media.setUploadedDate(now);
+		media.setLastUpdatedDate(now);
+
 		String fileExtension = getFileExtension(fileName, mimeType);
 		media.setFileExtension(fileExtension);
 
@@ -818,6 +1756,19 @@ public class MediaDAO {
 				+ File.separator + entityId;
 	}
 
+	private File getHLSDirectory(String mediaDirectory, String mediaId) {
+		return new File(mediaDirectory + File.separator + mediaId + ".hls");
+	}
+
+	private File getWaveformFile(String mediaDirectory, String mediaId) {
+		return new File(mediaDirectory + File.separator + mediaId + ".peaks");
+	}
+
+	private File getAudioRenditionFile(String mediaDirectory, String mediaId) {
+		return new File(mediaDirectory + File.separator + mediaId + "."
+				+ AudioUtils.TRANSCODED_TYPE);
+	}
+
     private boolean isUserAllowed(String userJID, String entityId, CapabilitiesDecorator capabilities) {
         PubSubClient pubSubClient = XMPPToolBox.getInstance().getPubSubClient();
         return pubSubClient.matchUserCapability(userJID, entityId, capabilities);
@@ -850,18 +1801,41 @@ public class MediaDAO {
 
 
 		public void start() {
+			File previewFile = null;
 			try {
-				File previewFile = ImageUtils.storeImageIntoFile(img, width,
+				// previews reference the media's row
+				awaitJournal(mediaId);
+
+				previewFile = ImageUtils.storeImageIntoFile(img, width,
 						height, extension, directory + File.separator + previewId);
 
 				Preview preview = createPreview(previewId, mediaId, mimeType,
 						height, width, previewFile);
 
-				dataSource.storePreview(preview);
+				batchWriter.storePreview(preview);
+			} catch (MetadataPendingException e) {
+				// the preview row, if it got that far, may still be written, so its file stays
+				LOGGER.warn("Preview " + previewId + " not stored yet. Media ID: " + mediaId);
 			} catch (Exception e) {
 				LOGGER.error("Error while storing preview: " + previewId
 						+ ". Media ID: " + mediaId, e);
+				if (previewFile != null) {
+					previewFile.delete();
+				}
 			}
 		}
 	}
+
+	/**
+	 * A new media as recorded in the metadata journal.
+	 */
+	protected static class StoredMedia {
+		private Media media;
+		private boolean avatar;
+
+		StoredMedia(Media media, boolean avatar) {
+			this.media = media;
+			this.avatar = avatar;
+		}
+	}
 }
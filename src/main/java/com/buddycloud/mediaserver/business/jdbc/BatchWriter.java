@@ -0,0 +1,480 @@
+/*
+ * Copyright 2012 buddycloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.buddycloud.mediaserver.business.jdbc;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.buddycloud.mediaserver.business.model.Media;
+import com.buddycloud.mediaserver.business.model.Preview;
+import com.buddycloud.mediaserver.commons.exception.MetadataPendingException;
+import com.buddycloud.mediaserver.commons.exception.MetadataSourceException;
+
+/**
+ * Groups new medias, avatar entries and previews submitted by concurrent
+ * callers, and stores them in batched statements within a single transaction.
+ * <p>
+ * A batch is written once {@code maxSize} writes are waiting, or {@code window}
+ * milliseconds after its first write was submitted. Callers wait on their
+ * {@link PendingWrite} until the batch is committed. If a batch fails, its
+ * writes are retried one by one, so a single bad write only fails its own caller.
+ * Callers that give up waiting cancel their write, unless the writer already took it.
+ */
+public class BatchWriter {
+	private static Logger LOGGER = LoggerFactory.getLogger(BatchWriter.class);
+
+	private final MetaDataSource dataSource;
+	private final int maxSize;
+	private final long window;
+	private final long timeout;
+
+	private final BlockingQueue<PendingWrite> queue = new LinkedBlockingQueue<PendingWrite>();
+	private Thread thread;
+
+	/**
+	 * @param maxSize maximum writes per transaction.
+	 * @param window how long a write may wait for others to join its batch, in milliseconds.
+	 * @param timeout how long a caller waits for its write to be committed, in milliseconds.
+	 */
+	public BatchWriter(MetaDataSource dataSource, int maxSize, long window, long timeout) {
+		this.dataSource = dataSource;
+		this.maxSize = maxSize;
+		this.window = window;
+		this.timeout = timeout;
+	}
+
+	public synchronized void start() {
+		if (thread != null) {
+			return;
+		}
+
+		thread = new Thread("metadata-batch-writer") {
+			public void run() {
+				writeLoop();
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	public synchronized void stop() {
+		if (thread != null) {
+			thread.interrupt();
+			thread = null;
+		}
+	}
+
+	/**
+	 * Stores a new media and waits for it to be committed.
+	 * @see #submitMedia(Media, boolean)
+	 */
+	public void storeMedia(Media media, boolean avatar) throws MetadataSourceException {
+		submitMedia(media, avatar).await();
+	}
+
+	/**
+	 * Queues a new media to be stored, unless it was already stored once. If
+	 * {@code avatar}, it also becomes its channel's avatar.
+	 */
+	public PendingWrite submitMedia(Media media, boolean avatar) {
+		return submit(new PendingWrite(media, avatar, null, timeout));
+	}
+
+	/**
+	 * Stores a preview and waits for it to be committed.
+	 */
+	public void storePreview(Preview preview) throws MetadataSourceException {
+		submit(new PendingWrite(null, false, preview, timeout)).await();
+	}
+
+	private PendingWrite submit(PendingWrite write) {
+		queue.add(write);
+		return write;
+	}
+
+	private void writeLoop() {
+		try {
+			while (!Thread.currentThread().isInterrupted()) {
+				List<PendingWrite> batch = new ArrayList<PendingWrite>();
+				batch.add(queue.take());
+
+				long deadline = System.currentTimeMillis() + window;
+				while (batch.size() < maxSize) {
+					queue.drainTo(batch, maxSize - batch.size());
+
+					long wait = deadline - System.currentTimeMillis();
+					if (batch.size() >= maxSize || wait <= 0) {
+						break;
+					}
+
+					PendingWrite write = queue.poll(wait, TimeUnit.MILLISECONDS);
+					if (write == null) {
+						break;
+					}
+					batch.add(write);
+				}
+
+				// writes given up on before their batch started are dropped
+				List<PendingWrite> claimed = new ArrayList<PendingWrite>();
+				for (PendingWrite write : batch) {
+					if (write.claim()) {
+						claimed.add(write);
+					}
+				}
+
+				if (!claimed.isEmpty()) {
+					flush(claimed);
+				}
+			}
+		} catch (InterruptedException e) {
+			LOGGER.debug("Batch writer stopped");
+		}
+	}
+
+	/**
+	 * Writes a batch and completes its callers. Never throws, so whatever goes
+	 * wrong with a batch can't stop the writer thread.
+	 */
+	private void flush(List<PendingWrite> batch) {
+		try {
+			write(batch);
+			for (PendingWrite write : batch) {
+				write.complete(null);
+			}
+
+			LOGGER.debug(batch.size() + " metadata writes committed");
+			return;
+		} catch (Throwable t) {
+			if (batch.size() == 1) {
+				batch.get(0).complete(toFailure(t));
+				return;
+			}
+
+			LOGGER.warn("Batch of " + batch.size() + " metadata writes failed, retrying them one by one", t);
+		}
+
+		for (PendingWrite write : batch) {
+			try {
+				write(Collections.singletonList(write));
+				write.complete(null);
+			} catch (Throwable t) {
+				write.complete(toFailure(t));
+			}
+		}
+	}
+
+	private static MetadataSourceException toFailure(Throwable t) {
+		if (t instanceof MetadataSourceException) {
+			return (MetadataSourceException) t;
+		}
+
+		LOGGER.error("Unexpected error while writing metadata", t);
+		return new MetadataSourceException(t.getMessage(), t);
+	}
+
+	private void write(List<PendingWrite> batch) throws MetadataSourceException {
+		List<Object[]> medias = new ArrayList<Object[]>();
+		List<Object[]> changes = new ArrayList<Object[]>();
+		List<Object[]> previews = new ArrayList<Object[]>();
+
+		// channels are locked in a fixed order, so concurrent batches can't deadlock
+		Map<String, List<PendingWrite>> channels = new TreeMap<String, List<PendingWrite>>();
+		Map<String, String> avatars = new TreeMap<String, String>();
+
+		UnitOfWork unitOfWork = dataSource.beginUnitOfWork();
+		try {
+			Connection connection = unitOfWork.getConnection();
+			Set<String> recorded = getRecordedMedias(connection, batch);
+
+			for (PendingWrite write : batch) {
+				write.stored = false;
+				if (write.preview != null) {
+					Preview preview = write.preview;
+					dataSource.recordWrite(preview.getId(), preview.getMediaId());
+					previews.add(new Object[] {preview.getId(), preview.getMediaId(),
+							preview.getShaChecksum(), preview.getFileSize(),
+							preview.getHeight(), preview.getWidth(), preview.getMimeType()});
+				} else if (!recorded.contains(write.media.getId())) {
+					// journal records may be applied twice
+					List<PendingWrite> channel = channels.get(write.media.getEntityId());
+					if (channel == null) {
+						channel = new ArrayList<PendingWrite>();
+						channels.put(write.media.getEntityId(), channel);
+					}
+					channel.add(write);
+				}
+			}
+
+			Timestamp now = new Timestamp(System.currentTimeMillis());
+			for (Map.Entry<String, List<PendingWrite>> channel : channels.entrySet()) {
+				List<PendingWrite> writes = channel.getValue();
+				long seq = dataSource.nextChangeSeq(channel.getKey(), writes.size()) - writes.size();
+
+				for (PendingWrite write : writes) {
+					Media media = write.media;
+					medias.add(dataSource.toSaveMediaArgs(media));
+					changes.add(new Object[] {media.getEntityId(), ++seq, false, now, media.getId()});
+					if (write.avatar) {
+						avatars.put(media.getEntityId(), media.getId());
+					}
+					write.stored = true;
+				}
+			}
+
+			executeBatch(connection, Queries.SAVE_MEDIA, medias);
+			executeBatch(connection, Queries.SAVE_MEDIA_CHANGE, changes);
+			storeAvatars(connection, avatars);
+			executeBatch(connection, Queries.SAVE_PREVIEW, previews);
+
+			for (List<PendingWrite> writes : channels.values()) {
+				for (PendingWrite write : writes) {
+					dataSource.invalidateMedia(write.media.getId());
+					dataSource.recordWrite(write.media.getId(), write.media.getEntityId());
+				}
+			}
+
+			unitOfWork.commit();
+		} catch (SQLException e) {
+			LOGGER.error("Error while writing metadata batch", e);
+			throw new MetadataSourceException(e.getMessage(), e);
+		} finally {
+			unitOfWork.close();
+		}
+	}
+
+	/**
+	 * Updates the avatar entries of the channels that have one, and creates the others.
+	 */
+	private void storeAvatars(Connection connection, Map<String, String> avatars)
+			throws SQLException, MetadataSourceException {
+		List<Object[]> updates = new ArrayList<Object[]>();
+		for (Map.Entry<String, String> avatar : avatars.entrySet()) {
+			updates.add(new Object[] {avatar.getValue(), avatar.getKey()});
+		}
+
+		int[] counts = executeBatch(connection, Queries.UPDATE_AVATAR, updates);
+
+		List<Object[]> inserts = new ArrayList<Object[]>();
+		for (int i = 0; i < counts.length; i++) {
+			String entityId = (String) updates.get(i)[1];
+
+			boolean missing = counts[i] == Statement.SUCCESS_NO_INFO
+					? dataSource.getEntityAvatarId(entityId) == null : counts[i] == 0;
+			if (missing) {
+				inserts.add(new Object[] {updates.get(i)[0], entityId});
+			}
+		}
+
+		executeBatch(connection, Queries.SAVE_AVATAR, inserts);
+	}
+
+	/**
+	 * @return the ids of the batch's medias that were already stored once.
+	 */
+	private Set<String> getRecordedMedias(Connection connection, List<PendingWrite> batch)
+			throws SQLException {
+		List<String> mediaIds = new ArrayList<String>();
+		StringBuilder params = new StringBuilder();
+		for (PendingWrite write : batch) {
+			if (write.media != null) {
+				params.append(mediaIds.isEmpty() ? "?" : ", ?");
+				mediaIds.add(write.media.getId());
+			}
+		}
+
+		Set<String> recorded = new HashSet<String>();
+		if (mediaIds.isEmpty()) {
+			return recorded;
+		}
+
+		PreparedStatement statement = connection.prepareStatement(
+				String.format(Queries.GET_RECORDED_MEDIAS, params));
+		try {
+			for (int i = 0; i < mediaIds.size(); i++) {
+				statement.setObject(i + 1, mediaIds.get(i));
+			}
+
+			ResultSet result = statement.executeQuery();
+			while (result.next()) {
+				recorded.add(result.getString(1));
+			}
+		} finally {
+			statement.close();
+		}
+
+		return recorded;
+	}
+
+	private int[] executeBatch(Connection connection, String sql, List<Object[]> rows)
+			throws SQLException {
+		if (rows.isEmpty()) {
+			return new int[0];
+		}
+
+		PreparedStatement statement = connection.prepareStatement(sql);
+		try {
+			for (Object[] row : rows) {
+				for (int i = 0; i < row.length; i++) {
+					statement.setObject(i + 1, row[i]);
+				}
+				statement.addBatch();
+			}
+
+			return statement.executeBatch();
+		} finally {
+			statement.close();
+		}
+	}
+
+	/**
+	 * A write waiting for its batch to be committed.
+	 */
+	public static class PendingWrite {
+		private final Media media;
+		private final boolean avatar;
+		private final Preview preview;
+		private final long timeout;
+
+		private final CountDownLatch committed = new CountDownLatch(1);
+		private volatile boolean stored;
+		private volatile MetadataSourceException failure;
+		private boolean claimed;
+		private boolean cancelled;
+		private List<Runnable> listeners = new ArrayList<Runnable>();
+
+		private PendingWrite(Media media, boolean avatar, Preview preview, long timeout) {
+			this.media = media;
+			this.avatar = avatar;
+			this.preview = preview;
+			this.timeout = timeout;
+		}
+
+		private void complete(MetadataSourceException failure) {
+			List<Runnable> completed;
+			synchronized (this) {
+				this.failure = failure;
+				committed.countDown();
+				completed = listeners;
+				listeners = null;
+			}
+
+			for (Runnable listener : completed) {
+				try {
+					listener.run();
+				} catch (RuntimeException e) {
+					// the write itself is done, whatever its listeners do
+					LOGGER.error("Error in metadata write listener", e);
+				}
+			}
+		}
+
+		/**
+		 * Runs {@code listener} once the write is committed or failed, e.g. when its
+		 * caller stopped waiting while it was under way.
+		 */
+		public void onComplete(Runnable listener) {
+			synchronized (this) {
+				if (listeners != null) {
+					listeners.add(listener);
+					return;
+				}
+			}
+			listener.run();
+		}
+
+		/**
+		 * Takes the write into a batch, unless it was cancelled.
+		 */
+		private synchronized boolean claim() {
+			if (cancelled) {
+				return false;
+			}
+			claimed = true;
+			return true;
+		}
+
+		/**
+		 * Drops the write, unless a batch already took it.
+		 */
+		private synchronized boolean cancel() {
+			if (claimed) {
+				return false;
+			}
+			cancelled = true;
+			return true;
+		}
+
+		/**
+		 * Waits for the write to be committed. If the wait times out or is interrupted,
+		 * the write is cancelled when it didn't start yet, so it will never be committed.
+		 * @throws MetadataPendingException if the wait ended while the write was
+		 * under way, so it may still be committed.
+		 * @throws MetadataSourceException if the write failed, or the wait timed out
+		 * or was interrupted before it started.
+		 */
+		public void await() throws MetadataSourceException {
+			boolean done;
+			InterruptedException interruption = null;
+			try {
+				done = committed.await(timeout, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				done = false;
+				interruption = e;
+			}
+
+			if (!done && cancel()) {
+				throw new MetadataSourceException(interruption != null
+						? "Interrupted while waiting for metadata write"
+						: "Timed out waiting for metadata write", interruption);
+			}
+			if (!done && committed.getCount() > 0) {
+				throw new MetadataPendingException("Metadata write still under way",
+						media != null ? media.getId() : null);
+			}
+
+			if (failure != null) {
+				throw failure;
+			}
+		}
+
+		/**
+		 * @return whether the write stored its media, rather than finding it already stored.
+		 * Only meaningful once {@link #await()} returned.
+		 */
+		public boolean isStored() {
+			return stored && failure == null;
+		}
+	}
+}
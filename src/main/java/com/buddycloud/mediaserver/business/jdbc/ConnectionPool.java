@@ -0,0 +1,220 @@
+/*
+ * Copyright 2012 buddycloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.buddycloud.mediaserver.business.jdbc;
+
+import java.beans.PropertyVetoException;
+import java.lang.management.ManagementFactory;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.buddycloud.mediaserver.commons.MediaServerConfiguration;
+import com.mchange.v2.c3p0.ComboPooledDataSource;
+import com.mchange.v2.resourcepool.TimeoutException;
+
+/**
+ * A c3p0 connection pool set up from the {@code jdbc.pool.*} properties, which
+ * records how long checkouts wait and publishes it over JMX along with the
+ * pool's busy and idle connections.
+ * <p>
+ * A checkout that gives up after {@code jdbc.pool.checkout.timeout} fails with
+ * a {@link SQLTransientConnectionException}, see {@link #isExhausted(Throwable)}.
+ */
+public class ConnectionPool implements ConnectionPoolMBean {
+	private static Logger LOGGER = LoggerFactory.getLogger(ConnectionPool.class);
+
+	private static final String MBEAN_NAME = "com.buddycloud.mediaserver:type=ConnectionPool,name=";
+	private static final long[] WAIT_BUCKETS = {1, 5, 10, 50, 100, 500, 1000, 5000};
+
+	private final String name;
+	private final ComboPooledDataSource dataSource;
+
+	private final AtomicLong checkouts = new AtomicLong();
+	private final AtomicLong timeouts = new AtomicLong();
+	private final AtomicLong maxWait = new AtomicLong();
+	private final AtomicLongArray histogram = new AtomicLongArray(WAIT_BUCKETS.length + 1);
+
+	/**
+	 * @param name identifies the pool in logs and JMX.
+	 */
+	public ConnectionPool(String name, String driverClass, String url, Properties configuration)
+			throws PropertyVetoException {
+		this.name = name;
+		this.dataSource = new ComboPooledDataSource();
+
+		dataSource.setDriverClass(driverClass);
+		dataSource.setJdbcUrl(url);
+
+		dataSource.setMinPoolSize(Integer.valueOf(configuration.getProperty(
+				MediaServerConfiguration.JDBC_POOL_MIN_SIZE)));
+		dataSource.setInitialPoolSize(dataSource.getMinPoolSize());
+		dataSource.setMaxPoolSize(Integer.valueOf(configuration.getProperty(
+				MediaServerConfiguration.JDBC_POOL_MAX_SIZE)));
+		dataSource.setAcquireIncrement(Integer.valueOf(configuration.getProperty(
+				MediaServerConfiguration.JDBC_POOL_ACQUIRE_INCREMENT)));
+		dataSource.setMaxIdleTime(Integer.valueOf(configuration.getProperty(
+				MediaServerConfiguration.JDBC_POOL_MAX_IDLE_TIME)));
+		dataSource.setCheckoutTimeout(Integer.valueOf(configuration.getProperty(
+				MediaServerConfiguration.JDBC_POOL_CHECKOUT_TIMEOUT)));
+		dataSource.setMaxStatementsPerConnection(Integer.valueOf(configuration.getProperty(
+				MediaServerConfiguration.JDBC_POOL_STATEMENT_CACHE_SIZE)));
+		dataSource.setIdleConnectionTestPeriod(Integer.valueOf(configuration.getProperty(
+				MediaServerConfiguration.JDBC_POOL_IDLE_TEST_PERIOD)));
+		dataSource.setPreferredTestQuery(configuration.getProperty(
+				MediaServerConfiguration.JDBC_POOL_TEST_QUERY));
+
+		register();
+	}
+
+	/**
+	 * Checks a connection out, recording how long it took.
+	 * @throws SQLTransientConnectionException if no connection got free in time.
+	 */
+	public Connection getConnection() throws SQLException {
+		long start = System.nanoTime();
+
+		try {
+			Connection connection = dataSource.getConnection();
+			recordWait(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+			return connection;
+		} catch (SQLException e) {
+			if (e.getCause() instanceof TimeoutException) {
+				timeouts.incrementAndGet();
+				LOGGER.warn("No connection free in the " + name + " pool after "
+						+ dataSource.getCheckoutTimeout() + "ms");
+				throw new SQLTransientConnectionException("Connection pool " + name + " exhausted", e);
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * @return whether {@code t} was caused by a checkout that timed out.
+	 */
+	public static boolean isExhausted(Throwable t) {
+		for (Throwable cause = t; cause != null; cause = cause.getCause()) {
+			if (cause instanceof SQLTransientConnectionException) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	ComboPooledDataSource getDataSource() {
+		return dataSource;
+	}
+
+	public void close() {
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(
+					new ObjectName(MBEAN_NAME + name));
+		} catch (JMException e) {
+			LOGGER.debug("Pool " + name + " was not registered", e);
+		}
+		dataSource.close();
+	}
+
+	private void recordWait(long millis) {
+		checkouts.incrementAndGet();
+
+		int bucket = 0;
+		while (bucket < WAIT_BUCKETS.length && millis > WAIT_BUCKETS[bucket]) {
+			bucket++;
+		}
+		histogram.incrementAndGet(bucket);
+
+		long max = maxWait.get();
+		while (millis > max && !maxWait.compareAndSet(max, millis)) {
+			max = maxWait.get();
+		}
+	}
+
+	/**
+	 * Publishes this pool over JMX, in place of any earlier pool of the same name.
+	 */
+	private void register() {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName objectName = new ObjectName(MBEAN_NAME + name);
+
+			if (server.isRegistered(objectName)) {
+				server.unregisterMBean(objectName);
+			}
+			server.registerMBean(this, objectName);
+		} catch (JMException e) {
+			LOGGER.warn("Could not publish " + name + " pool metrics over JMX", e);
+		}
+	}
+
+	public int getBusyConnections() {
+		try {
+			return dataSource.getNumBusyConnectionsDefaultUser();
+		} catch (SQLException e) {
+			return -1;
+		}
+	}
+
+	public int getIdleConnections() {
+		try {
+			return dataSource.getNumIdleConnectionsDefaultUser();
+		} catch (SQLException e) {
+			return -1;
+		}
+	}
+
+	public int getThreadsAwaitingCheckout() {
+		try {
+			return dataSource.getNumThreadsAwaitingCheckoutDefaultUser();
+		} catch (SQLException e) {
+			return -1;
+		}
+	}
+
+	public long getCheckouts() {
+		return checkouts.get();
+	}
+
+	public long getCheckoutTimeouts() {
+		return timeouts.get();
+	}
+
+	public long[] getCheckoutWaitBuckets() {
+		return WAIT_BUCKETS.clone();
+	}
+
+	public long[] getCheckoutWaitHistogram() {
+		long[] counts = new long[histogram.length()];
+		for (int i = 0; i < counts.length; i++) {
+			counts[i] = histogram.get(i);
+		}
+		return counts;
+	}
+
+	public long getMaxCheckoutWaitMillis() {
+		return maxWait.get();
+	}
+}
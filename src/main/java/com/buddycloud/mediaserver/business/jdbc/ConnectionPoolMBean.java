@@ -0,0 +1,48 @@
+/*
+ * Copyright 2012 buddycloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.buddycloud.mediaserver.business.jdbc;
+
+/**
+ * Live figures of a {@link ConnectionPool}, exposed over JMX.
+ */
+public interface ConnectionPoolMBean {
+
+	int getBusyConnections();
+
+	int getIdleConnections();
+
+	int getThreadsAwaitingCheckout();
+
+	long getCheckouts();
+
+	/**
+	 * @return checkouts that gave up after {@code jdbc.pool.checkout.timeout}.
+	 */
+	long getCheckoutTimeouts();
+
+	/**
+	 * @return upper bounds, in milliseconds, of the {@link #getCheckoutWaitHistogram()} buckets.
+	 * The last bucket has no bound.
+	 */
+	long[] getCheckoutWaitBuckets();
+
+	/**
+	 * @return how many checkouts waited for a connection within each bucket.
+	 */
+	long[] getCheckoutWaitHistogram();
+
+	long getMaxCheckoutWaitMillis();
+}
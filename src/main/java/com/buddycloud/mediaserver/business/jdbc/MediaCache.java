@@ -0,0 +1,107 @@
+/*
+ * Copyright 2012 buddycloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.buddycloud.mediaserver.business.jdbc;
+
+import com.buddycloud.mediaserver.business.model.Media;
+import com.buddycloud.mediaserver.commons.cache.InvalidationStamps;
+import com.buddycloud.mediaserver.commons.cache.LRUCache;
+
+/**
+ * In-process cache of {@link Media} rows, keyed by media id. Snapshots go
+ * in and out as copies, so callers can't alter what is cached. Ids known
+ * to have no row may be cached as well (negative caching).
+ */
+public class MediaCache {
+
+	private final LRUCache<String, Entry> cache;
+	private final long ttl;
+	private final boolean cacheMisses;
+
+	// moved on every invalidation of an id, so loads of it that started before are not cached
+	private final InvalidationStamps stamps = new InvalidationStamps();
+
+	/**
+	 * @param maxEntries maximum number of cached ids, 0 disables the cache.
+	 * @param ttl how long an entry is valid, in milliseconds. 0 means forever.
+	 * @param cacheMisses whether ids without media are cached too.
+	 */
+	public MediaCache(int maxEntries, long ttl, boolean cacheMisses) {
+		this.cache = new LRUCache<String, Entry>(maxEntries, Long.MAX_VALUE);
+		this.ttl = ttl;
+		this.cacheMisses = cacheMisses;
+	}
+
+	/**
+	 * @return the cached entry, or null if the id is not cached. The entry's
+	 * media is null when the id is cached as missing.
+	 */
+	public Entry get(String mediaId) {
+		Entry entry = cache.get(mediaId);
+		if (entry == null) {
+			return null;
+		}
+
+		if (entry.expires > 0 && entry.expires < System.currentTimeMillis()) {
+			cache.remove(mediaId);
+			return null;
+		}
+
+		return entry;
+	}
+
+	/**
+	 * Returns a stamp to be passed to {@link #put(String, Media, InvalidationStamps.Stamp)}.
+	 * Must be taken before the media are loaded, and may be used for several of them.
+	 */
+	public InvalidationStamps.Stamp stamp() {
+		return stamps.stamp();
+	}
+
+	/**
+	 * Caches a media, or its absence if {@code media} is null, unless it was
+	 * invalidated since {@code stamp} was taken.
+	 */
+	public synchronized void put(String mediaId, Media media, InvalidationStamps.Stamp stamp) {
+		if (!stamps.isCurrent(mediaId, stamp) || (media == null && !cacheMisses)) {
+			return;
+		}
+
+		long expires = ttl > 0 ? System.currentTimeMillis() + ttl : 0;
+		cache.put(mediaId, new Entry(media != null ? media.copy() : null, expires));
+	}
+
+	public synchronized void invalidate(String mediaId) {
+		stamps.invalidate(mediaId);
+		cache.remove(mediaId);
+	}
+
+	public static class Entry {
+		private final Media media;
+		private final long expires;
+
+		private Entry(Media media, long expires) {
+			this.media = media;
+			this.expires = expires;
+		}
+
+		/**
+		 * @return a copy of the cached media, or null if the id is cached as missing.
+		 */
+		public Media getMedia() {
+			return media != null ? media.copy() : null;
+		}
+	}
+}
@@ -13,11 +13,16 @@
  * See the License for the specific language governing permissions and
  * limitations under the License.
  */
-package com.buddycloud.mediaserver.xmpp.util;
+package com.buddycloud.mediaserver.business.jdbc;
 
-import org.xmpp.packet.Packet;
+import java.io.IOException;
 
-public interface MediaServerPacketFilter {
+import com.buddycloud.mediaserver.business.model.Media;
 
-	public boolean accept(Packet packet);
+/**
+ * Receives media rows one by one, as they are read from the database.
+ */
+public interface MediaHandler {
+
+	void handle(Media media) throws IOException;
 }
@@ -15,19 +15,27 @@
  */
 package com.buddycloud.mediaserver.business.jdbc;
 
+import com.buddycloud.mediaserver.business.model.ChannelSequence;
 import com.buddycloud.mediaserver.business.model.Media;
+import com.buddycloud.mediaserver.business.model.MediaChange;
+import com.buddycloud.mediaserver.business.model.MediaCursor;
+import com.buddycloud.mediaserver.business.model.MediaFilter;
+import com.buddycloud.mediaserver.business.model.MediaPreview;
 import com.buddycloud.mediaserver.business.model.Preview;
 import com.buddycloud.mediaserver.commons.MediaServerConfiguration;
+import com.buddycloud.mediaserver.commons.cache.InvalidationStamps;
 import com.buddycloud.mediaserver.commons.exception.CreateDataSourceException;
 import com.buddycloud.mediaserver.commons.exception.MetadataSourceException;
-import com.mchange.v2.c3p0.ComboPooledDataSource;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.beans.PropertyVetoException;
+import java.io.IOException;
 import java.sql.*;
 import java.util.*;
 import java.util.Date;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * Responsible for creating and handling database connections
@@ -38,12 +46,46 @@ import java.util.Date;
 public class MetaDataSource {
 	private static Logger LOGGER = LoggerFactory.getLogger(MetaDataSource.class);
 
-	private ComboPooledDataSource dataSource;
+	private ConnectionPool dataSource;
+	private ReplicaSet replicas;
 	private Properties configuration;
+	private ThreadLocal<UnitOfWork> currentUnitOfWork = new ThreadLocal<UnitOfWork>();
+	private int fetchSize;
+	private long tombstoneRetention;
+
+	// shared by every instance, so writes through any of them invalidate it
+	private static MediaCache mediaCache;
+
+	// ids written lately, read from the primary until the replicas catch up
+	private static RecentWrites recentWrites;
+
+	// media journaled but not yet in the database, see MetadataJournal
+	private static ConcurrentMap<String, Media> pendingMedia = new ConcurrentHashMap<String, Media>();
 
 	public MetaDataSource() {
 		this.configuration = MediaServerConfiguration.getInstance().getConfiguration();
 
+		synchronized (MetaDataSource.class) {
+			if (mediaCache == null) {
+				mediaCache = new MediaCache(
+						Integer.valueOf(configuration.getProperty(
+								MediaServerConfiguration.METADATA_CACHE_MAX_ENTRIES)),
+						Long.valueOf(configuration.getProperty(
+								MediaServerConfiguration.METADATA_CACHE_TTL)) * 1000,
+						Boolean.valueOf(configuration.getProperty(
+								MediaServerConfiguration.METADATA_CACHE_NEGATIVE)));
+			}
+			if (recentWrites == null) {
+				recentWrites = new RecentWrites(Long.valueOf(configuration.getProperty(
+						MediaServerConfiguration.JDBC_REPLICA_READ_YOUR_WRITES_WINDOW)));
+			}
+		}
+
+		this.fetchSize = Integer.valueOf(configuration.getProperty(
+				MediaServerConfiguration.JDBC_FETCH_SIZE));
+		this.tombstoneRetention = Long.valueOf(configuration.getProperty(
+				MediaServerConfiguration.SYNC_TOMBSTONE_RETENTION)) * 24 * 60 * 60 * 1000;
+
 		try {
 			createDataSource();
 		} catch (PropertyVetoException e) {
@@ -55,7 +97,34 @@ public class MetaDataSource {
 
 	private PreparedStatement prepareStatement(String sql, Object... args)
 			throws SQLException {
-		PreparedStatement prepareStatement = dataSource.getConnection().prepareStatement(sql);
+		UnitOfWork unitOfWork = currentUnitOfWork.get();
+		Connection connection = unitOfWork != null ? unitOfWork.getConnection()
+				: dataSource.getConnection();
+
+		return prepareStatement(connection, sql, args);
+	}
+
+	/**
+	 * Prepares a query about {@code id}, to run on a read replica unless this node
+	 * wrote that id lately or a unit of work is open.
+	 */
+	private PreparedStatement prepareReadStatement(String sql, String id, Object... args)
+			throws SQLException {
+		return prepareReadStatement(sql, Collections.singletonList(id), args);
+	}
+
+	private PreparedStatement prepareReadStatement(String sql, Collection<String> ids,
+			Object... args) throws SQLException {
+		if (currentUnitOfWork.get() != null || !isReplicaReadable(ids)) {
+			return prepareStatement(sql, args);
+		}
+
+		return prepareStatement(getReplicaConnection(), sql, args);
+	}
+
+	private PreparedStatement prepareStatement(Connection connection, String sql,
+			Object... args) throws SQLException {
+		PreparedStatement prepareStatement = connection.prepareStatement(sql);
 		for (int i = 1; i <= args.length; i++) {
 			prepareStatement.setObject(i, args[i - 1]);
 		}
@@ -70,7 +139,12 @@ public class MetaDataSource {
 		try {
 			Connection connection = statement.getConnection();
 			statement.close();
-			connection.close();
+
+			// connections of a unit of work are released when it ends
+			UnitOfWork unitOfWork = currentUnitOfWork.get();
+			if (unitOfWork == null || !unitOfWork.owns(connection)) {
+				connection.close();
+			}
 		} catch (SQLException e) {
 			LOGGER.error(e.getMessage(), e);
 		}
@@ -85,12 +159,148 @@ public class MetaDataSource {
 		return dataSource.getConnection();
 	}
 
+	/**
+	 * Returns a connection to a healthy read replica, or to the primary database
+	 * if there is none.
+	 */
+	Connection getReplicaConnection() throws SQLException {
+		Connection connection = replicas != null ? replicas.getConnection() : null;
+		return connection != null ? connection : dataSource.getConnection();
+	}
+
+	private boolean isReplicaReadable(Collection<String> ids) {
+		return replicas != null && !recentWrites.containsAny(ids);
+	}
+
+	/**
+	 * Reads about these ids go to the primary database for a while, starting
+	 * again once the current unit of work ends.
+	 */
+	void recordWrite(final String... ids) {
+		for (String id : ids) {
+			recentWrites.record(id);
+		}
+
+		UnitOfWork unitOfWork = currentUnitOfWork.get();
+		if (unitOfWork != null) {
+			unitOfWork.onEnd(new Runnable() {
+				public void run() {
+					for (String id : ids) {
+						recentWrites.record(id);
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * Begins a unit of work, or joins the one this thread already has open. Until
+	 * it is closed, every operation of this thread shares its connection and transaction.
+	 * @return the unit of work, to be committed and closed by the caller.
+	 */
+	public UnitOfWork beginUnitOfWork() {
+		UnitOfWork unitOfWork = currentUnitOfWork.get();
+		if (unitOfWork == null) {
+			unitOfWork = new UnitOfWork(this, false);
+			currentUnitOfWork.set(unitOfWork);
+		}
+
+		unitOfWork.join();
+		return unitOfWork;
+	}
+
+	/**
+	 * Begins a unit of work that only reads about {@code ids}, on a read replica
+	 * when possible. Joins the unit of work this thread already has open, if any.
+	 */
+	public UnitOfWork beginReadUnitOfWork(Collection<String> ids) {
+		UnitOfWork unitOfWork = currentUnitOfWork.get();
+		if (unitOfWork == null) {
+			unitOfWork = new UnitOfWork(this, isReplicaReadable(ids));
+			currentUnitOfWork.set(unitOfWork);
+		}
+
+		unitOfWork.join();
+		return unitOfWork;
+	}
+
+	void endUnitOfWork(UnitOfWork unitOfWork) {
+		if (currentUnitOfWork.get() == unitOfWork) {
+			currentUnitOfWork.remove();
+		}
+	}
+
+	/**
+	 * Whether media read now may be cached, i.e. it can't be an uncommitted write.
+	 */
+	private boolean isCacheable() {
+		return currentUnitOfWork.get() == null;
+	}
+
+	private void cacheMedia(String mediaId, Media media, InvalidationStamps.Stamp stamp) {
+		if (isCacheable()) {
+			mediaCache.put(mediaId, media, stamp);
+		}
+	}
+
+	/**
+	 * Drops a media from the cache, and again once the current unit of
+	 * work ends, as reads made before its commit may still see the old row.
+	 */
+	void invalidateMedia(final String mediaId) {
+		mediaCache.invalidate(mediaId);
+
+		UnitOfWork unitOfWork = currentUnitOfWork.get();
+		if (unitOfWork != null) {
+			unitOfWork.onEnd(new Runnable() {
+				public void run() {
+					mediaCache.invalidate(mediaId);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Makes a media visible to reads until it is actually stored, which
+	 * must be followed by {@link #removePendingMedia(String)}.
+	 */
+	public void addPendingMedia(Media media) {
+		pendingMedia.put(media.getId(), media.copy());
+	}
+
+	public void removePendingMedia(String mediaId) {
+		pendingMedia.remove(mediaId);
+	}
+
+	/**
+	 * @return a copy of the pending media, or null. Units of work only see the database.
+	 */
+	private Media getPendingMedia(String mediaId) {
+		Media media = isCacheable() ? pendingMedia.get(mediaId) : null;
+		return media != null ? media.copy() : null;
+	}
+
 	private void createDataSource() throws PropertyVetoException {
-		this.dataSource = new ComboPooledDataSource();
-		dataSource.setDriverClass(configuration
-						.getProperty(MediaServerConfiguration.JDBC_DRIVER_CLASS_PROPERTY));
-		dataSource.setJdbcUrl(configuration
-				.getProperty(MediaServerConfiguration.JDBC_DB_URL_PROPERTY));
+		this.dataSource = new ConnectionPool("primary",
+				configuration.getProperty(MediaServerConfiguration.JDBC_DRIVER_CLASS_PROPERTY),
+				configuration.getProperty(MediaServerConfiguration.JDBC_DB_URL_PROPERTY),
+				configuration);
+
+		List<String> replicaUrls = new ArrayList<String>();
+		String urls = configuration.getProperty(MediaServerConfiguration.JDBC_REPLICA_URLS);
+		if (urls != null) {
+			for (String url : urls.split(",")) {
+				if (url.trim().length() > 0) {
+					replicaUrls.add(url.trim());
+				}
+			}
+		}
+
+		if (!replicaUrls.isEmpty()) {
+			this.replicas = new ReplicaSet(
+					configuration.getProperty(MediaServerConfiguration.JDBC_DRIVER_CLASS_PROPERTY),
+					replicaUrls, configuration);
+		}
 	}
 
 	// Medias
@@ -98,17 +308,16 @@ public class MetaDataSource {
 	public void storeMedia(Media media) throws MetadataSourceException {
 		LOGGER.debug("Store media metadata. Media ID: " + media.getId());
 
+		UnitOfWork unitOfWork = beginUnitOfWork();
 		PreparedStatement statement = null;
 		try {
-			statement = prepareStatement(Queries.SAVE_MEDIA, media.getId(),
-					media.getFileName(), media.getEntityId(),
-					media.getAuthor(), media.getTitle(),
-					media.getDescription(), media.getMimeType(),
-					media.getFileExtension(), media.getShaChecksum(),
-					media.getFileSize(), media.getLength(), media.getHeight(),
-					media.getWidth());
+			recordChange(media.getEntityId(), media.getId(), false);
+
+			statement = prepareStatement(Queries.SAVE_MEDIA, toSaveMediaArgs(media));
 			
 			statement.execute();
+			invalidateMedia(media.getId());
+			unitOfWork.commit();
 
 			LOGGER.debug("Media metadata successfully stored. Media ID: "
 					+ media.getId());
@@ -117,9 +326,29 @@ public class MetaDataSource {
 			throw new MetadataSourceException(e.getMessage(), e);
 		} finally {
 			close(statement);
+			unitOfWork.close();
 		}
 	}
 
+	/**
+	 * @return the {@link Queries#SAVE_MEDIA} arguments for a media.
+	 */
+	Object[] toSaveMediaArgs(Media media) {
+		// media stored through the journal keep their upload time
+		Timestamp now = new Timestamp(System.currentTimeMillis());
+		Timestamp uploaded = media.getUploadedDate() != null
+				? new Timestamp(media.getUploadedDate().getTime()) : now;
+		Timestamp updated = media.getLastUpdatedDate() != null
+				? new Timestamp(media.getLastUpdatedDate().getTime()) : now;
+
+		return new Object[] {media.getId(), media.getFileName(),
+				media.getEntityId(), media.getAuthor(), media.getTitle(),
+				media.getDescription(), media.getMimeType(),
+				media.getFileExtension(), media.getShaChecksum(),
+				media.getFileSize(), media.getLength(), media.getHeight(),
+				media.getWidth(), uploaded, updated};
+	}
+
 	private Media resultToMedia(ResultSet result) throws SQLException {
 		Media media = new Media();
 
@@ -142,30 +371,92 @@ public class MetaDataSource {
 		return media;
 	}
 
-	public List<Media> getMediasInfo(String entityId, Integer max, String after)
-			throws MetadataSourceException {
+	/**
+	 * Gets a page of a channel's media, most recently updated first.
+	 * @param max page size, or null for all the remaining media.
+	 * @param after cursor the page starts after, or null for the first page.
+	 * @param filter the media and fields to get, or null for all of them.
+	 */
+	public List<Media> getMediasInfo(String entityId, Integer max, MediaCursor after,
+			MediaFilter filter) throws MetadataSourceException {
+		final List<Media> medias = new ArrayList<Media>();
+
+		try {
+			getMediasInfo(entityId, max, after, filter, new MediaHandler() {
+				public void handle(Media media) {
+					medias.add(media);
+				}
+			});
+		} catch (IOException e) {
+			// not thrown by the handler above
+			throw new MetadataSourceException(e.getMessage(), e);
+		}
+
+		return medias;
+	}
+
+	/**
+	 * Streams a page of a channel's media, most recently updated first, to {@code handler}.
+	 * Rows are fetched from the database in batches of {@code jdbc.fetch.size}; note that
+	 * some drivers (e.g. PostgreSQL) only do so inside a {@link UnitOfWork}.
+	 * <p>
+	 * When the filter restricts the fields, only those columns are read, plus
+	 * id and lastUpdatedDate. Listed media are not cached, so large listings
+	 * don't evict the media actually read one by one.
+	 * @param max page size, or null for all the remaining media.
+	 * @param after cursor the page starts after, or null for the first page.
+	 * @param filter the media and fields to get, or null for all of them.
+	 * @throws IOException if thrown by the handler.
+	 */
+	public void getMediasInfo(String entityId, Integer max, MediaCursor after,
+			MediaFilter filter, MediaHandler handler) throws MetadataSourceException, IOException {
 		LOGGER.debug("Get medias info from: " + entityId);
 
-		List<Media> medias = new ArrayList<Media>();
+		if (filter == null) {
+			filter = new MediaFilter();
+		}
+
+		List<Object> args = new ArrayList<Object>();
+		args.add(entityId);
+
+		StringBuilder sql = new StringBuilder(String.format(Queries.GET_MEDIAS_INFO,
+				filter.isProjected() ? join(filter.getReadFields()) : "*"));
+		if (after != null) {
+			sql.append(Queries.MEDIAS_INFO_AFTER);
+			args.add(after.getLastUpdatedDate());
+			args.add(after.getMediaId());
+		}
+		if (filter.getMimeTypePrefix() != null) {
+			sql.append(Queries.MEDIAS_INFO_MIME_TYPE);
+			args.add(escapeLike(filter.getMimeTypePrefix()) + "%");
+		}
+		if (filter.getAuthor() != null) {
+			sql.append(Queries.MEDIAS_INFO_AUTHOR);
+			args.add(filter.getAuthor());
+		}
+		if (filter.getSince() != null) {
+			sql.append(Queries.MEDIAS_INFO_SINCE);
+			args.add(new Timestamp(filter.getSince().getTime()));
+		}
+		if (filter.getUntil() != null) {
+			sql.append(Queries.MEDIAS_INFO_UNTIL);
+			args.add(new Timestamp(filter.getUntil().getTime()));
+		}
+		sql.append(Queries.MEDIAS_INFO_ORDER);
+		if (max != null) {
+			sql.append(Queries.MEDIAS_INFO_MAX);
+			args.add(max);
+		}
 
 		PreparedStatement statement = null;
 		try {
-			if (max != null) {
-				String sql;
-				if (after != null) {
-					sql = Queries.GET_MEDIAS_INFO_AFTER.replaceAll("#", max.toString());
-					statement = prepareStatement(sql, entityId, after);
-				} else {
-					sql = Queries.GET_MEDIAS_INFO_MAX.replaceAll("#", max.toString());
-					statement = prepareStatement(sql, entityId);
-				}
-			} else {
-				statement = prepareStatement(Queries.GET_MEDIAS_INFO, entityId);
-			}
-			
+			statement = prepareReadStatement(sql.toString(), entityId, args.toArray());
+			statement.setFetchSize(fetchSize);
+
 			ResultSet result = statement.executeQuery();
 			while (result.next()) {
-				medias.add(resultToMedia(result));
+				handler.handle(filter.isProjected() ? resultToMedia(result, filter.getReadFields())
+						: resultToMedia(result));
 			}
 
 			LOGGER.debug("Medias info sucessfully fetched");
@@ -175,18 +466,92 @@ public class MetaDataSource {
 		} finally {
 			close(statement);
 		}
+	}
 
-		return medias;
+	/**
+	 * Reads the given columns of a row, named as the {@link Media} fields.
+	 */
+	private Media resultToMedia(ResultSet result, Collection<String> columns) throws SQLException {
+		Media media = new Media();
+
+		for (String column : columns) {
+			if (column.equals("id")) {
+				media.setId(result.getString(column));
+			} else if (column.equals("fileName")) {
+				media.setFileName(result.getString(column));
+			} else if (column.equals("entityId")) {
+				media.setEntityId(result.getString(column));
+			} else if (column.equals("author")) {
+				media.setAuthor(result.getString(column));
+			} else if (column.equals("title")) {
+				media.setTitle(result.getString(column));
+			} else if (column.equals("description")) {
+				media.setDescription(result.getString(column));
+			} else if (column.equals("mimeType")) {
+				media.setMimeType(result.getString(column));
+			} else if (column.equals("uploadedDate")) {
+				media.setUploadedDate(result.getTimestamp(column));
+			} else if (column.equals("lastUpdatedDate")) {
+				media.setLastUpdatedDate(result.getTimestamp(column));
+			} else if (column.equals("fileExtension")) {
+				media.setFileExtension(result.getString(column));
+			} else if (column.equals("shaChecksum")) {
+				media.setShaChecksum(result.getString(column));
+			} else if (column.equals("fileSize")) {
+				media.setFileSize(result.getLong(column));
+			} else if (column.equals("length")) {
+				media.setLength(result.getLong(column));
+			} else if (column.equals("height")) {
+				media.setHeight(result.getInt(column));
+			} else if (column.equals("width")) {
+				media.setWidth(result.getInt(column));
+			}
+		}
+
+		return media;
+	}
+
+	private static String join(Collection<String> columns) {
+		StringBuilder joined = new StringBuilder();
+		for (String column : columns) {
+			if (joined.length() > 0) {
+				joined.append(", ");
+			}
+			joined.append(column);
+		}
+		return joined.toString();
+	}
+
+	private static String escapeLike(String value) {
+		return value.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_");
 	}
 
+	/**
+	 * Gets a media, from the cache when possible.
+	 * @return the media, or null if there is no media with such id.
+	 */
 	public Media getMedia(String mediaId) throws MetadataSourceException {
 		LOGGER.debug("Getting media. Media ID: " + mediaId);
 
+		Media pending = getPendingMedia(mediaId);
+		if (pending != null) {
+			return pending;
+		}
+
+		if (isCacheable()) {
+			MediaCache.Entry entry = mediaCache.get(mediaId);
+			if (entry != null) {
+				LOGGER.debug("Media metadata served from cache. Media ID: " + mediaId);
+				return entry.getMedia();
+			}
+		}
+
 		Media media = null;
+		InvalidationStamps.Stamp stamp = mediaCache.stamp();
 
 		PreparedStatement statement = null;
 		try {
-			statement = prepareStatement(Queries.GET_MEDIA, mediaId);
+			statement = prepareReadStatement(Queries.GET_MEDIA, mediaId, mediaId);
 
 			ResultSet result = statement.executeQuery();
 			if (result.next()) {
@@ -205,55 +570,55 @@ public class MetaDataSource {
 			close(statement);
 		}
 
+		cacheMedia(mediaId, media, stamp);
+
 		return media;
 	}
 
-	public String getMediaUploader(String mediaId)
+	/**
+	 * Gets a media along with its preview of the given size, in a single query.
+	 * @return the media and its preview, which is null if there is no such preview.
+	 * Null if there is no such media.
+	 */
+	public MediaPreview getMediaWithPreview(String mediaId, int height, int width)
 			throws MetadataSourceException {
-		LOGGER.debug("Getting media uploader. Media ID: " + mediaId);
+		LOGGER.debug("Getting media with preview. Media ID: " + mediaId);
 
-		String uploader = null;
-
-		PreparedStatement statement = null;
-		try {
-			statement = prepareStatement(Queries.GET_MEDIA_UPLOADER, mediaId);
-
-			ResultSet result = statement.executeQuery();
-			if (result.next()) {
-				uploader = result.getString(1);
-				LOGGER.debug("Media metadata successfully fetched. Media ID: "
-						+ mediaId);
-			} else {
-				LOGGER.debug("No media with id '" + mediaId + "' found.");
-			}
-		} catch (SQLException e) {
-			LOGGER.error(
-					"Error while fetching media metadata: " + e.getMessage(), e);
-			throw new MetadataSourceException(e.getMessage(), e);
-		} finally {
-			close(statement);
+		Media pending = getPendingMedia(mediaId);
+		if (pending != null) {
+			// no preview can be stored before the media
+			return new MediaPreview(pending, null);
 		}
 
-		return uploader;
+		return getMediaPreview(mediaId, Queries.GET_MEDIA_WITH_PREVIEW, height, width, mediaId);
 	}
 
-	public String getMediaMimeType(String mediaId)
+	private MediaPreview getMediaPreview(String id, String sql, Object... args)
 			throws MetadataSourceException {
-		LOGGER.debug("Getting media type. Media ID: " + mediaId);
-
-		String mimeType = null;
+		MediaPreview mediaPreview = null;
+		InvalidationStamps.Stamp stamp = mediaCache.stamp();
 
 		PreparedStatement statement = null;
 		try {
-			statement = prepareStatement(Queries.GET_MEDIA_MIME_TYPE, mediaId);
+			statement = prepareReadStatement(sql, id, args);
 
 			ResultSet result = statement.executeQuery();
 			if (result.next()) {
-				mimeType = result.getString(1);
+				Preview preview = null;
+				if (result.getString("previewId") != null) {
+					preview = new Preview();
+					preview.setId(result.getString("previewId"));
+					preview.setMimeType(result.getString("previewMimeType"));
+				}
+
+				Media media = resultToMedia(result);
+				cacheMedia(media.getId(), media, stamp);
+
+				mediaPreview = new MediaPreview(media, preview);
 				LOGGER.debug("Media metadata successfully fetched. Media ID: "
-						+ mediaId);
+						+ mediaPreview.getMedia().getId());
 			} else {
-				LOGGER.debug("No media with id '" + mediaId + "' found.");
+				LOGGER.debug("No media found.");
 			}
 		} catch (SQLException e) {
 			LOGGER.error(
@@ -263,24 +628,27 @@ public class MetaDataSource {
 			close(statement);
 		}
 
-		return mimeType;
+		return mediaPreview;
 	}
 
-	public String getMediaExtension(String mediaId)
+	/**
+	 * Gets the listing cursor right after a media, with the database precision
+	 * of its last updated date, which cached media don't keep.
+	 * @return the cursor, or null if there is no media with such id.
+	 */
+	public MediaCursor getMediaCursor(String mediaId)
 			throws MetadataSourceException {
-		LOGGER.debug("Getting media extension. Media ID: " + mediaId);
+		LOGGER.debug("Getting media cursor. Media ID: " + mediaId);
 
-		String mimeType = null;
+		MediaCursor cursor = null;
 
 		PreparedStatement statement = null;
 		try {
-			statement = prepareStatement(Queries.GET_MEDIA_EXTENSION, mediaId);
+			statement = prepareReadStatement(Queries.GET_MEDIA_LAST_UPDATED, mediaId, mediaId);
 
 			ResultSet result = statement.executeQuery();
 			if (result.next()) {
-				mimeType = result.getString(1);
-				LOGGER.debug("Media metadata successfully fetched. Media ID: "
-						+ mediaId);
+				cursor = new MediaCursor(result.getTimestamp(1), mediaId);
 			} else {
 				LOGGER.debug("No media with id '" + mediaId + "' found.");
 			}
@@ -292,20 +660,60 @@ public class MetaDataSource {
 			close(statement);
 		}
 
-		return mimeType;
+		return cursor;
+	}
+
+	/**
+	 * Gets a media's uploader, from the cache when possible.
+	 * @return the uploader, or null if there is no media with such id.
+	 */
+	public String getMediaUploader(String mediaId)
+			throws MetadataSourceException {
+		Media media = getMedia(mediaId);
+		return media != null ? media.getAuthor() : null;
+	}
+
+	/**
+	 * Gets a media's MIME type, from the cache when possible.
+	 * @return the MIME type, or null if there is no media with such id.
+	 */
+	public String getMediaMimeType(String mediaId)
+			throws MetadataSourceException {
+		Media media = getMedia(mediaId);
+		return media != null ? media.getMimeType() : null;
+	}
+
+	/**
+	 * Gets a media's file extension, from the cache when possible.
+	 * @return the file extension, or null if there is no media with such id.
+	 */
+	public String getMediaExtension(String mediaId)
+			throws MetadataSourceException {
+		Media media = getMedia(mediaId);
+		return media != null ? media.getFileExtension() : null;
 	}
 
 	public void updateMediaLastUpdated(String mediaId)
 			throws MetadataSourceException {
 		LOGGER.debug("Updating last updated date. Media ID: " + mediaId);
 
+		UnitOfWork unitOfWork = beginUnitOfWork();
 		PreparedStatement statement = null;
 		try {
+			Media media = getMedia(mediaId);
+			if (media == null) {
+				unitOfWork.commit();
+				return;
+			}
+			recordChange(media.getEntityId(), mediaId, false);
+
 			Timestamp now = new Timestamp((new Date()).getTime());
 
 			statement = prepareStatement(Queries.UPDATE_MEDIA_LAST_UPDATED,
 					now, mediaId);
 			statement.execute();
+			invalidateMedia(mediaId);
+			unitOfWork.commit();
 
 			LOGGER.debug("Media last updated date successfully updated. Media ID: "
 					+ mediaId);
@@ -314,18 +722,29 @@ public class MetaDataSource {
 			throw new MetadataSourceException(e.getMessage(), e);
 		} finally {
 			close(statement);
+			unitOfWork.close();
 		}
 	}
 
+	/**
+	 * Updates media's file name, title, description and last updated date.
+	 */
 	public void updateMediaFields(Media media) throws MetadataSourceException {
 		LOGGER.debug("Updating media fields. Media ID: " + media.getId());
 
+		UnitOfWork unitOfWork = beginUnitOfWork();
 		PreparedStatement statement = null;
 		try {
+			recordChange(media.getEntityId(), media.getId(), false);
+
 			statement = prepareStatement(Queries.UPDATE_MEDIA_FIELDS,
 					media.getFileName(), media.getTitle(),
-					media.getDescription(), media.getId());
+					media.getDescription(),
+					new Timestamp(media.getLastUpdatedDate().getTime()),
+					media.getId());
 			statement.execute();
+			invalidateMedia(media.getId());
+			unitOfWork.commit();
 
 			LOGGER.debug("Media fields updated. Media ID: " + media.getId());
 		} catch (SQLException e) {
@@ -333,22 +752,191 @@ public class MetaDataSource {
 			throw new MetadataSourceException(e.getMessage(), e);
 		} finally {
 			close(statement);
+			unitOfWork.close();
 		}
 	}
 
 	public void deleteMedia(String mediaId) throws MetadataSourceException {
 		LOGGER.debug("Deleting media metadata. Media ID: " + mediaId);
 
+		UnitOfWork unitOfWork = beginUnitOfWork();
 		PreparedStatement statement = null;
 		try {
+			// leaves a tombstone for clients syncing the channel
+			Media media = getMedia(mediaId);
+			if (media != null) {
+				recordChange(media.getEntityId(), mediaId, true);
+			}
+
 			statement = prepareStatement(Queries.DELETE_MEDIA, mediaId);
 			statement.execute();
+			invalidateMedia(mediaId);
+			unitOfWork.commit();
 
 			LOGGER.debug("Media metadata successfully deleted. Media ID: "
 					+ mediaId);
 		} catch (SQLException e) {
 			LOGGER.error("Error while deleting media metadata", e);
 			throw new MetadataSourceException(e.getMessage(), e);
+		} finally {
+			close(statement);
+			unitOfWork.close();
+		}
+	}
+
+	// Changes
+
+	/**
+	 * Gets a channel's change sequence.
+	 * @return the sequence, which is at 0 if the channel never changed.
+	 */
+	public ChannelSequence getChannelSequence(String entityId)
+			throws MetadataSourceException {
+		LOGGER.debug("Getting change sequence of: " + entityId);
+
+		PreparedStatement statement = null;
+		try {
+			statement = prepareReadStatement(Queries.GET_CHANNEL_SEQUENCE, entityId, entityId);
+
+			ResultSet result = statement.executeQuery();
+			if (result.next()) {
+				return new ChannelSequence(result.getLong(1), result.getLong(2));
+			}
+
+			return new ChannelSequence(0, 0);
+		} catch (SQLException e) {
+			LOGGER.error("Error while fetching change sequence", e);
+			throw new MetadataSourceException(e.getMessage(), e);
+		} finally {
+			close(statement);
+		}
+	}
+
+	/**
+	 * Gets the last change of every media of a channel changed after {@code seq},
+	 * in sequence order. Deleted media are only known for {@code sync.tombstone.retention}
+	 * days, see {@link ChannelSequence#getPurgedSeq()}.
+	 */
+	public List<MediaChange> getMediaChanges(String entityId, long seq)
+			throws MetadataSourceException {
+		LOGGER.debug("Getting changes of " + entityId + " since " + seq);
+
+		List<MediaChange> changes = new ArrayList<MediaChange>();
+
+		PreparedStatement statement = null;
+		try {
+			statement = prepareReadStatement(Queries.GET_MEDIA_CHANGES, entityId, entityId, seq);
+			statement.setFetchSize(fetchSize);
+
+			ResultSet result = statement.executeQuery();
+			while (result.next()) {
+				Media media = null;
+				if (!result.getBoolean("changeDeleted") && result.getString(1) != null) {
+					media = resultToMedia(result);
+				}
+
+				changes.add(new MediaChange(result.getLong("changeSeq"),
+						result.getString("changeMediaId"), media));
+			}
+
+			LOGGER.debug(changes.size() + " changes sucessfully fetched");
+		} catch (SQLException e) {
+			LOGGER.error("Error while fetching media changes", e);
+			throw new MetadataSourceException(e.getMessage(), e);
+		} finally {
+			close(statement);
+		}
+
+		return changes;
+	}
+
+	/**
+	 * Records the last change to a media in its channel's change sequence. Must be
+	 * called within a unit of work, as the sequence stays locked until it ends.
+	 */
+	private void recordChange(String entityId, String mediaId, boolean deleted)
+			throws SQLException {
+		recordWrite(mediaId, entityId);
+		long seq = nextChangeSeq(entityId, 1);
+		Timestamp now = new Timestamp(System.currentTimeMillis());
+
+		if (executeUpdate(Queries.UPDATE_MEDIA_CHANGE, entityId, seq, deleted, now, mediaId) == 0) {
+			executeUpdate(Queries.SAVE_MEDIA_CHANGE, entityId, seq, deleted, now, mediaId);
+		}
+
+		if (deleted) {
+			purgeTombstones(entityId, new Timestamp(now.getTime() - tombstoneRetention));
+		}
+	}
+
+	/**
+	 * Takes the next {@code count} numbers of a channel's change sequence. Must be
+	 * called within a unit of work.
+	 * @return the last number taken.
+	 * @throws IllegalStateException if no unit of work is open.
+	 */
+	long nextChangeSeq(String entityId, int count) throws SQLException {
+		UnitOfWork unitOfWork = currentUnitOfWork.get();
+		if (unitOfWork == null) {
+			// the sequence would be unlocked as soon as it is taken
+			throw new IllegalStateException("Change sequences are only taken within a unit of work");
+		}
+
+		if (executeUpdate(Queries.INCREMENT_CHANNEL_SEQUENCE, count, entityId) == 0) {
+			// first change of the channel
+			Connection connection = unitOfWork.getConnection();
+			Savepoint savepoint = connection.setSavepoint();
+			try {
+				executeUpdate(Queries.SAVE_CHANNEL_SEQUENCE, entityId, count);
+				connection.releaseSavepoint(savepoint);
+				return count;
+			} catch (SQLException e) {
+				// another transaction created it first
+				connection.rollback(savepoint);
+				executeUpdate(Queries.INCREMENT_CHANNEL_SEQUENCE, count, entityId);
+			}
+		}
+
+		PreparedStatement statement = null;
+		try {
+			statement = prepareStatement(Queries.GET_CHANNEL_SEQUENCE, entityId);
+
+			ResultSet result = statement.executeQuery();
+			result.next();
+			return result.getLong(1);
+		} finally {
+			close(statement);
+		}
+	}
+
+	private void purgeTombstones(String entityId, Timestamp before) throws SQLException {
+		long lastExpired;
+
+		PreparedStatement statement = null;
+		try {
+			statement = prepareStatement(Queries.GET_LAST_EXPIRED_TOMBSTONE, entityId, before);
+
+			ResultSet result = statement.executeQuery();
+			result.next();
+			lastExpired = result.getLong(1);
+			if (result.wasNull()) {
+				return;
+			}
+		} finally {
+			close(statement);
+		}
+
+		executeUpdate(Queries.DELETE_TOMBSTONES, entityId, lastExpired);
+		executeUpdate(Queries.UPDATE_CHANNEL_PURGED_SEQUENCE, lastExpired, entityId, lastExpired);
+
+		LOGGER.debug("Tombstones of " + entityId + " purged up to " + lastExpired);
+	}
+
+	private int executeUpdate(String sql, Object... args) throws SQLException {
+		PreparedStatement statement = null;
+		try {
+			statement = prepareStatement(sql, args);
+			return statement.executeUpdate();
 		} finally {
 			close(statement);
 		}
@@ -361,6 +949,7 @@ public class MetaDataSource {
 
 		PreparedStatement statement = null;
 		try {
+			recordWrite(preview.getId(), preview.getMediaId());
 			statement = prepareStatement(Queries.SAVE_PREVIEW, preview.getId(),
 					preview.getMediaId(), preview.getShaChecksum(),
 					preview.getFileSize(), preview.getHeight(),
@@ -386,7 +975,7 @@ public class MetaDataSource {
 
 		PreparedStatement statement = null;
 		try {
-			statement = prepareStatement(Queries.GET_MEDIA_PREVIEWS, mediaId);
+			statement = prepareReadStatement(Queries.GET_MEDIA_PREVIEWS, mediaId, mediaId);
 
 			ResultSet result = statement.executeQuery();
 
@@ -415,7 +1004,7 @@ public class MetaDataSource {
 
 		PreparedStatement statement = null;
 		try {
-			statement = prepareStatement(Queries.GET_MEDIA_PREVIEW, mediaId,
+			statement = prepareReadStatement(Queries.GET_MEDIA_PREVIEW, mediaId, mediaId,
 					height, width);
 
 			ResultSet result = statement.executeQuery();
@@ -444,7 +1033,7 @@ public class MetaDataSource {
 
 		PreparedStatement statement = null;
 		try {
-			statement = prepareStatement(Queries.GET_PREVIEW_MIME_TYPE, previewId);
+			statement = prepareReadStatement(Queries.GET_PREVIEW_MIME_TYPE, previewId, previewId);
 
 			ResultSet result = statement.executeQuery();
 			if (result.next()) {
@@ -470,6 +1059,7 @@ public class MetaDataSource {
 
 		PreparedStatement statement = null;
 		try {
+			recordWrite(previewId);
 			statement = prepareStatement(Queries.DELETE_PREVIEW, previewId);
 			statement.execute();
 
@@ -489,6 +1079,7 @@ public class MetaDataSource {
 
 		PreparedStatement statement = null;
 		try {
+			recordWrite(mediaId);
 			statement = prepareStatement(Queries.DELETE_PREVIEWS_FROM_MEDIA,
 					mediaId);
 			statement.execute();
@@ -511,6 +1102,7 @@ public class MetaDataSource {
 
 		PreparedStatement statement = null;
 		try {
+			recordWrite(media.getEntityId());
 			statement = prepareStatement(Queries.SAVE_AVATAR, media.getId(),
 					media.getEntityId());
 			statement.execute();
@@ -533,7 +1125,7 @@ public class MetaDataSource {
 
 		PreparedStatement statement = null;
 		try {
-			statement = prepareStatement(Queries.GET_ENTITY_AVATAR_ID, entityId);
+			statement = prepareReadStatement(Queries.GET_ENTITY_AVATAR_ID, entityId, entityId);
 
 			ResultSet result = statement.executeQuery();
 			if (result.next()) {
@@ -553,12 +1145,105 @@ public class MetaDataSource {
 		return mediaId;
 	}
 
+	/**
+	 * Gets the current avatar media of an entity, in a single query.
+	 * @return the avatar media, or null if the entity has no avatar.
+	 */
+	public Media getEntityAvatar(String entityId)
+			throws MetadataSourceException {
+		LOGGER.debug("Getting current avatar from: " + entityId);
+
+		Media media = null;
+		InvalidationStamps.Stamp stamp = mediaCache.stamp();
+
+		PreparedStatement statement = null;
+		try {
+			statement = prepareReadStatement(Queries.GET_ENTITY_AVATAR, entityId, entityId);
+
+			ResultSet result = statement.executeQuery();
+			if (result.next()) {
+				media = resultToMedia(result);
+				cacheMedia(media.getId(), media, stamp);
+				LOGGER.debug("Entity avatar successfully fetched. Media ID: "
+						+ media.getId());
+			} else {
+				LOGGER.debug("No avatar for '" + entityId + "' found.");
+			}
+		} catch (SQLException e) {
+			LOGGER.error("Error while fetching entity avatar", e);
+			throw new MetadataSourceException(e.getMessage(), e);
+		} finally {
+			close(statement);
+		}
+
+		return media;
+	}
+
+	/**
+	 * Gets the current avatar media of an entity along with its preview of the
+	 * given size, in a single query.
+	 * @return the avatar and its preview, which is null if there is no such preview.
+	 * Null if the entity has no avatar.
+	 */
+	public MediaPreview getEntityAvatarWithPreview(String entityId, int height, int width)
+			throws MetadataSourceException {
+		LOGGER.debug("Getting current avatar with preview from: " + entityId);
+
+		return getMediaPreview(entityId, Queries.GET_ENTITY_AVATAR_WITH_PREVIEW, height, width, entityId);
+	}
+
+	/**
+	 * Gets the current avatar media of several entities at once.
+	 * @param entityIds the entities.
+	 * @return each entity's avatar media, in no particular order. Entities without avatar are left out.
+	 * @throws MetadataSourceException if an error occurs while fetching the avatars.
+	 */
+	public Map<String, Media> getEntitiesAvatars(List<String> entityIds)
+			throws MetadataSourceException {
+		LOGGER.debug("Getting current avatars from " + entityIds.size() + " entities");
+
+		Map<String, Media> avatars = new HashMap<String, Media>();
+		if (entityIds.isEmpty()) {
+			return avatars;
+		}
+
+		InvalidationStamps.Stamp stamp = mediaCache.stamp();
+		StringBuilder placeholders = new StringBuilder("(");
+		for (int i = 0; i < entityIds.size(); i++) {
+			placeholders.append(i == 0 ? "?" : ", ?");
+		}
+		placeholders.append(")");
+
+		PreparedStatement statement = null;
+		try {
+			statement = prepareReadStatement(Queries.GET_ENTITIES_AVATARS + placeholders, entityIds,
+					entityIds.toArray());
+
+			ResultSet result = statement.executeQuery();
+			while (result.next()) {
+				Media media = resultToMedia(result);
+				cacheMedia(media.getId(), media, stamp);
+				avatars.put(result.getString("avatarEntityId"), media);
+			}
+
+			LOGGER.debug(avatars.size() + " entity avatars successfully fetched");
+		} catch (SQLException e) {
+			LOGGER.error("Error while fetching entities avatars", e);
+			throw new MetadataSourceException(e.getMessage(), e);
+		} finally {
+			close(statement);
+		}
+
+		return avatars;
+	}
+
 	public void updateEntityAvatar(String entityId, String mediaId)
 			throws MetadataSourceException {
 		LOGGER.debug("Updating " + entityId + " avatar");
 
 		PreparedStatement statement = null;
 		try {
+			recordWrite(entityId);
 			statement = prepareStatement(Queries.UPDATE_AVATAR, mediaId,
 					entityId);
 			statement.execute();
@@ -579,6 +1264,7 @@ public class MetaDataSource {
 
 		PreparedStatement statement = null;
 		try {
+			recordWrite(entityId);
 			statement = prepareStatement(Queries.DELETE_ENTITY_AVATAR, entityId);
 			statement.execute();
 
@@ -26,38 +26,75 @@ public class Queries {
 
 	// Insert
 	public static final String SAVE_MEDIA = "INSERT INTO medias"
-			+ " (id, fileName, entityId, author, title, description, mimeType, fileExtension, shaChecksum, fileSize, length, height, width)"
-			+ " VALUES(?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+			+ " (id, fileName, entityId, author, title, description, mimeType, fileExtension, shaChecksum, fileSize, length, height, width,"
+			+ " uploadedDate, lastUpdatedDate)"
+			+ " VALUES(?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
 	public static final String SAVE_AVATAR = "INSERT INTO avatars"
 			+ " (mediaId, entityId)" + " VALUES(?, ?)";
 	public static final String SAVE_PREVIEW = "INSERT INTO previews"
 			+ " (id, mediaId, shaChecksum, fileSize, height, width, mimeType)"
 			+ " VALUES(?, ?, ?, ?, ?, ?, ?)";
+	public static final String SAVE_CHANNEL_SEQUENCE = "INSERT INTO channel_sequences"
+			+ " (entityId, seq, purgedSeq) VALUES(?, ?, 0)";
+	public static final String SAVE_MEDIA_CHANGE = "INSERT INTO media_changes"
+			+ " (entityId, seq, deleted, changedDate, mediaId) VALUES(?, ?, ?, ?, ?)";
 
 	// Select
-	public static final String GET_MEDIAS_INFO = "SELECT * FROM medias WHERE entityId = ? ORDER BY lastUpdatedDate DESC";
-	public static final String GET_MEDIAS_INFO_MAX = "SELECT * FROM medias WHERE entityId = ? ORDER BY lastUpdatedDate DESC FETCH FIRST # ROWS ONLY";
-	public static final String GET_MEDIAS_INFO_AFTER = "SELECT * FROM medias WHERE entityId = ? AND " +
-			"lastUpdatedDate > (SELECT lastUpdatedDate FROM medias WHERE id = ?) " +
-			"ORDER BY lastUpdatedDate DESC " +
-			"FETCH FIRST # ROWS ONLY";
+	// Listings are put together from the parts below, by MetaDataSource#getMediasInfo.
+	// They are paged by keyset on (lastUpdatedDate, id), see medias_entity_updated_idx
+	public static final String GET_MEDIAS_INFO = "SELECT %s FROM medias WHERE entityId = ?";
+	public static final String MEDIAS_INFO_AFTER = " AND (lastUpdatedDate, id) < (CAST(? AS TIMESTAMP), CAST(? AS TEXT))";
+	public static final String MEDIAS_INFO_MIME_TYPE = " AND mimeType LIKE ? ESCAPE '\\'";
+	public static final String MEDIAS_INFO_AUTHOR = " AND author = ?";
+	public static final String MEDIAS_INFO_SINCE = " AND lastUpdatedDate >= CAST(? AS TIMESTAMP)";
+	public static final String MEDIAS_INFO_UNTIL = " AND lastUpdatedDate < CAST(? AS TIMESTAMP)";
+	public static final String MEDIAS_INFO_ORDER = " ORDER BY lastUpdatedDate DESC, id DESC";
+	public static final String MEDIAS_INFO_MAX = " FETCH FIRST ? ROWS ONLY";
+	public static final String GET_MEDIA_LAST_UPDATED = "SELECT lastUpdatedDate FROM medias WHERE id = ?";
 	public static final String GET_MEDIA = "SELECT * FROM medias WHERE id = ?";
-	public static final String GET_MEDIA_UPLOADER = "SELECT author FROM medias WHERE id = ?";
-	public static final String GET_MEDIA_MIME_TYPE = "SELECT mimeType FROM medias WHERE id = ?";
+	public static final String GET_MEDIA_WITH_PREVIEW = "SELECT medias.*, previews.id AS previewId, previews.mimeType AS previewMimeType " +
+			"FROM medias " +
+			"LEFT JOIN previews ON previews.mediaId = medias.id AND previews.height = ? AND previews.width = ? " +
+			"WHERE medias.id = ?";
 	public static final String GET_PREVIEW_MIME_TYPE = "SELECT mimeType FROM previews WHERE id = ?";
-	public static final String GET_MEDIA_EXTENSION = "SELECT fileExtension FROM medias WHERE id = ?";
 	public static final String GET_ENTITY_AVATAR_ID = "SELECT mediaId FROM avatars WHERE entityId = ?";
+	public static final String GET_ENTITY_AVATAR = "SELECT medias.* FROM avatars " +
+			"JOIN medias ON avatars.mediaId = medias.id WHERE avatars.entityId = ?";
+	public static final String GET_ENTITY_AVATAR_WITH_PREVIEW = "SELECT medias.*, previews.id AS previewId, previews.mimeType AS previewMimeType " +
+			"FROM avatars " +
+			"JOIN medias ON avatars.mediaId = medias.id " +
+			"LEFT JOIN previews ON previews.mediaId = medias.id AND previews.height = ? AND previews.width = ? " +
+			"WHERE avatars.entityId = ?";
+	public static final String GET_ENTITIES_AVATARS = "SELECT medias.*, avatars.entityId AS avatarEntityId FROM avatars " +
+			"JOIN medias ON avatars.mediaId = medias.id WHERE avatars.entityId IN ";
 	public static final String GET_MEDIA_PREVIEW = "SELECT id FROM previews WHERE mediaId = ? AND height = ? AND width = ?";
 	public static final String GET_MEDIA_PREVIEWS = "SELECT id FROM previews WHERE mediaId = ?";
+	public static final String GET_RECORDED_MEDIAS = "SELECT mediaId FROM media_changes WHERE mediaId IN (%s)";
+	public static final String GET_CHANNEL_SEQUENCE = "SELECT seq, purgedSeq FROM channel_sequences WHERE entityId = ?";
+	public static final String GET_MEDIA_CHANGES = "SELECT medias.*, media_changes.mediaId AS changeMediaId, " +
+			"media_changes.seq AS changeSeq, media_changes.deleted AS changeDeleted FROM media_changes LEFT JOIN medias ON medias.id = media_changes.mediaId " +
+			"WHERE media_changes.entityId = ? AND media_changes.seq > ? ORDER BY media_changes.seq";
+	public static final String GET_LAST_EXPIRED_TOMBSTONE = "SELECT MAX(seq) FROM media_changes " +
+			"WHERE entityId = ? AND deleted = TRUE AND changedDate < ?";
 
 	// Delete
 	public static final String DELETE_MEDIA = "DELETE FROM medias WHERE id = ?";
 	public static final String DELETE_PREVIEW = "DELETE FROM previews WHERE id = ?";
 	public static final String DELETE_ENTITY_AVATAR = "DELETE FROM avatars WHERE entityId = ?";
 	public static final String DELETE_PREVIEWS_FROM_MEDIA = "DELETE FROM previews WHERE mediaId = ?";
+	public static final String DELETE_TOMBSTONES = "DELETE FROM media_changes " +
+			"WHERE entityId = ? AND deleted = TRUE AND seq <= ?";
 
 	// Update
 	public static final String UPDATE_MEDIA_LAST_UPDATED = "UPDATE medias SET lastUpdatedDate = ? WHERE id = ?";
-	public static final String UPDATE_MEDIA_FIELDS = "UPDATE medias SET fileName = ?, title = ?, description = ? WHERE id = ?";
+	public static final String UPDATE_MEDIA_FIELDS = "UPDATE medias SET fileName = ?, title = ?, description = ?, " +
+			"lastUpdatedDate = ? WHERE id = ?";
 	public static final String UPDATE_AVATAR = "UPDATE avatars SET mediaId = ? WHERE entityId = ?";
+	// the row stays locked until commit, so a channel's changes commit in sequence order
+	public static final String INCREMENT_CHANNEL_SEQUENCE = "UPDATE channel_sequences SET seq = seq + ? " +
+			"WHERE entityId = ?";
+	public static final String UPDATE_CHANNEL_PURGED_SEQUENCE = "UPDATE channel_sequences SET purgedSeq = ? " +
+			"WHERE entityId = ? AND purgedSeq < ?";
+	public static final String UPDATE_MEDIA_CHANGE = "UPDATE media_changes SET entityId = ?, seq = ?, " +
+			"deleted = ?, changedDate = ? WHERE mediaId = ?";
 }
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2012 buddycloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.buddycloud.mediaserver.business.jdbc;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Media and channel ids this node wrote lately. Reads about them go to the
+ * primary database for {@code window} milliseconds, so a client sees its own
+ * writes even if the read replicas lag behind.
+ */
+public class RecentWrites {
+
+	// expired ids are swept once every so many writes
+	private static final int SWEEP_INTERVAL = 1000;
+
+	private final long window;
+	private final ConcurrentMap<String, Long> expiries = new ConcurrentHashMap<String, Long>();
+	private final AtomicInteger writes = new AtomicInteger();
+
+	/**
+	 * @param window how long an id stays recent after being written, in milliseconds.
+	 */
+	public RecentWrites(long window) {
+		this.window = window;
+	}
+
+	public void record(String id) {
+		if (id == null || window <= 0) {
+			return;
+		}
+
+		expiries.put(id, System.currentTimeMillis() + window);
+
+		if (writes.incrementAndGet() % SWEEP_INTERVAL == 0) {
+			sweep();
+		}
+	}
+
+	/**
+	 * @return whether any of the ids was written within the window.
+	 */
+	public boolean containsAny(Iterable<String> ids) {
+		long now = System.currentTimeMillis();
+
+		for (String id : ids) {
+			Long expiry = id != null ? expiries.get(id) : null;
+			if (expiry != null && expiry > now) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	private void sweep() {
+		long now = System.currentTimeMillis();
+
+		Iterator<Map.Entry<String, Long>> iterator = expiries.entrySet().iterator();
+		while (iterator.hasNext()) {
+			if (iterator.next().getValue() <= now) {
+				iterator.remove();
+			}
+		}
+	}
+}
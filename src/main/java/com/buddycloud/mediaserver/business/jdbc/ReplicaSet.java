@@ -0,0 +1,159 @@
+/*
+ * Copyright 2012 buddycloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.buddycloud.mediaserver.business.jdbc;
+
+import java.beans.PropertyVetoException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.buddycloud.mediaserver.commons.MediaServerConfiguration;
+
+/**
+ * Read replicas of the metadata database, each with its own connection pool.
+ * Connections are handed out round-robin among the replicas found healthy by
+ * the last check, which runs {@code jdbc.replica.health.check.query} on each
+ * of them every {@code jdbc.replica.health.check.interval} milliseconds.
+ */
+public class ReplicaSet {
+	private static Logger LOGGER = LoggerFactory.getLogger(ReplicaSet.class);
+
+	private final List<Replica> replicas = new ArrayList<Replica>();
+	private final AtomicInteger next = new AtomicInteger();
+	private final String healthQuery;
+	private final Timer healthCheck;
+
+	public ReplicaSet(String driverClass, List<String> urls, Properties configuration)
+			throws PropertyVetoException {
+		this.healthQuery = configuration.getProperty(
+				MediaServerConfiguration.JDBC_REPLICA_HEALTH_CHECK_QUERY);
+		long checkInterval = Long.valueOf(configuration.getProperty(
+				MediaServerConfiguration.JDBC_REPLICA_HEALTH_CHECK_INTERVAL));
+
+		for (String url : urls) {
+			ConnectionPool pool = new ConnectionPool("replica-" + (replicas.size() + 1),
+					driverClass, url, configuration);
+			// a replica that is down must not hold reads for long before they go elsewhere
+			pool.getDataSource().setAcquireRetryAttempts(1);
+
+			replicas.add(new Replica(url, pool));
+		}
+
+		this.healthCheck = new Timer("metadata-replica-health-check", true);
+		healthCheck.schedule(new TimerTask() {
+			public void run() {
+				checkHealth();
+			}
+		}, checkInterval, checkInterval);
+	}
+
+	/**
+	 * @return a connection to the next healthy replica, or null if none can be reached.
+	 */
+	public Connection getConnection() {
+		int size = replicas.size();
+		int start = next.getAndIncrement();
+
+		for (int i = 0; i < size; i++) {
+			Replica replica = replicas.get(((start + i) % size + size) % size);
+			if (!replica.healthy) {
+				continue;
+			}
+
+			try {
+				return replica.pool.getConnection();
+			} catch (SQLTransientConnectionException e) {
+				// busy, not down
+				continue;
+			} catch (SQLException e) {
+				LOGGER.warn("Read replica " + replica.url + " unreachable, marking it down", e);
+				replica.healthy = false;
+			}
+		}
+
+		return null;
+	}
+
+	public void close() {
+		healthCheck.cancel();
+		for (Replica replica : replicas) {
+			replica.pool.close();
+		}
+	}
+
+	void checkHealth() {
+		for (Replica replica : replicas) {
+			boolean healthy = isHealthy(replica);
+
+			if (healthy != replica.healthy) {
+				if (healthy) {
+					LOGGER.info("Read replica " + replica.url + " is back up");
+				} else {
+					LOGGER.warn("Read replica " + replica.url + " is down");
+				}
+			}
+			replica.healthy = healthy;
+		}
+	}
+
+	private boolean isHealthy(Replica replica) {
+		Connection connection = null;
+		try {
+			connection = replica.pool.getConnection();
+
+			Statement statement = connection.createStatement();
+			try {
+				statement.execute(healthQuery);
+			} finally {
+				statement.close();
+			}
+
+			return true;
+		} catch (SQLException e) {
+			LOGGER.debug("Health check of " + replica.url + " failed", e);
+			return false;
+		} finally {
+			if (connection != null) {
+				try {
+					connection.close();
+				} catch (SQLException e) {
+					LOGGER.error(e.getMessage(), e);
+				}
+			}
+		}
+	}
+
+	private static class Replica {
+		private final String url;
+		private final ConnectionPool pool;
+		private volatile boolean healthy = true;
+
+		private Replica(String url, ConnectionPool pool) {
+			this.url = url;
+			this.pool = pool;
+		}
+	}
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright 2012 buddycloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.buddycloud.mediaserver.business.jdbc;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.buddycloud.mediaserver.commons.exception.MetadataSourceException;
+
+/**
+ * A single connection and transaction shared by every {@link MetaDataSource}
+ * operation performed by the thread that began it. The connection is only
+ * borrowed from the pool when the first statement runs.
+ * <p>
+ * Units of work nest: beginning one while another is open joins the outer
+ * one, and only the outermost {@link #commit()} reaches the database.
+ * Units of work begun with {@link MetaDataSource#beginReadUnitOfWork(java.util.Collection)}
+ * may run on a read replica, and must only read.
+ * Usage:
+ * <pre>
+ * UnitOfWork unitOfWork = dataSource.beginUnitOfWork();
+ * try {
+ *     ...
+ *     unitOfWork.commit();
+ * } finally {
+ *     unitOfWork.close();
+ * }
+ * </pre>
+ */
+public class UnitOfWork {
+	private static Logger LOGGER = LoggerFactory.getLogger(UnitOfWork.class);
+
+	private final MetaDataSource dataSource;
+	private final boolean replica;
+
+	private Connection connection;
+	private int depth;
+	private boolean committed;
+	private boolean rollbackOnly;
+	private List<Runnable> endListeners = new ArrayList<Runnable>();
+
+	UnitOfWork(MetaDataSource dataSource, boolean replica) {
+		this.dataSource = dataSource;
+		this.replica = replica;
+	}
+
+	void join() {
+		depth++;
+		committed = false;
+	}
+
+	Connection getConnection() throws SQLException {
+		if (connection == null) {
+			connection = replica ? dataSource.getReplicaConnection()
+					: dataSource.getConnection();
+			connection.setAutoCommit(false);
+		}
+		return connection;
+	}
+
+	/**
+	 * Runs {@code listener} once the outermost unit of work is closed,
+	 * whether it was committed or not.
+	 */
+	void onEnd(Runnable listener) {
+		endListeners.add(listener);
+	}
+
+	boolean owns(Connection connection) {
+		return connection != null && connection == this.connection;
+	}
+
+	/**
+	 * Commits the work done so far, if this is the outermost unit of work.
+	 * @throws MetadataSourceException if the transaction can't be committed,
+	 * or an inner unit of work was closed without committing.
+	 */
+	public void commit() throws MetadataSourceException {
+		if (depth > 1 || connection == null) {
+			committed = true;
+			return;
+		}
+
+		try {
+			if (rollbackOnly) {
+				connection.rollback();
+				throw new MetadataSourceException("Unit of work rolled back by an inner unit of work", null);
+			}
+			connection.commit();
+			committed = true;
+		} catch (SQLException e) {
+			LOGGER.error("Error while committing unit of work", e);
+			throw new MetadataSourceException(e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Ends this unit of work. Uncommitted work is rolled back, and the
+	 * connection goes back to the pool once the outermost unit is closed.
+	 */
+	public void close() {
+		if (!committed) {
+			rollbackOnly = true;
+		}
+
+		if (--depth > 0) {
+			// the outer unit of work still has to commit on its own
+			committed = false;
+			return;
+		}
+
+		dataSource.endUnitOfWork(this);
+		try {
+			release();
+		} finally {
+			for (Runnable listener : endListeners) {
+				listener.run();
+			}
+			endListeners.clear();
+		}
+	}
+
+	private void release() {
+		if (connection == null) {
+			return;
+		}
+
+		try {
+			if (!committed) {
+				connection.rollback();
+			}
+			connection.setAutoCommit(true);
+		} catch (SQLException e) {
+			LOGGER.error(e.getMessage(), e);
+		} finally {
+			try {
+				connection.close();
+			} catch (SQLException e) {
+				LOGGER.error(e.getMessage(), e);
+			}
+			connection = null;
+		}
+	}
+}
@@ -0,0 +1,269 @@
+/*
+ * Copyright 2012 buddycloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.buddycloud.mediaserver.business.jdbc.schema;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Brings the database schema up to date on startup, by applying the
+ * {@code upgrade-<version>.sql} scripts of the migrations directory that
+ * are newer than the version recorded in {@code schema_version}. Each script
+ * runs in its own transaction and records its version when done.
+ * <p>
+ * An empty database is first installed from {@code base.sql} (PostgreSQL) or
+ * {@code base-hbsql.sql} (HSQLDB). On PostgreSQL, servers starting together
+ * take turns through an advisory lock, so the schema is installed and each
+ * migration applied once.
+ */
+public class MigrationRunner {
+	private static Logger LOGGER = LoggerFactory.getLogger(MigrationRunner.class);
+
+	private static final Pattern UPGRADE_FILE = Pattern.compile("upgrade-(\\d+)\\.sql");
+	private static final String POSTGRES_INSTALL_FILE = "base.sql";
+	private static final String HSQLDB_INSTALL_FILE = "base-hbsql.sql";
+	private static final String SQL_DELIMITER = ";";
+	private static final String SQL_COMMENT = "--";
+
+	// any constant shared by every server of the cluster
+	private static final long POSTGRES_LOCK_KEY = 0x6275646479L;
+
+	private final File directory;
+
+	/**
+	 * @param directory where the install and upgrade scripts are.
+	 */
+	public MigrationRunner(File directory) {
+		this.directory = directory;
+	}
+
+	/**
+	 * Applies the pending migrations.
+	 * @return the schema version the database is at.
+	 */
+	public int migrate(Connection connection) throws SQLException, IOException {
+		connection.setAutoCommit(true);
+		boolean postgres = connection.getMetaData().getDatabaseProductName()
+				.toLowerCase().contains("postgres");
+
+		if (isEmpty(connection)) {
+			install(connection, postgres);
+		}
+
+		int version = getVersion(connection);
+		for (Map.Entry<Integer, File> migration : getMigrations().tailMap(version + 1).entrySet()) {
+			if (apply(connection, migration.getKey(), migration.getValue(), postgres)) {
+				version = migration.getKey();
+			}
+		}
+
+		LOGGER.info("Database schema at version " + version);
+		return version;
+	}
+
+	private void install(Connection connection, boolean postgres)
+			throws SQLException, IOException {
+		String installFile = postgres ? POSTGRES_INSTALL_FILE : HSQLDB_INSTALL_FILE;
+
+		connection.setAutoCommit(false);
+		try {
+			lock(connection, postgres);
+
+			// another server may have installed it while this one waited
+			if (!isEmpty(connection)) {
+				connection.rollback();
+				return;
+			}
+
+			LOGGER.info("Empty database, installing schema from " + installFile);
+			runScript(connection, new File(directory, installFile));
+			connection.commit();
+		} catch (SQLException e) {
+			LOGGER.error("Schema install from " + installFile + " failed", e);
+			connection.rollback();
+			throw e;
+		} finally {
+			connection.setAutoCommit(true);
+		}
+	}
+
+	/**
+	 * @return whether the migration was applied, rather than by another server first.
+	 */
+	private boolean apply(Connection connection, int version, File script, boolean postgres)
+			throws SQLException, IOException {
+		connection.setAutoCommit(false);
+		try {
+			lock(connection, postgres);
+
+			if (getVersion(connection) >= version) {
+				connection.rollback();
+				return false;
+			}
+
+			LOGGER.info("Applying schema migration " + script.getName());
+			runScript(connection, script);
+			connection.commit();
+
+			return true;
+		} catch (SQLException e) {
+			LOGGER.error("Schema migration " + script.getName() + " failed", e);
+			connection.rollback();
+			throw e;
+		} finally {
+			connection.setAutoCommit(true);
+		}
+	}
+
+	/**
+	 * @return the upgrade scripts, by version.
+	 */
+	SortedMap<Integer, File> getMigrations() throws FileNotFoundException {
+		File[] files = directory.listFiles();
+		if (files == null) {
+			throw new FileNotFoundException("No migrations directory: " + directory);
+		}
+
+		SortedMap<Integer, File> migrations = new TreeMap<Integer, File>();
+		for (File file : files) {
+			Matcher matcher = UPGRADE_FILE.matcher(file.getName());
+			if (matcher.matches()) {
+				migrations.put(Integer.valueOf(matcher.group(1)), file);
+			}
+		}
+
+		return migrations;
+	}
+
+	/**
+	 * Waits for the other servers to be done with the schema, until the
+	 * current transaction ends.
+	 */
+	private void lock(Connection connection, boolean postgres) throws SQLException {
+		if (postgres) {
+			execute(connection, "SELECT pg_advisory_xact_lock(" + POSTGRES_LOCK_KEY + ")");
+		}
+	}
+
+	private boolean isEmpty(Connection connection) throws SQLException {
+		return !hasTable(connection, "schema_version") && !hasTable(connection, "medias");
+	}
+
+	private int getVersion(Connection connection) throws SQLException {
+		if (!hasTable(connection, "schema_version")) {
+			// schemas from before versioning
+			return 0;
+		}
+
+		Statement statement = connection.createStatement();
+		try {
+			ResultSet result = statement.executeQuery("SELECT MAX(version) FROM schema_version");
+			return result.next() ? result.getInt(1) : 0;
+		} finally {
+			statement.close();
+		}
+	}
+
+	private boolean hasTable(Connection connection, String table) throws SQLException {
+		// PostgreSQL keeps unquoted names in lower case, HSQLDB in upper case
+		for (String name : new String[] {table, table.toUpperCase()}) {
+			ResultSet tables = connection.getMetaData().getTables(null, null, name, null);
+			try {
+				if (tables.next()) {
+					return true;
+				}
+			} finally {
+				tables.close();
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * Runs the statements of a script, leaving out its own transaction control.
+	 */
+	@SuppressWarnings("unchecked")
+	private void runScript(Connection connection, File script) throws SQLException, IOException {
+		InputStream input = new FileInputStream(script);
+		List<String> lines;
+		try {
+			lines = IOUtils.readLines(input, "UTF-8");
+		} finally {
+			input.close();
+		}
+
+		for (String sql : splitStatements(lines)) {
+			String upper = sql.toUpperCase();
+			if (upper.equals("BEGIN") || upper.equals("BEGIN TRANSACTION") || upper.equals("COMMIT")) {
+				continue;
+			}
+			execute(connection, sql);
+		}
+	}
+
+	static List<String> splitStatements(List<String> lines) {
+		List<String> statements = new ArrayList<String>();
+		StringBuilder statement = new StringBuilder();
+
+		for (String line : lines) {
+			String trimmed = line.trim();
+			if (trimmed.length() == 0 || trimmed.startsWith(SQL_COMMENT)) {
+				continue;
+			}
+
+			statement.append(statement.length() > 0 ? " " : "").append(trimmed);
+			if (trimmed.endsWith(SQL_DELIMITER)) {
+				statement.setLength(statement.length() - SQL_DELIMITER.length());
+				statements.add(statement.toString().trim());
+				statement.setLength(0);
+			}
+		}
+
+		if (statement.toString().trim().length() > 0) {
+			statements.add(statement.toString().trim());
+		}
+
+		return statements;
+	}
+
+	private void execute(Connection connection, String sql) throws SQLException {
+		Statement statement = connection.createStatement();
+		try {
+			statement.execute(sql);
+		} finally {
+			statement.close();
+		}
+	}
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright 2012 buddycloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.buddycloud.mediaserver.business.jobs;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.buddycloud.mediaserver.business.util.AudioUtils;
+
+/**
+ * Produces a bitrate-capped streaming rendition of a stored audio file.
+ * The original file is left untouched.
+ */
+public class AudioTranscodingJob implements Runnable {
+
+	private static Logger LOGGER = LoggerFactory.getLogger(AudioTranscodingJob.class);
+
+	private File source;
+	private File output;
+	private int bitRate;
+
+	public AudioTranscodingJob(File source, File output, int bitRate) {
+		this.source = source;
+		this.output = output;
+		this.bitRate = bitRate;
+	}
+
+	public void run() {
+		// keeps the extension, the writer picks the container format from it
+		File tmpOutput = new File(output.getParent(), "part-" + output.getName());
+
+		try {
+			AudioUtils.transcode(source, tmpOutput, bitRate);
+
+			if (!tmpOutput.renameTo(output)) {
+				throw new IOException("Could not write " + output.getAbsolutePath());
+			}
+		} catch (IOException e) {
+			LOGGER.error("Error while transcoding audio: " + source.getName(), e);
+			FileUtils.deleteQuietly(tmpOutput);
+		}
+	}
+}
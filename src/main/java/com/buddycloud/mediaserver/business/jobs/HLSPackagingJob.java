@@ -0,0 +1,55 @@
+/*
+ * Copyright 2012 buddycloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.buddycloud.mediaserver.business.jobs;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.buddycloud.mediaserver.business.util.HLSPackager;
+
+/**
+ * Packages a stored video into an HLS playlist and segments, kept in a
+ * directory next to the media file.
+ */
+public class HLSPackagingJob implements Runnable {
+
+	private static Logger LOGGER = LoggerFactory.getLogger(HLSPackagingJob.class);
+
+	private File source;
+	private File outputDirectory;
+	private int segmentDuration;
+
+	public HLSPackagingJob(File source, File outputDirectory, int segmentDuration) {
+		this.source = source;
+		this.outputDirectory = outputDirectory;
+		this.segmentDuration = segmentDuration;
+	}
+
+	public void run() {
+		try {
+			new HLSPackager(source, outputDirectory, segmentDuration).createPlaylist();
+		} catch (IOException e) {
+			LOGGER.error("Error while packaging HLS for: " + source.getName(), e);
+
+			// don't leave half-written segments behind
+			FileUtils.deleteQuietly(outputDirectory);
+		}
+	}
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2012 buddycloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.buddycloud.mediaserver.business.jobs;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.buddycloud.mediaserver.commons.MediaServerConfiguration;
+
+/**
+ * Runs media processing jobs (packaging, transcoding, analysis) outside
+ * the request flow, on a small fixed pool of daemon threads.
+ */
+public class JobExecutor {
+
+	private static Logger LOGGER = LoggerFactory.getLogger(JobExecutor.class);
+
+	private static JobExecutor instance;
+
+	private ExecutorService executor;
+
+	private JobExecutor(int threads) {
+		final AtomicInteger count = new AtomicInteger();
+
+		this.executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "media-job-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				thread.setPriority(Thread.MIN_PRIORITY);
+
+				return thread;
+			}
+		});
+	}
+
+	public static synchronized JobExecutor getInstance() {
+		if (instance == null) {
+			String threads = MediaServerConfiguration.getInstance().getConfiguration()
+					.getProperty(MediaServerConfiguration.MEDIA_JOBS_THREADS);
+			instance = new JobExecutor(Integer.valueOf(threads));
+		}
+
+		return instance;
+	}
+
+	/**
+	 * Schedules a job. Failures are logged, never propagated to the caller.
+	 * @param name job description used in logs.
+	 * @param job the job to be executed.
+	 */
+	public void submit(final String name, final Runnable job) {
+		try {
+			executor.execute(new Runnable() {
+				public void run() {
+					LOGGER.debug("Starting job: " + name);
+
+					try {
+						job.run();
+						LOGGER.debug("Job finished: " + name);
+					} catch (Throwable t) {
+						LOGGER.error("Job failed: " + name, t);
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			LOGGER.error("Could not schedule job: " + name, e);
+		}
+	}
+
+	public void shutdown() {
+		executor.shutdown();
+	}
+}
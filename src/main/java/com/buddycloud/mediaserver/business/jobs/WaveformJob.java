@@ -0,0 +1,60 @@
+/*
+ * Copyright 2012 buddycloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.buddycloud.mediaserver.business.jobs;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.buddycloud.mediaserver.business.util.AudioUtils;
+
+/**
+ * Decodes a stored audio file once and writes its waveform peaks
+ * next to the media file.
+ */
+public class WaveformJob implements Runnable {
+
+	private static Logger LOGGER = LoggerFactory.getLogger(WaveformJob.class);
+
+	private File source;
+	private File output;
+	private int buckets;
+
+	public WaveformJob(File source, File output, int buckets) {
+		this.source = source;
+		this.output = output;
+		this.buckets = buckets;
+	}
+
+	public void run() {
+		File tmpOutput = new File(output.getAbsolutePath() + ".tmp");
+
+		try {
+			byte[] peaks = AudioUtils.createWaveformPeaks(source, buckets);
+			FileUtils.writeByteArrayToFile(tmpOutput, peaks);
+
+			if (!tmpOutput.renameTo(output)) {
+				throw new IOException("Could not write " + output.getAbsolutePath());
+			}
+		} catch (IOException e) {
+			LOGGER.error("Error while computing waveform for: " + source.getName(), e);
+			FileUtils.deleteQuietly(tmpOutput);
+		}
+	}
+}
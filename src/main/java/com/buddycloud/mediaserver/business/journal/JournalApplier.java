@@ -0,0 +1,226 @@
+/*
+ * Copyright 2012 buddycloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.buddycloud.mediaserver.business.journal;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Applies journaled records to the database from a background thread, in
+ * batches of up to {@code batchSize} records. If a batch fails, its records
+ * are applied one by one, so a bad record doesn't hold the others back.
+ * <p>
+ * A record that fails is retried, with a delay doubling up to
+ * {@link #MAX_RETRY_DELAY}, until it goes through. Only a record the handler
+ * deems {@link Handler#isPermanent(Exception) permanently} refused is given up,
+ * after {@code maxAttempts} attempts: it is moved to the journal's dead letter
+ * file and {@link Handler#discard(JournalRecord) discarded}. Applied and
+ * discarded records are checkpointed in the journal.
+ */
+public class JournalApplier {
+	private static Logger LOGGER = LoggerFactory.getLogger(JournalApplier.class);
+
+	private static final long MAX_RETRY_DELAY = 60000;
+
+	/**
+	 * Applies a batch of records. Must be idempotent, as a crash between the
+	 * batch being applied and checkpointed replays it.
+	 */
+	public interface Handler {
+		void apply(List<JournalRecord> records) throws Exception;
+
+		/**
+		 * @return whether a record that failed with {@code e} would fail again
+		 * however often it is retried, rather than because the database is unavailable.
+		 */
+		boolean isPermanent(Exception e);
+
+		/**
+		 * Cleans up after a record that was given up.
+		 */
+		void discard(JournalRecord record);
+	}
+
+	private final MetadataJournal journal;
+	private final Handler handler;
+	private final int batchSize;
+	private final long retryDelay;
+	private final int maxAttempts;
+
+	private final BlockingQueue<JournalRecord> queue = new LinkedBlockingQueue<JournalRecord>();
+	private final Object appliedLock = new Object();
+	private long appliedSeq;
+	private long submittedSeq;
+
+	private Thread thread;
+
+	/**
+	 * @param retryDelay delay before a failed record is first retried, in milliseconds.
+	 * @param maxAttempts attempts after which a permanently refused record is given up.
+	 */
+	public JournalApplier(MetadataJournal journal, Handler handler, int batchSize,
+			long retryDelay, int maxAttempts) {
+		this.journal = journal;
+		this.handler = handler;
+		this.batchSize = batchSize;
+		this.retryDelay = retryDelay;
+		this.maxAttempts = maxAttempts;
+	}
+
+	public synchronized void start() {
+		if (thread != null) {
+			return;
+		}
+
+		thread = new Thread("metadata-journal-applier") {
+			public void run() {
+				applyLoop();
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	public synchronized void stop() {
+		if (thread != null) {
+			thread.interrupt();
+			thread = null;
+		}
+	}
+
+	/**
+	 * Queues a record appended to the journal. Records must be submitted in
+	 * sequence order, as each batch checkpoints every record up to its last.
+	 * @throws IllegalArgumentException if the record comes before one already submitted.
+	 */
+	public synchronized void submit(JournalRecord record) {
+		if (record.getSeq() <= submittedSeq) {
+			throw new IllegalArgumentException("Journal record " + record.getSeq()
+					+ " submitted after " + submittedSeq);
+		}
+
+		submittedSeq = record.getSeq();
+		queue.add(record);
+	}
+
+	/**
+	 * Waits until every record up to {@code seq} is applied.
+	 * @return whether they were applied before the timeout.
+	 */
+	public boolean awaitApplied(long seq, long timeout) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeout;
+
+		synchronized (appliedLock) {
+			while (appliedSeq < seq) {
+				long wait = deadline - System.currentTimeMillis();
+				if (wait <= 0) {
+					return false;
+				}
+				appliedLock.wait(wait);
+			}
+		}
+
+		return true;
+	}
+
+	private void applyLoop() {
+		try {
+			while (!Thread.currentThread().isInterrupted()) {
+				List<JournalRecord> batch = new ArrayList<JournalRecord>();
+				batch.add(queue.take());
+				queue.drainTo(batch, batchSize - 1);
+
+				apply(batch);
+			}
+		} catch (InterruptedException e) {
+			LOGGER.debug("Journal applier stopped");
+		}
+	}
+
+	private void apply(List<JournalRecord> batch) throws InterruptedException {
+		try {
+			handler.apply(batch);
+		} catch (Exception e) {
+			LOGGER.warn("Could not apply " + batch.size() + " journal records, applying them one by one", e);
+
+			// the handler skips the records already applied
+			for (JournalRecord record : batch) {
+				applyAlone(record);
+			}
+		}
+
+		long lastSeq = batch.get(batch.size() - 1).getSeq();
+		try {
+			journal.checkpoint(lastSeq);
+		} catch (IOException e) {
+			// the records will be applied again after a restart, which they tolerate
+			LOGGER.error("Could not checkpoint the metadata journal", e);
+		}
+
+		synchronized (appliedLock) {
+			appliedSeq = lastSeq;
+			appliedLock.notifyAll();
+		}
+
+		LOGGER.debug(batch.size() + " journal records applied, up to " + lastSeq);
+	}
+
+	private void applyAlone(JournalRecord record) throws InterruptedException {
+		long delay = retryDelay;
+		int attempts = 0;
+
+		while (true) {
+			try {
+				handler.apply(Collections.singletonList(record));
+				return;
+			} catch (Exception e) {
+				if (handler.isPermanent(e) && ++attempts >= maxAttempts) {
+					LOGGER.error("Giving up journal record " + record.getSeq() + " after "
+							+ attempts + " attempts", e);
+					deadLetter(record);
+					return;
+				}
+
+				LOGGER.error("Could not apply journal record " + record.getSeq()
+						+ ", retrying in " + delay + "ms", e);
+				Thread.sleep(delay);
+				delay = Math.min(delay * 2, MAX_RETRY_DELAY);
+			}
+		}
+	}
+
+	private void deadLetter(JournalRecord record) {
+		try {
+			journal.deadLetter(record);
+		} catch (IOException e) {
+			LOGGER.error("Could not keep journal record " + record.getSeq()
+					+ " in the dead letter file", e);
+		}
+
+		try {
+			handler.discard(record);
+		} catch (RuntimeException e) {
+			LOGGER.error("Could not discard journal record " + record.getSeq(), e);
+		}
+	}
+}
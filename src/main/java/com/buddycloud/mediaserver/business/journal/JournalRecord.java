@@ -13,26 +13,25 @@
  * See the License for the specific language governing permissions and
  * limitations under the License.
  */
-package com.buddycloud.mediaserver.xmpp.util;
+package com.buddycloud.mediaserver.business.journal;
 
-import org.xmpp.packet.Packet;
-
-public class PacketIDFilter implements MediaServerPacketFilter {
-
-	private String packetID;
+/**
+ * A record read back from the {@link MetadataJournal}.
+ */
+public class JournalRecord {
+	private final long seq;
+	private final byte[] payload;
 
-	public PacketIDFilter(String packetID) {
-		if (packetID == null) {
-			throw new IllegalArgumentException("Packet ID cannot be null.");
-		}
-		this.packetID = packetID;
+	public JournalRecord(long seq, byte[] payload) {
+		this.seq = seq;
+		this.payload = payload;
 	}
 
-	public boolean accept(Packet packet) {
-		return packetID.equals(packet.getID());
+	public long getSeq() {
+		return seq;
 	}
 
-	public String toString() {
-		return "Packet filter by id: " + packetID;
+	public byte[] getPayload() {
+		return payload;
 	}
 }
@@ -0,0 +1,315 @@
+/*
+ * Copyright 2012 buddycloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.buddycloud.mediaserver.business.journal;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Append-only local journal of metadata writes that are yet to reach the database.
+ * <p>
+ * Records go into fixed size, memory-mapped segment files and are forced to disk
+ * before {@link #append(byte[])} returns. Each record is laid out as its payload
+ * length, sequence number, CRC32 of both and the payload itself; a zero length ends
+ * a segment. A torn record at the end of the last segment, left by a crash while
+ * appending, fails its CRC and is dropped on {@link #open()}.
+ * <p>
+ * Once records are applied, {@link #checkpoint(long)} stores the last applied
+ * sequence number and deletes the segments that are no longer needed. Records
+ * that could not be applied are kept aside with {@link #deadLetter(JournalRecord)},
+ * laid out the same way.
+ */
+public class MetadataJournal {
+	private static Logger LOGGER = LoggerFactory.getLogger(MetadataJournal.class);
+
+	private static final String SEGMENT_PREFIX = "segment-";
+	private static final String SEGMENT_SUFFIX = ".log";
+	private static final String CHECKPOINT_FILE = "checkpoint";
+	private static final String DEAD_LETTER_FILE = "dead-letters";
+
+	// length, seq, crc
+	private static final int HEADER_SIZE = 4 + 8 + 4;
+	private static final int END_MARKER_SIZE = 4;
+
+	private final File directory;
+	private final int segmentSize;
+
+	private List<File> segments = new ArrayList<File>();
+	private List<Long> segmentFirstSeqs = new ArrayList<Long>();
+	private RandomAccessFile currentFile;
+	private MappedByteBuffer current;
+
+	private long nextSeq = 1;
+	private long checkpointSeq;
+
+	/**
+	 * @param directory where segments are kept, created if needed.
+	 * @param segmentSize size of each segment file, in bytes.
+	 */
+	public MetadataJournal(File directory, int segmentSize) {
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+	}
+
+	/**
+	 * Opens the journal, recovering the records appended after the last checkpoint.
+	 * @return the records that still have to be applied, in sequence order.
+	 */
+	public synchronized List<JournalRecord> open() throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Could not create journal directory: " + directory);
+		}
+
+		checkpointSeq = readCheckpoint();
+		nextSeq = checkpointSeq + 1;
+
+		File[] files = directory.listFiles(new FileFilter() {
+			public boolean accept(File file) {
+				return file.getName().startsWith(SEGMENT_PREFIX)
+						&& file.getName().endsWith(SEGMENT_SUFFIX);
+			}
+		});
+		Arrays.sort(files);
+
+		List<JournalRecord> pending = new ArrayList<JournalRecord>();
+		int lastPosition = 0;
+
+		for (File file : files) {
+			segments.add(file);
+			segmentFirstSeqs.add(parseFirstSeq(file));
+			lastPosition = readSegment(file, pending);
+		}
+
+		if (segments.isEmpty()) {
+			newSegment();
+		} else {
+			mapSegment(segments.get(segments.size() - 1));
+			// overwrites whatever torn record was left behind
+			current.position(lastPosition);
+			current.putInt(lastPosition, 0);
+		}
+
+		LOGGER.info("Metadata journal opened at " + directory + ", " + pending.size()
+				+ " records to apply");
+
+		return pending;
+	}
+
+	/**
+	 * Appends a record and forces it to disk.
+	 * @return the record's sequence number.
+	 */
+	public synchronized long append(byte[] payload) throws IOException {
+		int recordSize = HEADER_SIZE + payload.length;
+		if (recordSize + END_MARKER_SIZE > segmentSize) {
+			throw new IOException("Journal record of " + payload.length
+					+ " bytes does not fit in a segment");
+		}
+
+		if (current.remaining() < recordSize + END_MARKER_SIZE) {
+			current.force();
+			newSegment();
+		}
+
+		long seq = nextSeq++;
+
+		current.putInt(payload.length);
+		current.putLong(seq);
+		current.putInt(crc(seq, payload));
+		current.put(payload);
+		current.putInt(current.position(), 0);
+		current.force();
+
+		return seq;
+	}
+
+	/**
+	 * @return the sequence number of the last appended record, 0 if none.
+	 */
+	public synchronized long getLastSeq() {
+		return nextSeq - 1;
+	}
+
+	/**
+	 * Records that every record up to {@code seq} was applied, and deletes
+	 * the segments holding only such records.
+	 */
+	public synchronized void checkpoint(long seq) throws IOException {
+		if (seq <= checkpointSeq) {
+			return;
+		}
+
+		writeCheckpoint(seq);
+		checkpointSeq = seq;
+
+		// a segment can go once the next one starts within the applied records
+		while (segments.size() > 1 && segmentFirstSeqs.get(1) <= seq + 1) {
+			File segment = segments.remove(0);
+			segmentFirstSeqs.remove(0);
+
+			if (!segment.delete()) {
+				LOGGER.warn("Could not delete journal segment: " + segment);
+			}
+		}
+	}
+
+	/**
+	 * Appends a record that could not be applied to the dead letter file, for
+	 * it to be looked into, and forces it to disk.
+	 */
+	public synchronized void deadLetter(JournalRecord record) throws IOException {
+		byte[] payload = record.getPayload();
+		ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + payload.length);
+		buffer.putInt(payload.length);
+		buffer.putLong(record.getSeq());
+		buffer.putInt(crc(record.getSeq(), payload));
+		buffer.put(payload);
+
+		RandomAccessFile file = new RandomAccessFile(new File(directory, DEAD_LETTER_FILE), "rwd");
+		try {
+			file.seek(file.length());
+			file.write(buffer.array());
+		} finally {
+			file.close();
+		}
+	}
+
+	public synchronized void close() throws IOException {
+		if (current != null) {
+			current.force();
+			current = null;
+		}
+		if (currentFile != null) {
+			currentFile.close();
+			currentFile = null;
+		}
+	}
+
+	private void newSegment() throws IOException {
+		File file = new File(directory, String.format("%s%020d%s", SEGMENT_PREFIX,
+				nextSeq, SEGMENT_SUFFIX));
+
+		mapSegment(file);
+		segments.add(file);
+		segmentFirstSeqs.add(nextSeq);
+
+		LOGGER.debug("New journal segment: " + file);
+	}
+
+	private void mapSegment(File file) throws IOException {
+		if (currentFile != null) {
+			currentFile.close();
+		}
+
+		currentFile = new RandomAccessFile(file, "rw");
+		if (currentFile.length() < segmentSize) {
+			currentFile.setLength(segmentSize);
+		}
+
+		current = currentFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+				currentFile.length());
+	}
+
+	/**
+	 * Reads the valid records of a segment, keeping those after the checkpoint.
+	 * @return the position right after the last valid record.
+	 */
+	private int readSegment(File file, List<JournalRecord> pending) throws IOException {
+		RandomAccessFile segment = new RandomAccessFile(file, "r");
+		try {
+			ByteBuffer buffer = ByteBuffer.allocate((int) segment.length());
+			segment.getChannel().read(buffer, 0);
+			buffer.flip();
+
+			while (buffer.remaining() >= HEADER_SIZE) {
+				int position = buffer.position();
+				int length = buffer.getInt();
+				if (length <= 0 || length > buffer.remaining() - 12) {
+					return position;
+				}
+
+				long seq = buffer.getLong();
+				int crc = buffer.getInt();
+				byte[] payload = new byte[length];
+				buffer.get(payload);
+
+				if (crc != crc(seq, payload)) {
+					LOGGER.warn("Dropping torn journal record " + seq + " in " + file);
+					return position;
+				}
+
+				nextSeq = Math.max(nextSeq, seq + 1);
+				if (seq > checkpointSeq) {
+					pending.add(new JournalRecord(seq, payload));
+				}
+			}
+
+			return buffer.position();
+		} finally {
+			segment.close();
+		}
+	}
+
+	private long readCheckpoint() throws IOException {
+		File file = new File(directory, CHECKPOINT_FILE);
+		if (!file.exists()) {
+			return 0;
+		}
+
+		RandomAccessFile checkpoint = new RandomAccessFile(file, "r");
+		try {
+			return checkpoint.length() >= 8 ? checkpoint.readLong() : 0;
+		} finally {
+			checkpoint.close();
+		}
+	}
+
+	private void writeCheckpoint(long seq) throws IOException {
+		RandomAccessFile checkpoint = new RandomAccessFile(
+				new File(directory, CHECKPOINT_FILE), "rwd");
+		try {
+			checkpoint.seek(0);
+			checkpoint.writeLong(seq);
+		} finally {
+			checkpoint.close();
+		}
+	}
+
+	private static long parseFirstSeq(File segment) {
+		String name = segment.getName();
+		return Long.parseLong(name.substring(SEGMENT_PREFIX.length(),
+				name.length() - SEGMENT_SUFFIX.length()));
+	}
+
+	private static int crc(long seq, byte[] payload) {
+		CRC32 crc = new CRC32();
+		crc.update(ByteBuffer.allocate(8).putLong(seq).array());
+		crc.update(payload);
+		return (int) crc.getValue();
+	}
+}
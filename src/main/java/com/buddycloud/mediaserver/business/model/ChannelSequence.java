@@ -0,0 +1,44 @@
+/*
+ * Copyright 2012 buddycloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.buddycloud.mediaserver.business.model;
+
+/**
+ * State of a channel's change sequence.
+ */
+public class ChannelSequence {
+	private final long seq;
+	private final long purgedSeq;
+
+	public ChannelSequence(long seq, long purgedSeq) {
+		this.seq = seq;
+		this.purgedSeq = purgedSeq;
+	}
+
+	/**
+	 * @return the sequence number of the channel's last change, 0 if none.
+	 */
+	public long getSeq() {
+		return seq;
+	}
+
+	/**
+	 * @return the sequence number of the last deletion that was forgotten.
+	 * Changes since any earlier point can no longer be told.
+	 */
+	public long getPurgedSeq() {
+		return purgedSeq;
+	}
+}
@@ -176,4 +176,29 @@ public class Media {
 	public void setAuthor(String author) {
 		this.author = author;
 	}
+
+	/**
+	 * @return a copy of this metadata, sharing no mutable state with it.
+	 */
+	public Media copy() {
+		Media copy = new Media();
+
+		copy.id = id;
+		copy.fileName = fileName;
+		copy.author = author;
+		copy.title = title;
+		copy.mimeType = mimeType;
+		copy.description = description;
+		copy.uploadedDate = uploadedDate != null ? new Date(uploadedDate.getTime()) : null;
+		copy.lastUpdatedDate = lastUpdatedDate != null ? new Date(lastUpdatedDate.getTime()) : null;
+		copy.fileExtension = fileExtension;
+		copy.shaChecksum = shaChecksum;
+		copy.fileSize = fileSize;
+		copy.length = length;
+		copy.height = height;
+		copy.width = width;
+		copy.entityId = entityId;
+
+		return copy;
+	}
 }
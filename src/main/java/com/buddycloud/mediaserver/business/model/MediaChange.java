@@ -0,0 +1,53 @@
+/*
+ * Copyright 2012 buddycloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.buddycloud.mediaserver.business.model;
+
+/**
+ * The last change made to a media of a channel.
+ */
+public class MediaChange {
+	private final long seq;
+	private final String mediaId;
+	private final Media media;
+
+	/**
+	 * @param media the media as it is now, or null if it was deleted.
+	 */
+	public MediaChange(long seq, String mediaId, Media media) {
+		this.seq = seq;
+		this.mediaId = mediaId;
+		this.media = media;
+	}
+
+	public long getSeq() {
+		return seq;
+	}
+
+	public String getMediaId() {
+		return mediaId;
+	}
+
+	/**
+	 * @return the media, or null if it was deleted.
+	 */
+	public Media getMedia() {
+		return media;
+	}
+
+	public boolean isDeleted() {
+		return media == null;
+	}
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2012 buddycloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.buddycloud.mediaserver.business.model;
+
+import java.io.UnsupportedEncodingException;
+import java.sql.Timestamp;
+import java.util.Date;
+
+import org.apache.commons.codec.binary.Base64;
+
+/**
+ * Position in a channel's media listing, which is sorted by last updated
+ * date and id, both descending. Clients get it as an opaque token.
+ */
+public class MediaCursor {
+	private static final String CHARSET = "UTF-8";
+	private static final String SEPARATOR = ":";
+
+	private final Timestamp lastUpdatedDate;
+	private final String mediaId;
+
+	public MediaCursor(Timestamp lastUpdatedDate, String mediaId) {
+		this.lastUpdatedDate = lastUpdatedDate;
+		this.mediaId = mediaId;
+	}
+
+	/**
+	 * The cursor right after a media. Its last updated date keeps the
+	 * database precision when it was read straight from a result set.
+	 */
+	public static MediaCursor after(Media media) {
+		Date date = media.getLastUpdatedDate();
+		Timestamp timestamp = date instanceof Timestamp ? (Timestamp) date
+				: new Timestamp(date.getTime());
+
+		return new MediaCursor(timestamp, media.getId());
+	}
+
+	public Timestamp getLastUpdatedDate() {
+		return lastUpdatedDate;
+	}
+
+	public String getMediaId() {
+		return mediaId;
+	}
+
+	public String encode() {
+		String cursor = lastUpdatedDate.getTime() + SEPARATOR + lastUpdatedDate.getNanos()
+				+ SEPARATOR + mediaId;
+
+		try {
+			return Base64.encodeBase64URLSafeString(cursor.getBytes(CHARSET));
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * @return the cursor encoded in {@code token}, or null if it isn't a valid cursor token.
+	 */
+	public static MediaCursor decode(String token) {
+		if (token == null || !Base64.isBase64(token)) {
+			return null;
+		}
+
+		try {
+			String[] fields = new String(Base64.decodeBase64(token), CHARSET).split(SEPARATOR, 3);
+			if (fields.length != 3 || fields[2].length() == 0) {
+				return null;
+			}
+
+			Timestamp timestamp = new Timestamp(Long.parseLong(fields[0]));
+			timestamp.setNanos(Integer.parseInt(fields[1]));
+
+			return new MediaCursor(timestamp, fields[2]);
+		} catch (IllegalArgumentException e) {
+			// malformed numbers or nanos out of range
+			return null;
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
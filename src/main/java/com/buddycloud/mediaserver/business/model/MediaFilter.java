@@ -0,0 +1,146 @@
+/*
+ * Copyright 2012 buddycloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.buddycloud.mediaserver.business.model;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Restricts a channel's media listing to the media matching every criterion
+ * set, and optionally to some of their fields. Unset criteria match any media.
+ */
+public class MediaFilter {
+
+	/**
+	 * Fields a listing can be restricted to, named as in the media JSON.
+	 */
+	public static final List<String> FIELDS = Collections.unmodifiableList(Arrays.asList(
+			"id", "fileName", "entityId", "author", "title", "description", "mimeType",
+			"uploadedDate", "lastUpdatedDate", "fileExtension", "shaChecksum", "fileSize",
+			"length", "height", "width"));
+
+	private Set<String> fields;
+	private String mimeTypePrefix;
+	private String author;
+	private Date since;
+	private Date until;
+
+	/**
+	 * @return the requested fields, or null if every field is.
+	 */
+	public Set<String> getFields() {
+		return fields;
+	}
+
+	/**
+	 * @param fields the fields to return, null or empty for all of them.
+	 * @throws IllegalArgumentException if any of them is not in {@link #FIELDS}.
+	 */
+	public void setFields(Collection<String> fields) {
+		if (fields == null || fields.isEmpty()) {
+			this.fields = null;
+			return;
+		}
+
+		for (String field : fields) {
+			if (!FIELDS.contains(field)) {
+				throw new IllegalArgumentException("Unknown media field: " + field);
+			}
+		}
+		this.fields = Collections.unmodifiableSet(new LinkedHashSet<String>(fields));
+	}
+
+	public boolean isProjected() {
+		return fields != null;
+	}
+
+	/**
+	 * @return the fields to read: the requested ones plus id and lastUpdatedDate,
+	 * which listings are sorted by.
+	 */
+	public Set<String> getReadFields() {
+		Set<String> readFields = new LinkedHashSet<String>();
+		readFields.add("id");
+		readFields.add("lastUpdatedDate");
+		if (fields != null) {
+			readFields.addAll(fields);
+		} else {
+			readFields.addAll(FIELDS);
+		}
+		return readFields;
+	}
+
+	/**
+	 * Clears the fields that were only read to sort the listing.
+	 */
+	public Media project(Media media) {
+		if (fields != null) {
+			if (!fields.contains("id")) {
+				media.setId(null);
+			}
+			if (!fields.contains("lastUpdatedDate")) {
+				media.setLastUpdatedDate(null);
+			}
+		}
+		return media;
+	}
+
+	public String getMimeTypePrefix() {
+		return mimeTypePrefix;
+	}
+
+	/**
+	 * @param mimeTypePrefix e.g. "image/" for every image, or "image/png".
+	 */
+	public void setMimeTypePrefix(String mimeTypePrefix) {
+		this.mimeTypePrefix = mimeTypePrefix;
+	}
+
+	public String getAuthor() {
+		return author;
+	}
+
+	public void setAuthor(String author) {
+		this.author = author;
+	}
+
+	/**
+	 * @return the earliest last updated date matched, inclusive.
+	 */
+	public Date getSince() {
+		return since;
+	}
+
+	public void setSince(Date since) {
+		this.since = since;
+	}
+
+	/**
+	 * @return the last updated date matched media must precede.
+	 */
+	public Date getUntil() {
+		return until;
+	}
+
+	public void setUntil(Date until) {
+		this.until = until;
+	}
+}
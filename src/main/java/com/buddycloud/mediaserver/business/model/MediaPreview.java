@@ -0,0 +1,41 @@
+/*
+ * Copyright 2012 buddycloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.buddycloud.mediaserver.business.model;
+
+/**
+ * A media and one of its previews, as fetched together by a single query.
+ * Only the preview id and MIME type are filled in.
+ */
+public class MediaPreview {
+	private Media media;
+	private Preview preview;
+
+	public MediaPreview(Media media, Preview preview) {
+		this.media = media;
+		this.preview = preview;
+	}
+
+	public Media getMedia() {
+		return media;
+	}
+
+	/**
+	 * @return the preview, or null if the media has no preview of the requested size.
+	 */
+	public Preview getPreview() {
+		return preview;
+	}
+}
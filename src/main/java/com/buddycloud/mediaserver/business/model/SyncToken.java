@@ -0,0 +1,71 @@
+/*
+ * Copyright 2012 buddycloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.buddycloud.mediaserver.business.model;
+
+import java.io.UnsupportedEncodingException;
+
+import org.apache.commons.codec.binary.Base64;
+
+/**
+ * Position in a channel's change sequence. Clients get it as an opaque
+ * token along with a listing, and pass it back to only get what changed since.
+ * The token is not bound to its channel.
+ */
+public class SyncToken {
+	private static final String CHARSET = "UTF-8";
+	private static final String PREFIX = "s:";
+
+	private final long seq;
+
+	public SyncToken(long seq) {
+		this.seq = seq;
+	}
+
+	public long getSeq() {
+		return seq;
+	}
+
+	public String encode() {
+		try {
+			return Base64.encodeBase64URLSafeString((PREFIX + seq).getBytes(CHARSET));
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * @return the sync token encoded in {@code token}, or null if it isn't a valid one.
+	 */
+	public static SyncToken decode(String token) {
+		if (token == null || !Base64.isBase64(token)) {
+			return null;
+		}
+
+		try {
+			String decoded = new String(Base64.decodeBase64(token), CHARSET);
+			if (!decoded.startsWith(PREFIX)) {
+				return null;
+			}
+
+			long seq = Long.parseLong(decoded.substring(PREFIX.length()));
+			return seq >= 0 ? new SyncToken(seq) : null;
+		} catch (NumberFormatException e) {
+			return null;
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -15,16 +15,28 @@
  */
 package com.buddycloud.mediaserver.business.util;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.IOException;
 import java.util.Arrays;
 
+import com.xuggle.mediatool.IMediaReader;
+import com.xuggle.mediatool.IMediaWriter;
+import com.xuggle.mediatool.MediaToolAdapter;
+import com.xuggle.mediatool.ToolFactory;
+import com.xuggle.mediatool.event.IAudioSamplesEvent;
+import com.xuggle.xuggler.IAudioSamples;
 import com.xuggle.xuggler.ICodec;
 import com.xuggle.xuggler.IContainer;
+import com.xuggle.xuggler.IPacket;
 import com.xuggle.xuggler.IStream;
 import com.xuggle.xuggler.IStreamCoder;
 
 public class AudioUtils {
 
+	public static final String TRANSCODED_MIME_TYPE = "audio/mpeg";
+	public static final String TRANSCODED_TYPE = "mp3";
+
 	private AudioUtils() {
 	}
 
@@ -47,10 +59,234 @@ public class AudioUtils {
 		return -1;
 	}
 
+	/**
+	 * Decodes an audio file and summarizes it as min/max peak pairs, one pair
+	 * per bucket. Each value is a signed byte, so the result is always
+	 * {@code 2 * buckets} bytes long: [min0, max0, min1, max1, ...].
+	 * @param audio the audio file.
+	 * @param buckets number of peak pairs to be computed.
+	 * @return the peaks array.
+	 * @throws IOException if the file has no decodable audio stream.
+	 */
+	@SuppressWarnings("deprecation")
+	public static byte[] createWaveformPeaks(File audio, int buckets) throws IOException {
+		IContainer container = IContainer.make();
+
+		if (container.open(audio.getAbsolutePath(), IContainer.Type.READ, null) < 0) {
+			throw new IOException("Could not open " + audio.getName());
+		}
+
+		try {
+			IStreamCoder coder = null;
+			int streamIndex = -1;
+
+			for (int i = 0; i < container.getNumStreams(); i++) {
+				IStreamCoder streamCoder = container.getStream(i).getStreamCoder();
+
+				if (streamCoder.getCodecType() == ICodec.Type.CODEC_TYPE_AUDIO) {
+					coder = streamCoder;
+					streamIndex = i;
+					break;
+				}
+			}
+
+			if (coder == null || coder.open() < 0) {
+				throw new IOException("No decodable audio stream in " + audio.getName());
+			}
+
+			try {
+				PeakAccumulator peaks = new PeakAccumulator();
+				IPacket packet = IPacket.make();
+				IAudioSamples samples = IAudioSamples.make(1024, coder.getChannels());
+
+				while (container.readNextPacket(packet) >= 0) {
+					if (packet.getStreamIndex() != streamIndex) {
+						continue;
+					}
+
+					int offset = 0;
+					while (offset < packet.getSize()) {
+						int bytesDecoded = coder.decodeAudio(samples, packet, offset);
+						if (bytesDecoded < 0) {
+							break;
+						}
+						offset += bytesDecoded;
+
+						if (samples.isComplete()) {
+							peaks.add(samples);
+						}
+					}
+				}
+
+				return peaks.toBuckets(buckets);
+			} finally {
+				coder.close();
+			}
+		} finally {
+			container.close();
+		}
+	}
+
+	/**
+	 * Transcodes an audio file into a bitrate-capped MP3 rendition.
+	 * @param audio the source audio file.
+	 * @param target the rendition file, must end with the ".mp3" extension.
+	 * @param bitRate maximum bitrate of the rendition, in bits per second.
+	 * @throws IOException if the file has no audio stream.
+	 */
+	public static void transcode(File audio, File target, int bitRate) throws IOException {
+		IContainer container = IContainer.make();
+		int channels;
+		int sampleRate;
+		int sourceBitRate;
+
+		if (container.open(audio.getAbsolutePath(), IContainer.Type.READ, null) < 0) {
+			throw new IOException("Could not open " + audio.getName());
+		}
+
+		try {
+			IStreamCoder coder = null;
+			for (int i = 0; i < container.getNumStreams() && coder == null; i++) {
+				IStreamCoder streamCoder = container.getStream(i).getStreamCoder();
+				if (streamCoder.getCodecType() == ICodec.Type.CODEC_TYPE_AUDIO) {
+					coder = streamCoder;
+				}
+			}
+
+			if (coder == null) {
+				throw new IOException("No audio stream in " + audio.getName());
+			}
+
+			channels = coder.getChannels();
+			sampleRate = coder.getSampleRate();
+			sourceBitRate = coder.getBitRate();
+		} finally {
+			container.close();
+		}
+
+		final IMediaWriter writer = ToolFactory.makeWriter(target.getAbsolutePath());
+		writer.addAudioStream(0, 0, ICodec.ID.CODEC_ID_MP3, channels, sampleRate);
+		writer.getContainer().getStream(0).getStreamCoder().setBitRate(
+				sourceBitRate > 0 ? Math.min(bitRate, sourceBitRate) : bitRate);
+
+		IMediaReader reader = ToolFactory.makeReader(audio.getAbsolutePath());
+		reader.addListener(new MediaToolAdapter() {
+			@Override
+			public void onAudioSamples(IAudioSamplesEvent event) {
+				writer.encodeAudio(0, event.getAudioSamples());
+			}
+		});
+
+		try {
+			while (reader.readPacket() == null) {
+				// samples are encoded by the listener
+			}
+		} finally {
+			reader.close();
+			writer.close();
+		}
+	}
+
+	/**
+	 * Whether an audio format is stored uncompressed or losslessly, so a
+	 * streaming rendition is worth producing.
+	 */
+	public static boolean isTranscodable(String extension) {
+		if (null == extension) {
+			return false;
+		}
+		return Arrays.binarySearch(TRANSCODABLE_FORMATS, extension.toLowerCase()) >= 0;
+	}
+
 	public static boolean isAudio(String extension) {
+		if (null == extension) {
+			return false;
+		}
 		return Arrays.binarySearch(FORMATS, extension.toLowerCase()) >= 0;
 	}
 
+	// Keeps min/max pairs over fixed-size blocks of frames, so memory grows with
+	// duration / BLOCK_SIZE instead of with the number of samples
+	static class PeakAccumulator {
+		private static final int BLOCK_SIZE = 256;
+
+		private ByteArrayOutputStream blocks = new ByteArrayOutputStream();
+		private int blockMin = Short.MAX_VALUE;
+		private int blockMax = Short.MIN_VALUE;
+		private int blockFrames = 0;
+
+		void add(IAudioSamples samples) {
+			int channels = (int) samples.getChannels();
+
+			for (long i = 0; i < samples.getNumSamples(); i++) {
+				for (int c = 0; c < channels; c++) {
+					add(samples.getSample(i, c, IAudioSamples.Format.FMT_S16));
+				}
+				endFrame();
+			}
+		}
+
+		void add(int sample) {
+			blockMin = Math.min(blockMin, sample);
+			blockMax = Math.max(blockMax, sample);
+		}
+
+		void endFrame() {
+			if (++blockFrames == BLOCK_SIZE) {
+				flushBlock();
+			}
+		}
+
+		private void flushBlock() {
+			if (blockFrames > 0) {
+				blocks.write(toByte(blockMin));
+				blocks.write(toByte(blockMax));
+			}
+
+			blockMin = Short.MAX_VALUE;
+			blockMax = Short.MIN_VALUE;
+			blockFrames = 0;
+		}
+
+		byte[] toBuckets(int buckets) {
+			flushBlock();
+
+			byte[] pairs = blocks.toByteArray();
+			int blockCount = pairs.length / 2;
+			byte[] result = new byte[buckets * 2];
+
+			if (blockCount == 0) {
+				return result;
+			}
+
+			for (int b = 0; b < buckets; b++) {
+				int from = (int) ((long) b * blockCount / buckets);
+				int to = Math.max(from + 1, (int) ((long) (b + 1) * blockCount / buckets));
+				to = Math.min(to, blockCount);
+
+				byte min = Byte.MAX_VALUE;
+				byte max = Byte.MIN_VALUE;
+				for (int i = from; i < to; i++) {
+					min = (byte) Math.min(min, pairs[i * 2]);
+					max = (byte) Math.max(max, pairs[i * 2 + 1]);
+				}
+
+				result[b * 2] = min;
+				result[b * 2 + 1] = max;
+			}
+
+			return result;
+		}
+
+		private static int toByte(int sample) {
+			// keeps the sign, 16 to 8 bits
+			return sample >> 8;
+		}
+	}
+
+	private static final String[] TRANSCODABLE_FORMATS = { "aif", "aifc", "aiff",
+			"caf", "flac", "w64", "wav", "wave" };
+
 	private static final String[] FORMATS = { "3ga", "4mp", "669", "6cm",
 			"8cm", "8med", "8svx", "a2m", "a52", "aa", "aa3", "aac", "aax",
 			"ab", "abc", "abm", "ac3", "acd", "acd-bak", "acd-zip", "acm",
@@ -0,0 +1,239 @@
+/*
+ * Copyright 2012 buddycloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.buddycloud.mediaserver.business.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import org.apache.commons.io.FileUtils;
+
+import com.xuggle.mediatool.IMediaReader;
+import com.xuggle.mediatool.IMediaWriter;
+import com.xuggle.mediatool.MediaToolAdapter;
+import com.xuggle.mediatool.ToolFactory;
+import com.xuggle.mediatool.event.IAudioSamplesEvent;
+import com.xuggle.mediatool.event.IVideoPictureEvent;
+import com.xuggle.xuggler.ICodec;
+import com.xuggle.xuggler.IContainer;
+import com.xuggle.xuggler.IStream;
+import com.xuggle.xuggler.IStreamCoder;
+
+/**
+ * Packages a video file into an HLS playlist and a sequence of short
+ * MPEG-TS segments. Each segment is encoded on its own, so every segment
+ * starts on a key frame and can be decoded independently by the player.
+ */
+public class HLSPackager {
+
+	public static final String PLAYLIST_NAME = "index.m3u8";
+	public static final String PLAYLIST_MIME_TYPE = "application/vnd.apple.mpegurl";
+	public static final String SEGMENT_MIME_TYPE = "video/MP2T";
+
+	private static final String SEGMENT_PREFIX = "segment-";
+	private static final String SEGMENT_EXTENSION = ".ts";
+	private static final Pattern FILE_PATTERN = Pattern.compile(
+			"^(" + Pattern.quote(PLAYLIST_NAME) + "|" + SEGMENT_PREFIX + "\\d+"
+					+ Pattern.quote(SEGMENT_EXTENSION) + ")$");
+
+	private File source;
+	private File outputDirectory;
+	private long segmentDuration;
+
+	private Integer width;
+	private Integer height;
+	private Integer audioChannels;
+	private Integer audioSampleRate;
+
+	/**
+	 * @param source video file to be packaged.
+	 * @param outputDirectory directory that will hold the playlist and the segments.
+	 * @param segmentDuration target segment duration, in seconds.
+	 */
+	public HLSPackager(File source, File outputDirectory, int segmentDuration) {
+		this.source = source;
+		this.outputDirectory = outputDirectory;
+		this.segmentDuration = TimeUnit.SECONDS.toMicros(segmentDuration);
+	}
+
+	/**
+	 * Segments the source file and writes the playlist. The playlist is
+	 * written last, under a temporary name, so a partially packaged media
+	 * is never advertised to players.
+	 * @return the playlist file.
+	 * @throws IOException if the source can't be decoded or the output can't be written.
+	 */
+	public File createPlaylist() throws IOException {
+		probe();
+
+		if (width == null || height == null) {
+			throw new IOException("No video stream found in " + source.getName());
+		}
+
+		FileUtils.forceMkdir(outputDirectory);
+
+		SegmentWriter segmentWriter = new SegmentWriter();
+		IMediaReader reader = ToolFactory.makeReader(source.getAbsolutePath());
+		reader.addListener(segmentWriter);
+
+		try {
+			while (reader.readPacket() == null) {
+				// segments are written by the listener
+			}
+		} finally {
+			segmentWriter.closeSegment(segmentWriter.lastTimestamp);
+			reader.close();
+		}
+
+		if (segmentWriter.durations.isEmpty()) {
+			throw new IOException("No video frames decoded from " + source.getName());
+		}
+
+		File tmpPlaylist = new File(outputDirectory, PLAYLIST_NAME + ".tmp");
+		FileUtils.writeStringToFile(tmpPlaylist, buildPlaylist(segmentWriter.durations), "UTF-8");
+
+		File playlist = new File(outputDirectory, PLAYLIST_NAME);
+		if (!tmpPlaylist.renameTo(playlist)) {
+			throw new IOException("Could not write playlist " + playlist.getAbsolutePath());
+		}
+
+		return playlist;
+	}
+
+	private void probe() {
+		IContainer container = IContainer.make();
+
+		if (container.open(source.getAbsolutePath(), IContainer.Type.READ, null) >= 0) {
+			try {
+				for (int i = 0; i < container.getNumStreams(); i++) {
+					IStream stream = container.getStream(i);
+					IStreamCoder coder = stream.getStreamCoder();
+
+					if (coder.getCodecType() == ICodec.Type.CODEC_TYPE_VIDEO && width == null) {
+						width = coder.getWidth();
+						height = coder.getHeight();
+					} else if (coder.getCodecType() == ICodec.Type.CODEC_TYPE_AUDIO
+							&& audioChannels == null) {
+						audioChannels = coder.getChannels();
+						audioSampleRate = coder.getSampleRate();
+					}
+				}
+			} finally {
+				container.close();
+			}
+		}
+	}
+
+	private String buildPlaylist(List<Double> durations) {
+		double targetDuration = 0;
+		for (Double duration : durations) {
+			targetDuration = Math.max(targetDuration, duration);
+		}
+
+		StringBuilder playlist = new StringBuilder();
+		playlist.append("#EXTM3U\n");
+		playlist.append("#EXT-X-VERSION:3\n");
+		playlist.append("#EXT-X-PLAYLIST-TYPE:VOD\n");
+		playlist.append("#EXT-X-TARGETDURATION:").append((int) Math.ceil(targetDuration)).append("\n");
+		playlist.append("#EXT-X-MEDIA-SEQUENCE:0\n");
+
+		for (int i = 0; i < durations.size(); i++) {
+			playlist.append(String.format("#EXTINF:%.3f,\n", durations.get(i)));
+			playlist.append(getSegmentName(i)).append("\n");
+		}
+
+		playlist.append("#EXT-X-ENDLIST\n");
+
+		return playlist.toString();
+	}
+
+	/**
+	 * Checks whether a requested file name is one this packager produces,
+	 * so HLS requests can't be used to reach other files.
+	 */
+	public static boolean isHLSFile(String fileName) {
+		return fileName != null && FILE_PATTERN.matcher(fileName).matches();
+	}
+
+	public static String getMimeType(String fileName) {
+		return fileName.endsWith(SEGMENT_EXTENSION) ? SEGMENT_MIME_TYPE : PLAYLIST_MIME_TYPE;
+	}
+
+	private static String getSegmentName(int index) {
+		return SEGMENT_PREFIX + index + SEGMENT_EXTENSION;
+	}
+
+	// Listener that re-encodes decoded frames, rolling to a new segment on the first
+	// video frame past the target duration
+	private class SegmentWriter extends MediaToolAdapter {
+		private List<Double> durations = new ArrayList<Double>();
+		private IMediaWriter writer;
+		private long segmentStart;
+		private long lastTimestamp;
+
+		@Override
+		public void onVideoPicture(IVideoPictureEvent event) {
+			long timestamp = event.getTimeStamp(TimeUnit.MICROSECONDS);
+
+			if (writer != null && timestamp - segmentStart >= segmentDuration) {
+				closeSegment(timestamp);
+			}
+			if (writer == null) {
+				openSegment(timestamp);
+			}
+
+			writer.encodeVideo(0, event.getPicture());
+			lastTimestamp = Math.max(lastTimestamp, timestamp);
+		}
+
+		@Override
+		public void onAudioSamples(IAudioSamplesEvent event) {
+			// audio before the first video frame has no segment to go to
+			if (writer != null && audioChannels != null) {
+				writer.encodeAudio(1, event.getAudioSamples());
+				lastTimestamp = Math.max(lastTimestamp,
+						event.getTimeStamp(TimeUnit.MICROSECONDS));
+			}
+		}
+
+		private void openSegment(long timestamp) {
+			File segment = new File(outputDirectory, getSegmentName(durations.size()));
+
+			writer = ToolFactory.makeWriter(segment.getAbsolutePath());
+			writer.addVideoStream(0, 0, ICodec.ID.CODEC_ID_H264, width, height);
+			if (audioChannels != null) {
+				writer.addAudioStream(1, 1, ICodec.ID.CODEC_ID_MP3, audioChannels,
+						audioSampleRate);
+			}
+
+			segmentStart = timestamp;
+		}
+
+		private void closeSegment(long timestamp) {
+			if (writer == null) {
+				return;
+			}
+
+			writer.close();
+			writer = null;
+
+			durations.add(Math.max(timestamp - segmentStart, 0) / 1000000.0);
+		}
+	}
+}
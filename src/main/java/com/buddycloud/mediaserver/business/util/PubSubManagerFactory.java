@@ -7,11 +7,19 @@ public class PubSubManagerFactory {
 
 	private Connection connection;
 
+	public PubSubManagerFactory() {
+		this(null);
+	}
+
 	public PubSubManagerFactory(Connection connection) {
 		this.connection = connection;
 	}
 	
 	public PubSubManager create(String domain) {
+		return create(connection, domain);
+	}
+
+	public PubSubManager create(Connection connection, String domain) {
 		return new PubSubManager(connection, domain);
 	}
 }
\ No newline at end of file
@@ -0,0 +1,42 @@
+/*
+ * Copyright 2012 buddycloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.buddycloud.mediaserver.commons;
+
+import java.io.File;
+import java.util.Date;
+
+/**
+ * Content of an avatar, either its bytes ({@link CachedAvatar}) or, for
+ * original avatars too large to be kept in memory, its file to be
+ * streamed ({@link StreamedAvatar}).
+ */
+public interface AvatarContent {
+
+	/**
+	 * Turns an avatar's content into a result, whichever form it has.
+	 */
+	interface Visitor<R> {
+		R visitBytes(byte[] bytes);
+
+		R visitFile(File file);
+	}
+
+	String getMimeType();
+
+	Date getLastModified();
+
+	<R> R accept(Visitor<R> visitor);
+}
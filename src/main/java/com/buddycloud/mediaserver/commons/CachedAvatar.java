@@ -0,0 +1,32 @@
+/*
+ * Copyright 2012 buddycloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.buddycloud.mediaserver.commons;
+
+import java.util.Date;
+
+/**
+ * Avatar held in memory, which may be cached.
+ */
+public class CachedAvatar extends MediaFile<byte[]> implements AvatarContent {
+
+	public CachedAvatar(String mimeType, byte[] bytes, Date lastModified) {
+		super(mimeType, bytes, lastModified);
+	}
+
+	public <R> R accept(Visitor<R> visitor) {
+		return visitor.visitBytes(getMediaFile());
+	}
+}
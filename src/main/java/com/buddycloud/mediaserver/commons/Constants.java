@@ -24,6 +24,7 @@ public class Constants {
 	public static final String ENTITY_ARG = "entityId";
 	public static final String MEDIA_ARG = "mediaId";
 	public static final String AVATAR_ARG = "avatar";
+	public static final String FILE_ARG = "file";
 
 	// URL queries
 	public static final String MAX_HEIGHT_QUERY = "maxheight";
@@ -32,13 +33,31 @@ public class Constants {
 	public static final String AFTER_QUERY = "after";
 	public static final String AUTH_QUERY = "auth";
 	public static final String MAX_QUERY = "max";
+	public static final String IDS_QUERY = "ids";
+	public static final String SIZE_QUERY = "size";
+	public static final String FIELDS_QUERY = "fields";
+	public static final String TYPE_QUERY = "type";
+	public static final String AUTHOR_QUERY = "author";
+	public static final String FROM_QUERY = "from";
+	public static final String UNTIL_QUERY = "until";
+	public static final String LIFETIME_QUERY = "lifetime";
+	public static final String EXPIRES_QUERY = "expires";
+	public static final String SIGNATURE_QUERY = "signature";
 
 	// URLs
+	public static final String AVATARS_URL = "/avatars";
+	public static final String SESSION_URL = "/session";
 	public static final String MEDIAS_URL = "/{" + ENTITY_ARG + "}";
 	public static final String MEDIA_ID_URL = "/{" + ENTITY_ARG + "}/{"
 			+ MEDIA_ARG + "}";
     public static final String MEDIA_ID_METADATA_URL = "/{" + ENTITY_ARG + "}/{"
             + MEDIA_ARG + "}/metadata";
+	public static final String MEDIA_ID_WAVEFORM_URL = "/{" + ENTITY_ARG + "}/{"
+			+ MEDIA_ARG + "}/metadata/waveform";
+	public static final String MEDIA_ID_SIGNED_URL = "/{" + ENTITY_ARG + "}/{"
+			+ MEDIA_ARG + "}/url";
+	public static final String MEDIA_ID_HLS_URL = "/{" + ENTITY_ARG + "}/{"
+			+ MEDIA_ARG + "}/hls/{" + FILE_ARG + "}";
 
 	// Storage constants
 	public static final String DATA_FIELD = "data";
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2012 buddycloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.buddycloud.mediaserver.commons;
+
+import java.io.UnsupportedEncodingException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.commons.codec.binary.Base64;
+
+/**
+ * Signs strings with HMAC-SHA256, and checks those signatures in constant
+ * time. Signatures are URL-safe Base64.
+ */
+public class HmacSigner {
+
+	private static final String MAC_ALGORITHM = "HmacSHA256";
+	private static final String CHARSET = "UTF-8";
+
+	private final byte[] secret;
+
+	/**
+	 * @param secret signing key, or null for a random one (signatures then
+	 * don't survive restarts, nor work across servers).
+	 */
+	public HmacSigner(String secret) {
+		if (secret != null && secret.length() > 0) {
+			this.secret = getBytes(secret);
+		} else {
+			this.secret = new byte[32];
+			new SecureRandom().nextBytes(this.secret);
+		}
+	}
+
+	public String sign(String payload) {
+		return Base64.encodeBase64URLSafeString(mac(payload));
+	}
+
+	public boolean verify(String payload, String signature) {
+		if (payload == null || signature == null) {
+			return false;
+		}
+		return MessageDigest.isEqual(mac(payload), Base64.decodeBase64(signature));
+	}
+
+	private byte[] mac(String payload) {
+		try {
+			Mac mac = Mac.getInstance(MAC_ALGORITHM);
+			mac.init(new SecretKeySpec(secret, MAC_ALGORITHM));
+			return mac.doFinal(getBytes(payload));
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	static byte[] getBytes(String value) {
+		try {
+			return value.getBytes(CHARSET);
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	static String getString(byte[] bytes) {
+		try {
+			return new String(bytes, CHARSET);
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
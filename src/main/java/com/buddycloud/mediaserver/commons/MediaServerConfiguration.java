@@ -35,9 +35,56 @@ public class MediaServerConfiguration {
   public static final String MEDIA_SIZE_LIMIT_PROPERTY = "media.sizelimit";
   public static final String MEDIA_TO_DISK_THRESHOLD_PROPERTY = "media.todisk.threshold";
 
+  // Media jobs
+  public static final String MEDIA_JOBS_THREADS = "media.jobs.threads";
+  public static final String MEDIA_HLS_ENABLED = "media.hls.enabled";
+  public static final String MEDIA_HLS_SEGMENT_DURATION = "media.hls.segment.duration";
+  public static final String MEDIA_WAVEFORM_ENABLED = "media.waveform.enabled";
+  public static final String MEDIA_WAVEFORM_BUCKETS = "media.waveform.buckets";
+  public static final String MEDIA_AUDIO_TRANSCODING_ENABLED = "media.audio.transcoding.enabled";
+  public static final String MEDIA_AUDIO_TRANSCODING_BITRATE = "media.audio.transcoding.bitrate";
+
+  // Previews
+  public static final String MEDIA_PREVIEW_RENDER_CONCURRENCY = "media.preview.render.concurrency";
+  public static final String MEDIA_PREVIEW_RENDER_MAX_WAIT = "media.preview.render.max.wait";
+
   // JDBC
   public static final String JDBC_DRIVER_CLASS_PROPERTY = "jdbc.driver.class";
   public static final String JDBC_DB_URL_PROPERTY = "jdbc.db.url";
+  public static final String JDBC_FETCH_SIZE = "jdbc.fetch.size";
+  public static final String JDBC_MIGRATIONS_ENABLED = "jdbc.migrations.enabled";
+  public static final String JDBC_MIGRATIONS_DIR = "jdbc.migrations.dir";
+  public static final String JDBC_POOL_MIN_SIZE = "jdbc.pool.min.size";
+  public static final String JDBC_POOL_MAX_SIZE = "jdbc.pool.max.size";
+  public static final String JDBC_POOL_ACQUIRE_INCREMENT = "jdbc.pool.acquire.increment";
+  public static final String JDBC_POOL_MAX_IDLE_TIME = "jdbc.pool.max.idle.time";
+  public static final String JDBC_POOL_CHECKOUT_TIMEOUT = "jdbc.pool.checkout.timeout";
+  public static final String JDBC_POOL_STATEMENT_CACHE_SIZE = "jdbc.pool.statement.cache.size";
+  public static final String JDBC_POOL_IDLE_TEST_PERIOD = "jdbc.pool.idle.test.period";
+  public static final String JDBC_POOL_TEST_QUERY = "jdbc.pool.test.query";
+  public static final String JDBC_REPLICA_URLS = "jdbc.replica.urls";
+  public static final String JDBC_REPLICA_HEALTH_CHECK_QUERY = "jdbc.replica.health.check.query";
+  public static final String JDBC_REPLICA_HEALTH_CHECK_INTERVAL = "jdbc.replica.health.check.interval";
+  public static final String JDBC_REPLICA_READ_YOUR_WRITES_WINDOW = "jdbc.replica.read.your.writes.window";
+
+  // Metadata cache
+  public static final String METADATA_CACHE_MAX_ENTRIES = "metadata.cache.max.entries";
+  public static final String METADATA_CACHE_TTL = "metadata.cache.ttl";
+  public static final String METADATA_CACHE_NEGATIVE = "metadata.cache.negative";
+
+  // Delta sync
+  public static final String SYNC_TOMBSTONE_RETENTION = "sync.tombstone.retention";
+
+  // Metadata journal
+  public static final String METADATA_JOURNAL_ENABLED = "metadata.journal.enabled";
+  public static final String METADATA_JOURNAL_DIR = "metadata.journal.dir";
+  public static final String METADATA_JOURNAL_SEGMENT_SIZE = "metadata.journal.segment.size";
+  public static final String METADATA_JOURNAL_BATCH_SIZE = "metadata.journal.batch.size";
+  public static final String METADATA_JOURNAL_RETRY_DELAY = "metadata.journal.retry.delay";
+  public static final String METADATA_JOURNAL_MAX_ATTEMPTS = "metadata.journal.max.attempts";
+  public static final String METADATA_BATCH_MAX_SIZE = "metadata.batch.max.size";
+  public static final String METADATA_BATCH_WINDOW = "metadata.batch.window";
+  public static final String METADATA_BATCH_TIMEOUT = "metadata.batch.timeout";
 
   // XMPP
   public static final String XMPP_COMPONENT_HOST = "xmpp.component.host";
@@ -55,6 +102,24 @@ public class MediaServerConfiguration {
   public static final String XMPP_CONNECTION_SECURITY = "xmpp.connection.securitymode";
 
   public static final String XMPP_REPLY_TIMEOUT = "xmpp.reply.timeout";
+  public static final String XMPP_CONNECTION_POOL_SIZE = "xmpp.connection.pool.size";
+  public static final String XMPP_CONNECTION_POOL_MAX_IN_FLIGHT = "xmpp.connection.pool.max.inflight";
+  public static final String XMPP_CONNECTION_POOL_STRATEGY = "xmpp.connection.pool.strategy";
+  public static final String XMPP_BREAKER_WINDOW = "xmpp.breaker.window";
+  public static final String XMPP_BREAKER_FAILURE_RATE = "xmpp.breaker.failure.rate";
+  public static final String XMPP_BREAKER_SLOW_CALL = "xmpp.breaker.slow.call";
+  public static final String XMPP_BREAKER_OPEN_TIME = "xmpp.breaker.open.time";
+  public static final String XMPP_BREAKER_DEGRADED_POLICY = "xmpp.breaker.degraded.policy";
+  public static final String XMPP_BREAKER_MAX_ENTRIES = "xmpp.breaker.max.entries";
+  public static final String XMPP_DISCOVERY_NEGATIVE_TTL = "xmpp.discovery.negative.ttl";
+  public static final String XMPP_DISCOVERY_DEADLINE = "xmpp.discovery.deadline";
+  public static final String XMPP_DISCOVERY_THREADS = "xmpp.discovery.threads";
+  public static final String XMPP_AFFILIATIONS_MAX_NODES = "xmpp.affiliations.max.nodes";
+  public static final String XMPP_AFFILIATIONS_TTL = "xmpp.affiliations.ttl";
+  public static final String XMPP_AFFILIATIONS_MISS_REFRESH = "xmpp.affiliations.miss.refresh";
+  public static final String XMPP_NODES_CACHE_MAX_ENTRIES = "xmpp.nodes.cache.max.entries";
+  public static final String XMPP_ACCESS_MODEL_TTL = "xmpp.access.model.ttl";
+  public static final String XMPP_ACCESS_MODEL_MAX_STALE = "xmpp.access.model.max.stale";
 
   // HTTP
   public static final String HTTP_PORT = "http.port";
@@ -66,30 +131,127 @@ public class MediaServerConfiguration {
   public static final String HTTPS_KEYSTORE_TYPE = "https.keystore.type";
   public static final String HTTPS_KEYSTORE_PASSWORD = "https.keystore.password";
   public static final String HTTPS_KEY_PASSWORD = "https.key.password";
+  public static final String HTTP_EXECUTION_MODE = "http.execution.mode";
+  public static final String HTTP_ELASTIC_MAX_THREADS = "http.elastic.max.threads";
+  public static final String HTTP_ELASTIC_IDLE_TIMEOUT = "http.elastic.idle.timeout";
+
+  // Sessions
+  public static final String AUTH_SESSION_ENABLED = "auth.session.enabled";
+  public static final String AUTH_SESSION_LIFETIME = "auth.session.lifetime";
+  public static final String AUTH_SESSION_SECRET = "auth.session.secret";
+  public static final String AUTH_SESSION_ALLOWED_ORIGINS = "auth.session.allowed.origins";
+
+  // Signed URLs
+  public static final String MEDIA_SIGNED_URL_SECRET = "media.signed.url.secret";
+  public static final String MEDIA_SIGNED_URL_LIFETIME = "media.signed.url.lifetime";
+  public static final String MEDIA_SIGNED_URL_MAX_LIFETIME = "media.signed.url.max.lifetime";
 
   // CACHE
   public static final String CACHE_MAX_AGE = "cache.max.age";
 
+  // Avatars
+  public static final String AVATAR_SIZES = "avatar.sizes";
+  public static final String AVATAR_CACHE_MAX_ENTRIES = "avatar.cache.max.entries";
+  public static final String AVATAR_CACHE_MAX_BYTES = "avatar.cache.max.bytes";
+
   /*
    * mediaserver.properties default values
    */
   // XMPP
   public static final Integer DEF_XMPP_REPLY_TIMEOUT = 30000; // 30 seconds
+  public static final Integer DEF_XMPP_CONNECTION_POOL_SIZE = 1;
+  public static final Integer DEF_XMPP_CONNECTION_POOL_MAX_IN_FLIGHT = 100;
+  public static final String DEF_XMPP_CONNECTION_POOL_STRATEGY = "least-loaded";
+  public static final Integer DEF_XMPP_BREAKER_WINDOW = 20; // calls
+  public static final Integer DEF_XMPP_BREAKER_FAILURE_RATE = 50; // percent
+  public static final Long DEF_XMPP_BREAKER_SLOW_CALL = 5000L; // 5 seconds
+  public static final Long DEF_XMPP_BREAKER_OPEN_TIME = 30L; // seconds
+  public static final String DEF_XMPP_BREAKER_DEGRADED_POLICY = "cached";
+  public static final Integer DEF_XMPP_BREAKER_MAX_ENTRIES = 1000;
+  public static final Long DEF_XMPP_DISCOVERY_NEGATIVE_TTL = 300L; // 5 minutes
+  public static final Long DEF_XMPP_DISCOVERY_DEADLINE = 10000L; // 10 seconds
+  public static final Integer DEF_XMPP_DISCOVERY_THREADS = 8;
+  public static final Integer DEF_XMPP_AFFILIATIONS_MAX_NODES = 1000;
+  public static final Long DEF_XMPP_AFFILIATIONS_TTL = 300L; // 5 minutes
+  public static final Long DEF_XMPP_AFFILIATIONS_MISS_REFRESH = 30L; // seconds
+  public static final Integer DEF_XMPP_NODES_CACHE_MAX_ENTRIES = 10000;
+  public static final Long DEF_XMPP_ACCESS_MODEL_TTL = 60L; // 1 minute
+  public static final Long DEF_XMPP_ACCESS_MODEL_MAX_STALE = 3600L; // 1 hour
 
   // CACHE
   public static final Integer DEF_CACHE_MAX_AGE = 86400; // 1 day;
 
+  // Avatars
+  public static final String DEF_AVATAR_SIZES = "50,100,200";
+  public static final Integer DEF_AVATAR_CACHE_MAX_ENTRIES = 10000;
+  public static final Long DEF_AVATAR_CACHE_MAX_BYTES = 33554432L; // 32 MB
+
   // JDBC
   public static final String DEF_JDBC_DRIVER_CLASS_PROPERTY = "org.postgresql.Driver";
+  public static final Integer DEF_JDBC_FETCH_SIZE = 100;
+  public static final Boolean DEF_JDBC_MIGRATIONS_ENABLED = true;
+  public static final String DEF_JDBC_MIGRATIONS_DIR = "postgres";
+  public static final Integer DEF_JDBC_POOL_MIN_SIZE = 3;
+  public static final Integer DEF_JDBC_POOL_MAX_SIZE = 15;
+  public static final Integer DEF_JDBC_POOL_ACQUIRE_INCREMENT = 3;
+  public static final Integer DEF_JDBC_POOL_MAX_IDLE_TIME = 1800; // 30 minutes
+  public static final Integer DEF_JDBC_POOL_CHECKOUT_TIMEOUT = 5000; // 5 seconds
+  public static final Integer DEF_JDBC_POOL_STATEMENT_CACHE_SIZE = 50;
+  public static final Integer DEF_JDBC_POOL_IDLE_TEST_PERIOD = 300; // 5 minutes
+  public static final String DEF_JDBC_REPLICA_HEALTH_CHECK_QUERY = "SELECT 1";
+  public static final Long DEF_JDBC_REPLICA_HEALTH_CHECK_INTERVAL = 5000L; // 5 seconds
+  public static final Long DEF_JDBC_REPLICA_READ_YOUR_WRITES_WINDOW = 10000L; // 10 seconds
+
+  // Metadata cache
+  public static final Integer DEF_METADATA_CACHE_MAX_ENTRIES = 10000;
+  public static final Long DEF_METADATA_CACHE_TTL = 300L; // 5 minutes
+  public static final Boolean DEF_METADATA_CACHE_NEGATIVE = true;
+
+  // Delta sync
+  public static final Integer DEF_SYNC_TOMBSTONE_RETENTION = 30; // days
+
+  // Metadata journal
+  public static final Boolean DEF_METADATA_JOURNAL_ENABLED = true;
+  public static final Integer DEF_METADATA_JOURNAL_SEGMENT_SIZE = 16777216; // 16 MB
+  public static final Integer DEF_METADATA_JOURNAL_BATCH_SIZE = 100;
+  public static final Long DEF_METADATA_JOURNAL_RETRY_DELAY = 1000L; // 1 second
+  public static final Integer DEF_METADATA_JOURNAL_MAX_ATTEMPTS = 3;
+  public static final Integer DEF_METADATA_BATCH_MAX_SIZE = 200;
+  public static final Long DEF_METADATA_BATCH_WINDOW = 5L; // milliseconds
+  public static final Long DEF_METADATA_BATCH_TIMEOUT = 30000L; // 30 seconds
 
   // File System
   public static final Long DEF_MEDIA_SIZE_LIMIT = 104857600L;
   public static final Long DEF_MEDIA_TO_DISK_THRESHOLD = 1048576L;
 
+  // Media jobs
+  public static final Integer DEF_MEDIA_JOBS_THREADS = 2;
+  public static final Boolean DEF_MEDIA_HLS_ENABLED = false;
+  public static final Integer DEF_MEDIA_HLS_SEGMENT_DURATION = 10; // seconds
+  public static final Boolean DEF_MEDIA_WAVEFORM_ENABLED = true;
+  public static final Integer DEF_MEDIA_WAVEFORM_BUCKETS = 1024;
+  public static final Boolean DEF_MEDIA_AUDIO_TRANSCODING_ENABLED = true;
+  public static final Integer DEF_MEDIA_AUDIO_TRANSCODING_BITRATE = 64000; // bits per second
+
+  // Previews
+  public static final Integer DEF_MEDIA_PREVIEW_RENDER_CONCURRENCY = 0; // one per processor
+  public static final Long DEF_MEDIA_PREVIEW_RENDER_MAX_WAIT = 10000L; // 10 seconds
+
   // HTTP
   public static final Integer DEF_HTTP_TESTS_PORT = 9091;
   public static final Integer DEF_HTTP_PORT = 8080;
   public static final Boolean DEF_HTTPS_ENABLED = false;
+  public static final String DEF_HTTP_EXECUTION_MODE = "pooled";
+  public static final Integer DEF_HTTP_ELASTIC_MAX_THREADS = 2000;
+  public static final Long DEF_HTTP_ELASTIC_IDLE_TIMEOUT = 10000L; // 10 seconds
+
+  // Sessions
+  public static final Boolean DEF_AUTH_SESSION_ENABLED = false;
+  public static final Integer DEF_AUTH_SESSION_LIFETIME = 900; // 15 minutes
+
+  // Signed URLs
+  public static final Integer DEF_MEDIA_SIGNED_URL_LIFETIME = 3600; // 1 hour
+  public static final Integer DEF_MEDIA_SIGNED_URL_MAX_LIFETIME = 604800; // 1 week
 
   // XMPP sec
   private static final Boolean DEF_XMPP_CONNECTION_SASL = true;
@@ -145,14 +307,198 @@ public class MediaServerConfiguration {
       configuration.put(XMPP_REPLY_TIMEOUT, DEF_XMPP_REPLY_TIMEOUT.toString());
     }
 
+    if (configuration.get(XMPP_CONNECTION_POOL_SIZE) == null) {
+      configuration.put(XMPP_CONNECTION_POOL_SIZE, DEF_XMPP_CONNECTION_POOL_SIZE.toString());
+    }
+
+    if (configuration.get(XMPP_CONNECTION_POOL_MAX_IN_FLIGHT) == null) {
+      configuration.put(XMPP_CONNECTION_POOL_MAX_IN_FLIGHT, DEF_XMPP_CONNECTION_POOL_MAX_IN_FLIGHT.toString());
+    }
+
+    if (configuration.get(XMPP_CONNECTION_POOL_STRATEGY) == null) {
+      configuration.put(XMPP_CONNECTION_POOL_STRATEGY, DEF_XMPP_CONNECTION_POOL_STRATEGY);
+    }
+
+    if (configuration.get(XMPP_BREAKER_WINDOW) == null) {
+      configuration.put(XMPP_BREAKER_WINDOW, DEF_XMPP_BREAKER_WINDOW.toString());
+    }
+
+    if (configuration.get(XMPP_BREAKER_FAILURE_RATE) == null) {
+      configuration.put(XMPP_BREAKER_FAILURE_RATE, DEF_XMPP_BREAKER_FAILURE_RATE.toString());
+    }
+
+    if (configuration.get(XMPP_BREAKER_SLOW_CALL) == null) {
+      configuration.put(XMPP_BREAKER_SLOW_CALL, DEF_XMPP_BREAKER_SLOW_CALL.toString());
+    }
+
+    if (configuration.get(XMPP_BREAKER_OPEN_TIME) == null) {
+      configuration.put(XMPP_BREAKER_OPEN_TIME, DEF_XMPP_BREAKER_OPEN_TIME.toString());
+    }
+
+    if (configuration.get(XMPP_BREAKER_DEGRADED_POLICY) == null) {
+      configuration.put(XMPP_BREAKER_DEGRADED_POLICY, DEF_XMPP_BREAKER_DEGRADED_POLICY);
+    }
+
+    if (configuration.get(XMPP_BREAKER_MAX_ENTRIES) == null) {
+      configuration.put(XMPP_BREAKER_MAX_ENTRIES, DEF_XMPP_BREAKER_MAX_ENTRIES.toString());
+    }
+
+    if (configuration.get(XMPP_DISCOVERY_NEGATIVE_TTL) == null) {
+      configuration.put(XMPP_DISCOVERY_NEGATIVE_TTL, DEF_XMPP_DISCOVERY_NEGATIVE_TTL.toString());
+    }
+
+    if (configuration.get(XMPP_DISCOVERY_DEADLINE) == null) {
+      configuration.put(XMPP_DISCOVERY_DEADLINE, DEF_XMPP_DISCOVERY_DEADLINE.toString());
+    }
+
+    if (configuration.get(XMPP_DISCOVERY_THREADS) == null) {
+      configuration.put(XMPP_DISCOVERY_THREADS, DEF_XMPP_DISCOVERY_THREADS.toString());
+    }
+
+    if (configuration.get(XMPP_AFFILIATIONS_MAX_NODES) == null) {
+      configuration.put(XMPP_AFFILIATIONS_MAX_NODES, DEF_XMPP_AFFILIATIONS_MAX_NODES.toString());
+    }
+
+    if (configuration.get(XMPP_AFFILIATIONS_TTL) == null) {
+      configuration.put(XMPP_AFFILIATIONS_TTL, DEF_XMPP_AFFILIATIONS_TTL.toString());
+    }
+
+    if (configuration.get(XMPP_AFFILIATIONS_MISS_REFRESH) == null) {
+      configuration.put(XMPP_AFFILIATIONS_MISS_REFRESH, DEF_XMPP_AFFILIATIONS_MISS_REFRESH.toString());
+    }
+
+    if (configuration.get(XMPP_NODES_CACHE_MAX_ENTRIES) == null) {
+      configuration.put(XMPP_NODES_CACHE_MAX_ENTRIES, DEF_XMPP_NODES_CACHE_MAX_ENTRIES.toString());
+    }
+
+    if (configuration.get(XMPP_ACCESS_MODEL_TTL) == null) {
+      configuration.put(XMPP_ACCESS_MODEL_TTL, DEF_XMPP_ACCESS_MODEL_TTL.toString());
+    }
+
+    if (configuration.get(XMPP_ACCESS_MODEL_MAX_STALE) == null) {
+      configuration.put(XMPP_ACCESS_MODEL_MAX_STALE, DEF_XMPP_ACCESS_MODEL_MAX_STALE.toString());
+    }
+
     if (configuration.get(CACHE_MAX_AGE) == null) {
       configuration.put(CACHE_MAX_AGE, DEF_CACHE_MAX_AGE.toString());
     }
 
+    if (configuration.get(AVATAR_SIZES) == null) {
+      configuration.put(AVATAR_SIZES, DEF_AVATAR_SIZES);
+    }
+
+    if (configuration.get(AVATAR_CACHE_MAX_ENTRIES) == null) {
+      configuration.put(AVATAR_CACHE_MAX_ENTRIES, DEF_AVATAR_CACHE_MAX_ENTRIES.toString());
+    }
+
+    if (configuration.get(AVATAR_CACHE_MAX_BYTES) == null) {
+      configuration.put(AVATAR_CACHE_MAX_BYTES, DEF_AVATAR_CACHE_MAX_BYTES.toString());
+    }
+
     if (configuration.get(JDBC_DRIVER_CLASS_PROPERTY) == null) {
       configuration.put(JDBC_DRIVER_CLASS_PROPERTY, DEF_JDBC_DRIVER_CLASS_PROPERTY);
     }
 
+    if (configuration.get(JDBC_FETCH_SIZE) == null) {
+      configuration.put(JDBC_FETCH_SIZE, DEF_JDBC_FETCH_SIZE.toString());
+    }
+
+    if (configuration.get(JDBC_MIGRATIONS_ENABLED) == null) {
+      configuration.put(JDBC_MIGRATIONS_ENABLED, DEF_JDBC_MIGRATIONS_ENABLED.toString());
+    }
+
+    if (configuration.get(JDBC_MIGRATIONS_DIR) == null) {
+      configuration.put(JDBC_MIGRATIONS_DIR, DEF_JDBC_MIGRATIONS_DIR);
+    }
+
+    if (configuration.get(JDBC_POOL_MIN_SIZE) == null) {
+      configuration.put(JDBC_POOL_MIN_SIZE, DEF_JDBC_POOL_MIN_SIZE.toString());
+    }
+
+    if (configuration.get(JDBC_POOL_MAX_SIZE) == null) {
+      configuration.put(JDBC_POOL_MAX_SIZE, DEF_JDBC_POOL_MAX_SIZE.toString());
+    }
+
+    if (configuration.get(JDBC_POOL_ACQUIRE_INCREMENT) == null) {
+      configuration.put(JDBC_POOL_ACQUIRE_INCREMENT, DEF_JDBC_POOL_ACQUIRE_INCREMENT.toString());
+    }
+
+    if (configuration.get(JDBC_POOL_MAX_IDLE_TIME) == null) {
+      configuration.put(JDBC_POOL_MAX_IDLE_TIME, DEF_JDBC_POOL_MAX_IDLE_TIME.toString());
+    }
+
+    if (configuration.get(JDBC_POOL_CHECKOUT_TIMEOUT) == null) {
+      configuration.put(JDBC_POOL_CHECKOUT_TIMEOUT, DEF_JDBC_POOL_CHECKOUT_TIMEOUT.toString());
+    }
+
+    if (configuration.get(JDBC_POOL_STATEMENT_CACHE_SIZE) == null) {
+      configuration.put(JDBC_POOL_STATEMENT_CACHE_SIZE, DEF_JDBC_POOL_STATEMENT_CACHE_SIZE.toString());
+    }
+
+    if (configuration.get(JDBC_POOL_IDLE_TEST_PERIOD) == null) {
+      configuration.put(JDBC_POOL_IDLE_TEST_PERIOD, DEF_JDBC_POOL_IDLE_TEST_PERIOD.toString());
+    }
+
+    if (configuration.get(JDBC_REPLICA_HEALTH_CHECK_QUERY) == null) {
+      configuration.put(JDBC_REPLICA_HEALTH_CHECK_QUERY, DEF_JDBC_REPLICA_HEALTH_CHECK_QUERY);
+    }
+
+    if (configuration.get(JDBC_REPLICA_HEALTH_CHECK_INTERVAL) == null) {
+      configuration.put(JDBC_REPLICA_HEALTH_CHECK_INTERVAL, DEF_JDBC_REPLICA_HEALTH_CHECK_INTERVAL.toString());
+    }
+
+    if (configuration.get(JDBC_REPLICA_READ_YOUR_WRITES_WINDOW) == null) {
+      configuration.put(JDBC_REPLICA_READ_YOUR_WRITES_WINDOW, DEF_JDBC_REPLICA_READ_YOUR_WRITES_WINDOW.toString());
+    }
+
+    if (configuration.get(METADATA_CACHE_MAX_ENTRIES) == null) {
+      configuration.put(METADATA_CACHE_MAX_ENTRIES, DEF_METADATA_CACHE_MAX_ENTRIES.toString());
+    }
+
+    if (configuration.get(METADATA_CACHE_TTL) == null) {
+      configuration.put(METADATA_CACHE_TTL, DEF_METADATA_CACHE_TTL.toString());
+    }
+
+    if (configuration.get(METADATA_CACHE_NEGATIVE) == null) {
+      configuration.put(METADATA_CACHE_NEGATIVE, DEF_METADATA_CACHE_NEGATIVE.toString());
+    }
+
+    if (configuration.get(SYNC_TOMBSTONE_RETENTION) == null) {
+      configuration.put(SYNC_TOMBSTONE_RETENTION, DEF_SYNC_TOMBSTONE_RETENTION.toString());
+    }
+
+    if (configuration.get(METADATA_JOURNAL_ENABLED) == null) {
+      configuration.put(METADATA_JOURNAL_ENABLED, DEF_METADATA_JOURNAL_ENABLED.toString());
+    }
+
+    if (configuration.get(METADATA_JOURNAL_SEGMENT_SIZE) == null) {
+      configuration.put(METADATA_JOURNAL_SEGMENT_SIZE, DEF_METADATA_JOURNAL_SEGMENT_SIZE.toString());
+    }
+
+    if (configuration.get(METADATA_JOURNAL_BATCH_SIZE) == null) {
+      configuration.put(METADATA_JOURNAL_BATCH_SIZE, DEF_METADATA_JOURNAL_BATCH_SIZE.toString());
+    }
+
+    if (configuration.get(METADATA_JOURNAL_RETRY_DELAY) == null) {
+      configuration.put(METADATA_JOURNAL_RETRY_DELAY, DEF_METADATA_JOURNAL_RETRY_DELAY.toString());
+    }
+
+    if (configuration.get(METADATA_JOURNAL_MAX_ATTEMPTS) == null) {
+      configuration.put(METADATA_JOURNAL_MAX_ATTEMPTS, DEF_METADATA_JOURNAL_MAX_ATTEMPTS.toString());
+    }
+
+    if (configuration.get(METADATA_BATCH_MAX_SIZE) == null) {
+      configuration.put(METADATA_BATCH_MAX_SIZE, DEF_METADATA_BATCH_MAX_SIZE.toString());
+    }
+
+    if (configuration.get(METADATA_BATCH_WINDOW) == null) {
+      configuration.put(METADATA_BATCH_WINDOW, DEF_METADATA_BATCH_WINDOW.toString());
+    }
+
+    if (configuration.get(METADATA_BATCH_TIMEOUT) == null) {
+      configuration.put(METADATA_BATCH_TIMEOUT, DEF_METADATA_BATCH_TIMEOUT.toString());
+    }
+
     if (configuration.get(MEDIA_TO_DISK_THRESHOLD_PROPERTY) == null) {
       configuration.put(MEDIA_TO_DISK_THRESHOLD_PROPERTY, DEF_MEDIA_TO_DISK_THRESHOLD.toString());
     }
@@ -161,6 +507,45 @@ public class MediaServerConfiguration {
       configuration.put(MEDIA_SIZE_LIMIT_PROPERTY, DEF_MEDIA_SIZE_LIMIT.toString());
     }
 
+    if (configuration.get(MEDIA_JOBS_THREADS) == null) {
+      configuration.put(MEDIA_JOBS_THREADS, DEF_MEDIA_JOBS_THREADS.toString());
+    }
+
+    if (configuration.get(MEDIA_HLS_ENABLED) == null) {
+      configuration.put(MEDIA_HLS_ENABLED, DEF_MEDIA_HLS_ENABLED.toString());
+    }
+
+    if (configuration.get(MEDIA_HLS_SEGMENT_DURATION) == null) {
+      configuration.put(MEDIA_HLS_SEGMENT_DURATION, DEF_MEDIA_HLS_SEGMENT_DURATION.toString());
+    }
+
+    if (configuration.get(MEDIA_WAVEFORM_ENABLED) == null) {
+      configuration.put(MEDIA_WAVEFORM_ENABLED, DEF_MEDIA_WAVEFORM_ENABLED.toString());
+    }
+
+    if (configuration.get(MEDIA_WAVEFORM_BUCKETS) == null) {
+      configuration.put(MEDIA_WAVEFORM_BUCKETS, DEF_MEDIA_WAVEFORM_BUCKETS.toString());
+    }
+
+    if (configuration.get(MEDIA_AUDIO_TRANSCODING_ENABLED) == null) {
+      configuration.put(MEDIA_AUDIO_TRANSCODING_ENABLED,
+          DEF_MEDIA_AUDIO_TRANSCODING_ENABLED.toString());
+    }
+
+    if (configuration.get(MEDIA_AUDIO_TRANSCODING_BITRATE) == null) {
+      configuration.put(MEDIA_AUDIO_TRANSCODING_BITRATE,
+          DEF_MEDIA_AUDIO_TRANSCODING_BITRATE.toString());
+    }
+
+    if (configuration.get(MEDIA_PREVIEW_RENDER_CONCURRENCY) == null) {
+      configuration.put(MEDIA_PREVIEW_RENDER_CONCURRENCY,
+          DEF_MEDIA_PREVIEW_RENDER_CONCURRENCY.toString());
+    }
+
+    if (configuration.get(MEDIA_PREVIEW_RENDER_MAX_WAIT) == null) {
+      configuration.put(MEDIA_PREVIEW_RENDER_MAX_WAIT, DEF_MEDIA_PREVIEW_RENDER_MAX_WAIT.toString());
+    }
+
     if (configuration.get(HTTP_PORT) == null) {
       configuration.put(HTTP_PORT, DEF_HTTP_PORT.toString());
     }
@@ -173,6 +558,34 @@ public class MediaServerConfiguration {
       configuration.put(HTTPS_ENABLED, DEF_HTTPS_ENABLED.toString());
     }
 
+    if (configuration.get(HTTP_EXECUTION_MODE) == null) {
+      configuration.put(HTTP_EXECUTION_MODE, DEF_HTTP_EXECUTION_MODE);
+    }
+
+    if (configuration.get(HTTP_ELASTIC_MAX_THREADS) == null) {
+      configuration.put(HTTP_ELASTIC_MAX_THREADS, DEF_HTTP_ELASTIC_MAX_THREADS.toString());
+    }
+
+    if (configuration.get(HTTP_ELASTIC_IDLE_TIMEOUT) == null) {
+      configuration.put(HTTP_ELASTIC_IDLE_TIMEOUT, DEF_HTTP_ELASTIC_IDLE_TIMEOUT.toString());
+    }
+
+    if (configuration.get(AUTH_SESSION_ENABLED) == null) {
+      configuration.put(AUTH_SESSION_ENABLED, DEF_AUTH_SESSION_ENABLED.toString());
+    }
+
+    if (configuration.get(AUTH_SESSION_LIFETIME) == null) {
+      configuration.put(AUTH_SESSION_LIFETIME, DEF_AUTH_SESSION_LIFETIME.toString());
+    }
+
+    if (configuration.get(MEDIA_SIGNED_URL_LIFETIME) == null) {
+      configuration.put(MEDIA_SIGNED_URL_LIFETIME, DEF_MEDIA_SIGNED_URL_LIFETIME.toString());
+    }
+
+    if (configuration.get(MEDIA_SIGNED_URL_MAX_LIFETIME) == null) {
+      configuration.put(MEDIA_SIGNED_URL_MAX_LIFETIME, DEF_MEDIA_SIGNED_URL_MAX_LIFETIME.toString());
+    }
+
     if (configuration.get(XMPP_CONNECTION_SASL) == null) {
       configuration.put(XMPP_CONNECTION_SASL, DEF_XMPP_CONNECTION_SASL.toString());
     }
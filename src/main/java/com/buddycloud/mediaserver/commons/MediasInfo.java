@@ -0,0 +1,52 @@
+/*
+ * Copyright 2012 buddycloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.buddycloud.mediaserver.commons;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * A page of a channel's media listing, or the changes to it since a sync
+ * token, written as JSON along with the tokens to carry on from it.
+ */
+public abstract class MediasInfo {
+	private String nextCursor;
+	private String syncToken;
+
+	public MediasInfo(String nextCursor, String syncToken) {
+		this.nextCursor = nextCursor;
+		this.syncToken = syncToken;
+	}
+
+	/**
+	 * @return the cursor token of the following page, or null if this is the last one.
+	 */
+	public String getNextCursor() {
+		return nextCursor;
+	}
+
+	/**
+	 * @return the token to get the channel's changes since this listing.
+	 */
+	public String getSyncToken() {
+		return syncToken;
+	}
+
+	/**
+	 * Writes the medias as JSON.
+	 */
+	public abstract void write(Writer writer) throws IOException;
+}
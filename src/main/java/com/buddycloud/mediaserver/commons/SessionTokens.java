@@ -0,0 +1,196 @@
+/*
+ * Copyright 2012 buddycloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.buddycloud.mediaserver.commons;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.commons.codec.binary.Base64;
+
+/**
+ * Short-lived session tokens, issued to a user once a request of theirs was
+ * confirmed through XEP-0070, so their next requests can be verified locally
+ * instead of with another confirmation round trip.
+ * <p>
+ * A token holds the user's JID, when it was issued and when it expires,
+ * signed with HMAC-SHA256. Revoking a user's sessions invalidates every
+ * token issued to them until then, on this server only.
+ * <p>
+ * Browsers send the session cookie along with requests of any web site, so
+ * it is only accepted from pages of the allowed origins.
+ */
+public class SessionTokens {
+
+	private static final char FIELD_SEPARATOR = '|';
+	private static final char SIGNATURE_SEPARATOR = '.';
+
+	private static SessionTokens instance;
+
+	private final boolean enabled;
+	private final long lifetime;
+	private final HmacSigner signer;
+	private final Set<String> allowedOrigins;
+
+	// user JID -> tokens issued up to then are revoked
+	private final ConcurrentMap<String, Long> revocations = new ConcurrentHashMap<String, Long>();
+
+	/**
+	 * @param enabled whether tokens are issued and accepted.
+	 * @param lifetime how long a token is valid, in milliseconds.
+	 * @param secret signing key, or null for a random one (tokens then
+	 * don't survive restarts, nor work across servers).
+	 */
+	public SessionTokens(boolean enabled, long lifetime, String secret) {
+		this(enabled, lifetime, secret, Collections.<String>emptySet());
+	}
+
+	/**
+	 * @param allowedOrigins origins whose pages may use the session cookie.
+	 */
+	public SessionTokens(boolean enabled, long lifetime, String secret,
+			Set<String> allowedOrigins) {
+		this.enabled = enabled;
+		this.lifetime = lifetime;
+		this.signer = new HmacSigner(secret);
+		this.allowedOrigins = allowedOrigins;
+	}
+
+	public static synchronized SessionTokens getInstance() {
+		if (instance == null) {
+			Properties configuration = MediaServerConfiguration.getInstance().getConfiguration();
+			instance = new SessionTokens(
+					Boolean.valueOf(configuration.getProperty(MediaServerConfiguration.AUTH_SESSION_ENABLED)),
+					Long.valueOf(configuration.getProperty(MediaServerConfiguration.AUTH_SESSION_LIFETIME)) * 1000,
+					configuration.getProperty(MediaServerConfiguration.AUTH_SESSION_SECRET),
+					parseOrigins(configuration.getProperty(MediaServerConfiguration.AUTH_SESSION_ALLOWED_ORIGINS)));
+		}
+
+		return instance;
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * @return whether the session cookie is accepted on a request sent from
+	 * {@code origin}: requests without an Origin header, which browsers only
+	 * omit on same-origin and plain navigation requests, or from an allowed origin.
+	 */
+	public boolean isCookieAllowed(String origin) {
+		return origin == null || allowedOrigins.contains(origin);
+	}
+
+	/**
+	 * @return the token lifetime, in milliseconds.
+	 */
+	public long getLifetime() {
+		return lifetime;
+	}
+
+	/**
+	 * Issues a token for an already verified user.
+	 */
+	public String issue(String userJID) {
+		long now = System.currentTimeMillis();
+		String payload = userJID + FIELD_SEPARATOR + now + FIELD_SEPARATOR + (now + lifetime);
+
+		return Base64.encodeBase64URLSafeString(HmacSigner.getBytes(payload))
+				+ SIGNATURE_SEPARATOR + signer.sign(payload);
+	}
+
+	/**
+	 * @return the JID the token was issued to, or null if it is malformed,
+	 * forged, expired or revoked.
+	 */
+	public String verify(String token) {
+		if (token == null) {
+			return null;
+		}
+
+		int signatureStart = token.lastIndexOf(SIGNATURE_SEPARATOR);
+		if (signatureStart < 0) {
+			return null;
+		}
+
+		String payload = HmacSigner.getString(Base64.decodeBase64(token.substring(0, signatureStart)));
+		if (!signer.verify(payload, token.substring(signatureStart + 1))) {
+			return null;
+		}
+
+		int expiresStart = payload.lastIndexOf(FIELD_SEPARATOR);
+		int issuedStart = payload.lastIndexOf(FIELD_SEPARATOR, expiresStart - 1);
+		if (issuedStart < 0) {
+			return null;
+		}
+
+		String userJID = payload.substring(0, issuedStart);
+		long issued;
+		long expires;
+		try {
+			issued = Long.parseLong(payload.substring(issuedStart + 1, expiresStart));
+			expires = Long.parseLong(payload.substring(expiresStart + 1));
+		} catch (NumberFormatException e) {
+			return null;
+		}
+
+		if (expires < System.currentTimeMillis()) {
+			return null;
+		}
+
+		Long revoked = revocations.get(userJID);
+		if (revoked != null && issued <= revoked) {
+			return null;
+		}
+
+		return userJID;
+	}
+
+	/**
+	 * Invalidates every token issued to the user so far.
+	 */
+	public void revoke(String userJID) {
+		long now = System.currentTimeMillis();
+		revocations.put(userJID, now);
+
+		// tokens issued before the lifetime expired on their own
+		Iterator<Map.Entry<String, Long>> it = revocations.entrySet().iterator();
+		while (it.hasNext()) {
+			if (it.next().getValue() < now - lifetime) {
+				it.remove();
+			}
+		}
+	}
+
+	private static Set<String> parseOrigins(String origins) {
+		Set<String> parsed = new HashSet<String>();
+		if (origins != null) {
+			for (String origin : origins.split(",")) {
+				if (origin.trim().length() > 0) {
+					parsed.add(origin.trim());
+				}
+			}
+		}
+
+		return parsed;
+	}
+}
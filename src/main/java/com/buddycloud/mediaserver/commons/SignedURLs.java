@@ -0,0 +1,94 @@
+/*
+ * Copyright 2012 buddycloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.buddycloud.mediaserver.commons;
+
+import java.util.Properties;
+
+/**
+ * Signs media URLs so they can be fetched without authentication until they
+ * expire, by whoever they were shared with. A signature covers the channel,
+ * the media, the preview size if any, and the expiry time, in seconds since
+ * the epoch.
+ */
+public class SignedURLs {
+
+	private static final char FIELD_SEPARATOR = '\n';
+
+	private static SignedURLs instance;
+
+	private final HmacSigner signer;
+	private final long defaultLifetime;
+	private final long maxLifetime;
+
+	/**
+	 * @param secret signing key, or null for a random one.
+	 * @param defaultLifetime how long URLs are valid unless asked otherwise, in seconds.
+	 * @param maxLifetime how long URLs may be valid at most, in seconds.
+	 */
+	public SignedURLs(String secret, long defaultLifetime, long maxLifetime) {
+		this.signer = new HmacSigner(secret);
+		this.defaultLifetime = defaultLifetime;
+		this.maxLifetime = maxLifetime;
+	}
+
+	public static synchronized SignedURLs getInstance() {
+		if (instance == null) {
+			Properties configuration = MediaServerConfiguration.getInstance().getConfiguration();
+			instance = new SignedURLs(
+					configuration.getProperty(MediaServerConfiguration.MEDIA_SIGNED_URL_SECRET),
+					Long.valueOf(configuration.getProperty(MediaServerConfiguration.MEDIA_SIGNED_URL_LIFETIME)),
+					Long.valueOf(configuration.getProperty(MediaServerConfiguration.MEDIA_SIGNED_URL_MAX_LIFETIME)));
+		}
+
+		return instance;
+	}
+
+	public long getDefaultLifetime() {
+		return defaultLifetime;
+	}
+
+	public long getMaxLifetime() {
+		return maxLifetime;
+	}
+
+	public String sign(String entityId, String mediaId, Integer maxHeight, Integer maxWidth,
+			long expires) {
+		return signer.sign(getPayload(entityId, mediaId, maxHeight, maxWidth, expires));
+	}
+
+	/**
+	 * @return whether the signature is valid and has not expired.
+	 */
+	public boolean verify(String entityId, String mediaId, Integer maxHeight, Integer maxWidth,
+			Long expires, String signature) {
+		if (expires == null || expires < System.currentTimeMillis() / 1000) {
+			return false;
+		}
+
+		return signer.verify(getPayload(entityId, mediaId, maxHeight, maxWidth, expires), signature);
+	}
+
+	private String getPayload(String entityId, String mediaId, Integer maxHeight, Integer maxWidth,
+			long expires) {
+		// a single size bound stands for both, as when previews are served
+		Integer height = maxHeight != null ? maxHeight : maxWidth;
+		Integer width = maxWidth != null ? maxWidth : maxHeight;
+
+		return entityId + FIELD_SEPARATOR + mediaId + FIELD_SEPARATOR
+				+ (height != null ? height : "") + FIELD_SEPARATOR
+				+ (width != null ? width : "") + FIELD_SEPARATOR + expires;
+	}
+}
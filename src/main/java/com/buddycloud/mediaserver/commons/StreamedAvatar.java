@@ -0,0 +1,33 @@
+/*
+ * Copyright 2012 buddycloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.buddycloud.mediaserver.commons;
+
+import java.io.File;
+import java.util.Date;
+
+/**
+ * Avatar too large to be held in memory, streamed from its file.
+ */
+public class StreamedAvatar extends MediaFile<File> implements AvatarContent {
+
+	public StreamedAvatar(String mimeType, File file, Date lastModified) {
+		super(mimeType, file, lastModified);
+	}
+
+	public <R> R accept(Visitor<R> visitor) {
+		return visitor.visitFile(getMediaFile());
+	}
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2012 buddycloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.buddycloud.mediaserver.commons.cache;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Keeps values loaded before their key was invalidated out of a cache.
+ * A {@link Stamp} is taken before loading, and the loaded value is only
+ * cached if its key is still {@link #isCurrent(Object, Stamp) current}.
+ * <p>
+ * Keys are spread over a fixed number of stripes, each with its own
+ * invalidation count, so an invalidation only holds back loads of the
+ * keys that share its stripe rather than every load under way. Caches
+ * must check and store, and invalidate and remove, under the same lock.
+ */
+public class InvalidationStamps {
+
+	private static final int STRIPES = 64;
+
+	private final AtomicLongArray invalidations = new AtomicLongArray(STRIPES);
+
+	/**
+	 * Takes a stamp covering every key, so that values of several keys
+	 * loaded at once can be checked against it. Must be taken before loading.
+	 */
+	public Stamp stamp() {
+		long[] counts = new long[STRIPES];
+		for (int i = 0; i < STRIPES; i++) {
+			counts[i] = invalidations.get(i);
+		}
+		return new Stamp(counts);
+	}
+
+	public void invalidate(Object key) {
+		invalidations.incrementAndGet(stripe(key));
+	}
+
+	/**
+	 * @return whether {@code key} was not invalidated since {@code stamp} was taken.
+	 */
+	public boolean isCurrent(Object key, Stamp stamp) {
+		int stripe = stripe(key);
+		return stamp.counts[stripe] == invalidations.get(stripe);
+	}
+
+	private static int stripe(Object key) {
+		int hash = key.hashCode();
+		hash ^= hash >>> 16;
+		return (hash & Integer.MAX_VALUE) % STRIPES;
+	}
+
+	/**
+	 * Invalidation counts at the time a load started.
+	 */
+	public static class Stamp {
+		private final long[] counts;
+
+		private Stamp(long[] counts) {
+			this.counts = counts;
+		}
+	}
+}
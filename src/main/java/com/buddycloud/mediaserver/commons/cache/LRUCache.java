@@ -0,0 +1,110 @@
+/*
+ * Copyright 2012 buddycloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.buddycloud.mediaserver.commons.cache;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Thread safe, bounded, least recently used cache. Entries are evicted
+ * once either the number of entries or their total weight goes over
+ * the configured limits.
+ */
+public class LRUCache<K, V> {
+
+	private final LinkedHashMap<K, V> entries;
+	private final int maxEntries;
+	private final long maxWeight;
+	private long weight;
+
+	/**
+	 * @param maxEntries maximum number of entries.
+	 * @param maxWeight maximum total weight, see {@link #weigh(Object)}.
+	 */
+	public LRUCache(int maxEntries, long maxWeight) {
+		this.entries = new LinkedHashMap<K, V>(16, 0.75f, true);
+		this.maxEntries = maxEntries;
+		this.maxWeight = maxWeight;
+	}
+
+	/**
+	 * Weight of a value, e.g. its size in bytes. Every value weighs 1 by default.
+	 */
+	protected long weigh(V value) {
+		return 1;
+	}
+
+	/**
+	 * Called with the cache's lock held when an entry is evicted to make
+	 * room, not when it is removed or replaced. Does nothing by default.
+	 */
+	protected void onEvict(K key, V value) {
+	}
+
+	public synchronized V get(K key) {
+		return entries.get(key);
+	}
+
+	public synchronized void put(K key, V value) {
+		long valueWeight = weigh(value);
+		if (valueWeight > maxWeight) {
+			remove(key);
+			return;
+		}
+
+		V previous = entries.put(key, value);
+		if (previous != null) {
+			weight -= weigh(previous);
+		}
+		weight += valueWeight;
+
+		evict();
+	}
+
+	public synchronized V remove(K key) {
+		V previous = entries.remove(key);
+		if (previous != null) {
+			weight -= weigh(previous);
+		}
+
+		return previous;
+	}
+
+	public synchronized void clear() {
+		entries.clear();
+		weight = 0;
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	public synchronized long weight() {
+		return weight;
+	}
+
+	private void evict() {
+		Iterator<Map.Entry<K, V>> eldest = entries.entrySet().iterator();
+
+		while ((entries.size() > maxEntries || weight > maxWeight) && eldest.hasNext()) {
+			Map.Entry<K, V> entry = eldest.next();
+			weight -= weigh(entry.getValue());
+			eldest.remove();
+			onEvict(entry.getKey(), entry.getValue());
+		}
+	}
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright 2012 buddycloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.buddycloud.mediaserver.commons.cache;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Bounded cache of loaded values that serves stale values while reloading
+ * them in the background (stale-while-revalidate). Values older than the
+ * ttl are returned as they are and reloaded on {@code executor}, once per
+ * key at a time; values that are too stale, and missing values, are loaded
+ * by the caller. Failed loads are not cached, and failed background reloads
+ * keep the stale value.
+ */
+public class RefreshingCache<K, V> {
+
+	private static Logger LOGGER = LoggerFactory.getLogger(RefreshingCache.class);
+
+	public interface Loader<K, V> {
+		V load(K key) throws Exception;
+	}
+
+	private final LRUCache<K, Entry<V>> cache;
+	private final ConcurrentMap<K, Boolean> refreshing = new ConcurrentHashMap<K, Boolean>();
+	private final Loader<K, V> loader;
+	private final Executor executor;
+	private final long ttl;
+	private final long maxStale;
+
+	// moved on every put or invalidation of a key, so loads of it that started before are not cached
+	private final InvalidationStamps stamps = new InvalidationStamps();
+
+	/**
+	 * @param maxEntries maximum number of cached keys.
+	 * @param ttl how long a value is fresh, in milliseconds.
+	 * @param maxStale how long after going stale a value is still served
+	 * while being reloaded, in milliseconds. 0 means forever.
+	 */
+	public RefreshingCache(int maxEntries, long ttl, long maxStale,
+			Loader<K, V> loader, Executor executor) {
+		this.cache = new LRUCache<K, Entry<V>>(maxEntries, Long.MAX_VALUE);
+		this.ttl = ttl;
+		this.maxStale = maxStale;
+		this.loader = loader;
+		this.executor = executor;
+	}
+
+	public V get(K key) throws Exception {
+		Entry<V> entry = cache.get(key);
+		if (entry != null) {
+			long age = System.currentTimeMillis() - entry.loadedAt;
+			if (age <= ttl) {
+				return entry.value;
+			}
+
+			if (maxStale == 0 || age <= ttl + maxStale) {
+				refresh(key);
+				return entry.value;
+			}
+		}
+
+		return load(key);
+	}
+
+	/**
+	 * @return the cached value, however old, or null if there is none.
+	 * Never loads it.
+	 */
+	public V getIfPresent(K key) {
+		Entry<V> entry = cache.get(key);
+		return entry != null ? entry.value : null;
+	}
+
+	public synchronized void put(K key, V value) {
+		stamps.invalidate(key);
+		cache.put(key, new Entry<V>(value));
+	}
+
+	public synchronized void invalidate(K key) {
+		stamps.invalidate(key);
+		cache.remove(key);
+	}
+
+	private V load(K key) throws Exception {
+		InvalidationStamps.Stamp stamp = stamps.stamp();
+		V value = loader.load(key);
+		put(key, value, stamp);
+
+		return value;
+	}
+
+	private void refresh(final K key) {
+		if (refreshing.putIfAbsent(key, Boolean.TRUE) != null) {
+			return;
+		}
+
+		try {
+			executor.execute(new Runnable() {
+				public void run() {
+					try {
+						load(key);
+					} catch (Exception e) {
+						LOGGER.warn("Could not refresh [" + key + "], keeping the stale value", e);
+					} finally {
+						refreshing.remove(key);
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			refreshing.remove(key);
+		}
+	}
+
+	private synchronized void put(K key, V value, InvalidationStamps.Stamp stamp) {
+		if (stamps.isCurrent(key, stamp)) {
+			cache.put(key, new Entry<V>(value));
+		}
+	}
+
+	private static class Entry<V> {
+		private final V value;
+		private final long loadedAt = System.currentTimeMillis();
+
+		private Entry(V value) {
+			this.value = value;
+		}
+	}
+}
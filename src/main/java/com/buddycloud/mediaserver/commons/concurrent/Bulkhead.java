@@ -0,0 +1,91 @@
+/*
+ * Copyright 2012 buddycloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.buddycloud.mediaserver.commons.concurrent;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import com.buddycloud.mediaserver.commons.exception.BulkheadFullException;
+
+/**
+ * Bounds how many threads may use a scarce resource (CPU heavy rendering,
+ * for instance) at once, so that threads waiting on something else can be
+ * plentiful without overloading it. Usage:
+ * <pre>
+ * bulkhead.acquire();
+ * try {
+ *     ...
+ * } finally {
+ *     bulkhead.release();
+ * }
+ * </pre>
+ */
+public class Bulkhead {
+
+	private final String name;
+	private final int maxConcurrent;
+	private final long maxWait;
+	private final Semaphore permits;
+
+	/**
+	 * @param name used in errors.
+	 * @param maxConcurrent how many threads may hold the bulkhead at once.
+	 * @param maxWait how long a thread waits for its turn, in milliseconds.
+	 */
+	public Bulkhead(String name, int maxConcurrent, long maxWait) {
+		this.name = name;
+		this.maxConcurrent = maxConcurrent;
+		this.maxWait = maxWait;
+		this.permits = new Semaphore(maxConcurrent, true);
+	}
+
+	/**
+	 * Waits for a turn to use the resource.
+	 * @throws BulkheadFullException if no turn came within the wait limit.
+	 */
+	public void acquire() {
+		boolean acquired;
+		try {
+			acquired = permits.tryAcquire(maxWait, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new BulkheadFullException(name + " wait interrupted");
+		}
+
+		if (!acquired) {
+			throw new BulkheadFullException(name + " is busy: " + maxConcurrent
+					+ " threads already in");
+		}
+	}
+
+	public void release() {
+		permits.release();
+	}
+
+	/**
+	 * @return how many threads currently hold the bulkhead.
+	 */
+	public int getActive() {
+		return maxConcurrent - permits.availablePermits();
+	}
+
+	/**
+	 * @return how many threads are waiting for their turn.
+	 */
+	public int getWaiting() {
+		return permits.getQueueLength();
+	}
+}
@@ -0,0 +1,283 @@
+/*
+ * Copyright 2012 buddycloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.buddycloud.mediaserver.commons.concurrent;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Circuit breaker of a remote dependency. It opens once too many of the
+ * recent calls failed or were slow, and then refuses calls for a while, so
+ * that callers fail fast instead of waiting for replies that won't come in
+ * time. Afterwards a single probe call is let through (half-open): the
+ * breaker closes if it succeeds in time, and opens again otherwise.
+ * <p>
+ * Callers ask for permission with {@link #tryAcquire()} and, if granted,
+ * must report the outcome through the {@link Permit} they got. Outcomes of
+ * calls let through before the breaker last changed state are ignored, so
+ * that a late reply to a call made before the breaker opened doesn't pass
+ * for the probe.
+ */
+public class CircuitBreaker implements CircuitBreakerMBean {
+	private static Logger LOGGER = LoggerFactory.getLogger(CircuitBreaker.class);
+
+	private static final String MBEAN_NAME = "com.buddycloud.mediaserver:type=CircuitBreaker,name=";
+	private static final long MIN_RETRY_AFTER = 1000;
+
+	public enum State {
+		CLOSED, OPEN, HALF_OPEN
+	}
+
+	private final String name;
+	private final boolean[] window;
+	private final int failureRateThreshold;
+	private final long slowCallThreshold;
+	private final long openTime;
+
+	private State state = State.CLOSED;
+	private int position;
+	private int windowCalls;
+	private int windowFailures;
+	private long openedAt;
+	private long probeStartedAt;
+	private boolean probing;
+	private long epoch;
+
+	private long calls;
+	private long failedCalls;
+	private long slowCalls;
+	private long rejectedCalls;
+	private long timesOpened;
+
+	/**
+	 * @param name name of the dependency, used in logs and metrics.
+	 * @param windowSize number of recent calls the failure rate is computed over.
+	 * @param failureRateThreshold percentage of failed or slow calls that
+	 * opens the breaker, 0 to never open it. At least half the window must
+	 * have been filled.
+	 * @param slowCallThreshold calls taking longer than this, in milliseconds, count as failed.
+	 * @param openTime how long the breaker stays open before a probe, in milliseconds.
+	 */
+	public CircuitBreaker(String name, int windowSize, int failureRateThreshold,
+			long slowCallThreshold, long openTime) {
+		this.name = name;
+		this.window = new boolean[Math.max(1, windowSize)];
+		this.failureRateThreshold = failureRateThreshold;
+		this.slowCallThreshold = slowCallThreshold;
+		this.openTime = openTime;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return the permit of a call that may be made now, or null if the
+	 * breaker refuses calls.
+	 */
+	public synchronized Permit tryAcquire() {
+		long now = System.currentTimeMillis();
+		if (state == State.OPEN && now - openedAt >= openTime) {
+			state = State.HALF_OPEN;
+			probing = false;
+		}
+
+		if (state == State.CLOSED) {
+			return new Permit(epoch);
+		}
+
+		// a probe that never reported back doesn't hold the breaker for ever,
+		// and once replaced its outcome no longer counts
+		if (state == State.HALF_OPEN && (!probing || now - probeStartedAt >= openTime)) {
+			probing = true;
+			probeStartedAt = now;
+			return new Permit(++epoch);
+		}
+
+		rejectedCalls++;
+		return null;
+	}
+
+	private synchronized void onSuccess(long callEpoch, long latency) {
+		calls++;
+		boolean slow = latency > slowCallThreshold;
+		if (slow) {
+			slowCalls++;
+		}
+		record(callEpoch, slow);
+	}
+
+	private synchronized void onFailure(long callEpoch, long latency) {
+		calls++;
+		failedCalls++;
+		record(callEpoch, true);
+	}
+
+	/**
+	 * @return in how many milliseconds a call will be let through again.
+	 */
+	public synchronized long getRetryAfter() {
+		long remaining = openTime - (System.currentTimeMillis() - openedAt);
+		return Math.max(MIN_RETRY_AFTER, remaining);
+	}
+
+	/**
+	 * Publishes this breaker over JMX, in place of any earlier breaker of the same name.
+	 */
+	public void register() {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName objectName = new ObjectName(MBEAN_NAME + ObjectName.quote(name));
+
+			if (server.isRegistered(objectName)) {
+				server.unregisterMBean(objectName);
+			}
+			server.registerMBean(this, objectName);
+		} catch (JMException e) {
+			LOGGER.warn("Could not publish " + name + " circuit breaker metrics over JMX", e);
+		}
+	}
+
+	/**
+	 * Stops publishing this breaker over JMX.
+	 */
+	public void unregister() {
+		try {
+			ObjectName objectName = new ObjectName(MBEAN_NAME + ObjectName.quote(name));
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			if (server.isRegistered(objectName)) {
+				server.unregisterMBean(objectName);
+			}
+		} catch (JMException e) {
+			LOGGER.warn("Could not unpublish " + name + " circuit breaker metrics", e);
+		}
+	}
+
+	private void record(long callEpoch, boolean failed) {
+		if (callEpoch != epoch) {
+			// a call let through before the breaker last changed state
+			return;
+		}
+
+		if (state == State.HALF_OPEN) {
+			probing = false;
+			if (failed) {
+				open();
+			} else {
+				close();
+			}
+			return;
+		}
+
+		if (windowCalls == window.length) {
+			if (window[position]) {
+				windowFailures--;
+			}
+		} else {
+			windowCalls++;
+		}
+
+		window[position] = failed;
+		if (failed) {
+			windowFailures++;
+		}
+		position = (position + 1) % window.length;
+
+		if (failureRateThreshold > 0 && windowCalls >= Math.max(1, window.length / 2)
+				&& windowFailures * 100 >= failureRateThreshold * windowCalls) {
+			open();
+		}
+	}
+
+	private void open() {
+		LOGGER.warn("Circuit breaker " + name + " opened, calls are refused for "
+				+ openTime + " ms");
+		state = State.OPEN;
+		epoch++;
+		openedAt = System.currentTimeMillis();
+		timesOpened++;
+	}
+
+	private void close() {
+		LOGGER.info("Circuit breaker " + name + " closed");
+		state = State.CLOSED;
+		epoch++;
+		Arrays.fill(window, false);
+		position = 0;
+		windowCalls = 0;
+		windowFailures = 0;
+	}
+
+	public synchronized String getState() {
+		return state.toString();
+	}
+
+	public synchronized int getFailureRate() {
+		return windowCalls > 0 ? windowFailures * 100 / windowCalls : 0;
+	}
+
+	public synchronized long getCalls() {
+		return calls;
+	}
+
+	public synchronized long getFailedCalls() {
+		return failedCalls;
+	}
+
+	public synchronized long getSlowCalls() {
+		return slowCalls;
+	}
+
+	public synchronized long getRejectedCalls() {
+		return rejectedCalls;
+	}
+
+	public synchronized long getTimesOpened() {
+		return timesOpened;
+	}
+
+	/**
+	 * Permission to make one call, through which its outcome is reported.
+	 */
+	public class Permit {
+		private final long epoch;
+
+		private Permit(long epoch) {
+			this.epoch = epoch;
+		}
+
+		/**
+		 * Reports a call that got its answer, in {@code latency} milliseconds.
+		 */
+		public void onSuccess(long latency) {
+			CircuitBreaker.this.onSuccess(epoch, latency);
+		}
+
+		/**
+		 * Reports a call that failed or timed out, after {@code latency} milliseconds.
+		 */
+		public void onFailure(long latency) {
+			CircuitBreaker.this.onFailure(epoch, latency);
+		}
+	}
+}
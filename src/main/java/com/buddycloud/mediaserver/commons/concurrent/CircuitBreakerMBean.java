@@ -0,0 +1,48 @@
+/*
+ * Copyright 2012 buddycloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.buddycloud.mediaserver.commons.concurrent;
+
+/**
+ * Live figures of a {@link CircuitBreaker}, exposed over JMX.
+ */
+public interface CircuitBreakerMBean {
+
+	/**
+	 * @return CLOSED, OPEN or HALF_OPEN.
+	 */
+	String getState();
+
+	/**
+	 * @return percentage of failed or slow calls among the recent ones.
+	 */
+	int getFailureRate();
+
+	long getCalls();
+
+	long getFailedCalls();
+
+	/**
+	 * @return calls that succeeded, but took longer than the slow call threshold.
+	 */
+	long getSlowCalls();
+
+	/**
+	 * @return calls refused while the breaker was open.
+	 */
+	long getRejectedCalls();
+
+	long getTimesOpened();
+}
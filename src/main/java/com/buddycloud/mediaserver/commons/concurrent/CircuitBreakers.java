@@ -0,0 +1,89 @@
+/*
+ * Copyright 2012 buddycloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.buddycloud.mediaserver.commons.concurrent;
+
+import java.util.Properties;
+
+import com.buddycloud.mediaserver.commons.MediaServerConfiguration;
+import com.buddycloud.mediaserver.commons.cache.LRUCache;
+
+/**
+ * Circuit breakers of the XMPP dependencies, created on first use with
+ * the xmpp.breaker.* settings, and the policy to follow while they are open.
+ * Breaker names come from requests, so only the xmpp.breaker.max.entries
+ * most recently used breakers are kept, and published over JMX.
+ */
+public class CircuitBreakers {
+
+	/**
+	 * Serve decisions cached before the breaker opened, however old.
+	 */
+	public static final String POLICY_CACHED = "cached";
+
+	/**
+	 * Refuse every request that needs the dependency.
+	 */
+	public static final String POLICY_STRICT = "strict";
+
+	private static CircuitBreakers instance;
+
+	private final LRUCache<String, CircuitBreaker> breakers;
+	private final Properties configuration;
+
+	CircuitBreakers(Properties configuration) {
+		this.configuration = configuration;
+		this.breakers = new LRUCache<String, CircuitBreaker>(Integer.valueOf(
+				configuration.getProperty(MediaServerConfiguration.XMPP_BREAKER_MAX_ENTRIES)),
+				Long.MAX_VALUE) {
+			@Override
+			protected void onEvict(String name, CircuitBreaker breaker) {
+				breaker.unregister();
+			}
+		};
+	}
+
+	public static synchronized CircuitBreakers getInstance() {
+		if (instance == null) {
+			instance = new CircuitBreakers(MediaServerConfiguration.getInstance().getConfiguration());
+		}
+
+		return instance;
+	}
+
+	public synchronized CircuitBreaker get(String name) {
+		CircuitBreaker breaker = breakers.get(name);
+		if (breaker == null) {
+			breaker = new CircuitBreaker(name,
+					Integer.valueOf(configuration.getProperty(MediaServerConfiguration.XMPP_BREAKER_WINDOW)),
+					Integer.valueOf(configuration.getProperty(MediaServerConfiguration.XMPP_BREAKER_FAILURE_RATE)),
+					Long.valueOf(configuration.getProperty(MediaServerConfiguration.XMPP_BREAKER_SLOW_CALL)),
+					Long.valueOf(configuration.getProperty(MediaServerConfiguration.XMPP_BREAKER_OPEN_TIME)) * 1000);
+
+			breakers.put(name, breaker);
+			breaker.register();
+		}
+
+		return breaker;
+	}
+
+	/**
+	 * @return whether cached decisions are served while a breaker is open.
+	 */
+	public boolean isServingCached() {
+		return POLICY_CACHED.equals(configuration.getProperty(
+				MediaServerConfiguration.XMPP_BREAKER_DEGRADED_POLICY));
+	}
+}
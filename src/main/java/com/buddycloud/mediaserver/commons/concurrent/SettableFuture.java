@@ -0,0 +1,146 @@
+/*
+ * Copyright 2012 buddycloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.buddycloud.mediaserver.commons.concurrent;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A {@link Future} completed by whoever holds it, once, with either a value
+ * or a failure. Listeners run when it completes, on the completing thread,
+ * so nobody has to park a thread on {@link #get()} to react to it. They run
+ * before threads waiting on {@link #get()} are released, so waiters see
+ * whatever the listeners did.
+ */
+public class SettableFuture<V> implements Future<V> {
+	private static Logger LOGGER = LoggerFactory.getLogger(SettableFuture.class);
+
+	private final CountDownLatch done = new CountDownLatch(1);
+
+	private List<Runnable> listeners = new ArrayList<Runnable>();
+	private V value;
+	private Throwable failure;
+	private boolean completed;
+	// the thread running the listeners, which mustn't wait for itself
+	private volatile Thread completing;
+
+	/**
+	 * @return whether this completed the future, rather than it being completed already.
+	 */
+	public boolean set(V value) {
+		return complete(value, null);
+	}
+
+	/**
+	 * @return whether this completed the future, rather than it being completed already.
+	 */
+	public boolean setException(Throwable failure) {
+		return complete(null, failure);
+	}
+
+	/**
+	 * Runs {@code listener} once the future completes, right away if it already has.
+	 */
+	public void addListener(Runnable listener) {
+		synchronized (this) {
+			if (!completed) {
+				listeners.add(listener);
+				return;
+			}
+		}
+		run(listener);
+	}
+
+	private boolean complete(V value, Throwable failure) {
+		List<Runnable> toRun;
+		synchronized (this) {
+			if (completed) {
+				return false;
+			}
+			this.value = value;
+			this.failure = failure;
+			this.completed = true;
+
+			toRun = listeners;
+			listeners = null;
+		}
+
+		completing = Thread.currentThread();
+		try {
+			for (Runnable listener : toRun) {
+				run(listener);
+			}
+		} finally {
+			completing = null;
+			done.countDown();
+		}
+		return true;
+	}
+
+	private void run(Runnable listener) {
+		try {
+			listener.run();
+		} catch (RuntimeException e) {
+			LOGGER.error("Future listener failed", e);
+		}
+	}
+
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		return setException(new CancellationException());
+	}
+
+	public synchronized boolean isCancelled() {
+		return failure instanceof CancellationException;
+	}
+
+	public synchronized boolean isDone() {
+		return completed;
+	}
+
+	public V get() throws InterruptedException, ExecutionException {
+		if (completing != Thread.currentThread()) {
+			done.await();
+		}
+		return getValue();
+	}
+
+	public V get(long timeout, TimeUnit unit) throws InterruptedException,
+			ExecutionException, TimeoutException {
+		if (completing != Thread.currentThread() && !done.await(timeout, unit)) {
+			throw new TimeoutException();
+		}
+		return getValue();
+	}
+
+	private synchronized V getValue() throws ExecutionException {
+		if (failure instanceof CancellationException) {
+			throw (CancellationException) failure;
+		}
+		if (failure != null) {
+			throw new ExecutionException(failure);
+		}
+		return value;
+	}
+}
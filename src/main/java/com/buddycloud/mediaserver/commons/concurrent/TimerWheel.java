@@ -0,0 +1,147 @@
+/*
+ * Copyright 2012 buddycloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.buddycloud.mediaserver.commons.concurrent;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs tasks after a delay, on a single thread, with a hashed wheel: a ring
+ * of buckets the thread moves through one per tick. Scheduling and cancelling
+ * are O(1) whatever the number of pending tasks, which suits many timeouts
+ * that are mostly cancelled before they fire. Tasks fire up to one tick late,
+ * so they must be short.
+ */
+public class TimerWheel {
+	private static Logger LOGGER = LoggerFactory.getLogger(TimerWheel.class);
+
+	private final long tickDuration;
+	private final List<Set<Timeout>> wheel;
+	private final Thread thread;
+
+	private long tick;
+
+	/**
+	 * @param name name of the timer thread.
+	 * @param tickDuration how often due tasks are run, in milliseconds.
+	 * @param ticksPerWheel number of buckets in the wheel.
+	 */
+	public TimerWheel(String name, long tickDuration, int ticksPerWheel) {
+		this.tickDuration = tickDuration;
+		this.wheel = new ArrayList<Set<Timeout>>(ticksPerWheel);
+		for (int i = 0; i < ticksPerWheel; i++) {
+			wheel.add(new HashSet<Timeout>());
+		}
+
+		this.thread = new Thread(name) {
+			public void run() {
+				turn();
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Runs {@code task} in {@code delay} milliseconds, unless cancelled first.
+	 */
+	public synchronized Timeout schedule(Runnable task, long delay) {
+		long ticks = Math.max(1, (delay + tickDuration - 1) / tickDuration);
+		Timeout timeout = new Timeout(task, (tick + ticks) % wheel.size(),
+				(ticks - 1) / wheel.size());
+		wheel.get((int) timeout.bucket).add(timeout);
+		return timeout;
+	}
+
+	public void stop() {
+		thread.interrupt();
+	}
+
+	private void turn() {
+		long next = System.currentTimeMillis() + tickDuration;
+
+		while (!Thread.currentThread().isInterrupted()) {
+			try {
+				long sleep = next - System.currentTimeMillis();
+				if (sleep > 0) {
+					Thread.sleep(sleep);
+				}
+			} catch (InterruptedException e) {
+				return;
+			}
+			next += tickDuration;
+
+			for (Timeout timeout : expire()) {
+				try {
+					timeout.task.run();
+				} catch (RuntimeException e) {
+					LOGGER.error("Scheduled task failed", e);
+				}
+			}
+		}
+	}
+
+	private synchronized List<Timeout> expire() {
+		tick++;
+		List<Timeout> expired = new ArrayList<Timeout>();
+
+		Iterator<Timeout> bucket = wheel.get((int) (tick % wheel.size())).iterator();
+		while (bucket.hasNext()) {
+			Timeout timeout = bucket.next();
+			if (timeout.rounds > 0) {
+				// due on a later turn of the wheel
+				timeout.rounds--;
+			} else {
+				bucket.remove();
+				expired.add(timeout);
+			}
+		}
+
+		return expired;
+	}
+
+	private synchronized void cancel(Timeout timeout) {
+		wheel.get((int) timeout.bucket).remove(timeout);
+	}
+
+	/**
+	 * A scheduled task.
+	 */
+	public class Timeout {
+		private final Runnable task;
+		private final long bucket;
+		private long rounds;
+
+		private Timeout(Runnable task, long bucket, long rounds) {
+			this.task = task;
+			this.bucket = bucket;
+			this.rounds = rounds;
+		}
+
+		/**
+		 * Keeps the task from running, if it has not yet.
+		 */
+		public void cancel() {
+			TimerWheel.this.cancel(this);
+		}
+	}
+}
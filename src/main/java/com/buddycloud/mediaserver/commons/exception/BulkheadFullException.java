@@ -0,0 +1,29 @@
+/*
+ * Copyright 2012 buddycloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.buddycloud.mediaserver.commons.exception;
+
+/**
+ * Thrown when a {@link com.buddycloud.mediaserver.commons.concurrent.Bulkhead}
+ * has no room left for the calling thread.
+ */
+public class BulkheadFullException extends RuntimeException {
+
+	private static final long serialVersionUID = 3126488403316512714L;
+
+	public BulkheadFullException(String message) {
+		super(message);
+	}
+}
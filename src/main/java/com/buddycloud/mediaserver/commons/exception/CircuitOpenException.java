@@ -0,0 +1,39 @@
+/*
+ * Copyright 2012 buddycloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.buddycloud.mediaserver.commons.exception;
+
+/**
+ * Thrown when a call to a dependency is refused by its open
+ * {@link com.buddycloud.mediaserver.commons.concurrent.CircuitBreaker}.
+ */
+public class CircuitOpenException extends RuntimeException {
+
+	private static final long serialVersionUID = -2419061513373049245L;
+
+	private final long retryAfter;
+
+	public CircuitOpenException(String message, long retryAfter) {
+		super(message);
+		this.retryAfter = retryAfter;
+	}
+
+	/**
+	 * @return in how many milliseconds the dependency will be tried again.
+	 */
+	public long getRetryAfter() {
+		return retryAfter;
+	}
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright 2012 buddycloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.buddycloud.mediaserver.commons.exception;
+
+/**
+ * Thrown when a media's metadata is not stored yet, but still may be: its write
+ * was already under way when the caller stopped waiting for it.
+ */
+public class MetadataPendingException extends MetadataSourceException {
+
+	private static final long serialVersionUID = -6064719032154837711L;
+
+	private final String mediaId;
+
+	public MetadataPendingException(String message, String mediaId) {
+		super(message, null);
+		this.mediaId = mediaId;
+	}
+
+	/**
+	 * @return the media whose metadata is pending, if known.
+	 */
+	public String getMediaId() {
+		return mediaId;
+	}
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2012 buddycloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.buddycloud.mediaserver.commons.json;
+
+import java.io.IOException;
+import java.text.DateFormat;
+import java.text.ParsePosition;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * Writes dates as ISO-8601 UTC timestamps (e.g. 2014-03-01T10:20:30.123Z),
+ * independently of the server locale and time zone.
+ */
+public class ISO8601DateTypeAdapter extends TypeAdapter<Date> {
+
+	private static final String PATTERN = "yyyy-MM-dd'T'HH:mm:ss.SSS'Z'";
+	private static final String PATTERN_NO_MILLIS = "yyyy-MM-dd'T'HH:mm:ss'Z'";
+
+	// SimpleDateFormat isn't thread safe
+	private static final ThreadLocal<DateFormat> FORMAT = new ThreadLocal<DateFormat>() {
+		@Override
+		protected DateFormat initialValue() {
+			return createFormat(PATTERN);
+		}
+	};
+	private static final ThreadLocal<DateFormat> FORMAT_NO_MILLIS = new ThreadLocal<DateFormat>() {
+		@Override
+		protected DateFormat initialValue() {
+			return createFormat(PATTERN_NO_MILLIS);
+		}
+	};
+
+	private static DateFormat createFormat(String pattern) {
+		DateFormat format = new SimpleDateFormat(pattern, Locale.US);
+		format.setTimeZone(TimeZone.getTimeZone("UTC"));
+		format.setLenient(false);
+		return format;
+	}
+
+	/**
+	 * Parses an ISO-8601 UTC timestamp, with or without milliseconds.
+	 * @return the date, or null if {@code value} is not such a timestamp.
+	 */
+	public static Date parse(String value) {
+		ParsePosition position = new ParsePosition(0);
+		Date date = FORMAT.get().parse(value, position);
+		if (date == null || position.getIndex() != value.length()) {
+			position = new ParsePosition(0);
+			date = FORMAT_NO_MILLIS.get().parse(value, position);
+		}
+
+		return date != null && position.getIndex() == value.length() ? date : null;
+	}
+
+	@Override
+	public void write(JsonWriter out, Date value) throws IOException {
+		if (value == null) {
+			out.nullValue();
+			return;
+		}
+
+		out.value(FORMAT.get().format(value));
+	}
+
+	@Override
+	public Date read(JsonReader in) throws IOException {
+		if (in.peek() == JsonToken.NULL) {
+			in.nextNull();
+			return null;
+		}
+
+		String value = in.nextString();
+		Date date = parse(value);
+		if (date == null) {
+			throw new JsonSyntaxException("Invalid ISO-8601 date: " + value);
+		}
+		return date;
+	}
+}
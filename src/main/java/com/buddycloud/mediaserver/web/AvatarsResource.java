@@ -0,0 +1,144 @@
+/*
+ * Copyright 2014 Buddycloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.buddycloud.mediaserver.web;
+
+import com.buddycloud.mediaserver.business.dao.DAOFactory;
+import com.buddycloud.mediaserver.business.dao.MediaDAO;
+import com.buddycloud.mediaserver.commons.AvatarContent;
+import com.buddycloud.mediaserver.commons.Constants;
+import com.buddycloud.mediaserver.commons.exception.MetadataSourceException;
+import com.buddycloud.mediaserver.web.representation.MultipartRepresentation;
+import org.restlet.Request;
+import org.restlet.data.MediaType;
+import org.restlet.data.Preference;
+import org.restlet.data.Status;
+import org.restlet.representation.EmptyRepresentation;
+import org.restlet.representation.Representation;
+import org.restlet.representation.StringRepresentation;
+import org.restlet.resource.Get;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Resource that represents /avatars endpoint, which resolves the avatars
+ * of several channels in one request.
+ */
+public class AvatarsResource extends MediaServerResource {
+
+    protected static final int MAX_ENTITIES = 200;
+
+    private static final MediaType MULTIPART_MIXED = MediaType.valueOf("multipart/mixed");
+
+    /**
+     * Gets several channels' avatars (GET /avatars?ids=<channel>,<channel>&size=<pixels>).
+     * Returns a JSON map of channel to avatar etag and url, or the avatars themselves as
+     * multipart/mixed if the client explicitly accepts it.
+     */
+    @Get
+    public Representation getAvatars() {
+        setServerHeader();
+        Request request = getRequest();
+
+        String ids = getQueryValue(Constants.IDS_QUERY);
+        Integer size = getIntegerQueryValue(Constants.SIZE_QUERY);
+
+        List<String> entityIds = parseEntityIds(ids);
+        if (entityIds.isEmpty() || entityIds.size() > MAX_ENTITIES
+                || (getQueryValue(Constants.SIZE_QUERY) != null && (size == null || size <= 0))) {
+            setStatus(Status.CLIENT_ERROR_BAD_REQUEST);
+            return invalidQuery();
+        }
+
+        try {
+            MediaDAO mediaDAO = DAOFactory.getInstance().getDAO();
+
+            if (acceptsMultipart(request)) {
+                return getAvatarsContent(mediaDAO, entityIds, size);
+            }
+
+            return new StringRepresentation(mediaDAO.getAvatarsInfo(entityIds, size,
+                    getBaseURL(request)), MediaType.APPLICATION_JSON);
+        } catch (MetadataSourceException e) {
+            setMetadataErrorStatus(e);
+        } catch (IOException e) {
+            setStatus(Status.SERVER_ERROR_INTERNAL);
+        } catch (Throwable t) {
+            return unexpectedError(t);
+        }
+
+        return new EmptyRepresentation();
+    }
+
+    private Representation getAvatarsContent(MediaDAO mediaDAO, List<String> entityIds, Integer size)
+            throws Exception {
+        final MultipartRepresentation multipart = new MultipartRepresentation();
+        String baseURL = getBaseURL(getRequest());
+
+        Map<String, AvatarContent> avatars = mediaDAO.getAvatarsContent(entityIds, size);
+        for (Map.Entry<String, AvatarContent> avatar : avatars.entrySet()) {
+            final Map<String, String> headers = new HashMap<String, String>();
+            headers.put("Content-Location", baseURL + "/" + avatar.getKey() + "/" + Constants.AVATAR_ARG);
+            headers.put("ETag", "\"" + MediaDAO.getAvatarTag(avatar.getValue().getLastModified(),
+                    size, size) + "\"");
+
+            final String mimeType = avatar.getValue().getMimeType();
+            avatar.getValue().accept(new AvatarContent.Visitor<Void>() {
+                public Void visitBytes(byte[] bytes) {
+                    multipart.addPart(mimeType, bytes, headers);
+                    return null;
+                }
+
+                public Void visitFile(File file) {
+                    multipart.addPart(mimeType, file, headers);
+                    return null;
+                }
+            });
+        }
+
+        return multipart;
+    }
+
+    private boolean acceptsMultipart(Request request) {
+        for (Preference<MediaType> preference : request.getClientInfo().getAcceptedMediaTypes()) {
+            if (MULTIPART_MIXED.equals(preference.getMetadata(), true) && preference.getQuality() > 0) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private List<String> parseEntityIds(String ids) {
+        Set<String> entityIds = new LinkedHashSet<String>();
+
+        if (ids != null) {
+            for (String id : ids.split(",")) {
+                if (id.trim().length() > 0) {
+                    entityIds.add(id.trim());
+                }
+            }
+        }
+
+        return new ArrayList<String>(entityIds);
+    }
+}
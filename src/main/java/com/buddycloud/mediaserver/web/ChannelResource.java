@@ -17,11 +17,17 @@ package com.buddycloud.mediaserver.web;
 
 import com.buddycloud.mediaserver.business.dao.DAOFactory;
 import com.buddycloud.mediaserver.business.dao.MediaDAO;
+import com.buddycloud.mediaserver.business.model.MediaFilter;
+import com.buddycloud.mediaserver.business.model.SyncToken;
 import com.buddycloud.mediaserver.commons.Constants;
+import com.buddycloud.mediaserver.commons.MediasInfo;
+import com.buddycloud.mediaserver.commons.exception.MetadataPendingException;
 import com.buddycloud.mediaserver.commons.exception.MetadataSourceException;
 import com.buddycloud.mediaserver.commons.exception.MissingAuthenticationException;
+import com.buddycloud.mediaserver.commons.exception.SyncTokenExpiredException;
 import com.buddycloud.mediaserver.commons.exception.UserNotAllowedException;
 import com.buddycloud.mediaserver.commons.exception.XMPPException;
+import com.buddycloud.mediaserver.web.representation.MediasInfoRepresentation;
 import com.buddycloud.mediaserver.xmpp.XMPPToolBox;
 import org.apache.commons.fileupload.FileUploadException;
 import org.restlet.Request;
@@ -34,6 +40,9 @@ import org.restlet.representation.StringRepresentation;
 import org.restlet.resource.Get;
 import org.restlet.resource.Post;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * Resource that represents /<channel> endpoint.
  *
@@ -59,6 +68,9 @@ public class ChannelResource extends MediaServerResource {
 			}
 			setStatus(Status.SUCCESS_CREATED);
             return new StringRepresentation(result, MediaType.APPLICATION_JSON);
+		} catch (MetadataPendingException e) {
+			return uploadPending((String) request.getAttributes().get(Constants.ENTITY_ARG),
+					e.getMediaId());
 		} catch (FileUploadException e) {
 			setStatus(Status.CLIENT_ERROR_BAD_REQUEST);
 		} catch (UserNotAllowedException e) {
@@ -76,7 +88,13 @@ public class ChannelResource extends MediaServerResource {
     }
 
 	/**
-	 * Gets media's information list (GET /<channel>) 
+	 * Gets media's information list (GET /<channel>). The list can be restricted with
+	 * ?type=<mime type prefix>, ?author=<jid>, and ?from= and ?until= ISO-8601 UTC
+	 * timestamps bounding the last updated date, and its media to some fields
+	 * with ?fields=<field>,<field>.
+	 * <p>
+	 * Listings come with a sync token, which can be passed back as ?since=<token>
+	 * to only get the media changed and deleted since.
 	 */
 	@Get
 	public Representation getMediasInfo() {
@@ -92,15 +110,39 @@ public class ChannelResource extends MediaServerResource {
                 userJID = getUsedJID(request, true);
             }
 
+            MediaDAO mediaDAO = DAOFactory.getInstance().getDAO();
+
+            String since = getQueryValue(Constants.SINCE_QUERY);
+            if (since != null) {
+                return getMediaChanges(mediaDAO, userJID, entityId, since);
+            }
+
             // Queries
             Integer max = getIntegerQueryValue(Constants.MAX_QUERY);
             String after = getQueryValue(Constants.AFTER_QUERY);
 
-            MediaDAO mediaDAO = DAOFactory.getInstance().getDAO();
-            return new StringRepresentation(mediaDAO.getMediasInfo(userJID,
-					entityId, max, after), MediaType.APPLICATION_JSON);
+            if (getQueryValue(Constants.MAX_QUERY) != null && (max == null || max <= 0)) {
+                setStatus(Status.CLIENT_ERROR_BAD_REQUEST);
+                return invalidQuery();
+            }
+
+            MediaFilter filter = getMediaFilter();
+            if (filter == null) {
+                setStatus(Status.CLIENT_ERROR_BAD_REQUEST);
+                return invalidQuery();
+            }
+
+            MediasInfo mediasInfo = mediaDAO.getMediasInfo(userJID, entityId, max, after, filter);
+
+            if (mediasInfo.getNextCursor() != null) {
+                // pass it back as ?after= to get the next page
+                getMessageHeaders(getResponse()).add(NEXT_CURSOR_HEADER, mediasInfo.getNextCursor());
+            }
+            addSyncTokenHeader(mediasInfo);
+
+            return new MediasInfoRepresentation(mediasInfo);
 		} catch (MetadataSourceException e) {
-			setStatus(Status.SERVER_ERROR_INTERNAL);
+			setMetadataErrorStatus(e);
 		} catch (UserNotAllowedException e) {
 			setStatus(Status.CLIENT_ERROR_FORBIDDEN);
 		} catch (MissingAuthenticationException e) {
@@ -114,4 +156,65 @@ public class ChannelResource extends MediaServerResource {
 
         return new EmptyRepresentation();
 	}
+
+	private Representation getMediaChanges(MediaDAO mediaDAO, String userJID, String entityId,
+			String since) throws Exception {
+		SyncToken token = SyncToken.decode(since);
+		if (token == null) {
+			setStatus(Status.CLIENT_ERROR_BAD_REQUEST);
+			return invalidQuery();
+		}
+
+		try {
+			MediasInfo changes = mediaDAO.getMediaChanges(userJID, entityId, token);
+			addSyncTokenHeader(changes);
+
+			return new MediasInfoRepresentation(changes);
+		} catch (SyncTokenExpiredException e) {
+			// the client has to list the channel again
+			setStatus(Status.CLIENT_ERROR_GONE);
+			return new EmptyRepresentation();
+		}
+	}
+
+	private void addSyncTokenHeader(MediasInfo mediasInfo) {
+		getMessageHeaders(getResponse()).add(SYNC_TOKEN_HEADER, mediasInfo.getSyncToken());
+		getMessageHeaders(getResponse()).add(CORS_EXPOSE_HEADER,
+				NEXT_CURSOR_HEADER + ", " + SYNC_TOKEN_HEADER);
+	}
+
+	/**
+	 * @return the filter given by the query, or null if it is invalid.
+	 */
+	private MediaFilter getMediaFilter() {
+		MediaFilter filter = new MediaFilter();
+
+		String fields = getQueryValue(Constants.FIELDS_QUERY);
+		if (fields != null) {
+			List<String> fieldList = new ArrayList<String>();
+			for (String field : fields.split(",")) {
+				if (field.trim().length() > 0) {
+					fieldList.add(field.trim());
+				}
+			}
+
+			try {
+				filter.setFields(fieldList);
+			} catch (IllegalArgumentException e) {
+				return null;
+			}
+		}
+
+		filter.setMimeTypePrefix(getQueryValue(Constants.TYPE_QUERY));
+		filter.setAuthor(getQueryValue(Constants.AUTHOR_QUERY));
+
+		filter.setSince(getDateQueryValue(Constants.FROM_QUERY));
+		filter.setUntil(getDateQueryValue(Constants.UNTIL_QUERY));
+		if ((getQueryValue(Constants.FROM_QUERY) != null && filter.getSince() == null)
+				|| (getQueryValue(Constants.UNTIL_QUERY) != null && filter.getUntil() == null)) {
+			return null;
+		}
+
+		return filter;
+	}
 }
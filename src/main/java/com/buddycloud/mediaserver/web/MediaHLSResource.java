@@ -0,0 +1,112 @@
+/*
+ * Copyright 2014 Buddycloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.buddycloud.mediaserver.web;
+
+import com.buddycloud.mediaserver.business.dao.DAOFactory;
+import com.buddycloud.mediaserver.business.dao.MediaDAO;
+import com.buddycloud.mediaserver.business.util.HLSPackager;
+import com.buddycloud.mediaserver.commons.Constants;
+import com.buddycloud.mediaserver.commons.MediaFile;
+import com.buddycloud.mediaserver.commons.exception.*;
+import com.buddycloud.mediaserver.xmpp.XMPPToolBox;
+import org.apache.commons.io.FileUtils;
+import org.restlet.Request;
+import org.restlet.data.MediaType;
+import org.restlet.data.Reference;
+import org.restlet.data.Status;
+import org.restlet.representation.EmptyRepresentation;
+import org.restlet.representation.FileRepresentation;
+import org.restlet.representation.Representation;
+import org.restlet.representation.StringRepresentation;
+import org.restlet.resource.Get;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Resource that represents /<channel>/<mediaId>/hls/<file> endpoint.
+ */
+public class MediaHLSResource extends MediaServerResource {
+
+    /**
+     * Downloads an HLS playlist or segment (GET /<channel>/<mediaId>/hls/<file>)
+     */
+    @Get
+    public Representation getHLSFile() {
+        setServerHeader();
+        Request request = getRequest();
+
+        try {
+            String userJID = null;
+            String entityId = (String) request.getAttributes().get(Constants.ENTITY_ARG);
+            String mediaId = (String) request.getAttributes().get(Constants.MEDIA_ARG);
+            String fileName = (String) request.getAttributes().get(Constants.FILE_ARG);
+
+            boolean isChannelPublic = XMPPToolBox.getInstance().getPubSubClient().isChannelPublic(entityId);
+            if (!isChannelPublic) {
+                userJID = getUsedJID(request, true);
+            }
+
+            MediaDAO mediaDAO = DAOFactory.getInstance().getDAO();
+            MediaFile<File> hlsFile = mediaDAO.getMediaHLSFile(userJID, entityId, mediaId, fileName);
+            MediaType mediaType = new MediaType(hlsFile.getMimeType());
+
+            String authToken = getQueryValue(Constants.AUTH_QUERY);
+            if (authToken != null && HLSPackager.PLAYLIST_NAME.equals(fileName)) {
+                // segments are requested relative to the playlist, so they need the same credentials
+                return new StringRepresentation(appendAuthQuery(hlsFile.getMediaFile(), authToken),
+                        mediaType);
+            }
+
+            Representation representation = new FileRepresentation(hlsFile.getMediaFile(), mediaType);
+            representation.setModificationDate(hlsFile.getLastModified());
+
+            return representation;
+        } catch (MetadataSourceException e) {
+            setMetadataErrorStatus(e);
+        } catch (IOException e) {
+            setStatus(Status.SERVER_ERROR_INTERNAL);
+        } catch (UserNotAllowedException e) {
+            setStatus(Status.CLIENT_ERROR_FORBIDDEN);
+        } catch (MediaNotFoundException e) {
+            setStatus(Status.CLIENT_ERROR_NOT_FOUND);
+        } catch (MissingAuthenticationException e) {
+            setStatus(Status.CLIENT_ERROR_UNAUTHORIZED);
+            return authenticationResponse();
+        } catch (XMPPException e) {
+            setStatus(Status.SERVER_ERROR_SERVICE_UNAVAILABLE);
+        } catch (Throwable t) {
+            return unexpectedError(t);
+        }
+
+        return new EmptyRepresentation();
+    }
+
+    private String appendAuthQuery(File playlist, String authToken) throws IOException {
+        String query = "?" + Constants.AUTH_QUERY + "=" + Reference.encode(authToken);
+        StringBuilder result = new StringBuilder();
+
+        for (String line : FileUtils.readLines(playlist, "UTF-8")) {
+            result.append(line);
+            if (line.length() > 0 && !line.startsWith("#")) {
+                result.append(query);
+            }
+            result.append("\n");
+        }
+
+        return result.toString();
+    }
+}
@@ -59,7 +59,7 @@ public class MediaMetadataResource extends MediaServerResource {
             return new StringRepresentation(mediaDAO.getMediaInfo(userJID,
                     entityId, mediaId), MediaType.APPLICATION_JSON);
         } catch (MetadataSourceException e) {
-            setStatus(Status.SERVER_ERROR_INTERNAL);
+            setMetadataErrorStatus(e);
         } catch (UserNotAllowedException e) {
             setStatus(Status.CLIENT_ERROR_FORBIDDEN);
         } catch (MediaNotFoundException e) {
@@ -17,16 +17,24 @@ package com.buddycloud.mediaserver.web;
 
 import com.buddycloud.mediaserver.business.dao.DAOFactory;
 import com.buddycloud.mediaserver.business.dao.MediaDAO;
+import com.buddycloud.mediaserver.business.util.AudioUtils;
+import com.buddycloud.mediaserver.commons.AvatarContent;
 import com.buddycloud.mediaserver.commons.Constants;
 import com.buddycloud.mediaserver.commons.MediaFile;
+import com.buddycloud.mediaserver.commons.MediaServerConfiguration;
+import com.buddycloud.mediaserver.commons.SignedURLs;
 import com.buddycloud.mediaserver.commons.exception.*;
 import com.buddycloud.mediaserver.web.representation.DynamicFileRepresentation;
 import com.buddycloud.mediaserver.xmpp.XMPPToolBox;
 import org.apache.commons.fileupload.FileUploadException;
 import org.restlet.Request;
+import org.restlet.data.CacheDirective;
+import org.restlet.data.Dimension;
 import org.restlet.data.Form;
 import org.restlet.data.MediaType;
+import org.restlet.data.Preference;
 import org.restlet.data.Status;
+import org.restlet.data.Tag;
 import org.restlet.representation.EmptyRepresentation;
 import org.restlet.representation.FileRepresentation;
 import org.restlet.representation.Representation;
@@ -76,6 +84,9 @@ public class MediaResource extends MediaServerResource {
 
             setStatus(Status.SUCCESS_CREATED);
             return new StringRepresentation(result, MediaType.APPLICATION_JSON);
+        } catch (MetadataPendingException e) {
+            return uploadPending((String) request.getAttributes().get(Constants.ENTITY_ARG),
+                    Constants.AVATAR_ARG);
         } catch (MissingAuthenticationException e) {
             setStatus(Status.CLIENT_ERROR_UNAUTHORIZED);
             return authenticationResponse();
@@ -109,7 +120,7 @@ public class MediaResource extends MediaServerResource {
             mediaDAO.deleteMedia(userJID, entityId, mediaId);
             return new StringRepresentation("Media deleted!", MediaType.APPLICATION_JSON);
         } catch (MetadataSourceException e) {
-            setStatus(Status.SERVER_ERROR_INTERNAL);
+            setMetadataErrorStatus(e);
         } catch (MediaNotFoundException e) {
             setStatus(Status.CLIENT_ERROR_NOT_FOUND);
         } catch (UserNotAllowedException e) {
@@ -146,7 +157,7 @@ public class MediaResource extends MediaServerResource {
                     userJID, entityId, mediaId, new Form(entity)),
                     MediaType.APPLICATION_JSON);
         } catch (MetadataSourceException e) {
-            setStatus(Status.SERVER_ERROR_INTERNAL);
+            setMetadataErrorStatus(e);
         } catch (MediaNotFoundException e) {
             setStatus(Status.CLIENT_ERROR_NOT_FOUND);
         } catch (UserNotAllowedException e) {
@@ -190,7 +201,7 @@ public class MediaResource extends MediaServerResource {
 
             return getRegularMedia(request, entityId, mediaId, maxHeight, maxWidth);
         } catch (MetadataSourceException e) {
-            setStatus(Status.SERVER_ERROR_INTERNAL);
+            setMetadataErrorStatus(e);
         } catch (IOException e) {
             setStatus(Status.SERVER_ERROR_INTERNAL);
         } catch (MediaNotFoundException e) {
@@ -216,39 +227,104 @@ public class MediaResource extends MediaServerResource {
             MediaNotFoundException, MetadataSourceException, InvalidPreviewFormatException {
 
         String userJID = null;
-        boolean isChannelPublic = XMPPToolBox.getInstance().getPubSubClient().isChannelPublic(entityId);
-        if (!isChannelPublic) {
+        String signature = getQueryValue(Constants.SIGNATURE_QUERY);
+        if (signature != null) {
+            // signed URLs stand for the sharing user's permission, no XMPP involved
+            Long expires = getExpiresQueryValue();
+            if (!SignedURLs.getInstance().verify(entityId, mediaId, maxHeight, maxWidth, expires, signature)) {
+                throw new UserNotAllowedException(null);
+            }
+            setSignedCacheDirectives(expires);
+        } else if (!XMPPToolBox.getInstance().getPubSubClient().isChannelPublic(entityId)) {
             userJID = getUsedJID(request, true);
         }
         MediaDAO mediaDAO = DAOFactory.getInstance().getDAO();
 
         if (maxHeight == null && maxWidth == null) {
-            MediaFile<File> mediaFile = mediaDAO.getMedia(userJID, entityId, mediaId);
+            MediaFile<File> mediaFile = mediaDAO.getMedia(userJID, entityId, mediaId,
+                    acceptsTranscodedAudio(request));
             MediaType mediaType = new MediaType(mediaFile.getMimeType());
-            return new FileRepresentation(mediaFile.getMediaFile(), mediaType);
+
+            if (mediaFile.getMimeType().startsWith("audio/")) {
+                // audio may be served as its transcoded rendition, depending on Accept
+                getResponse().getDimensions().add(Dimension.MEDIA_TYPE);
+            }
+
+            // the rendition is another representation, with its own tag
+            Representation representation = new FileRepresentation(mediaFile.getMediaFile(), mediaType);
+            representation.setTag(new Tag(MediaDAO.getMediaTag(mediaFile.getLastModified(),
+                    mediaFile.getMimeType()), false));
+            return representation;
         }
 
         MediaFile<byte[]> thumbnail = mediaDAO.getMediaPreview(userJID, entityId, mediaId, maxHeight, maxWidth);
         return new DynamicFileRepresentation(new MediaType(thumbnail.getMimeType()), thumbnail.getMediaFile());
     }
 
+    private Long getExpiresQueryValue() {
+        String expires = getQueryValue(Constants.EXPIRES_QUERY);
+        try {
+            return expires != null ? Long.valueOf(expires) : null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Lets shared caches keep signed media until the URL expires, as the URL
+     * alone grants access to it.
+     */
+    private void setSignedCacheDirectives(long expires) {
+        long maxAge = Math.min(expires - System.currentTimeMillis() / 1000, Long.valueOf(
+                MediaServerConfiguration.getInstance().getConfiguration().getProperty(
+                        MediaServerConfiguration.CACHE_MAX_AGE)));
+
+        getResponse().getCacheDirectives().add(CacheDirective.publicInfo());
+        getResponse().getCacheDirectives().add(CacheDirective.maxAge((int) Math.max(0, maxAge)));
+    }
+
+    /**
+     * Whether the client explicitly lists the transcoded audio type, with a quality no lower
+     * than any other audio type it explicitly lists. Wildcards don't select the rendition,
+     * so clients get the original unless they ask otherwise.
+     */
+    private boolean acceptsTranscodedAudio(Request request) {
+        MediaType transcodedType = MediaType.valueOf(AudioUtils.TRANSCODED_MIME_TYPE);
+        float transcodedQuality = 0;
+        float otherQuality = 0;
+
+        for (Preference<MediaType> preference : request.getClientInfo().getAcceptedMediaTypes()) {
+            MediaType mediaType = preference.getMetadata();
+
+            if (transcodedType.equals(mediaType, true)) {
+                transcodedQuality = Math.max(transcodedQuality, preference.getQuality());
+            } else if (mediaType.getName().startsWith("audio/") && !mediaType.getName().endsWith("*")) {
+                otherQuality = Math.max(otherQuality, preference.getQuality());
+            }
+        }
+
+        return transcodedQuality > 0 && transcodedQuality >= otherQuality;
+    }
+
     private Representation getAvatar(String entityId, Integer maxHeight, Integer maxWidth)
             throws MetadataSourceException, UserNotAllowedException, MediaNotFoundException,
             IOException, InvalidPreviewFormatException {
 
         MediaDAO mediaDAO = DAOFactory.getInstance().getDAO();
-        Representation representation;
 
-        if (maxHeight == null && maxWidth == null) {
-            MediaFile<File> mediaFile = mediaDAO.getMedia(null, entityId, Constants.AVATAR_ARG);
-            MediaType mediaType = new MediaType(mediaFile.getMimeType());
-            representation = new FileRepresentation(mediaFile.getMediaFile(), mediaType);
-            representation.setModificationDate(mediaFile.getLastModified());
-        } else {
-            MediaFile<byte[]> thumbnail = mediaDAO.getMediaPreview(null, entityId, Constants.AVATAR_ARG, maxHeight, maxWidth);
-            representation = new DynamicFileRepresentation(new MediaType(thumbnail.getMimeType()), thumbnail.getMediaFile());
-            representation.setModificationDate(thumbnail.getLastModified());
-        }
+        AvatarContent avatar = mediaDAO.getAvatarContent(entityId, maxHeight, maxWidth);
+        final MediaType mediaType = new MediaType(avatar.getMimeType());
+        Representation representation = avatar.accept(new AvatarContent.Visitor<Representation>() {
+            public Representation visitBytes(byte[] bytes) {
+                return new DynamicFileRepresentation(mediaType, bytes);
+            }
+
+            public Representation visitFile(File file) {
+                return new FileRepresentation(file, mediaType);
+            }
+        });
+        representation.setModificationDate(avatar.getLastModified());
+        representation.setTag(new Tag(MediaDAO.getAvatarTag(avatar.getLastModified(), maxHeight, maxWidth), false));
 
         return representation;
     }
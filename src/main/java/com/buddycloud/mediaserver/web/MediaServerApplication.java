@@ -40,6 +40,21 @@ public class MediaServerApplication extends Application {
 	public synchronized Restlet createInboundRoot() {
 		Router router = new Router(getContext());
 
+		// GET /avatars?ids=<name@domain.com>,...
+		router.attach(Constants.AVATARS_URL, AvatarsResource.class);
+
+		// DELETE /session
+		router.attach(Constants.SESSION_URL, SessionResource.class);
+
+        // GET /<name@domain.com>/<mediaID>/hls/<file>
+        router.attach(Constants.MEDIA_ID_HLS_URL, MediaHLSResource.class);
+
+        // POST /<name@domain.com>/<mediaID>/url
+        router.attach(Constants.MEDIA_ID_SIGNED_URL, SignedURLResource.class);
+
+        // GET /<name@domain.com>/<mediaID>/metadata/waveform
+        router.attach(Constants.MEDIA_ID_WAVEFORM_URL, MediaWaveformResource.class);
+
         // GET /<name@domain.com>/<mediaID>/metadata
         router.attach(Constants.MEDIA_ID_METADATA_URL, MediaMetadataResource.class);
 
@@ -16,6 +16,7 @@
 package com.buddycloud.mediaserver.web;
 
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.List;
 import java.util.concurrent.ConcurrentMap;
 
@@ -24,7 +25,9 @@ import org.restlet.Request;
 import org.restlet.Response;
 import org.restlet.data.ChallengeRequest;
 import org.restlet.data.ChallengeScheme;
+import org.restlet.data.CookieSetting;
 import org.restlet.data.MediaType;
+import org.restlet.data.Method;
 import org.restlet.data.Status;
 import org.restlet.engine.header.Header;
 import org.restlet.representation.EmptyRepresentation;
@@ -36,11 +39,17 @@ import org.restlet.util.Series;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.buddycloud.mediaserver.business.jdbc.ConnectionPool;
 import com.buddycloud.mediaserver.commons.AuthBean;
 import com.buddycloud.mediaserver.commons.Constants;
 import com.buddycloud.mediaserver.commons.MediaServerConfiguration;
+import com.buddycloud.mediaserver.commons.SessionTokens;
+import com.buddycloud.mediaserver.commons.exception.BulkheadFullException;
+import com.buddycloud.mediaserver.commons.exception.CircuitOpenException;
+import com.buddycloud.mediaserver.commons.exception.MetadataPendingException;
 import com.buddycloud.mediaserver.commons.exception.MissingAuthenticationException;
 import com.buddycloud.mediaserver.commons.exception.UserNotAllowedException;
+import com.buddycloud.mediaserver.commons.json.ISO8601DateTypeAdapter;
 import com.buddycloud.mediaserver.xmpp.AuthVerifier;
 import com.buddycloud.mediaserver.xmpp.XMPPToolBox;
 
@@ -58,6 +67,21 @@ public abstract class MediaServerResource extends ServerResource {
 	protected static final String CORS_MAX_AGE = "Access-Control-Max-Age";
 	protected static final String CORS_METHODS_HEADER = "Access-Control-Allow-Methods";
 	protected static final String REQUEST_METHOD_HEADER = "Access-Control-Request-Method";
+	protected static final String CORS_EXPOSE_HEADER = "Access-Control-Expose-Headers";
+
+	// Paging headers
+	protected static final String NEXT_CURSOR_HEADER = "X-Next-Cursor";
+	protected static final String SYNC_TOKEN_HEADER = "X-Sync-Token";
+
+	// Session tokens
+	protected static final String SESSION_TOKEN_HEADER = "X-Session-Token";
+	protected static final String SESSION_COOKIE = "bc_session";
+
+	// how long clients are asked to wait when the database is saturated
+	protected static final long METADATA_RETRY_AFTER = 1000;
+
+	// how long clients are asked to wait when preview rendering is saturated
+	protected static final long BUSY_RETRY_AFTER = 5000;
 	
 	// Server name
 	protected static final String SERVER_NAME = "buddycloud media server";
@@ -96,27 +120,27 @@ public abstract class MediaServerResource extends ServerResource {
 	}
 
 	protected void addCORSHeaders(Request request) {
-		String origin = null;
-		
-		if (request != null) {
-			Series<Header> messageHeaders = getMessageHeaders(request);
-			Header originHeader = messageHeaders.getFirst(ORIGIN_HEADER);
-			
-			// work around for lower case origin headers
-			if (originHeader == null) {
-				messageHeaders.getFirst(ORIGIN_HEADER.toLowerCase());
-			}
-			
-			origin = originHeader != null ? originHeader.getValue() : null;
-		}
+		String origin = request != null ? getOrigin(request) : null;
 		
 		getMessageHeaders(getResponse()).add(CORS_ALLOW_HEADER, "Authorization, " +
-				"Content-Type, X-Requested-With, XMLHttpRequest-specific");
+				"Content-Type, X-Requested-With, XMLHttpRequest-specific, " + SESSION_TOKEN_HEADER);
 		getMessageHeaders(getResponse()).add(CORS_ORIGIN_HEADER, (origin == null ? "*" : origin));
 		getMessageHeaders(getResponse()).add(CORS_METHODS_HEADER, "GET, POST, PUT, DELETE");
-		getMessageHeaders(getResponse()).add(CORS_CREDENTIALS_HEADER, "true");
+
+		// with sessions, credentials would include the session cookie
+		SessionTokens sessions = SessionTokens.getInstance();
+		if (!sessions.isEnabled() || sessions.isCookieAllowed(origin)) {
+			getMessageHeaders(getResponse()).add(CORS_CREDENTIALS_HEADER, "true");
+		}
 		getMessageHeaders(getResponse()).add(CORS_MAX_AGE, "86400" /*one day*/);
 	}
+
+	/**
+	 * @return the Origin header of the request, whatever its case, or null.
+	 */
+	protected String getOrigin(Request request) {
+		return getMessageHeaders(request).getFirstValue(ORIGIN_HEADER, true);
+	}
 	
 	protected Representation authenticationResponse() {
 		List<ChallengeRequest> challengeRequests = new ArrayList<ChallengeRequest>();
@@ -132,11 +156,55 @@ public abstract class MediaServerResource extends ServerResource {
 		return response.getEntity();
 	}
 
+	/**
+	 * Sets the status of a request that failed on the metadata database: 503
+	 * if no database connection got free in time, or the media it needs is still
+	 * being stored, so clients back off, 500 otherwise.
+	 */
+	protected void setMetadataErrorStatus(Throwable t) {
+		if (ConnectionPool.isExhausted(t) || t instanceof MetadataPendingException) {
+			setStatus(Status.SERVER_ERROR_SERVICE_UNAVAILABLE);
+			getResponse().setRetryAfter(new Date(System.currentTimeMillis() + METADATA_RETRY_AFTER));
+		} else {
+			setStatus(Status.SERVER_ERROR_INTERNAL);
+		}
+	}
+
+	/**
+	 * Answers an upload whose metadata is still being stored: 202, pointing at
+	 * where the media will be found once it is.
+	 */
+	protected Representation uploadPending(String entityId, String mediaId) {
+		setStatus(Status.SUCCESS_ACCEPTED);
+		getResponse().setLocationRef(getBaseURL(getRequest()) + "/" + entityId + "/" + mediaId);
+		return new StringRepresentation("Media is being stored.", MediaType.APPLICATION_JSON);
+	}
+
     protected Representation invalidQuery() {
         return new StringRepresentation("Invalid query value!", MediaType.APPLICATION_JSON);
     }
 	
 	protected Representation unexpectedError(Throwable t) {
+		if (ConnectionPool.isExhausted(t) || t instanceof MetadataPendingException) {
+			setMetadataErrorStatus(t);
+			return new EmptyRepresentation();
+		}
+
+		if (t instanceof BulkheadFullException) {
+			LOGGER.warn(t.getMessage());
+			setStatus(Status.SERVER_ERROR_SERVICE_UNAVAILABLE);
+			getResponse().setRetryAfter(new Date(System.currentTimeMillis() + BUSY_RETRY_AFTER));
+			return new EmptyRepresentation();
+		}
+
+		if (t instanceof CircuitOpenException) {
+			LOGGER.debug(t.getMessage());
+			setStatus(Status.SERVER_ERROR_SERVICE_UNAVAILABLE);
+			getResponse().setRetryAfter(new Date(System.currentTimeMillis()
+					+ ((CircuitOpenException) t).getRetryAfter()));
+			return new EmptyRepresentation();
+		}
+
 		LOGGER.error("Unexpected error: " + t.getLocalizedMessage(), t);
 
 		setStatus(Status.SERVER_ERROR_INTERNAL);
@@ -157,8 +225,31 @@ public abstract class MediaServerResource extends ServerResource {
         return authBean;
     }
 
+    /**
+     * The URL clients reach this server at, taken from the configured endpoint when there is one.
+     */
+    protected String getBaseURL(Request request) {
+        String endpointProp = MediaServerConfiguration.getInstance().getConfiguration().getProperty(
+                MediaServerConfiguration.HTTP_ENDPOINT);
+        if (endpointProp != null) {
+            return endpointProp;
+        }
+
+        String rootURL = request.getRootRef().toString();
+        return rootURL.endsWith("/") ? rootURL.substring(0, rootURL.length() - 1) : rootURL;
+    }
+
     protected String getUsedJID(Request request, boolean authenticate) throws UserNotAllowedException, MissingAuthenticationException {
         AuthBean authBean = buildAuthBean(request);
+
+        SessionTokens sessions = SessionTokens.getInstance();
+        if (authenticate && sessions.isEnabled() && isSafeMethod(request)) {
+            String sessionJID = sessions.verify(getSessionToken(request));
+            if (sessionJID != null && (authBean == null || sessionJID.equals(authBean.getUserJID()))) {
+                return sessionJID;
+            }
+        }
+
         if (authBean == null) {
             throw new MissingAuthenticationException();
         }
@@ -178,11 +269,55 @@ public abstract class MediaServerResource extends ServerResource {
             if (!authClient.verifyRequest(userJID, authBean.getTransactionID(), resourceURL)) {
                 throw new UserNotAllowedException(userJID);
             }
+
+            if (sessions.isEnabled()) {
+                setSessionToken(sessions.issue(userJID), sessions.getLifetime());
+            }
         }
 
         return userJID;
     }
 
+    /**
+     * Sessions only stand in for confirmations on reads, as browsers send
+     * cookies along with cross-site requests too.
+     */
+    private boolean isSafeMethod(Request request) {
+        return Method.GET.equals(request.getMethod()) || Method.HEAD.equals(request.getMethod());
+    }
+
+    /**
+     * @return the session token of the X-Session-Token header, or else of
+     * the session cookie if the request comes from an origin allowed to use it.
+     */
+    protected String getSessionToken(Request request) {
+        String token = getMessageHeaders(request).getFirstValue(SESSION_TOKEN_HEADER, true);
+        if (token == null && SessionTokens.getInstance().isCookieAllowed(getOrigin(request))) {
+            token = request.getCookies().getFirstValue(SESSION_COOKIE);
+        }
+
+        return token;
+    }
+
+    /**
+     * Hands the client a session token, or clears it if {@code token} is null.
+     * @param lifetime how long the token is valid, in milliseconds.
+     */
+    protected void setSessionToken(String token, long lifetime) {
+        CookieSetting cookie = new CookieSetting(SESSION_COOKIE, token != null ? token : "");
+        cookie.setPath("/");
+        cookie.setMaxAge(token != null ? (int) (lifetime / 1000) : 0);
+        cookie.setAccessRestricted(true);
+        cookie.setSecure(Boolean.valueOf(MediaServerConfiguration.getInstance().getConfiguration()
+                .getProperty(MediaServerConfiguration.HTTPS_ENABLED)));
+        getResponse().getCookieSettings().add(cookie);
+
+        if (token != null) {
+            getMessageHeaders(getResponse()).add(SESSION_TOKEN_HEADER, token);
+            getMessageHeaders(getResponse()).add(CORS_EXPOSE_HEADER, SESSION_TOKEN_HEADER);
+        }
+    }
+
     protected Integer getIntegerQueryValue(String query) {
         Integer result = null;
         String queryValue = getQueryValue(query);
@@ -195,4 +330,13 @@ public abstract class MediaServerResource extends ServerResource {
 
         return result;
     }
+
+    /**
+     * @return the query value parsed as an ISO-8601 UTC timestamp, or null
+     * if it is missing or invalid.
+     */
+    protected Date getDateQueryValue(String query) {
+        String queryValue = getQueryValue(query);
+        return queryValue != null ? ISO8601DateTypeAdapter.parse(queryValue) : null;
+    }
 }
@@ -0,0 +1,51 @@
+/*
+ * Copyright 2012 buddycloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.buddycloud.mediaserver.web;
+
+import org.restlet.Request;
+import org.restlet.data.Status;
+import org.restlet.representation.EmptyRepresentation;
+import org.restlet.representation.Representation;
+import org.restlet.resource.Delete;
+
+import com.buddycloud.mediaserver.commons.SessionTokens;
+
+/**
+ * Resource that represents /session endpoint, the session tokens issued to
+ * a user once XMPP confirmed one of their requests.
+ */
+public class SessionResource extends MediaServerResource {
+
+	/**
+	 * Ends the caller's session (DELETE /session): every token issued to
+	 * the session's user so far is revoked, and the cookie cleared.
+	 */
+	@Delete
+	public Representation deleteSession() {
+		setServerHeader();
+		Request request = getRequest();
+
+		SessionTokens sessions = SessionTokens.getInstance();
+		String userJID = sessions.verify(getSessionToken(request));
+		if (userJID != null) {
+			sessions.revoke(userJID);
+		}
+
+		setSessionToken(null, 0);
+		setStatus(Status.SUCCESS_NO_CONTENT);
+		return new EmptyRepresentation();
+	}
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2012 buddycloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.buddycloud.mediaserver.web;
+
+import com.buddycloud.mediaserver.business.dao.DAOFactory;
+import com.buddycloud.mediaserver.business.dao.MediaDAO;
+import com.buddycloud.mediaserver.commons.Constants;
+import com.buddycloud.mediaserver.commons.SignedURLs;
+import com.buddycloud.mediaserver.commons.exception.*;
+import com.buddycloud.mediaserver.xmpp.XMPPToolBox;
+import org.restlet.Request;
+import org.restlet.data.MediaType;
+import org.restlet.data.Status;
+import org.restlet.representation.EmptyRepresentation;
+import org.restlet.representation.Representation;
+import org.restlet.representation.StringRepresentation;
+import org.restlet.resource.Post;
+
+/**
+ * Resource that represents /<channel>/<mediaId>/url endpoint.
+ */
+public class SignedURLResource extends MediaServerResource {
+
+    /**
+     * Mints a signed URL of a media (POST /<channel>/<mediaId>/url), valid for
+     * ?lifetime=<seconds>, and limited to a preview with ?maxheight= and ?maxwidth=.
+     */
+    @Post
+    public Representation postSignedURL() {
+        setServerHeader();
+        Request request = getRequest();
+
+        SignedURLs signedURLs = SignedURLs.getInstance();
+        Integer lifetime = getIntegerQueryValue(Constants.LIFETIME_QUERY);
+        Integer maxHeight = getIntegerQueryValue(Constants.MAX_HEIGHT_QUERY);
+        Integer maxWidth = getIntegerQueryValue(Constants.MAX_WIDTH_QUERY);
+
+        if ((getQueryValue(Constants.LIFETIME_QUERY) != null
+                && (lifetime == null || lifetime <= 0 || lifetime > signedURLs.getMaxLifetime()))
+                || (getQueryValue(Constants.MAX_HEIGHT_QUERY) != null && (maxHeight == null || maxHeight <= 0))
+                || (getQueryValue(Constants.MAX_WIDTH_QUERY) != null && (maxWidth == null || maxWidth <= 0))) {
+            setStatus(Status.CLIENT_ERROR_BAD_REQUEST);
+            return invalidQuery();
+        }
+
+        try {
+            String userJID = getUsedJID(request, true);
+            String entityId = (String) request.getAttributes().get(Constants.ENTITY_ARG);
+            String mediaId = (String) request.getAttributes().get(Constants.MEDIA_ARG);
+
+            // as when getting the media, only private channels check the user's affiliation
+            if (XMPPToolBox.getInstance().getPubSubClient().isChannelPublic(entityId)) {
+                userJID = null;
+            }
+
+            MediaDAO mediaDAO = DAOFactory.getInstance().getDAO();
+            String result = mediaDAO.getSignedMediaURL(userJID, entityId, mediaId, maxHeight, maxWidth,
+                    lifetime != null ? lifetime : signedURLs.getDefaultLifetime(), getBaseURL(request));
+
+            setStatus(Status.SUCCESS_CREATED);
+            return new StringRepresentation(result, MediaType.APPLICATION_JSON);
+        } catch (MetadataSourceException e) {
+            setMetadataErrorStatus(e);
+        } catch (MediaNotFoundException e) {
+            setStatus(Status.CLIENT_ERROR_NOT_FOUND);
+        } catch (UserNotAllowedException e) {
+            setStatus(Status.CLIENT_ERROR_FORBIDDEN);
+        } catch (MissingAuthenticationException e) {
+            setStatus(Status.CLIENT_ERROR_UNAUTHORIZED);
+            return authenticationResponse();
+        } catch (XMPPException e) {
+            setStatus(Status.SERVER_ERROR_SERVICE_UNAVAILABLE);
+        } catch (Throwable t) {
+            return unexpectedError(t);
+        }
+
+        return new EmptyRepresentation();
+    }
+}
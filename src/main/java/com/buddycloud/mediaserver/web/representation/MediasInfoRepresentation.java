@@ -0,0 +1,45 @@
+/*
+ * Copyright 2012 buddycloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.buddycloud.mediaserver.web.representation;
+
+import java.io.IOException;
+import java.io.Writer;
+
+import org.restlet.data.CharacterSet;
+import org.restlet.data.MediaType;
+import org.restlet.representation.WriterRepresentation;
+
+import com.buddycloud.mediaserver.commons.MediasInfo;
+
+/**
+ * A channel's media listing, written to the response as it is read
+ * instead of being built up as a string first.
+ */
+public class MediasInfoRepresentation extends WriterRepresentation {
+
+	private MediasInfo mediasInfo;
+
+	public MediasInfoRepresentation(MediasInfo mediasInfo) {
+		super(MediaType.APPLICATION_JSON);
+		setCharacterSet(CharacterSet.UTF_8);
+		this.mediasInfo = mediasInfo;
+	}
+
+	@Override
+	public void write(Writer writer) throws IOException {
+		mediasInfo.write(writer);
+	}
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2012 buddycloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.buddycloud.mediaserver.web.representation;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang.RandomStringUtils;
+import org.restlet.data.MediaType;
+import org.restlet.representation.OutputRepresentation;
+
+/**
+ * A multipart/mixed body made of in-memory parts, or of files streamed as it is written.
+ */
+public class MultipartRepresentation extends OutputRepresentation {
+
+	private static final String CRLF = "\r\n";
+	private static final String CHARSET = "ISO-8859-1";
+
+	private String boundary;
+	private List<Part> parts = new ArrayList<Part>();
+
+
+	public MultipartRepresentation() {
+		this(RandomStringUtils.randomAlphanumeric(32));
+	}
+
+	private MultipartRepresentation(String boundary) {
+		super(MediaType.valueOf("multipart/mixed; boundary=" + boundary));
+		this.boundary = boundary;
+	}
+
+	/**
+	 * Adds a part to the body.
+	 * @param mimeType the part content type.
+	 * @param data the part content.
+	 * @param headers additional part headers, may be null.
+	 */
+	public void addPart(String mimeType, byte[] data, Map<String, String> headers) {
+		Map<String, String> partHeaders = new LinkedHashMap<String, String>();
+		partHeaders.put("Content-Type", mimeType);
+		if (headers != null) {
+			partHeaders.putAll(headers);
+		}
+		partHeaders.put("Content-Length", String.valueOf(data.length));
+
+		parts.add(new Part(partHeaders, data, null));
+	}
+
+	/**
+	 * Adds a part read from a file when the body is written.
+	 * @param mimeType the part content type.
+	 * @param file the part content.
+	 * @param headers additional part headers, may be null.
+	 */
+	public void addPart(String mimeType, File file, Map<String, String> headers) {
+		Map<String, String> partHeaders = new LinkedHashMap<String, String>();
+		partHeaders.put("Content-Type", mimeType);
+		if (headers != null) {
+			partHeaders.putAll(headers);
+		}
+		partHeaders.put("Content-Length", String.valueOf(file.length()));
+
+		parts.add(new Part(partHeaders, null, file));
+	}
+
+	@Override
+	public void write(OutputStream outputStream) throws IOException {
+		for (Part part : parts) {
+			StringBuilder head = new StringBuilder();
+			head.append("--").append(boundary).append(CRLF);
+			for (Map.Entry<String, String> header : part.headers.entrySet()) {
+				head.append(header.getKey()).append(": ").append(header.getValue()).append(CRLF);
+			}
+			head.append(CRLF);
+
+			outputStream.write(head.toString().getBytes(CHARSET));
+			if (part.file != null) {
+				FileUtils.copyFile(part.file, outputStream);
+			} else {
+				outputStream.write(part.data);
+			}
+			outputStream.write(CRLF.getBytes(CHARSET));
+		}
+
+		outputStream.write(("--" + boundary + "--" + CRLF).getBytes(CHARSET));
+	}
+
+	private static class Part {
+		private Map<String, String> headers;
+		private byte[] data;
+		private File file;
+
+		Part(Map<String, String> headers, byte[] data, File file) {
+			this.headers = headers;
+			this.data = data;
+			this.file = file;
+		}
+	}
+}
@@ -15,13 +15,20 @@
  */
 package com.buddycloud.mediaserver.xmpp;
 
+import com.buddycloud.mediaserver.commons.concurrent.CircuitBreaker;
+import com.buddycloud.mediaserver.commons.concurrent.CircuitBreakers;
+import com.buddycloud.mediaserver.commons.concurrent.SettableFuture;
+import com.buddycloud.mediaserver.commons.exception.CircuitOpenException;
 import com.buddycloud.mediaserver.xmpp.util.HTTPAuthMessageBuilder;
-import com.buddycloud.mediaserver.xmpp.util.SyncPacketSendUtil;
+import org.jivesoftware.smack.SmackConfiguration;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.xmpp.packet.JID;
 import org.xmpp.packet.Message;
 import org.xmpp.packet.Packet;
 
+import java.util.concurrent.ExecutionException;
+
 /**
  * Authentication class that uses an XMPP component to 
  * handle the XEP-0070 implementation.
@@ -32,6 +39,8 @@ import org.xmpp.packet.Packet;
 public class AuthVerifier {
 
 	private static Logger LOGGER = LoggerFactory.getLogger(AuthVerifier.class);
+	private static final String BREAKER_NAME = "xmpp-auth";
+
 	private MediaServerComponent component;
 
 
@@ -45,19 +54,75 @@ public class AuthVerifier {
 	 * @param tid transaction id provided by the client.
 	 * @param url URL that the client is trying to access.
 	 * @return if the client has really sent the request.
+	 * @throws CircuitOpenException if confirmations are not being asked for
+	 * right now, because too many recent ones could not be sent or got no
+	 * answer.
 	 */
 	public boolean verifyRequest(String userJID, String tid, String url) {
 		try {
-			Packet reply = SyncPacketSendUtil.getReply(component,
-					createVerifyMessage(userJID, tid, url));
+			return verifyRequestAsync(userJID, tid, url).get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			// already logged
+		}
+
+		return false;
+	}
+
+	/**
+	 * Same as {@link #verifyRequest(String, String, String)}, without
+	 * waiting for the client's confirmation.
+	 * @return whether the client has really sent the request, once it has
+	 * answered or the reply timeout has elapsed.
+	 * @throws CircuitOpenException as {@link #verifyRequest(String, String, String)}.
+	 */
+	public SettableFuture<Boolean> verifyRequestAsync(final String userJID, String tid, String url) {
+		final SettableFuture<Boolean> verified = new SettableFuture<Boolean>();
+
+		JID from;
+		try {
+			from = new JID(userJID);
+		} catch (IllegalArgumentException e) {
+			LOGGER.warn("Error while verifying user '" + userJID + "' request", e);
+			verified.set(false);
+			return verified;
+		}
 
-            String typeAttr = reply.getElement().attributeValue("type");
-			return typeAttr == null || !typeAttr.equals("error");
+		// a user that never confirms is no sign of the component's stream
+		// failing, but most confirmations going unanswered is: the breaker
+		// judges unanswered confirmations over its window of recent ones
+		CircuitBreaker breaker = CircuitBreakers.getInstance().get(BREAKER_NAME);
+		CircuitBreaker.Permit permit = breaker.tryAcquire();
+		if (permit == null) {
+			throw new CircuitOpenException("Circuit breaker " + BREAKER_NAME + " is open",
+					breaker.getRetryAfter());
+		}
+
+		final SettableFuture<Packet> reply = component.getReplies().expect(from, tid,
+				SmackConfiguration.getPacketReplyTimeout(), permit);
+		try {
+			component.sendPacket(createVerifyMessage(userJID, tid, url));
 		} catch (Exception e) {
 			LOGGER.warn("Error while verifying user '" + userJID + "' request", e);
+			component.getReplies().abandon(from, tid, e);
+			verified.set(false);
+			return verified;
 		}
 
-		return false;
+		reply.addListener(new Runnable() {
+			public void run() {
+				try {
+					String typeAttr = reply.get().getElement().attributeValue("type");
+					verified.set(typeAttr == null || !typeAttr.equals("error"));
+				} catch (Exception e) {
+					LOGGER.warn("Error while verifying user '" + userJID + "' request", e);
+					verified.set(false);
+				}
+			}
+		});
+
+		return verified;
 	}
 
 	private Packet createVerifyMessage(String userJID, String tid, String url) {
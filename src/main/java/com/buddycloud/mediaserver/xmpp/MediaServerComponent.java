@@ -15,9 +15,7 @@
  */
 package com.buddycloud.mediaserver.xmpp;
 
-import java.util.Collection;
 import java.util.Properties;
-import java.util.concurrent.ConcurrentLinkedQueue;
 
 import org.dom4j.Element;
 import org.slf4j.Logger;
@@ -28,8 +26,8 @@ import org.xmpp.packet.Message;
 import org.xmpp.packet.Packet;
 
 import com.buddycloud.mediaserver.commons.MediaServerConfiguration;
-import com.buddycloud.mediaserver.xmpp.util.MediaServerPacketCollector;
-import com.buddycloud.mediaserver.xmpp.util.MediaServerPacketFilter;
+import com.buddycloud.mediaserver.xmpp.util.HTTPAuthMessageBuilder;
+import com.buddycloud.mediaserver.xmpp.util.ReplyRegistry;
 
 /**
  * Media Server XMPP Component Follows the XEP-0114
@@ -43,7 +41,7 @@ public class MediaServerComponent extends AbstractComponent {
 	private static final String NAME = "Media Server";
 	private static final Logger LOGGER = LoggerFactory.getLogger(MediaServerComponent.class);
 
-	protected final Collection<MediaServerPacketCollector> collectors = new ConcurrentLinkedQueue<MediaServerPacketCollector>();
+	protected final ReplyRegistry replies = new ReplyRegistry();
 	private Properties configuration;
 
 	public MediaServerComponent(Properties configuration) {
@@ -78,8 +76,13 @@ public class MediaServerComponent extends AbstractComponent {
 
 	private void collectPacket(Packet packet) {
 		LOGGER.debug("R: " + packet.toXML());
-		for (MediaServerPacketCollector packetCollector : collectors) {
-			packetCollector.processPacket(packet);
+
+		// only XEP-0070 confirmations are awaited, by transaction id
+		Element confirmEl = packet.getElement().element(HTTPAuthMessageBuilder.ELEMENT_NAME);
+		String transactionId = confirmEl != null ? confirmEl.attributeValue("id") : null;
+
+		if (!replies.complete(packet.getFrom(), transactionId, packet)) {
+			LOGGER.debug("Discarding unexpected packet: " + packet.getID());
 		}
 	}
 	
@@ -88,17 +91,11 @@ public class MediaServerComponent extends AbstractComponent {
 		collectPacket(message);
 	}
 
-	public void removePacketCollector(MediaServerPacketCollector packetCollector) {
-		collectors.remove(packetCollector);
-	}
-
-	public MediaServerPacketCollector createPacketCollector(
-			MediaServerPacketFilter filter) {
-		MediaServerPacketCollector collector = new MediaServerPacketCollector(
-				this, filter);
-		// Add the collector to the list of active collectors.
-		collectors.add(collector);
-		return collector;
+	/**
+	 * @return the replies this component waits for.
+	 */
+	public ReplyRegistry getReplies() {
+		return replies;
 	}
 
     protected IQ handleDiscoInfo(IQ iq) {
@@ -0,0 +1,335 @@
+/*
+ * Copyright 2012 buddycloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.buddycloud.mediaserver.xmpp;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jivesoftware.smack.Connection;
+import org.jivesoftware.smack.ConnectionListener;
+import org.jivesoftware.smack.PacketListener;
+import org.jivesoftware.smack.XMPPException;
+import org.jivesoftware.smack.filter.PacketFilter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Pool of XMPP client connections, so that pubsub queries don't all queue
+ * up on a single stream. Each connection carries at most a given number of
+ * requests at a time, and calls are spread among connections either to the
+ * least loaded one, or by a hash of the domain they are about.
+ * <p>
+ * Connections closed on error are replaced with new ones from the
+ * {@link ConnectionFactory}, and left out until then.
+ */
+public class XMPPConnectionPool {
+
+	private static Logger LOGGER = LoggerFactory.getLogger(XMPPConnectionPool.class);
+
+	private static final long REPLACE_RETRY_DELAY = 30000;
+
+	public enum Strategy {
+		LEAST_LOADED, DOMAIN_HASH;
+
+		/**
+		 * @param strategy least-loaded or domain-hash.
+		 */
+		public static Strategy fromString(String strategy) {
+			return valueOf(strategy.trim().toUpperCase().replace('-', '_'));
+		}
+	}
+
+	/**
+	 * Opens the connections of the pool.
+	 */
+	public interface ConnectionFactory {
+		/**
+		 * @param index position of the connection in the pool, e.g. to
+		 * tell apart the resources of the connections.
+		 * @return a connected and logged in connection.
+		 */
+		Connection create(int index) throws Exception;
+	}
+
+	/**
+	 * A call made on a connection of the pool.
+	 */
+	public interface Call<T> {
+		T call(Connection connection) throws XMPPException;
+	}
+
+	private final Slot[] slots;
+	private final ConnectionFactory factory;
+	private final int maxInFlight;
+	private final Strategy strategy;
+	private final long acquireTimeout;
+	private final AtomicInteger next = new AtomicInteger();
+	private final List<Registration> listeners = new CopyOnWriteArrayList<Registration>();
+	private ScheduledExecutorService replacer;
+
+	/**
+	 * @param factory opens the connections.
+	 * @param size number of connections.
+	 * @param maxInFlight maximum number of calls a connection carries at a time.
+	 * @param strategy how calls are spread among connections.
+	 * @param acquireTimeout how long a call waits for a connection, in milliseconds.
+	 */
+	public XMPPConnectionPool(ConnectionFactory factory, int size, int maxInFlight,
+			Strategy strategy, long acquireTimeout) {
+		this.factory = factory;
+		this.slots = new Slot[size];
+		this.maxInFlight = maxInFlight;
+		this.strategy = strategy;
+		this.acquireTimeout = acquireTimeout;
+
+		for (int i = 0; i < size; i++) {
+			slots[i] = new Slot(i, maxInFlight);
+		}
+	}
+
+	/**
+	 * Pool of a single connection, which is neither limited nor replaced.
+	 */
+	public XMPPConnectionPool(Connection connection) {
+		this(null, 1, Integer.MAX_VALUE, Strategy.LEAST_LOADED, 0);
+		attach(slots[0], connection);
+	}
+
+	/**
+	 * Opens every connection of the pool.
+	 * @throws Exception if any can't be opened, in which case those already
+	 * opened are closed.
+	 */
+	public void start() throws Exception {
+		final AtomicInteger count = new AtomicInteger();
+		replacer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "xmpp-pool-" + count.incrementAndGet());
+				thread.setDaemon(true);
+
+				return thread;
+			}
+		});
+
+		try {
+			for (Slot slot : slots) {
+				attach(slot, factory.create(slot.index));
+			}
+		} catch (Exception e) {
+			shutdown();
+			throw e;
+		}
+
+		LOGGER.info("XMPP connection pool started with " + slots.length + " connections");
+	}
+
+	public void shutdown() {
+		if (replacer != null) {
+			replacer.shutdownNow();
+		}
+
+		for (Slot slot : slots) {
+			Connection connection = slot.connection;
+			slot.connection = null;
+			if (connection != null) {
+				disconnect(connection);
+			}
+		}
+	}
+
+	/**
+	 * Makes a call on a connection of the pool.
+	 * @param domain the domain the call is about, used to pick the connection.
+	 * @throws XMPPException if the call fails, or no connection could be
+	 * acquired in time.
+	 */
+	public <T> T execute(String domain, Call<T> call) throws XMPPException {
+		Slot slot = select(domain);
+
+		try {
+			if (!slot.permits.tryAcquire(acquireTimeout, TimeUnit.MILLISECONDS)) {
+				throw new XMPPException("All XMPP connections are busy");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new XMPPException("Interrupted while waiting for an XMPP connection");
+		}
+
+		try {
+			Connection connection = slot.connection;
+			if (connection == null) {
+				throw new XMPPException("XMPP connection closed");
+			}
+			return call.call(connection);
+		} finally {
+			slot.permits.release();
+		}
+	}
+
+	/**
+	 * Registers a listener on every connection of the pool, current and future.
+	 */
+	public void addPacketListener(PacketListener listener, PacketFilter filter) {
+		listeners.add(new Registration(listener, filter));
+
+		for (Slot slot : slots) {
+			Connection connection = slot.connection;
+			if (connection != null) {
+				connection.addPacketListener(listener, filter);
+			}
+		}
+	}
+
+	/**
+	 * @return the number of calls running on each connection.
+	 */
+	public int[] getInFlight() {
+		int[] inFlight = new int[slots.length];
+		for (int i = 0; i < slots.length; i++) {
+			inFlight[i] = slots[i].getInFlight();
+		}
+
+		return inFlight;
+	}
+
+	private Slot select(String domain) throws XMPPException {
+		if (strategy == Strategy.DOMAIN_HASH && domain != null) {
+			Slot slot = slots[(domain.hashCode() & Integer.MAX_VALUE) % slots.length];
+			if (slot.isHealthy()) {
+				return slot;
+			}
+		}
+
+		// starts from a different connection each time, so ties are spread
+		int start = (next.getAndIncrement() & Integer.MAX_VALUE) % slots.length;
+		Slot leastLoaded = null;
+		for (int i = 0; i < slots.length; i++) {
+			Slot slot = slots[(start + i) % slots.length];
+			if (slot.isHealthy()
+					&& (leastLoaded == null || slot.getInFlight() < leastLoaded.getInFlight())) {
+				leastLoaded = slot;
+			}
+		}
+
+		if (leastLoaded == null) {
+			throw new XMPPException("No XMPP connection available");
+		}
+
+		return leastLoaded;
+	}
+
+	private void attach(final Slot slot, Connection connection) {
+		connection.addConnectionListener(new ConnectionListener() {
+			public void connectionClosedOnError(Exception e) {
+				LOGGER.warn("XMPP connection " + slot.index + " closed on error", e);
+				replace(slot, 0);
+			}
+
+			public void connectionClosed() {
+			}
+
+			public void reconnectingIn(int seconds) {
+			}
+
+			public void reconnectionSuccessful() {
+			}
+
+			public void reconnectionFailed(Exception e) {
+			}
+		});
+
+		for (Registration registration : listeners) {
+			connection.addPacketListener(registration.listener, registration.filter);
+		}
+
+		slot.connection = connection;
+		slot.healthy = true;
+	}
+
+	private void replace(final Slot slot, long delay) {
+		slot.healthy = false;
+		if (factory == null || replacer == null || !slot.replacing.compareAndSet(false, true)) {
+			return;
+		}
+
+		replacer.schedule(new Runnable() {
+			public void run() {
+				Connection previous = slot.connection;
+				try {
+					Connection connection = factory.create(slot.index);
+					slot.replacing.set(false);
+					attach(slot, connection);
+					LOGGER.info("XMPP connection " + slot.index + " replaced");
+				} catch (Exception e) {
+					LOGGER.error("Error while replacing XMPP connection " + slot.index, e);
+					slot.replacing.set(false);
+					replace(slot, REPLACE_RETRY_DELAY);
+					return;
+				}
+
+				if (previous != null) {
+					disconnect(previous);
+				}
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+	}
+
+	private void disconnect(Connection connection) {
+		try {
+			connection.disconnect();
+		} catch (Exception e) {
+			// Do nothing, best effort
+		}
+	}
+
+	private class Slot {
+		private final int index;
+		private final Semaphore permits;
+		private final AtomicBoolean replacing = new AtomicBoolean();
+		private volatile Connection connection;
+		private volatile boolean healthy;
+
+		private Slot(int index, int maxInFlight) {
+			this.index = index;
+			this.permits = new Semaphore(maxInFlight);
+		}
+
+		private boolean isHealthy() {
+			return healthy && connection != null;
+		}
+
+		private int getInFlight() {
+			return maxInFlight - permits.availablePermits();
+		}
+	}
+
+	private static class Registration {
+		private final PacketListener listener;
+		private final PacketFilter filter;
+
+		private Registration(PacketListener listener, PacketFilter filter) {
+			this.listener = listener;
+			this.filter = filter;
+		}
+	}
+}
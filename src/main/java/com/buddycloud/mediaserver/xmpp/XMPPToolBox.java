@@ -20,8 +20,6 @@ import java.util.Properties;
 import com.buddycloud.mediaserver.commons.exception.XMPPException;
 import com.buddycloud.mediaserver.xmpp.pubsub.PubSubClient;
 
-import org.jivesoftware.smack.XMPPConnection;
-
 public class XMPPToolBox {
 
 	private AuthVerifier authClient;
@@ -39,10 +37,10 @@ public class XMPPToolBox {
 	}
 
 	public void start(MediaServerComponent component,
-			XMPPConnection connection, Properties configuration) {
+			XMPPConnectionPool connectionPool, Properties configuration) {
 		if (!started) {
 			authClient = new AuthVerifier(component);
-			pubSubClient = new PubSubClient(connection, configuration);
+			pubSubClient = new PubSubClient(connectionPool, configuration);
 
 			started = true;
 		}
@@ -0,0 +1,214 @@
+/*
+ * Copyright 2012 buddycloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.buddycloud.mediaserver.xmpp.pubsub;
+
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import org.jivesoftware.smack.XMPPException;
+import org.jivesoftware.smackx.pubsub.Affiliation;
+
+import com.buddycloud.mediaserver.commons.cache.InvalidationStamps;
+import com.buddycloud.mediaserver.commons.cache.LRUCache;
+
+/**
+ * In-memory affiliations of channel nodes, keyed by node id and then by bare JID.
+ * A node's affiliations are fetched at once the first time they are needed,
+ * kept up to date with {@link #update(String, String, Affiliation.Type)} as
+ * affiliation change notifications come in, and fetched again once they
+ * expire, or when an unknown user asks for them and they were not fetched
+ * recently.
+ */
+public class AffiliationIndex {
+
+	/**
+	 * Fetches every affiliation of a node.
+	 */
+	public interface Loader {
+		Map<String, Affiliation.Type> load(String nodeId) throws XMPPException;
+	}
+
+	private final LRUCache<String, NodeAffiliations> nodes;
+	private final ConcurrentMap<String, FutureTask<NodeAffiliations>> loads =
+			new ConcurrentHashMap<String, FutureTask<NodeAffiliations>>();
+	private final long ttl;
+	private final long missRefresh;
+
+	// moved on every update of a node, so loads of it that started before are not kept
+	private final InvalidationStamps stamps = new InvalidationStamps();
+
+	/**
+	 * @param maxNodes maximum number of nodes kept.
+	 * @param ttl how long a node's affiliations are kept, in milliseconds. 0 means forever.
+	 * @param missRefresh how long after being fetched a node's affiliations are
+	 * fetched again when a user is not found in them, in milliseconds.
+	 */
+	public AffiliationIndex(int maxNodes, long ttl, long missRefresh) {
+		this.nodes = new LRUCache<String, NodeAffiliations>(maxNodes, Long.MAX_VALUE);
+		this.ttl = ttl;
+		this.missRefresh = missRefresh;
+	}
+
+	/**
+	 * @return the affiliation of {@code bareJID} to the node, or null if it
+	 * has none. Affiliations are fetched with {@code loader} if needed.
+	 */
+	public Affiliation.Type getAffiliation(String nodeId, String bareJID, Loader loader)
+			throws XMPPException {
+		NodeAffiliations affiliations = get(nodeId);
+		if (affiliations == null) {
+			affiliations = load(nodeId, null, loader);
+		}
+
+		Affiliation.Type type = affiliations.types.get(bareJID);
+		if (type == null && affiliations.age() >= missRefresh) {
+			// the user may have joined after they were fetched
+			type = load(nodeId, affiliations, loader).types.get(bareJID);
+		}
+
+		return type;
+	}
+
+	/**
+	 * @return whether the node's affiliations are kept, even if they expired.
+	 */
+	public boolean isIndexed(String nodeId) {
+		return nodes.get(nodeId) != null;
+	}
+
+	/**
+	 * @return the kept affiliation of {@code bareJID} to the node, however
+	 * old, or null if it has none or the node's affiliations are not kept.
+	 * Never fetches them.
+	 */
+	public Affiliation.Type getIndexedAffiliation(String nodeId, String bareJID) {
+		NodeAffiliations affiliations = nodes.get(nodeId);
+		return affiliations != null ? affiliations.types.get(bareJID) : null;
+	}
+
+	/**
+	 * Applies an affiliation change to a node whose affiliations are kept.
+	 * A {@link Affiliation.Type#none} affiliation removes the user.
+	 */
+	public synchronized void update(String nodeId, String bareJID, Affiliation.Type type) {
+		stamps.invalidate(nodeId);
+
+		NodeAffiliations affiliations = nodes.get(nodeId);
+		if (affiliations == null) {
+			return;
+		}
+
+		if (type == null || type == Affiliation.Type.none) {
+			affiliations.types.remove(bareJID);
+		} else {
+			affiliations.types.put(bareJID, type);
+		}
+	}
+
+	public synchronized void invalidate(String nodeId) {
+		stamps.invalidate(nodeId);
+		nodes.remove(nodeId);
+	}
+
+	private NodeAffiliations get(String nodeId) {
+		NodeAffiliations affiliations = nodes.get(nodeId);
+		if (affiliations != null && ttl > 0 && affiliations.age() > ttl) {
+			// kept until fetched again, for getIndexedAffiliation
+			return null;
+		}
+
+		return affiliations;
+	}
+
+	/**
+	 * Fetches a node's affiliations, unless they were fetched since
+	 * {@code stale} was read. Concurrent requests for the same node share a
+	 * single fetch, which is only forgotten once its result is kept.
+	 */
+	private NodeAffiliations load(final String nodeId, final NodeAffiliations stale,
+			final Loader loader) throws XMPPException {
+		FutureTask<NodeAffiliations> task = new FutureTask<NodeAffiliations>(
+				new Callable<NodeAffiliations>() {
+					public NodeAffiliations call() throws XMPPException {
+						// another request may have fetched them meanwhile
+						NodeAffiliations current = get(nodeId);
+						if (current != null && current != stale) {
+							return current;
+						}
+
+						InvalidationStamps.Stamp stamp = stamps.stamp();
+						NodeAffiliations affiliations = new NodeAffiliations(
+								new ConcurrentHashMap<String, Affiliation.Type>(loader.load(nodeId)));
+						put(nodeId, affiliations, stamp);
+
+						return affiliations;
+					}
+				});
+
+		FutureTask<NodeAffiliations> load = loads.putIfAbsent(nodeId, task);
+		if (load == null) {
+			load = task;
+			try {
+				task.run();
+			} finally {
+				loads.remove(nodeId, task);
+			}
+		}
+
+		try {
+			return load.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new XMPPException("Interrupted while fetching affiliations of " + nodeId);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof XMPPException) {
+				throw (XMPPException) cause;
+			}
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new XMPPException(cause);
+		}
+	}
+
+	private synchronized void put(String nodeId, NodeAffiliations affiliations,
+			InvalidationStamps.Stamp stamp) {
+		if (stamps.isCurrent(nodeId, stamp)) {
+			nodes.put(nodeId, affiliations);
+		}
+	}
+
+	private static class NodeAffiliations {
+		private final ConcurrentMap<String, Affiliation.Type> types;
+		private final long loadedAt = System.currentTimeMillis();
+
+		private NodeAffiliations(ConcurrentMap<String, Affiliation.Type> types) {
+			this.types = types;
+		}
+
+		private long age() {
+			return System.currentTimeMillis() - loadedAt;
+		}
+	}
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2012 buddycloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.buddycloud.mediaserver.xmpp.pubsub;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.jivesoftware.smack.packet.PacketExtension;
+import org.jivesoftware.smackx.pubsub.Affiliation;
+
+/**
+ * Affiliation change notification of a node:
+ * <pre>
+ * &lt;event xmlns='http://jabber.org/protocol/pubsub#event'&gt;
+ *   &lt;affiliations node='/user/juliet@capulet.lit/posts'&gt;
+ *     &lt;affiliation jid='romeo@montague.lit' affiliation='member'/&gt;
+ *   &lt;/affiliations&gt;
+ * &lt;/event&gt;
+ * </pre>
+ * Affiliations hold the affected JID as their node id, as in owner
+ * affiliation listings.
+ */
+public class AffiliationsEvent implements PacketExtension {
+	public static final String ELEMENT = "event";
+	public static final String NAMESPACE = "http://jabber.org/protocol/pubsub#event";
+	public static final String AFFILIATIONS_ELEMENT = "affiliations";
+
+	private final String node;
+	private final List<Affiliation> affiliations;
+
+	public AffiliationsEvent(String node, List<Affiliation> affiliations) {
+		this.node = node;
+		this.affiliations = affiliations;
+	}
+
+	public String getNode() {
+		return node;
+	}
+
+	public List<Affiliation> getAffiliations() {
+		return Collections.unmodifiableList(affiliations);
+	}
+
+	public String getElementName() {
+		return ELEMENT;
+	}
+
+	public String getNamespace() {
+		return NAMESPACE;
+	}
+
+	public String toXML() {
+		StringBuilder builder = new StringBuilder("<").append(ELEMENT)
+				.append(" xmlns='").append(NAMESPACE).append("'><")
+				.append(AFFILIATIONS_ELEMENT).append(" node='").append(node).append("'>");
+		for (Affiliation affiliation : affiliations) {
+			builder.append("<affiliation jid='").append(affiliation.getNodeId())
+					.append("' affiliation='").append(affiliation.getType()).append("'/>");
+		}
+
+		return builder.append("</").append(AFFILIATIONS_ELEMENT).append("></")
+				.append(ELEMENT).append(">").toString();
+	}
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2012 buddycloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.buddycloud.mediaserver.xmpp.pubsub;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jivesoftware.smack.packet.PacketExtension;
+import org.jivesoftware.smack.provider.PacketExtensionProvider;
+import org.jivesoftware.smack.util.PacketParserUtils;
+import org.jivesoftware.smackx.pubsub.Affiliation;
+import org.jivesoftware.smackx.pubsub.EventElement;
+import org.jivesoftware.smackx.pubsub.EventElementType;
+import org.jivesoftware.smackx.pubsub.NodeExtension;
+import org.xmlpull.v1.XmlPullParser;
+
+/**
+ * Parses pubsub event notifications. Affiliation changes are parsed into
+ * {@link AffiliationsEvent}s, which Smack's own event provider can't handle;
+ * the other events are parsed into {@link EventElement}s as Smack does.
+ * Since this provider replaces Smack's for every pubsub event, children it
+ * doesn't know are skipped rather than failing the whole stanza.
+ */
+public class AffiliationsEventProvider implements PacketExtensionProvider {
+
+	public PacketExtension parseExtension(XmlPullParser parser) throws Exception {
+		PacketExtension event = null;
+
+		while (true) {
+			int eventType = parser.next();
+			if (eventType == XmlPullParser.START_TAG && event == null) {
+				String name = parser.getName();
+				if (AffiliationsEvent.AFFILIATIONS_ELEMENT.equals(name)) {
+					event = parseAffiliations(parser);
+				} else {
+					event = parseEventElement(name, parser);
+				}
+			} else if (eventType == XmlPullParser.END_TAG
+					&& AffiliationsEvent.ELEMENT.equals(parser.getName())) {
+				break;
+			}
+		}
+
+		return event;
+	}
+
+	private EventElement parseEventElement(String name, XmlPullParser parser) throws Exception {
+		EventElementType type = getEventType(name);
+		if (type == null) {
+			skipElement(parser);
+			return null;
+		}
+
+		PacketExtension child = PacketParserUtils.parsePacketExtension(
+				name, parser.getNamespace(), parser);
+		if (!(child instanceof NodeExtension)) {
+			return null;
+		}
+		return new EventElement(type, (NodeExtension) child);
+	}
+
+	private EventElementType getEventType(String name) {
+		for (EventElementType type : EventElementType.values()) {
+			if (type.name().equals(name)) {
+				return type;
+			}
+		}
+		return null;
+	}
+
+	private void skipElement(XmlPullParser parser) throws Exception {
+		int depth = 1;
+		while (depth > 0) {
+			int eventType = parser.next();
+			if (eventType == XmlPullParser.START_TAG) {
+				depth++;
+			} else if (eventType == XmlPullParser.END_TAG) {
+				depth--;
+			}
+		}
+	}
+
+	private AffiliationsEvent parseAffiliations(XmlPullParser parser) throws Exception {
+		String node = parser.getAttributeValue("", "node");
+		List<Affiliation> affiliations = new ArrayList<Affiliation>();
+
+		while (true) {
+			int eventType = parser.next();
+			if (eventType == XmlPullParser.START_TAG && "affiliation".equals(parser.getName())) {
+				affiliations.add(new Affiliation(parser.getAttributeValue("", "jid"),
+						getType(parser.getAttributeValue("", "affiliation"))));
+			} else if (eventType == XmlPullParser.END_TAG
+					&& AffiliationsEvent.AFFILIATIONS_ELEMENT.equals(parser.getName())) {
+				break;
+			}
+		}
+
+		return new AffiliationsEvent(node, affiliations);
+	}
+
+	private Affiliation.Type getType(String affiliation) {
+		try {
+			return Affiliation.Type.valueOf(affiliation);
+		} catch (RuntimeException e) {
+			// unknown affiliations grant nothing
+			return Affiliation.Type.none;
+		}
+	}
+}
@@ -0,0 +1,299 @@
+/*
+ * Copyright 2012 buddycloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.buddycloud.mediaserver.xmpp.pubsub;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jivesoftware.smack.Connection;
+import org.jivesoftware.smack.XMPPException;
+import org.jivesoftware.smackx.ServiceDiscoveryManager;
+import org.jivesoftware.smackx.packet.DiscoverInfo;
+import org.jivesoftware.smackx.packet.DiscoverItems;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.buddycloud.mediaserver.business.util.PubSubManagerFactory;
+import com.buddycloud.mediaserver.commons.MediaServerConfiguration;
+import com.buddycloud.mediaserver.commons.concurrent.SettableFuture;
+import com.buddycloud.mediaserver.xmpp.XMPPConnectionPool;
+
+/**
+ * Discovers the channel server of XMPP domains: the disco item of the
+ * domain with a pubsub/channels identity.
+ * <p>
+ * Discovered servers are kept for ever, and domains found to have none for
+ * xmpp.discovery.negative.ttl seconds. Discoveries that failed or ran out of
+ * time are not kept, so the next request tries again. Concurrent requests for the same
+ * domain share a single discovery, whose disco#info requests are sent in
+ * parallel and given xmpp.discovery.deadline milliseconds to answer.
+ */
+public class ChannelServerDiscovery {
+	private static final String IDENTITY_CATEGORY = "pubsub";
+	private static final String IDENTITY_TYPE = "channels";
+
+	private static Logger LOGGER = LoggerFactory.getLogger(ChannelServerDiscovery.class);
+
+	private final ConcurrentMap<String, Server> servers = new ConcurrentHashMap<String, Server>();
+	private final ConcurrentMap<String, SettableFuture<String>> discoveries =
+			new ConcurrentHashMap<String, SettableFuture<String>>();
+	private final XMPPConnectionPool pool;
+	private final PubSubManagerFactory factory;
+	private final Properties configuration;
+	private ExecutorService executor;
+
+	public ChannelServerDiscovery(XMPPConnectionPool pool, PubSubManagerFactory factory,
+			Properties configuration) {
+		this.pool = pool;
+		this.factory = factory;
+		this.configuration = configuration;
+	}
+
+	/**
+	 * @return the channel server address of {@code domain}, or null if it has none.
+	 */
+	public String getServer(String domain) {
+		Server server = getCachedServer(domain);
+		if (server != null) {
+			return server.address;
+		}
+
+		SettableFuture<String> discovery = new SettableFuture<String>();
+		SettableFuture<String> running = discoveries.putIfAbsent(domain, discovery);
+		if (running != null) {
+			LOGGER.debug("Waiting for the running discovery of domain [" + domain + "]");
+			return await(domain, running);
+		}
+
+		try {
+			// a discovery may have ended before this one was registered
+			server = getCachedServer(domain);
+			if (server == null) {
+				server = discover(domain);
+				if (server == null) {
+					// no answer either way
+					discovery.set(null);
+					return null;
+				}
+				servers.put(domain, server);
+			}
+
+			discovery.set(server.address);
+			return server.address;
+		} catch (RuntimeException e) {
+			discovery.setException(e);
+			throw e;
+		} finally {
+			discoveries.remove(domain, discovery);
+		}
+	}
+
+	/**
+	 * @return whether {@code address} is the channel server discovered for
+	 * {@code domain}. Unlike {@link #getServer(String)}, domains are not
+	 * discovered here, so domains not discovered yet have no server.
+	 */
+	public boolean isServer(String domain, String address) {
+		Server server = getCachedServer(domain);
+		return server != null && server.address != null
+				&& server.address.equalsIgnoreCase(address);
+	}
+
+	public void shutdown() {
+		synchronized (this) {
+			if (executor != null) {
+				executor.shutdownNow();
+			}
+		}
+	}
+
+	protected DiscoverItems discoverItems(final String domain) throws XMPPException {
+		return pool.execute(domain, new XMPPConnectionPool.Call<DiscoverItems>() {
+			public DiscoverItems call(Connection connection) throws XMPPException {
+				return factory.create(connection, domain).discoverNodes(null);
+			}
+		});
+	}
+
+	protected DiscoverInfo discoverInfo(final String entityID) throws XMPPException {
+		return pool.execute(entityID, new XMPPConnectionPool.Call<DiscoverInfo>() {
+			public DiscoverInfo call(Connection connection) throws XMPPException {
+				return ServiceDiscoveryManager.getInstanceFor(connection).discoverInfo(entityID);
+			}
+		});
+	}
+
+	private Server getCachedServer(String domain) {
+		Server server = servers.get(domain);
+		if (server != null && server.isExpired()) {
+			servers.remove(domain, server);
+			return null;
+		}
+
+		return server;
+	}
+
+	private String await(String domain, SettableFuture<String> discovery) {
+		try {
+			return discovery.get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			LOGGER.error("Error while discovering domain [" + domain + "]", e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		return null;
+	}
+
+	/**
+	 * @return the domain's channel server, a server with a null address if
+	 * every item answered that it is not one, or null if the discovery failed
+	 * or ran out of time.
+	 */
+	private Server discover(String domain) {
+		DiscoverItems discoverItems;
+		try {
+			LOGGER.debug("Discover nodes for domain [" + domain + "]");
+			discoverItems = discoverItems(domain);
+		} catch (XMPPException e) {
+			LOGGER.error("Error while trying to fetch domain [" + domain
+					+ "] node", e);
+			return null;
+		}
+
+		CompletionService<String> identities = new ExecutorCompletionService<String>(getExecutor());
+		List<Future<String>> requests = new ArrayList<Future<String>>();
+		Iterator<DiscoverItems.Item> items = discoverItems.getItems();
+		while (items.hasNext()) {
+			final String entityID = items.next().getEntityID();
+			requests.add(identities.submit(new Callable<String>() {
+				public String call() throws Exception {
+					return isChannelServer(entityID) ? entityID : null;
+				}
+			}));
+		}
+
+		boolean complete = true;
+		long deadline = System.currentTimeMillis() + getDeadline();
+		try {
+			for (int i = 0; i < requests.size(); i++) {
+				long remaining = deadline - System.currentTimeMillis();
+				Future<String> identity = identities.poll(remaining, TimeUnit.MILLISECONDS);
+				if (identity == null) {
+					LOGGER.warn("Discovery of domain [" + domain + "] timed out");
+					return null;
+				}
+
+				try {
+					String entityID = identity.get();
+					if (entityID != null) {
+						return new Server(entityID, 0);
+					}
+				} catch (ExecutionException e) {
+					LOGGER.error("Error while trying to fetch identities", e.getCause());
+					complete = false;
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		} finally {
+			for (Future<String> request : requests) {
+				request.cancel(true);
+			}
+		}
+
+		return complete ? new Server(null, getNegativeTtl()) : null;
+	}
+
+	private boolean isChannelServer(String entityID) throws XMPPException {
+		LOGGER.debug("Discover identities for entity [" + entityID
+				+ "]");
+		DiscoverInfo discoverInfo = discoverInfo(entityID);
+
+		Iterator<DiscoverInfo.Identity> identities = discoverInfo
+				.getIdentities();
+		while (identities.hasNext()) {
+			DiscoverInfo.Identity identity = identities.next();
+			if (identity.getCategory().equals(IDENTITY_CATEGORY)
+					&& identity.getType().equals(IDENTITY_TYPE)) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	private synchronized ExecutorService getExecutor() {
+		if (executor == null) {
+			final AtomicInteger count = new AtomicInteger();
+			int threads = Integer.valueOf(configuration
+					.getProperty(MediaServerConfiguration.XMPP_DISCOVERY_THREADS));
+
+			executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "pubsub-disco-" + count.incrementAndGet());
+					thread.setDaemon(true);
+
+					return thread;
+				}
+			});
+		}
+
+		return executor;
+	}
+
+	private long getNegativeTtl() {
+		return Long.valueOf(configuration.getProperty(
+				MediaServerConfiguration.XMPP_DISCOVERY_NEGATIVE_TTL)) * 1000;
+	}
+
+	private long getDeadline() {
+		return Long.valueOf(configuration.getProperty(
+				MediaServerConfiguration.XMPP_DISCOVERY_DEADLINE));
+	}
+
+	private static class Server {
+		private final String address;
+		private final long expires;
+
+		private Server(String address, long negativeTtl) {
+			this.address = address;
+			this.expires = address != null ? 0 : System.currentTimeMillis() + negativeTtl;
+		}
+
+		private boolean isExpired() {
+			return expires > 0 && expires < System.currentTimeMillis();
+		}
+	}
+}
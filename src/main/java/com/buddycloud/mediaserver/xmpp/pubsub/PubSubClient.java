@@ -17,36 +17,49 @@ package com.buddycloud.mediaserver.xmpp.pubsub;
 
 import com.buddycloud.mediaserver.business.util.PubSubManagerFactory;
 import com.buddycloud.mediaserver.commons.MediaServerConfiguration;
+import com.buddycloud.mediaserver.commons.cache.LRUCache;
+import com.buddycloud.mediaserver.commons.cache.RefreshingCache;
+import com.buddycloud.mediaserver.commons.concurrent.CircuitBreaker;
+import com.buddycloud.mediaserver.commons.concurrent.CircuitBreakers;
+import com.buddycloud.mediaserver.commons.exception.CircuitOpenException;
+import com.buddycloud.mediaserver.xmpp.XMPPConnectionPool;
 import com.buddycloud.mediaserver.xmpp.pubsub.capabilities.CapabilitiesDecorator;
 import com.buddycloud.mediaserver.xmpp.util.AccessModel;
 import com.buddycloud.mediaserver.xmpp.util.ConfigurationForm;
 
 import org.jivesoftware.smack.Connection;
+import org.jivesoftware.smack.PacketListener;
 import org.jivesoftware.smack.XMPPException;
+import org.jivesoftware.smack.filter.PacketExtensionFilter;
 import org.jivesoftware.smack.packet.IQ.Type;
+import org.jivesoftware.smack.packet.Packet;
+import org.jivesoftware.smack.packet.PacketExtension;
 import org.jivesoftware.smack.provider.ProviderManager;
-import org.jivesoftware.smackx.ServiceDiscoveryManager;
-import org.jivesoftware.smackx.packet.DiscoverInfo;
-import org.jivesoftware.smackx.packet.DiscoverItems;
 import org.jivesoftware.smackx.packet.RSMSet;
 import org.jivesoftware.smackx.pubsub.Affiliation;
 import org.jivesoftware.smackx.pubsub.AffiliationsExtension;
+import org.jivesoftware.smackx.pubsub.ConfigurationEvent;
 import org.jivesoftware.smackx.pubsub.ConfigureForm;
+import org.jivesoftware.smackx.pubsub.EventElement;
+import org.jivesoftware.smackx.pubsub.EventElementType;
 import org.jivesoftware.smackx.pubsub.Node;
 import org.jivesoftware.smackx.pubsub.NodeExtension;
 import org.jivesoftware.smackx.pubsub.PubSubElementType;
-import org.jivesoftware.smackx.pubsub.PubSubManager;
 import org.jivesoftware.smackx.pubsub.packet.PubSub;
 import org.jivesoftware.smackx.pubsub.packet.PubSubNamespace;
+import org.jivesoftware.smackx.pubsub.packet.SyncPacketSend;
+import org.jivesoftware.smackx.pubsub.util.NodeUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.xmpp.packet.JID;
 
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * XMPP client that handles PubSub (XEP-0060) operations.
@@ -56,40 +69,89 @@ import java.util.Properties;
  * 
  */
 public class PubSubClient {
-	private static final String IDENTITY_CATEGORY = "pubsub";
-	private static final String IDENTITY_TYPE = "channels";
+	private static final String NODE_PREFIX = "/user/";
+	private static final String NODE_SUFFIX = "/posts";
+	private static final int REFRESH_THREADS = 2;
+	private static final String BREAKER_PREFIX = "pubsub-";
 
 	private static Logger LOGGER = LoggerFactory.getLogger(PubSubClient.class);
 
-	private Map<String, PubSubManager> pubSubManagersCache = new HashMap<String, PubSubManager>();
-	private Map<String, String> serversCache = new HashMap<String, String>();
-	private Connection connection;
+	private XMPPConnectionPool pool;
 	private Properties configuration;
 	private PubSubManagerFactory pubsubManagerFactory;
+	private ChannelServerDiscovery discovery;
+	private AffiliationIndex affiliations;
+	private LRUCache<String, Node> nodesCache;
+	private RefreshingCache<String, Boolean> accessModelsCache;
 
-	public PubSubClient(Connection connection, Properties configuration,
+	public PubSubClient(XMPPConnectionPool pool, Properties configuration,
 			PubSubManagerFactory factory) {
-		this.connection = connection;
+		this.pool = pool;
 		this.configuration = configuration;
 		if (null != factory) {
 			setPubSubManagerFactory(factory);
 		}
 		init();
+
+		this.affiliations = new AffiliationIndex(
+				Integer.valueOf(configuration.getProperty(MediaServerConfiguration.XMPP_AFFILIATIONS_MAX_NODES)),
+				Long.valueOf(configuration.getProperty(MediaServerConfiguration.XMPP_AFFILIATIONS_TTL)) * 1000,
+				Long.valueOf(configuration.getProperty(MediaServerConfiguration.XMPP_AFFILIATIONS_MISS_REFRESH)) * 1000);
+		initNodeCaches();
+		pool.addPacketListener(new PacketListener() {
+			public void processPacket(Packet packet) {
+				PacketExtension event = packet.getExtension(AffiliationsEvent.ELEMENT,
+						AffiliationsEvent.NAMESPACE);
+				if (event instanceof AffiliationsEvent) {
+					AffiliationsEvent affiliationsEvent = (AffiliationsEvent) event;
+					if (isFromChannelServer(packet, affiliationsEvent.getNode())) {
+						updateAffiliations(affiliationsEvent);
+					}
+				} else if (event instanceof EventElement) {
+					EventElement eventElement = (EventElement) event;
+					if (isFromChannelServer(packet, eventElement.getEvent().getNode())) {
+						updateNode(eventElement);
+					}
+				}
+			}
+		}, new PacketExtensionFilter(AffiliationsEvent.ELEMENT, AffiliationsEvent.NAMESPACE));
+	}
+
+	public PubSubClient(XMPPConnectionPool pool, Properties configuration) {
+		this(pool, configuration, null);
+	}
+
+	public PubSubClient(Connection connection, Properties configuration,
+			PubSubManagerFactory factory) {
+		this(new XMPPConnectionPool(connection), configuration, factory);
 	}
 
 	public PubSubClient(Connection connection, Properties configuration) {
 		this(connection, configuration, null);
 	}
 
-	private PubSubManagerFactory getPubSubManagerFactory() {
+	private synchronized PubSubManagerFactory getPubSubManagerFactory() {
 		if (null == pubsubManagerFactory) {
-			pubsubManagerFactory = new PubSubManagerFactory(connection);
+			pubsubManagerFactory = new PubSubManagerFactory();
 		}
 		return pubsubManagerFactory;
 	}
 
-	public void setPubSubManagerFactory(PubSubManagerFactory factory) {
+	public synchronized void setPubSubManagerFactory(PubSubManagerFactory factory) {
 		this.pubsubManagerFactory = factory;
+		if (discovery != null) {
+			// its discovery threads would otherwise linger for ever
+			discovery.shutdown();
+			discovery = null;
+		}
+	}
+
+	private synchronized ChannelServerDiscovery getDiscovery() {
+		if (null == discovery) {
+			discovery = new ChannelServerDiscovery(pool,
+					getPubSubManagerFactory(), configuration);
+		}
+		return discovery;
 	}
 
 	private void init() {
@@ -107,26 +169,64 @@ public class PubSubClient {
 		ProviderManager.getInstance().addExtensionProvider("affiliation",
 				PubSubNamespace.OWNER.getXmlns(), affiliationProvider);
 
+		ProviderManager.getInstance().addExtensionProvider(AffiliationsEvent.ELEMENT,
+				AffiliationsEvent.NAMESPACE, new AffiliationsEventProvider());
+
 		getChannelServerAddress(configuration
 				.getProperty(MediaServerConfiguration.XMPP_CONNECTION_SERVICENAME));
 	}
 
+	private void initNodeCaches() {
+		final AtomicInteger count = new AtomicInteger();
+
+		int maxEntries = Integer.valueOf(configuration
+				.getProperty(MediaServerConfiguration.XMPP_NODES_CACHE_MAX_ENTRIES));
+		this.nodesCache = new LRUCache<String, Node>(maxEntries, Long.MAX_VALUE);
+		this.accessModelsCache = new RefreshingCache<String, Boolean>(maxEntries,
+				Long.valueOf(configuration.getProperty(MediaServerConfiguration.XMPP_ACCESS_MODEL_TTL)) * 1000,
+				Long.valueOf(configuration.getProperty(MediaServerConfiguration.XMPP_ACCESS_MODEL_MAX_STALE)) * 1000,
+				new RefreshingCache.Loader<String, Boolean>() {
+					public Boolean load(String entityId) throws XMPPException {
+						return loadChannelPublic(entityId);
+					}
+				},
+				Executors.newFixedThreadPool(REFRESH_THREADS, new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "pubsub-refresh-" + count.incrementAndGet());
+						thread.setDaemon(true);
+
+						return thread;
+					}
+				}));
+	}
+
 	private Node getNode(String entityId) {
-		JID entityJID = new JID(entityId);
-		String serverAddress = getChannelServerAddress(entityJID.getDomain());
-		Node node = null;
-		if (serverAddress != null) {
-			PubSubManager manager = getPubSubManagerFactory().create(
-					serverAddress);
-			if (manager == null) {
-				manager = new PubSubManager(connection, serverAddress);
-				pubSubManagersCache.put(serverAddress, manager);
+		Node node = nodesCache.get(entityId);
+		if (node == null) {
+			node = loadNode(entityId);
+			if (node != null) {
+				nodesCache.put(entityId, node);
 			}
+		}
 
+		return node;
+	}
+
+	private Node loadNode(String entityId) {
+		String domain = new JID(entityId).getDomain();
+		final String serverAddress = getChannelServerAddress(domain);
+		final String nodeId = NODE_PREFIX + entityId + NODE_SUFFIX;
+		Node node = null;
+		if (serverAddress != null) {
 			try {
 				LOGGER.debug("Getting " + entityId
 						+ " node at channel server [" + serverAddress + "]");
-				node = manager.getNode("/user/" + entityId + "/posts");
+				node = execute(domain, new XMPPConnectionPool.Call<Node>() {
+					public Node call(Connection connection) throws XMPPException {
+						return getPubSubManagerFactory().create(connection, serverAddress)
+								.getNode(nodeId);
+					}
+				});
 			} catch (XMPPException e) {
 				LOGGER.error("Error while getting " + entityId + "node", e);
 			}
@@ -135,98 +235,124 @@ public class PubSubClient {
 		return node;
 	}
 
-	private boolean isChannelServerIdentity(DiscoverInfo.Identity identity) {
-		return identity.getCategory().equals(IDENTITY_CATEGORY)
-				&& identity.getType().equals(IDENTITY_TYPE);
-	}
-
-	private String discoverDomainServer(String domain) {
-		ServiceDiscoveryManager discoManager = ServiceDiscoveryManager
-				.getInstanceFor(connection);
-		PubSubManager pubSubManager = getPubSubManagerFactory().create(domain);
-
-		DiscoverItems discoverItems;
-		try {
-			LOGGER.debug("Discover nodes for domain [" + domain + "]");
-			discoverItems = pubSubManager.discoverNodes(null);
-		} catch (XMPPException e) {
-			LOGGER.error("Error while trying to fetch domain [" + domain
-					+ "] node", e);
+	/**
+	 * @return the channel whose posts node is {@code nodeId}, or null if it
+	 * is not a posts node.
+	 */
+	private String getEntityId(String nodeId) {
+		if (nodeId == null || !nodeId.startsWith(NODE_PREFIX) || !nodeId.endsWith(NODE_SUFFIX)
+				|| nodeId.length() <= NODE_PREFIX.length() + NODE_SUFFIX.length()) {
 			return null;
 		}
 
-		Iterator<DiscoverItems.Item> items = discoverItems.getItems();
-		while (items.hasNext()) {
-			String entityID = items.next().getEntityID();
-			DiscoverInfo discoverInfo;
-			try {
-				LOGGER.debug("Discover identities for entity [" + entityID
-						+ "]");
-				discoverInfo = discoManager.discoverInfo(entityID);
-			} catch (XMPPException e) {
-				LOGGER.error("Error while trying to fetch [" + entityID
-						+ "] identities");
-				continue;
-			}
+		return nodeId.substring(NODE_PREFIX.length(), nodeId.length() - NODE_SUFFIX.length());
+	}
 
-			Iterator<DiscoverInfo.Identity> identities = discoverInfo
-					.getIdentities();
-			while (identities.hasNext()) {
-				if (isChannelServerIdentity(identities.next())) {
-					return entityID;
-				}
+	/**
+	 * @return whether {@code packet} was sent by the channel server of the
+	 * channel whose posts node is {@code nodeId}. Anyone can send
+	 * notifications to the media server, so only these are applied.
+	 */
+	private boolean isFromChannelServer(Packet packet, String nodeId) {
+		String entityId = getEntityId(nodeId);
+		if (entityId == null) {
+			return false;
+		}
+
+		try {
+			String domain = new JID(entityId).getDomain();
+			if (packet.getFrom() != null && getDiscovery().isServer(domain,
+					new JID(packet.getFrom()).toBareJID())) {
+				return true;
 			}
+		} catch (IllegalArgumentException e) {
+			// not a JID, so not the channel server either
 		}
 
-		return null;
+		LOGGER.debug("Dropping node [" + nodeId + "] notification sent by "
+				+ packet.getFrom());
+		return false;
 	}
 
 	private String getChannelServerAddress(String domain) {
-		String serverAddress = serversCache.get(domain);
-		if (serverAddress == null) {
-			LOGGER.debug("Server cache doesn't contains the channel server for domain ["
-					+ domain + "]");
-			serverAddress = discoverDomainServer(domain);
-
-			if (serverAddress != null) {
-				LOGGER.debug("Channel server for domain [" + domain
-						+ "] discovered: " + serverAddress);
-				serversCache.put(domain, serverAddress);
+		return getDiscovery().getServer(domain);
+	}
+
+	/**
+	 * Makes a call on a connection of the pool, through the circuit breaker
+	 * of {@code domain}. Error replies are answers too; only calls that
+	 * failed or timed out count against the breaker.
+	 * @throws CircuitOpenException if the breaker is open.
+	 */
+	private <T> T execute(String domain, XMPPConnectionPool.Call<T> call)
+			throws XMPPException {
+		CircuitBreaker breaker = CircuitBreakers.getInstance().get(BREAKER_PREFIX + domain);
+		CircuitBreaker.Permit permit = breaker.tryAcquire();
+		if (permit == null) {
+			throw new CircuitOpenException("Circuit breaker " + breaker.getName()
+					+ " is open", breaker.getRetryAfter());
+		}
+
+		long start = System.currentTimeMillis();
+		boolean answered = false;
+		try {
+			T result = pool.execute(domain, call);
+			answered = true;
+			return result;
+		} catch (XMPPException e) {
+			answered = e.getXMPPError() != null;
+			throw e;
+		} finally {
+			long latency = System.currentTimeMillis() - start;
+			if (answered) {
+				permit.onSuccess(latency);
+			} else {
+				permit.onFailure(latency);
 			}
 		}
+	}
 
-		return serverAddress;
+	/**
+	 * Sends a request built by {@code node} on a connection of the pool. Node
+	 * handles are shared by every connection, so they don't send requests
+	 * on their own.
+	 */
+	private Packet sendPubsubPacket(String domain, final PubSub request)
+			throws XMPPException {
+		return execute(domain, new XMPPConnectionPool.Call<Packet>() {
+			public Packet call(Connection connection) throws XMPPException {
+				return SyncPacketSend.getReply(connection, request);
+			}
+		});
 	}
 
-	private Affiliation getAffiliation(Node node, String userBareJID)
+	private Map<String, Affiliation.Type> getAffiliations(Node node, String domain)
 			throws XMPPException {
 
 		PubSub request = node.createPubsubPacket(Type.GET, new NodeExtension(
 				PubSubElementType.AFFILIATIONS, node.getId()),
 				PubSubNamespace.OWNER);
 
+		Map<String, Affiliation.Type> affiliations = new HashMap<String, Affiliation.Type>();
 		int itemCount = 0;
 		while (true) {
 
-            PubSub reply = (PubSub) node.sendPubsubPacket(Type.GET, request);
+            PubSub reply = (PubSub) sendPubsubPacket(domain, request);
  
-            LOGGER.debug("Affiliations reply " + reply.toXML());
             AffiliationsExtension subElem = (AffiliationsExtension) reply
                     .getExtension(
                             PubSubElementType.AFFILIATIONS.getElementName(),
                             PubSubNamespace.BASIC.getXmlns());
 
-			List<Affiliation> affiliations = subElem.getAffiliations();
+			List<Affiliation> page = subElem.getAffiliations();
 
-			for (Affiliation affiliation : affiliations) {
-				if (affiliation.getNodeId().equals(userBareJID)) {
-					return affiliation;
-				}
+			for (Affiliation affiliation : page) {
+				affiliations.put(affiliation.getNodeId(), affiliation.getType());
 			}
 
-			itemCount += affiliations.size();
+			itemCount += page.size();
 
-			if (reply.getRsmSet() == null
+			if (reply.getRsmSet() == null || page.isEmpty()
 					|| itemCount == reply.getRsmSet().getCount()) {
 				break;
 			}
@@ -236,7 +362,46 @@ public class PubSubClient {
 			request.setRsmSet(rsmSet);
 		}
 
-		return null;
+		LOGGER.debug("Fetched " + affiliations.size() + " affiliations of node ["
+				+ node.getId() + "]");
+
+		return affiliations;
+	}
+
+	private void updateNode(EventElement event) {
+		String nodeId = event.getEvent().getNode();
+		String entityId = getEntityId(nodeId);
+		if (entityId == null) {
+			return;
+		}
+
+		if (event.getEventType() == EventElementType.configuration) {
+			ConfigureForm config = ((ConfigurationEvent) event.getEvent()).getConfiguration();
+			try {
+				if (config != null) {
+					accessModelsCache.put(entityId, isOpen(config));
+					LOGGER.debug("Node [" + nodeId + "] configuration changed");
+					return;
+				}
+			} catch (RuntimeException e) {
+				// the notification doesn't carry the access model
+			}
+			accessModelsCache.invalidate(entityId);
+		} else if (event.getEventType() == EventElementType.delete) {
+			LOGGER.debug("Node [" + nodeId + "] deleted");
+			nodesCache.remove(entityId);
+			accessModelsCache.invalidate(entityId);
+			affiliations.invalidate(nodeId);
+		}
+	}
+
+	private void updateAffiliations(AffiliationsEvent event) {
+		for (Affiliation affiliation : event.getAffiliations()) {
+			LOGGER.debug(affiliation.getNodeId() + " affiliation to node ["
+					+ event.getNode() + "] changed to " + affiliation.getType());
+			affiliations.update(event.getNode(), affiliation.getNodeId(),
+					affiliation.getType());
+		}
 	}
 
 	/**
@@ -250,6 +415,8 @@ public class PubSubClient {
 	 * @param capability
 	 *            decorator that represents the desired capabilities.
 	 * @return if the user has the desired capabilities.
+	 * @throws CircuitOpenException if the channel server can't be asked
+	 *             right now, and the affiliation is not cached.
 	 */
 	public boolean matchUserCapability(String userJID, String entityId,
 			CapabilitiesDecorator capability) {
@@ -261,21 +428,35 @@ public class PubSubClient {
 			return true;
 		}
 
-		Node node = getNode(entityId);
+		final String domain = new JID(entityId).getDomain();
+		final Node node = getNode(entityId);
 		if (node == null) {
 		    return false;
 		}
-		Affiliation affiliation;
+		Affiliation.Type affiliation;
 
 		try {
 			LOGGER.debug("Getting " + userBareJID
 				+ " affiliation for node [" + node.getId() + "]");
-			affiliation = getAffiliation(node, userBareJID);
+			affiliation = affiliations.getAffiliation(node.getId(), userBareJID,
+					new AffiliationIndex.Loader() {
+						public Map<String, Affiliation.Type> load(String nodeId)
+								throws XMPPException {
+							return getAffiliations(node, domain);
+						}
+					});
 		} catch (XMPPException e) {
 			LOGGER.warn("Could not read node '" + node.getId()
 				+ " affiliation for '" + userBareJID + "'", e);
 
 		    return false;
+		} catch (CircuitOpenException e) {
+			if (!CircuitBreakers.getInstance().isServingCached()
+					|| !affiliations.isIndexed(node.getId())) {
+				throw e;
+			}
+			LOGGER.debug(e.getMessage() + ", using the cached affiliation of " + userBareJID);
+			affiliation = affiliations.getIndexedAffiliation(node.getId(), userBareJID);
 		}
 			
 		if (null == affiliation) {
@@ -283,36 +464,58 @@ public class PubSubClient {
 			return false;
 		}
 
-		LOGGER.debug(userBareJID + " affiliation: " + affiliation.getType().toString());
+		LOGGER.debug(userBareJID + " affiliation: " + affiliation.toString());
 
-		return capability.isUserAllowed(affiliation.getType()
-	        .toString());
+		return capability.isUserAllowed(affiliation.toString());
 
 	}
 
 	/**
-	 * Verifies if a channel is public.
+	 * Verifies if a channel is public. Access models are cached, and stale
+	 * ones are served while being fetched again in the background.
 	 * 
 	 * @param entityId
 	 *            channel to be verified.
 	 * @return if
 	 * @param entityId
 	 *            is public.
+	 * @throws CircuitOpenException if the channel server can't be asked
+	 *             right now, and the access model is not cached.
 	 */
 	public boolean isChannelPublic(String entityId) {
-		Node node = getNode(entityId);
-
-		if (node != null) {
-			try {
-				ConfigureForm config = node.getNodeConfiguration();
-				ConfigurationForm form = new ConfigurationForm(config);
-				return form.getBuddycloudAccessModel().equals(AccessModel.open);
-			} catch (XMPPException e) {
-				LOGGER.warn("Could not get node '" + node.getId() + "' "
-						+ "access model", e);
+		try {
+			return accessModelsCache.get(entityId);
+		} catch (CircuitOpenException e) {
+			Boolean cached = accessModelsCache.getIfPresent(entityId);
+			if (!CircuitBreakers.getInstance().isServingCached() || cached == null) {
+				throw e;
 			}
+			LOGGER.debug(e.getMessage() + ", using the cached access model of " + entityId);
+			return cached;
+		} catch (Exception e) {
+			LOGGER.warn("Could not get channel '" + entityId + "' "
+					+ "access model", e);
 		}
 
 		return false;
 	}
+
+	private boolean loadChannelPublic(String entityId) throws XMPPException {
+		Node node = getNode(entityId);
+		if (node == null) {
+			throw new XMPPException("Could not get channel '" + entityId + "' node");
+		}
+
+		PubSub request = node.createPubsubPacket(Type.GET, new NodeExtension(
+				PubSubElementType.CONFIGURE_OWNER, node.getId()),
+				PubSubNamespace.OWNER);
+		Packet reply = sendPubsubPacket(new JID(entityId).getDomain(), request);
+
+		return isOpen(NodeUtils.getFormFromPacket(reply, PubSubElementType.CONFIGURE_OWNER));
+	}
+
+	private boolean isOpen(ConfigureForm config) {
+		ConfigurationForm form = new ConfigurationForm(config);
+		return form.getBuddycloudAccessModel().equals(AccessModel.open);
+	}
 }
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2012 buddycloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.buddycloud.mediaserver.xmpp.util;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.xmpp.packet.JID;
+import org.xmpp.packet.Packet;
+
+import com.buddycloud.mediaserver.commons.concurrent.CircuitBreaker;
+import com.buddycloud.mediaserver.commons.concurrent.SettableFuture;
+import com.buddycloud.mediaserver.commons.concurrent.TimerWheel;
+import com.buddycloud.mediaserver.commons.exception.XMPPException;
+
+/**
+ * Replies awaited by the component, keyed by who is expected to answer
+ * and the id of the exchange. Incoming stanzas are routed to their waiter
+ * with a single lookup, and waiters that get no reply in time fail with
+ * an {@link XMPPException}.
+ */
+public class ReplyRegistry {
+
+	private static final long TICK_DURATION = 100;
+	private static final int TICKS_PER_WHEEL = 512;
+
+	private final ConcurrentMap<String, SettableFuture<Packet>> pending =
+			new ConcurrentHashMap<String, SettableFuture<Packet>>();
+	private final TimerWheel timeouts;
+
+	public ReplyRegistry() {
+		this.timeouts = new TimerWheel("xmpp-reply-timeouts", TICK_DURATION, TICKS_PER_WHEEL);
+	}
+
+	/**
+	 * Expects a reply from {@code from} for the exchange {@code id}. Waiting
+	 * twice for the same reply shares it.
+	 * @param timeout how long to wait for the reply, in milliseconds.
+	 * @return the future reply.
+	 */
+	public SettableFuture<Packet> expect(JID from, String id, long timeout) {
+		return expect(from, id, timeout, null);
+	}
+
+	/**
+	 * Same as {@link #expect(JID, String, long)}, reporting to a circuit
+	 * breaker whether the reply came. Replies are reported as successes
+	 * however late they come, since how long the other end takes to answer
+	 * is up to it; replies that time out or are abandoned are failures.
+	 * @param permit the permit of the breaker the exchange was let through,
+	 * or null.
+	 */
+	public SettableFuture<Packet> expect(JID from, String id, long timeout,
+			CircuitBreaker.Permit permit) {
+		SettableFuture<Packet> reply = register(from, id, timeout);
+		if (permit != null) {
+			report(reply, permit);
+		}
+		return reply;
+	}
+
+	private SettableFuture<Packet> register(JID from, String id, long timeout) {
+		final String key = getKey(from, id);
+
+		final SettableFuture<Packet> reply = new SettableFuture<Packet>();
+		SettableFuture<Packet> existing = pending.putIfAbsent(key, reply);
+		if (existing != null) {
+			return existing;
+		}
+
+		final TimerWheel.Timeout expiry = timeouts.schedule(new Runnable() {
+			public void run() {
+				reply.setException(new XMPPException("No response from '" + key + "'"));
+			}
+		}, timeout);
+
+		reply.addListener(new Runnable() {
+			public void run() {
+				pending.remove(key, reply);
+				expiry.cancel();
+			}
+		});
+
+		return reply;
+	}
+
+	private void report(final SettableFuture<Packet> reply, final CircuitBreaker.Permit permit) {
+		final long start = System.currentTimeMillis();
+		reply.addListener(new Runnable() {
+			public void run() {
+				try {
+					reply.get();
+					permit.onSuccess(0);
+				} catch (Exception e) {
+					permit.onFailure(System.currentTimeMillis() - start);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Hands a stanza to whoever awaits it.
+	 * @return whether the stanza was awaited.
+	 */
+	public boolean complete(JID from, String id, Packet packet) {
+		if (from == null || id == null) {
+			return false;
+		}
+
+		SettableFuture<Packet> reply = pending.get(getKey(from, id));
+		return reply != null && reply.set(packet);
+	}
+
+	/**
+	 * Gives up on a reply, e.g. because the request could not be sent. Its
+	 * waiters fail with {@code cause}.
+	 */
+	public void abandon(JID from, String id, Throwable cause) {
+		SettableFuture<Packet> reply = pending.get(getKey(from, id));
+		if (reply != null) {
+			reply.setException(cause);
+		}
+	}
+
+	/**
+	 * @return how many replies are awaited.
+	 */
+	public int size() {
+		return pending.size();
+	}
+
+	public void shutdown() {
+		timeouts.stop();
+	}
+
+	private static String getKey(JID from, String id) {
+		return from.toBareJID() + " " + id;
+	}
+}
@@ -1,44 +0,0 @@
-/*
- * Copyright 2012 buddycloud
- *
- * Licensed under the Apache License, Version 2.0 (the "License");
- * you may not use this file except in compliance with the License.
- * You may obtain a copy of the License at
- *
- *     http://www.apache.org/licenses/LICENSE-2.0
- *
- * Unless required by applicable law or agreed to in writing, software
- * distributed under the License is distributed on an "AS IS" BASIS,
- * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
- * See the License for the specific language governing permissions and
- * limitations under the License.
- */
-package com.buddycloud.mediaserver.xmpp.util;
-
-import org.dom4j.Element;
-import org.xmpp.packet.Packet;
-
-public class TransactionIDFilter implements MediaServerPacketFilter {
-
-	private String transactionID;
-
-	public TransactionIDFilter(String transactionID) {
-		if (transactionID == null) {
-			throw new IllegalArgumentException("Transaction id cannot be null.");
-		}
-		this.transactionID = transactionID;
-	}
-
-	public boolean accept(Packet packet) {
-		Element confirmEl = packet.getElement().element("confirm");
-		if (confirmEl == null) {
-			return false;
-		}
-		String confirmationIdAttr = confirmEl.attributeValue("id");
-		return transactionID.equals(confirmationIdAttr);
-	}
-
-	public String toString() {
-		return "Packet filter by transaction id: " + transactionID;
-	}
-}
@@ -24,6 +24,7 @@ import com.buddycloud.mediaserver.business.util.VideoUtils;
 import com.buddycloud.mediaserver.commons.Constants;
 import com.buddycloud.mediaserver.commons.MediaServerConfiguration;
 import com.buddycloud.mediaserver.commons.configuration.FileLoader;
+import com.buddycloud.mediaserver.commons.json.ISO8601DateTypeAdapter;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 
@@ -48,7 +49,7 @@ import java.awt.image.BufferedImage;
 import java.io.*;
 import java.sql.SQLException;
 import java.sql.Statement;
-import java.text.DateFormat;
+import java.util.Date;
 import java.util.Properties;
 
 public abstract class MediaServerTest {
@@ -93,7 +94,8 @@ public abstract class MediaServerTest {
     public static void prepareEnv() throws Exception {
         buildConfiguration();
         dataSource = new MetaDataSource();
-        gson = new GsonBuilder().setDateFormat(DateFormat.FULL, DateFormat.FULL).create();
+        gson = new GsonBuilder().registerTypeHierarchyAdapter(Date.class,
+                new ISO8601DateTypeAdapter()).create();
 
         removeXuggleFolder();
         start();
@@ -139,6 +141,9 @@ public abstract class MediaServerTest {
                 TEST_JDBC_DB_URL);
         configuration.setProperty(MediaServerConfiguration.HTTP_PORT,
                 HTTP_TEST_PORT);
+        // tests read and delete metadata right after uploading
+        configuration.setProperty(MediaServerConfiguration.METADATA_JOURNAL_ENABLED,
+                "false");
     }
 
     private static void createSchema() throws IOException, SQLException {
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2012 buddycloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.buddycloud.mediaserver.business.dao;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Date;
+
+import org.junit.Test;
+
+import com.buddycloud.mediaserver.commons.CachedAvatar;
+import com.buddycloud.mediaserver.commons.cache.InvalidationStamps;
+
+public class AvatarCacheTest {
+
+	private static final String ENTITY = "channel@domain.com";
+
+	private AvatarCache cache = new AvatarCache(100, 1024, Arrays.asList(50, 100));
+
+	@Test
+	public void onlyOriginalAndPrecomputedSizesAreCacheable() {
+		assertTrue(cache.isCacheable(null, null));
+		assertTrue(cache.isCacheable(50, 50));
+		assertFalse(cache.isCacheable(50, 100));
+		assertFalse(cache.isCacheable(60, 60));
+	}
+
+	@Test
+	public void invalidateDropsAllSizes() {
+		cache.put(ENTITY, null, null, avatar(), cache.stamp());
+		cache.put(ENTITY, 50, 50, avatar(), cache.stamp());
+		assertNotNull(cache.get(ENTITY, null, null));
+
+		cache.invalidate(ENTITY);
+
+		assertNull(cache.get(ENTITY, null, null));
+		assertNull(cache.get(ENTITY, 50, 50));
+	}
+
+	@Test
+	public void loadStartedBeforeInvalidationIsNotCached() {
+		InvalidationStamps.Stamp stamp = cache.stamp();
+		cache.invalidate(ENTITY);
+		cache.put(ENTITY, null, null, avatar(), stamp);
+
+		assertNull(cache.get(ENTITY, null, null));
+	}
+
+	@Test
+	public void loadStartedBeforeOtherInvalidationsIsCached() {
+		InvalidationStamps.Stamp stamp = cache.stamp();
+		// in another stripe than ENTITY
+		cache.invalidate("other@domain.com");
+		cache.put(ENTITY, null, null, avatar(), stamp);
+
+		assertNotNull(cache.get(ENTITY, null, null));
+	}
+
+	@Test
+	public void onlyAvatarsWithinTheByteLimitFit() {
+		assertTrue(cache.fits(1024));
+		assertFalse(cache.fits(1025));
+	}
+
+	private CachedAvatar avatar() {
+		return new CachedAvatar("image/jpeg", new byte[10], new Date());
+	}
+
+}
@@ -0,0 +1,308 @@
+/*
+ * Copyright 2012 buddycloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.buddycloud.mediaserver.business.jdbc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.buddycloud.mediaserver.business.jdbc.BatchWriter.PendingWrite;
+import com.buddycloud.mediaserver.business.jdbc.schema.MigrationRunner;
+import com.buddycloud.mediaserver.business.model.Media;
+import com.buddycloud.mediaserver.business.model.Preview;
+import com.buddycloud.mediaserver.commons.exception.MetadataPendingException;
+import com.buddycloud.mediaserver.commons.exception.MetadataSourceException;
+
+public class BatchWriterTest {
+
+	private static final String URL = "jdbc:hsqldb:mem:batchwritertest;user=sa;sql.syntax_pgs=true";
+
+	private Connection connection;
+	private MetaDataSource dataSource;
+	private BatchWriter writer;
+
+	@Before
+	public void setUp() throws Exception {
+		Class.forName("org.hsqldb.jdbcDriver");
+		connection = DriverManager.getConnection(URL);
+		new MigrationRunner(new File("postgres")).migrate(connection);
+
+		dataSource = mock(MetaDataSource.class);
+		when(dataSource.getConnection()).thenAnswer(new Answer<Connection>() {
+			public Connection answer(InvocationOnMock invocation) throws Throwable {
+				return DriverManager.getConnection(URL);
+			}
+		});
+		when(dataSource.beginUnitOfWork()).thenAnswer(new Answer<UnitOfWork>() {
+			public UnitOfWork answer(InvocationOnMock invocation) throws Throwable {
+				UnitOfWork unitOfWork = new UnitOfWork(dataSource, false);
+				unitOfWork.join();
+				return unitOfWork;
+			}
+		});
+		when(dataSource.toSaveMediaArgs(any(Media.class))).thenCallRealMethod();
+
+		final Map<String, Long> sequences = new HashMap<String, Long>();
+		when(dataSource.nextChangeSeq(anyString(), anyInt())).thenAnswer(new Answer<Long>() {
+			public Long answer(InvocationOnMock invocation) throws Throwable {
+				String entityId = (String) invocation.getArguments()[0];
+				Long seq = sequences.get(entityId);
+				seq = (seq == null ? 0 : seq) + (Integer) invocation.getArguments()[1];
+				sequences.put(entityId, seq);
+				return seq;
+			}
+		});
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		if (writer != null) {
+			writer.stop();
+		}
+
+		Statement statement = connection.createStatement();
+		statement.execute("SHUTDOWN");
+		statement.close();
+		connection.close();
+	}
+
+	@Test
+	public void waitingWritesShareOneTransaction() throws Exception {
+		writer = new BatchWriter(dataSource, 3, 1000, 5000);
+		PendingWrite first = writer.submitMedia(createMedia("m1", "a@example.com"), false);
+		PendingWrite second = writer.submitMedia(createMedia("m2", "a@example.com"), false);
+		PendingWrite third = writer.submitMedia(createMedia("m3", "b@example.com"), false);
+		writer.start();
+
+		first.await();
+		second.await();
+		third.await();
+
+		assertTrue(first.isStored());
+		assertTrue(third.isStored());
+		verify(dataSource, times(1)).beginUnitOfWork();
+		assertEquals(3, count("SELECT COUNT(*) FROM medias"));
+		assertEquals(2, count("SELECT seq FROM media_changes WHERE mediaId = 'm2'"));
+		assertEquals(1, count("SELECT seq FROM media_changes WHERE mediaId = 'm3'"));
+	}
+
+	@Test
+	public void badWriteOnlyFailsItsCaller() throws Exception {
+		Media bad = createMedia("m2", "a@example.com");
+		bad.setAuthor(null);
+
+		writer = new BatchWriter(dataSource, 3, 1000, 5000);
+		PendingWrite first = writer.submitMedia(createMedia("m1", "a@example.com"), false);
+		PendingWrite second = writer.submitMedia(bad, false);
+		PendingWrite third = writer.submitMedia(createMedia("m3", "a@example.com"), false);
+		writer.start();
+
+		first.await();
+		third.await();
+		try {
+			second.await();
+			fail("the bad write should have failed");
+		} catch (MetadataSourceException e) {
+			assertFalse(second.isStored());
+		}
+
+		// the batch, then each of its writes on its own
+		verify(dataSource, times(4)).beginUnitOfWork();
+		assertEquals(2, count("SELECT COUNT(*) FROM medias"));
+	}
+
+	@Test
+	public void unexpectedErrorsFailTheirCallerOnly() throws Exception {
+		Media broken = createMedia("m1", "a@example.com");
+		when(dataSource.toSaveMediaArgs(broken)).thenThrow(new IllegalStateException("broken"));
+
+		writer = new BatchWriter(dataSource, 1, 0, 5000);
+		writer.start();
+		try {
+			writer.storeMedia(broken, false);
+			fail("the broken write should have failed");
+		} catch (MetadataSourceException e) {
+			assertTrue(e.getCause() instanceof IllegalStateException);
+		}
+
+		// the writer thread survived
+		writer.storeMedia(createMedia("m2", "a@example.com"), false);
+		assertEquals(1, count("SELECT COUNT(*) FROM medias"));
+	}
+
+	@Test
+	public void replayedMediasAreNotStoredTwice() throws Exception {
+		writer = new BatchWriter(dataSource, 1, 0, 5000);
+		writer.start();
+		Media media = createMedia("m1", "a@example.com");
+		writer.storeMedia(media, false);
+
+		PendingWrite replay = writer.submitMedia(media, false);
+		replay.await();
+
+		assertFalse(replay.isStored());
+		assertEquals(1, count("SELECT COUNT(*) FROM medias"));
+		assertEquals(1, count("SELECT COUNT(*) FROM media_changes"));
+	}
+
+	@Test
+	public void avatarsAreUpdatedOrCreated() throws Exception {
+		writer = new BatchWriter(dataSource, 1, 0, 5000);
+		writer.start();
+		writer.storeMedia(createMedia("m1", "a@example.com"), true);
+		writer.stop();
+		assertEquals("m1", getAvatar("a@example.com"));
+
+		writer = new BatchWriter(dataSource, 2, 1000, 5000);
+		PendingWrite update = writer.submitMedia(createMedia("m2", "a@example.com"), true);
+		PendingWrite insert = writer.submitMedia(createMedia("m3", "b@example.com"), true);
+		writer.start();
+		update.await();
+		insert.await();
+
+		assertEquals("m2", getAvatar("a@example.com"));
+		assertEquals("m3", getAvatar("b@example.com"));
+		assertEquals(2, count("SELECT COUNT(*) FROM avatars"));
+	}
+
+	@Test
+	public void waitingForAStoppedWriterTimesOut() throws Exception {
+		writer = new BatchWriter(dataSource, 1, 0, 50);
+
+		Preview preview = new Preview();
+		preview.setId("p1");
+		try {
+			writer.storePreview(preview);
+			fail("nothing writes the preview");
+		} catch (MetadataSourceException e) {
+			assertNull(e.getCause());
+		}
+	}
+
+	@Test
+	public void writesGivenUpBeforeTheyStartAreNeverStored() throws Exception {
+		writer = new BatchWriter(dataSource, 1, 0, 200);
+		try {
+			writer.storeMedia(createMedia("m1", "a@example.com"), false);
+			fail("nothing writes the media");
+		} catch (MetadataPendingException e) {
+			fail("the write didn't start, so it should have been cancelled");
+		} catch (MetadataSourceException e) {
+			// cancelled
+		}
+
+		writer.start();
+		PendingWrite later = writer.submitMedia(createMedia("m2", "a@example.com"), false);
+		awaitCompletion(later);
+
+		assertEquals(1, count("SELECT COUNT(*) FROM medias"));
+		assertEquals(0, count("SELECT COUNT(*) FROM medias WHERE id = 'm1'"));
+	}
+
+	@Test
+	public void writesGivenUpWhileUnderWayArePending() throws Exception {
+		final CountDownLatch release = new CountDownLatch(1);
+		Media slow = createMedia("m1", "a@example.com");
+		when(dataSource.toSaveMediaArgs(slow)).thenAnswer(new Answer<Object[]>() {
+			public Object[] answer(InvocationOnMock invocation) throws Throwable {
+				release.await();
+				return (Object[]) invocation.callRealMethod();
+			}
+		});
+
+		writer = new BatchWriter(dataSource, 1, 0, 100);
+		writer.start();
+		PendingWrite write = writer.submitMedia(slow, false);
+		try {
+			write.await();
+			fail("the write is still under way");
+		} catch (MetadataPendingException e) {
+			assertEquals("m1", e.getMediaId());
+		}
+
+		release.countDown();
+		awaitCompletion(write);
+		assertEquals(1, count("SELECT COUNT(*) FROM medias WHERE id = 'm1'"));
+	}
+
+	private void awaitCompletion(PendingWrite write) throws InterruptedException {
+		final CountDownLatch done = new CountDownLatch(1);
+		write.onComplete(new Runnable() {
+			public void run() {
+				done.countDown();
+			}
+		});
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+	}
+
+	private Media createMedia(String id, String entityId) {
+		Media media = new Media();
+		media.setId(id);
+		media.setEntityId(entityId);
+		media.setAuthor("user@example.com");
+		media.setMimeType("image/png");
+		media.setShaChecksum("sha");
+		media.setFileSize(10L);
+		return media;
+	}
+
+	private String getAvatar(String entityId) throws Exception {
+		Statement statement = connection.createStatement();
+		try {
+			ResultSet result = statement.executeQuery(
+					"SELECT mediaId FROM avatars WHERE entityId = '" + entityId + "'");
+			return result.next() ? result.getString(1) : null;
+		} finally {
+			statement.close();
+		}
+	}
+
+	private int count(String sql) throws Exception {
+		Statement statement = connection.createStatement();
+		try {
+			ResultSet result = statement.executeQuery(sql);
+			result.next();
+			return result.getInt(1);
+		} finally {
+			statement.close();
+		}
+	}
+}
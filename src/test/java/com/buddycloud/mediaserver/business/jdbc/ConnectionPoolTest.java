@@ -0,0 +1,93 @@
+/*
+ * Copyright 2012 buddycloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.buddycloud.mediaserver.business.jdbc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.util.Properties;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.buddycloud.mediaserver.commons.MediaServerConfiguration;
+import com.buddycloud.mediaserver.commons.exception.MetadataSourceException;
+
+public class ConnectionPoolTest {
+
+	private ConnectionPool pool;
+
+	@Before
+	public void setUp() throws Exception {
+		Properties configuration = new Properties();
+		configuration.setProperty(MediaServerConfiguration.JDBC_POOL_MIN_SIZE, "1");
+		configuration.setProperty(MediaServerConfiguration.JDBC_POOL_MAX_SIZE, "1");
+		configuration.setProperty(MediaServerConfiguration.JDBC_POOL_ACQUIRE_INCREMENT, "1");
+		configuration.setProperty(MediaServerConfiguration.JDBC_POOL_MAX_IDLE_TIME, "0");
+		configuration.setProperty(MediaServerConfiguration.JDBC_POOL_CHECKOUT_TIMEOUT, "1000");
+		configuration.setProperty(MediaServerConfiguration.JDBC_POOL_STATEMENT_CACHE_SIZE, "0");
+		configuration.setProperty(MediaServerConfiguration.JDBC_POOL_IDLE_TEST_PERIOD, "0");
+
+		pool = new ConnectionPool("test", "org.hsqldb.jdbcDriver",
+				"jdbc:hsqldb:mem:pooltest;user=sa", configuration);
+	}
+
+	@After
+	public void tearDown() {
+		pool.close();
+	}
+
+	@Test
+	public void exhaustedPoolFailsCheckout() throws SQLException {
+		Connection connection = pool.getConnection();
+		try {
+			pool.getConnection();
+			fail("The pool has a single connection");
+		} catch (SQLTransientConnectionException e) {
+			assertTrue(ConnectionPool.isExhausted(new MetadataSourceException(e.getMessage(), e)));
+		} finally {
+			connection.close();
+		}
+
+		assertEquals(1, pool.getCheckouts());
+		assertEquals(1, pool.getCheckoutTimeouts());
+	}
+
+	@Test
+	public void checkoutWaitsAreCounted() throws SQLException {
+		pool.getConnection().close();
+		pool.getConnection().close();
+
+		long total = 0;
+		for (long count : pool.getCheckoutWaitHistogram()) {
+			total += count;
+		}
+		assertEquals(2, total);
+		assertEquals(pool.getCheckoutWaitBuckets().length + 1, pool.getCheckoutWaitHistogram().length);
+	}
+
+	@Test
+	public void otherErrorsAreNotExhaustion() {
+		assertFalse(ConnectionPool.isExhausted(new MetadataSourceException("error",
+				new SQLException("error"))));
+	}
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2012 buddycloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.buddycloud.mediaserver.business.jdbc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+import com.buddycloud.mediaserver.business.model.Media;
+import com.buddycloud.mediaserver.commons.cache.InvalidationStamps;
+
+public class MediaCacheTest {
+
+	private static final String MEDIA_ID = "media";
+
+	@Test
+	public void cachedMediaCantBeAlteredByCallers() {
+		MediaCache cache = new MediaCache(10, 0, true);
+		Media media = media("title");
+		cache.put(MEDIA_ID, media, cache.stamp());
+
+		media.setTitle("changed");
+		cache.get(MEDIA_ID).getMedia().setTitle("changed");
+
+		assertEquals("title", cache.get(MEDIA_ID).getMedia().getTitle());
+	}
+
+	@Test
+	public void missesAreOnlyCachedWhenEnabled() {
+		MediaCache cache = new MediaCache(10, 0, true);
+		cache.put(MEDIA_ID, null, cache.stamp());
+		assertNotNull(cache.get(MEDIA_ID));
+		assertNull(cache.get(MEDIA_ID).getMedia());
+
+		cache = new MediaCache(10, 0, false);
+		cache.put(MEDIA_ID, null, cache.stamp());
+		assertNull(cache.get(MEDIA_ID));
+	}
+
+	@Test
+	public void loadStartedBeforeInvalidationIsNotCached() {
+		MediaCache cache = new MediaCache(10, 0, true);
+		InvalidationStamps.Stamp stamp = cache.stamp();
+		cache.invalidate(MEDIA_ID);
+		cache.put(MEDIA_ID, media("title"), stamp);
+
+		assertNull(cache.get(MEDIA_ID));
+	}
+
+	@Test
+	public void loadStartedBeforeOtherInvalidationsIsCached() {
+		MediaCache cache = new MediaCache(10, 0, true);
+		InvalidationStamps.Stamp stamp = cache.stamp();
+		// in another stripe than MEDIA_ID
+		cache.invalidate("other");
+		cache.put(MEDIA_ID, media("title"), stamp);
+
+		assertNotNull(cache.get(MEDIA_ID));
+	}
+
+	@Test
+	public void entriesExpire() throws InterruptedException {
+		MediaCache cache = new MediaCache(10, 1, true);
+		cache.put(MEDIA_ID, media("title"), cache.stamp());
+		Thread.sleep(10);
+
+		assertNull(cache.get(MEDIA_ID));
+	}
+
+	private Media media(String title) {
+		Media media = new Media();
+		media.setId(MEDIA_ID);
+		media.setTitle(title);
+		return media;
+	}
+
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright 2012 buddycloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.buddycloud.mediaserver.business.jdbc;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class RecentWritesTest {
+
+	@Test
+	public void writtenIdIsRecentWithinWindow() {
+		RecentWrites recentWrites = new RecentWrites(60000);
+		recentWrites.record("media");
+
+		assertTrue(recentWrites.containsAny(Arrays.asList("other", "media")));
+		assertFalse(recentWrites.containsAny(Arrays.asList("other")));
+	}
+
+	@Test
+	public void writtenIdExpiresAfterWindow() throws InterruptedException {
+		RecentWrites recentWrites = new RecentWrites(10);
+		recentWrites.record("media");
+
+		Thread.sleep(20);
+		assertFalse(recentWrites.containsAny(Arrays.asList("media")));
+	}
+
+	@Test
+	public void nothingIsRecentWithoutWindow() {
+		RecentWrites recentWrites = new RecentWrites(0);
+		recentWrites.record("media");
+
+		assertFalse(recentWrites.containsAny(Arrays.asList("media")));
+	}
+}
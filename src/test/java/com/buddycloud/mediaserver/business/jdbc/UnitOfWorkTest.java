@@ -0,0 +1,136 @@
+/*
+ * Copyright 2012 buddycloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.buddycloud.mediaserver.business.jdbc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.buddycloud.mediaserver.commons.exception.MetadataSourceException;
+
+public class UnitOfWorkTest {
+
+	private MetaDataSource dataSource;
+	private Connection connection;
+	private UnitOfWork unitOfWork;
+
+	@Before
+	public void setUp() throws Exception {
+		connection = mock(Connection.class);
+		dataSource = mock(MetaDataSource.class);
+		when(dataSource.getConnection()).thenReturn(connection);
+
+		unitOfWork = new UnitOfWork(dataSource, false);
+		unitOfWork.join();
+	}
+
+	@Test
+	public void onlyTheOutermostCommitReachesTheDatabase() throws Exception {
+		assertSame(connection, unitOfWork.getConnection());
+		verify(connection).setAutoCommit(false);
+
+		unitOfWork.join();
+		unitOfWork.commit();
+		unitOfWork.close();
+		verify(connection, never()).commit();
+		verify(connection, never()).close();
+
+		unitOfWork.commit();
+		unitOfWork.close();
+		verify(connection).commit();
+		verify(connection, never()).rollback();
+		verify(connection).setAutoCommit(true);
+		verify(connection).close();
+		verify(dataSource).endUnitOfWork(unitOfWork);
+	}
+
+	@Test
+	public void uncommittedInnerUnitRollsBackTheOuterOne() throws Exception {
+		unitOfWork.getConnection();
+
+		unitOfWork.join();
+		unitOfWork.close();
+
+		try {
+			unitOfWork.commit();
+			fail("the inner unit of work didn't commit");
+		} catch (MetadataSourceException e) {
+			// rolled back
+		}
+		unitOfWork.close();
+
+		verify(connection, never()).commit();
+		verify(connection).close();
+	}
+
+	@Test
+	public void failedCommitIsRolledBack() throws Exception {
+		unitOfWork.getConnection();
+		doThrow(new SQLException("serialization failure")).when(connection).commit();
+
+		try {
+			unitOfWork.commit();
+			fail("the commit failed");
+		} catch (MetadataSourceException e) {
+			assertEquals("serialization failure", e.getMessage());
+		}
+		unitOfWork.close();
+
+		// the transaction doesn't stay open on the pooled connection
+		verify(connection).rollback();
+		verify(connection).close();
+	}
+
+	@Test
+	public void connectionIsOnlyBorrowedWhenUsed() throws Exception {
+		unitOfWork.commit();
+		unitOfWork.close();
+
+		verify(dataSource, never()).getConnection();
+		verify(dataSource).endUnitOfWork(unitOfWork);
+	}
+
+	@Test
+	public void endListenersRunWhateverTheOutcome() throws Exception {
+		final int[] runs = new int[1];
+		unitOfWork.onEnd(new Runnable() {
+			public void run() {
+				runs[0]++;
+			}
+		});
+		unitOfWork.getConnection();
+		doThrow(new SQLException("gone")).when(connection).rollback();
+
+		unitOfWork.join();
+		unitOfWork.close();
+		assertEquals(0, runs[0]);
+
+		unitOfWork.close();
+		assertEquals(1, runs[0]);
+		verify(connection).close();
+	}
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2012 buddycloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.buddycloud.mediaserver.business.jdbc.schema;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MigrationRunnerTest {
+
+	private File directory;
+	private Connection connection;
+
+	@Before
+	public void setUp() throws Exception {
+		directory = File.createTempFile("migrations", "");
+		directory.delete();
+		directory.mkdirs();
+
+		Class.forName("org.hsqldb.jdbcDriver");
+		connection = DriverManager.getConnection(
+				"jdbc:hsqldb:mem:" + directory.getName() + ";user=sa;sql.syntax_pgs=true");
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		Statement statement = connection.createStatement();
+		statement.execute("SHUTDOWN");
+		statement.close();
+		connection.close();
+		FileUtils.deleteDirectory(directory);
+	}
+
+	@Test
+	public void emptyDatabaseIsInstalledAtLatestVersion() throws Exception {
+		MigrationRunner runner = new MigrationRunner(new File("postgres"));
+		int latest = runner.getMigrations().lastKey();
+
+		assertEquals(latest, runner.migrate(connection));
+		assertEquals(latest, runner.migrate(connection));
+		assertEquals(0, count("medias"));
+	}
+
+	@Test
+	public void pendingMigrationsAreAppliedInOrder() throws Exception {
+		writeScript("base-hbsql.sql",
+				"CREATE TABLE schema_version (version INTEGER NOT NULL, \"when\" TIMESTAMP, description VARCHAR(255));",
+				"INSERT INTO schema_version (version, \"when\", description) VALUES (1, NOW(), 'base');");
+		writeScript("upgrade-3.sql",
+				"BEGIN TRANSACTION;",
+				"INSERT INTO things VALUES (2);",
+				"INSERT INTO schema_version (version, \"when\", description) VALUES (3, NOW(), 'more');",
+				"COMMIT;");
+		writeScript("upgrade-2.sql",
+				"-- things",
+				"CREATE TABLE things",
+				"  (id INTEGER);",
+				"INSERT INTO things VALUES (1);",
+				"INSERT INTO schema_version (version, \"when\", description) VALUES (2, NOW(), 'things');");
+
+		MigrationRunner runner = new MigrationRunner(directory);
+		assertEquals(3, runner.migrate(connection));
+		assertEquals(2, count("things"));
+
+		// nothing left to apply
+		assertEquals(3, runner.migrate(connection));
+		assertEquals(2, count("things"));
+	}
+
+	@Test
+	public void failedMigrationIsRolledBack() throws Exception {
+		writeScript("base-hbsql.sql",
+				"CREATE TABLE schema_version (version INTEGER NOT NULL, \"when\" TIMESTAMP, description VARCHAR(255));",
+				"CREATE TABLE things (id INTEGER);");
+		writeScript("upgrade-1.sql",
+				"INSERT INTO things VALUES (1);",
+				"INSERT INTO nothing VALUES (1);",
+				"INSERT INTO schema_version (version, \"when\", description) VALUES (1, NOW(), 'broken');");
+
+		try {
+			new MigrationRunner(directory).migrate(connection);
+			fail();
+		} catch (SQLException e) {
+			// expected
+		}
+
+		assertEquals(0, count("things"));
+		assertEquals(0, count("schema_version"));
+	}
+
+	@Test
+	public void statementsAreSplitOnTrailingDelimiter() {
+		List<String> statements = MigrationRunner.splitStatements(Arrays.asList(
+				"-- comment", "", "CREATE TABLE a", "  (b TEXT);", "SELECT ';' FROM a;", "SELECT 1"));
+
+		assertEquals(Arrays.asList("CREATE TABLE a (b TEXT)", "SELECT ';' FROM a", "SELECT 1"),
+				statements);
+	}
+
+	private void writeScript(String name, String... lines) throws IOException {
+		FileUtils.writeLines(new File(directory, name), Arrays.asList(lines));
+	}
+
+	private int count(String table) throws SQLException {
+		Statement statement = connection.createStatement();
+		try {
+			ResultSet result = statement.executeQuery("SELECT COUNT(*) FROM " + table);
+			result.next();
+			return result.getInt(1);
+		} finally {
+			statement.close();
+		}
+	}
+}
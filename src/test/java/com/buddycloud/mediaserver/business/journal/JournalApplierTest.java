@@ -0,0 +1,151 @@
+/*
+ * Copyright 2012 buddycloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.buddycloud.mediaserver.business.journal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class JournalApplierTest {
+
+	private static final int SEGMENT_SIZE = 1024;
+
+	private File directory;
+	private MetadataJournal journal;
+	private RecordingHandler handler;
+	private JournalApplier applier;
+
+	@Before
+	public void setUp() throws IOException {
+		directory = File.createTempFile("journal", "");
+		directory.delete();
+
+		journal = new MetadataJournal(directory, SEGMENT_SIZE);
+		journal.open();
+		handler = new RecordingHandler();
+		applier = new JournalApplier(journal, handler, 10, 1, 3);
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		applier.stop();
+		journal.close();
+		FileUtils.deleteDirectory(directory);
+	}
+
+	@Test
+	public void recordsAreAppliedAndCheckpointed() throws Exception {
+		applier.start();
+		applier.submit(append("first"));
+		applier.submit(append("second"));
+
+		assertTrue(applier.awaitApplied(2, 5000));
+		assertEquals(2, handler.applied.size());
+
+		journal.close();
+		journal = new MetadataJournal(directory, SEGMENT_SIZE);
+		assertTrue(journal.open().isEmpty());
+	}
+
+	@Test
+	public void recordsSubmittedOutOfOrderAreRefused() throws Exception {
+		JournalRecord first = append("first");
+		JournalRecord second = append("second");
+		applier.submit(second);
+
+		try {
+			applier.submit(first);
+			fail();
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void refusedRecordIsDeadLetteredWithoutHoldingOthersBack() throws Exception {
+		handler.refused = "bad";
+		applier.start();
+		applier.submit(append("first"));
+		applier.submit(append("bad"));
+		applier.submit(append("third"));
+
+		assertTrue(applier.awaitApplied(3, 5000));
+		assertTrue(handler.applied.contains("first"));
+		assertTrue(handler.applied.contains("third"));
+		assertFalse(handler.applied.contains("bad"));
+		assertEquals(Collections.singletonList("bad"), handler.discarded);
+		assertTrue(new File(directory, "dead-letters").length() > 0);
+	}
+
+	@Test
+	public void unavailableDatabaseIsWaitedFor() throws Exception {
+		handler.unavailable = 5;
+		applier.start();
+		applier.submit(append("first"));
+
+		assertTrue(applier.awaitApplied(1, 5000));
+		assertEquals(Collections.singletonList("first"), handler.applied);
+		assertTrue(handler.discarded.isEmpty());
+	}
+
+	private JournalRecord append(String payload) throws IOException {
+		return new JournalRecord(journal.append(payload.getBytes()), payload.getBytes());
+	}
+
+	private static class RecordingHandler implements JournalApplier.Handler {
+		private List<String> applied = Collections.synchronizedList(new ArrayList<String>());
+		private List<String> discarded = Collections.synchronizedList(new ArrayList<String>());
+		private volatile String refused;
+		private volatile int unavailable;
+
+		public void apply(List<JournalRecord> records) throws Exception {
+			if (unavailable > 0) {
+				unavailable--;
+				throw new IOException("database unavailable");
+			}
+
+			for (JournalRecord record : records) {
+				if (new String(record.getPayload()).equals(refused)) {
+					throw new IllegalArgumentException("refused");
+				}
+			}
+
+			for (JournalRecord record : records) {
+				applied.add(new String(record.getPayload()));
+			}
+		}
+
+		public boolean isPermanent(Exception e) {
+			return e instanceof IllegalArgumentException;
+		}
+
+		public void discard(JournalRecord record) {
+			discarded.add(new String(record.getPayload()));
+		}
+	}
+}
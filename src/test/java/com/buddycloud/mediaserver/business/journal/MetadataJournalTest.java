@@ -0,0 +1,147 @@
+/*
+ * Copyright 2012 buddycloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.buddycloud.mediaserver.business.journal;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MetadataJournalTest {
+
+	private static final int SEGMENT_SIZE = 1024;
+
+	private File directory;
+
+	@Before
+	public void setUp() throws IOException {
+		directory = File.createTempFile("journal", "");
+		directory.delete();
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		FileUtils.deleteDirectory(directory);
+	}
+
+	@Test
+	public void unappliedRecordsAreRecoveredOnOpen() throws IOException {
+		MetadataJournal journal = new MetadataJournal(directory, SEGMENT_SIZE);
+		assertTrue(journal.open().isEmpty());
+		assertEquals(1, journal.append("first".getBytes()));
+		assertEquals(2, journal.append("second".getBytes()));
+		journal.close();
+
+		journal = new MetadataJournal(directory, SEGMENT_SIZE);
+		List<JournalRecord> pending = journal.open();
+
+		assertEquals(2, pending.size());
+		assertEquals(1, pending.get(0).getSeq());
+		assertArrayEquals("first".getBytes(), pending.get(0).getPayload());
+		assertArrayEquals("second".getBytes(), pending.get(1).getPayload());
+		assertEquals(3, journal.append("third".getBytes()));
+		journal.close();
+	}
+
+	@Test
+	public void checkpointedRecordsAreNotRecovered() throws IOException {
+		MetadataJournal journal = new MetadataJournal(directory, SEGMENT_SIZE);
+		journal.open();
+		journal.append("first".getBytes());
+		journal.append("second".getBytes());
+		journal.checkpoint(1);
+		journal.close();
+
+		journal = new MetadataJournal(directory, SEGMENT_SIZE);
+		List<JournalRecord> pending = journal.open();
+
+		assertEquals(1, pending.size());
+		assertEquals(2, pending.get(0).getSeq());
+		journal.close();
+	}
+
+	@Test
+	public void appliedSegmentsAreDeleted() throws IOException {
+		MetadataJournal journal = new MetadataJournal(directory, SEGMENT_SIZE);
+		journal.open();
+
+		byte[] payload = new byte[300];
+		long seq = 0;
+		for (int i = 0; i < 10; i++) {
+			seq = journal.append(payload);
+		}
+		assertTrue(segmentCount() > 1);
+
+		journal.checkpoint(seq);
+		assertEquals(1, segmentCount());
+		journal.close();
+
+		journal = new MetadataJournal(directory, SEGMENT_SIZE);
+		assertTrue(journal.open().isEmpty());
+		assertEquals(seq + 1, journal.append(payload));
+		journal.close();
+	}
+
+	@Test
+	public void tornRecordIsDropped() throws IOException {
+		MetadataJournal journal = new MetadataJournal(directory, SEGMENT_SIZE);
+		journal.open();
+		journal.append("first".getBytes());
+		journal.append("second".getBytes());
+		journal.close();
+
+		// corrupts the last byte of the second record's payload
+		File segment = directory.listFiles(new FileFilter() {
+			public boolean accept(File file) {
+				return file.getName().endsWith(".log");
+			}
+		})[0];
+		RandomAccessFile file = new RandomAccessFile(segment, "rw");
+		file.seek(2 * 16 + "first".length() + "second".length() - 1);
+		file.write('x');
+		file.close();
+
+		journal = new MetadataJournal(directory, SEGMENT_SIZE);
+		List<JournalRecord> pending = journal.open();
+
+		assertEquals(1, pending.size());
+		assertArrayEquals("first".getBytes(), pending.get(0).getPayload());
+		assertEquals(2, journal.append("again".getBytes()));
+		journal.close();
+
+		journal = new MetadataJournal(directory, SEGMENT_SIZE);
+		assertEquals(2, journal.open().size());
+		journal.close();
+	}
+
+	private int segmentCount() {
+		return directory.listFiles(new FileFilter() {
+			public boolean accept(File file) {
+				return file.getName().endsWith(".log");
+			}
+		}).length;
+	}
+}
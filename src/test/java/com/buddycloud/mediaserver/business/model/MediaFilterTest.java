@@ -0,0 +1,71 @@
+/*
+ * Copyright 2012 buddycloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.buddycloud.mediaserver.business.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+
+import org.junit.Test;
+
+public class MediaFilterTest {
+
+	@Test
+	public void noFieldsMeansAllFields() {
+		MediaFilter filter = new MediaFilter();
+		filter.setFields(Collections.<String>emptyList());
+
+		assertFalse(filter.isProjected());
+		assertEquals(MediaFilter.FIELDS.size(), filter.getReadFields().size());
+	}
+
+	@Test
+	public void sortFieldsAreAlwaysRead() {
+		MediaFilter filter = new MediaFilter();
+		filter.setFields(Arrays.asList("height", "width"));
+
+		assertTrue(filter.isProjected());
+		assertEquals(Arrays.asList("id", "lastUpdatedDate", "height", "width"),
+				Arrays.asList(filter.getReadFields().toArray()));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void unknownFieldIsRejected() {
+		new MediaFilter().setFields(Arrays.asList("id", "password"));
+	}
+
+	@Test
+	public void projectClearsUnrequestedSortFields() {
+		MediaFilter filter = new MediaFilter();
+		filter.setFields(Arrays.asList("id", "width"));
+
+		Media media = new Media();
+		media.setId("id");
+		media.setLastUpdatedDate(new Date());
+		media.setWidth(10);
+		filter.project(media);
+
+		assertNotNull(media.getId());
+		assertNull(media.getLastUpdatedDate());
+		assertEquals(Integer.valueOf(10), media.getWidth());
+	}
+}
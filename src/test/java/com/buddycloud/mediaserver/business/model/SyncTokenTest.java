@@ -0,0 +1,37 @@
+/*
+ * Copyright 2012 buddycloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.buddycloud.mediaserver.business.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.sql.Timestamp;
+
+import org.junit.Test;
+
+public class SyncTokenTest {
+
+	@Test
+	public void roundTrips() {
+		assertEquals(42L, SyncToken.decode(new SyncToken(42).encode()).getSeq());
+	}
+
+	@Test
+	public void rejectsOtherTokens() {
+		assertNull(SyncToken.decode("not a token"));
+		assertNull(SyncToken.decode(new MediaCursor(new Timestamp(0), "id").encode()));
+	}
+}
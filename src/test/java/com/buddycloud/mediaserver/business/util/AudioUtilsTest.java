@@ -0,0 +1,98 @@
+/*
+ * Copyright 2012 buddycloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.buddycloud.mediaserver.business.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class AudioUtilsTest {
+
+	@Test
+	public void isAudioReturnsFalseIfFileHasNoExtension() {
+		assertFalse(AudioUtils.isAudio(null));
+	}
+
+	@Test
+	public void isAudioReturnsFalseForNonAudio() {
+		assertFalse(AudioUtils.isAudio("buddycloud"));
+	}
+
+	@Test
+	public void isAudioReturnsTrueForAudio() {
+		assertTrue(AudioUtils.isAudio("wav"));
+	}
+
+	@Test
+	public void isTranscodableReturnsTrueForUncompressedAudio() {
+		assertTrue(AudioUtils.isTranscodable("WAV"));
+		assertTrue(AudioUtils.isTranscodable("flac"));
+	}
+
+	@Test
+	public void isTranscodableReturnsFalseForCompressedAudio() {
+		assertFalse(AudioUtils.isTranscodable(null));
+		assertFalse(AudioUtils.isTranscodable("mp3"));
+		assertFalse(AudioUtils.isTranscodable("ogg"));
+	}
+
+	@Test
+	public void peaksHaveOnePairPerBucket() {
+		AudioUtils.PeakAccumulator peaks = new AudioUtils.PeakAccumulator();
+		for (int i = 0; i < 10000; i++) {
+			peaks.add(i % 2 == 0 ? Short.MAX_VALUE : Short.MIN_VALUE);
+			peaks.endFrame();
+		}
+
+		byte[] result = peaks.toBuckets(16);
+
+		assertEquals(32, result.length);
+		for (int i = 0; i < result.length; i += 2) {
+			assertEquals(Byte.MIN_VALUE, result[i]);
+			assertEquals(Byte.MAX_VALUE, result[i + 1]);
+		}
+	}
+
+	@Test
+	public void peaksOfSilenceAreZero() {
+		AudioUtils.PeakAccumulator peaks = new AudioUtils.PeakAccumulator();
+		for (int i = 0; i < 10000; i++) {
+			peaks.add(0);
+			peaks.add(0);
+			peaks.endFrame();
+		}
+
+		byte[] result = peaks.toBuckets(8);
+
+		assertEquals(16, result.length);
+		for (byte peak : result) {
+			assertEquals(0, peak);
+		}
+	}
+
+	@Test
+	public void peaksOfEmptyAudioAreZero() {
+		byte[] result = new AudioUtils.PeakAccumulator().toBuckets(8);
+
+		assertEquals(16, result.length);
+		for (byte peak : result) {
+			assertEquals(0, peak);
+		}
+	}
+
+}
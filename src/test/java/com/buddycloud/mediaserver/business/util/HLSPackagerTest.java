@@ -0,0 +1,52 @@
+/*
+ * Copyright 2012 buddycloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.buddycloud.mediaserver.business.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class HLSPackagerTest {
+
+	@Test
+	public void isHLSFileReturnsFalseIfNoFileName() {
+		assertFalse(HLSPackager.isHLSFile(null));
+	}
+
+	@Test
+	public void isHLSFileReturnsTrueForPlaylistAndSegments() {
+		assertTrue(HLSPackager.isHLSFile("index.m3u8"));
+		assertTrue(HLSPackager.isHLSFile("segment-0.ts"));
+		assertTrue(HLSPackager.isHLSFile("segment-42.ts"));
+	}
+
+	@Test
+	public void isHLSFileReturnsFalseForOtherFiles() {
+		assertFalse(HLSPackager.isHLSFile("index.m3u8.tmp"));
+		assertFalse(HLSPackager.isHLSFile("segment-a.ts"));
+		assertFalse(HLSPackager.isHLSFile("../segment-0.ts"));
+		assertFalse(HLSPackager.isHLSFile(".."));
+	}
+
+	@Test
+	public void getMimeTypeMatchesFileKind() {
+		assertEquals(HLSPackager.PLAYLIST_MIME_TYPE, HLSPackager.getMimeType("index.m3u8"));
+		assertEquals(HLSPackager.SEGMENT_MIME_TYPE, HLSPackager.getMimeType("segment-0.ts"));
+	}
+
+}
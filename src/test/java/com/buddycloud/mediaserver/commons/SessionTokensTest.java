@@ -0,0 +1,93 @@
+/*
+ * Copyright 2012 buddycloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.buddycloud.mediaserver.commons;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+
+import org.junit.Test;
+
+public class SessionTokensTest {
+
+	private static final String USER = "user@example.com";
+
+	@Test
+	public void issuedTokenVerifiesToItsUser() {
+		SessionTokens sessions = new SessionTokens(true, 60000, "secret");
+		String token = sessions.issue(USER);
+
+		assertEquals(USER, sessions.verify(token));
+		assertEquals(USER, new SessionTokens(true, 60000, "secret").verify(token));
+	}
+
+	@Test
+	public void tokenSignedWithAnotherSecretIsRejected() {
+		String token = new SessionTokens(true, 60000, "other").issue(USER);
+
+		assertNull(new SessionTokens(true, 60000, "secret").verify(token));
+		assertNull(new SessionTokens(true, 60000, null).verify(token));
+	}
+
+	@Test
+	public void cookieIsOnlyAllowedFromAllowedOrigins() {
+		SessionTokens sessions = new SessionTokens(true, 60000, "secret",
+				Collections.singleton("https://buddycloud.example.com"));
+
+		assertTrue(sessions.isCookieAllowed(null));
+		assertTrue(sessions.isCookieAllowed("https://buddycloud.example.com"));
+		assertFalse(sessions.isCookieAllowed("https://evil.example.com"));
+		assertFalse(new SessionTokens(true, 60000, "secret").isCookieAllowed("https://buddycloud.example.com"));
+	}
+
+	@Test
+	public void tamperedTokenIsRejected() {
+		SessionTokens sessions = new SessionTokens(true, 60000, "secret");
+		String token = sessions.issue(USER);
+		String forged = new SessionTokens(true, 60000, "secret").issue("intruder@example.com");
+
+		String payload = forged.substring(0, forged.indexOf('.'));
+		String signature = token.substring(token.indexOf('.'));
+
+		assertNull(sessions.verify(payload + signature));
+		assertNull(sessions.verify("garbage"));
+		assertNull(sessions.verify(null));
+	}
+
+	@Test
+	public void expiredTokenIsRejected() {
+		SessionTokens sessions = new SessionTokens(true, -1, "secret");
+
+		assertNull(sessions.verify(sessions.issue(USER)));
+	}
+
+	@Test
+	public void revokedTokensAreRejected() throws InterruptedException {
+		SessionTokens sessions = new SessionTokens(true, 60000, "secret");
+		String token = sessions.issue(USER);
+		String otherToken = sessions.issue("other@example.com");
+
+		sessions.revoke(USER);
+		Thread.sleep(5);
+
+		assertNull(sessions.verify(token));
+		assertEquals("other@example.com", sessions.verify(otherToken));
+		assertEquals(USER, sessions.verify(sessions.issue(USER)));
+	}
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright 2012 buddycloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.buddycloud.mediaserver.commons;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class SignedURLsTest {
+
+	private static final String CHANNEL = "channel@example.com";
+	private static final String MEDIA = "media";
+
+	private final SignedURLs signedURLs = new SignedURLs("secret", 3600, 86400);
+
+	@Test
+	public void signatureCoversMediaSizeAndExpiry() {
+		long expires = System.currentTimeMillis() / 1000 + 60;
+		String signature = signedURLs.sign(CHANNEL, MEDIA, 100, 200, expires);
+
+		assertTrue(signedURLs.verify(CHANNEL, MEDIA, 100, 200, expires, signature));
+		assertFalse(signedURLs.verify("other@example.com", MEDIA, 100, 200, expires, signature));
+		assertFalse(signedURLs.verify(CHANNEL, "other", 100, 200, expires, signature));
+		assertFalse(signedURLs.verify(CHANNEL, MEDIA, 200, 200, expires, signature));
+		assertFalse(signedURLs.verify(CHANNEL, MEDIA, null, null, expires, signature));
+		assertFalse(signedURLs.verify(CHANNEL, MEDIA, 100, 200, expires + 1, signature));
+		assertFalse(signedURLs.verify(CHANNEL, MEDIA, 100, 200, null, signature));
+		assertFalse(new SignedURLs("other", 3600, 86400).verify(CHANNEL, MEDIA, 100, 200, expires, signature));
+	}
+
+	@Test
+	public void singleSizeBoundStandsForBoth() {
+		long expires = System.currentTimeMillis() / 1000 + 60;
+		String signature = signedURLs.sign(CHANNEL, MEDIA, 100, null, expires);
+
+		assertTrue(signedURLs.verify(CHANNEL, MEDIA, 100, 100, expires, signature));
+	}
+
+	@Test
+	public void expiredSignatureIsRejected() {
+		long expires = System.currentTimeMillis() / 1000 - 1;
+		String signature = signedURLs.sign(CHANNEL, MEDIA, null, null, expires);
+
+		assertFalse(signedURLs.verify(CHANNEL, MEDIA, null, null, expires, signature));
+	}
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright 2012 buddycloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.buddycloud.mediaserver.commons.cache;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class InvalidationStampsTest {
+
+	@Test
+	public void invalidatedKeysAreNoLongerCurrent() {
+		InvalidationStamps stamps = new InvalidationStamps();
+		InvalidationStamps.Stamp stamp = stamps.stamp();
+		assertTrue(stamps.isCurrent("juliet", stamp));
+
+		stamps.invalidate("juliet");
+
+		assertFalse(stamps.isCurrent("juliet", stamp));
+		assertTrue(stamps.isCurrent("juliet", stamps.stamp()));
+	}
+
+	@Test
+	public void otherKeysStayCurrent() {
+		InvalidationStamps stamps = new InvalidationStamps();
+		InvalidationStamps.Stamp stamp = stamps.stamp();
+
+		// in another stripe than juliet
+		stamps.invalidate("romeo");
+
+		assertTrue(stamps.isCurrent("juliet", stamp));
+		assertFalse(stamps.isCurrent("romeo", stamp));
+	}
+}
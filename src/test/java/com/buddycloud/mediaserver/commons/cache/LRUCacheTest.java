@@ -0,0 +1,71 @@
+/*
+ * Copyright 2012 buddycloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.buddycloud.mediaserver.commons.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+public class LRUCacheTest {
+
+	@Test
+	public void evictsLeastRecentlyUsedEntry() {
+		LRUCache<String, String> cache = new LRUCache<String, String>(2, Long.MAX_VALUE);
+		cache.put("a", "1");
+		cache.put("b", "2");
+		cache.get("a");
+		cache.put("c", "3");
+
+		assertNotNull(cache.get("a"));
+		assertNull(cache.get("b"));
+		assertNotNull(cache.get("c"));
+	}
+
+	@Test
+	public void evictsByWeight() {
+		LRUCache<String, String> cache = new LRUCache<String, String>(10, 5) {
+			@Override
+			protected long weigh(String value) {
+				return value.length();
+			}
+		};
+		cache.put("a", "123");
+		cache.put("b", "45");
+		assertEquals(5, cache.weight());
+
+		cache.put("c", "6");
+		assertNull(cache.get("a"));
+		assertEquals(3, cache.weight());
+	}
+
+	@Test
+	public void skipsValuesHeavierThanTheCache() {
+		LRUCache<String, String> cache = new LRUCache<String, String>(10, 2) {
+			@Override
+			protected long weigh(String value) {
+				return value.length();
+			}
+		};
+		cache.put("a", "1");
+		cache.put("a", "123");
+
+		assertNull(cache.get("a"));
+		assertEquals(0, cache.weight());
+	}
+
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright 2012 buddycloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.buddycloud.mediaserver.commons.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class RefreshingCacheTest {
+
+	private CountingLoader loader;
+	private List<Runnable> refreshes;
+	private Executor executor;
+
+	@Before
+	public void setUp() {
+		loader = new CountingLoader();
+		refreshes = new ArrayList<Runnable>();
+		executor = new Executor() {
+			public void execute(Runnable command) {
+				refreshes.add(command);
+			}
+		};
+	}
+
+	@Test
+	public void freshValuesAreNotReloaded() throws Exception {
+		RefreshingCache<String, Integer> cache = new RefreshingCache<String, Integer>(
+				10, 60000, 0, loader, executor);
+
+		assertEquals(Integer.valueOf(1), cache.get("juliet"));
+		assertEquals(Integer.valueOf(1), cache.get("juliet"));
+		assertEquals(1, loader.loads);
+		assertEquals(0, refreshes.size());
+	}
+
+	@Test
+	public void staleValuesAreServedWhileReloading() throws Exception {
+		RefreshingCache<String, Integer> cache = new RefreshingCache<String, Integer>(
+				10, 0, 60000, loader, executor);
+		cache.get("juliet");
+		Thread.sleep(5);
+
+		assertEquals(Integer.valueOf(1), cache.get("juliet"));
+		assertEquals(Integer.valueOf(1), cache.get("juliet"));
+		// a single reload is scheduled per key
+		assertEquals(1, refreshes.size());
+
+		refreshes.get(0).run();
+		assertEquals(2, loader.loads);
+		assertEquals(Integer.valueOf(2), cache.get("juliet"));
+	}
+
+	@Test
+	public void tooStaleValuesAreLoadedByTheCaller() throws Exception {
+		RefreshingCache<String, Integer> cache = new RefreshingCache<String, Integer>(
+				10, 1, 1, loader, executor);
+		cache.get("juliet");
+		Thread.sleep(10);
+
+		assertEquals(Integer.valueOf(2), cache.get("juliet"));
+		assertEquals(0, refreshes.size());
+	}
+
+	@Test
+	public void failedLoadsAreNotCached() throws Exception {
+		RefreshingCache<String, Integer> cache = new RefreshingCache<String, Integer>(
+				10, 60000, 0, loader, executor);
+		loader.fail = true;
+		try {
+			cache.get("juliet");
+			fail();
+		} catch (IllegalStateException e) {
+			// expected
+		}
+
+		loader.fail = false;
+		assertEquals(Integer.valueOf(2), cache.get("juliet"));
+	}
+
+	@Test
+	public void putAndInvalidateReplaceValues() throws Exception {
+		RefreshingCache<String, Integer> cache = new RefreshingCache<String, Integer>(
+				10, 60000, 0, loader, executor);
+		cache.get("juliet");
+
+		cache.put("juliet", 7);
+		assertEquals(Integer.valueOf(7), cache.get("juliet"));
+
+		cache.invalidate("juliet");
+		assertEquals(Integer.valueOf(2), cache.get("juliet"));
+	}
+
+	@Test
+	public void loadsRacingAnInvalidationOfTheirKeyAreNotCached() throws Exception {
+		InvalidatingLoader invalidating = new InvalidatingLoader("juliet");
+		RefreshingCache<String, Integer> cache = new RefreshingCache<String, Integer>(
+				10, 60000, 0, invalidating, executor);
+		invalidating.cache = cache;
+
+		assertEquals(Integer.valueOf(1), cache.get("juliet"));
+		assertEquals(Integer.valueOf(2), cache.get("juliet"));
+	}
+
+	@Test
+	public void loadsRacingOtherInvalidationsAreCached() throws Exception {
+		InvalidatingLoader invalidating = new InvalidatingLoader("romeo");
+		RefreshingCache<String, Integer> cache = new RefreshingCache<String, Integer>(
+				10, 60000, 0, invalidating, executor);
+		invalidating.cache = cache;
+
+		assertEquals(Integer.valueOf(1), cache.get("juliet"));
+		assertEquals(Integer.valueOf(1), cache.get("juliet"));
+	}
+
+	private static class CountingLoader implements RefreshingCache.Loader<String, Integer> {
+		private int loads;
+		private boolean fail;
+
+		public Integer load(String key) {
+			loads++;
+			if (fail) {
+				throw new IllegalStateException();
+			}
+			return loads;
+		}
+	}
+
+	/**
+	 * Invalidates a key while loading, as a concurrent write would.
+	 */
+	private static class InvalidatingLoader implements RefreshingCache.Loader<String, Integer> {
+		private final String invalidated;
+		private RefreshingCache<String, Integer> cache;
+		private int loads;
+
+		private InvalidatingLoader(String invalidated) {
+			this.invalidated = invalidated;
+		}
+
+		public Integer load(String key) {
+			loads++;
+			cache.invalidate(invalidated);
+			return loads;
+		}
+	}
+}
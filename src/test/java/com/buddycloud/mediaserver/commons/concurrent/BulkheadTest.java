@@ -0,0 +1,73 @@
+/*
+ * Copyright 2012 buddycloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.buddycloud.mediaserver.commons.concurrent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.buddycloud.mediaserver.commons.exception.BulkheadFullException;
+
+public class BulkheadTest {
+
+	@Test
+	public void fullBulkheadRejectsAfterWaiting() {
+		Bulkhead bulkhead = new Bulkhead("test", 2, 50);
+		bulkhead.acquire();
+		bulkhead.acquire();
+		assertEquals(2, bulkhead.getActive());
+
+		long start = System.currentTimeMillis();
+		try {
+			bulkhead.acquire();
+			fail();
+		} catch (BulkheadFullException e) {
+			assertTrue(System.currentTimeMillis() - start >= 40);
+		}
+
+		bulkhead.release();
+		bulkhead.acquire();
+		assertEquals(2, bulkhead.getActive());
+	}
+
+	@Test
+	public void waitingThreadGetsReleasedTurn() throws InterruptedException {
+		final Bulkhead bulkhead = new Bulkhead("test", 1, 5000);
+		bulkhead.acquire();
+
+		final CountDownLatch acquired = new CountDownLatch(1);
+		new Thread() {
+			public void run() {
+				bulkhead.acquire();
+				acquired.countDown();
+				bulkhead.release();
+			}
+		}.start();
+
+		while (bulkhead.getWaiting() == 0) {
+			Thread.sleep(5);
+		}
+		assertEquals(1, acquired.getCount());
+
+		bulkhead.release();
+		assertTrue(acquired.await(5, TimeUnit.SECONDS));
+	}
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2012 buddycloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.buddycloud.mediaserver.commons.concurrent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class CircuitBreakerTest {
+
+	private static final long SLOW_CALL = 100;
+	private static final long LONG_OPEN_TIME = 60000;
+
+	@Test
+	public void opensOnceTheFailureRateIsReached() {
+		CircuitBreaker breaker = new CircuitBreaker("test", 10, 50, SLOW_CALL, LONG_OPEN_TIME);
+
+		// not enough calls to judge yet
+		for (int i = 0; i < 4; i++) {
+			breaker.tryAcquire().onFailure(0);
+		}
+		assertEquals("CLOSED", breaker.getState());
+
+		breaker.tryAcquire().onFailure(0);
+		assertEquals("OPEN", breaker.getState());
+		assertEquals(1, breaker.getTimesOpened());
+	}
+
+	@Test
+	public void staysClosedBelowTheFailureRate() {
+		CircuitBreaker breaker = new CircuitBreaker("test", 10, 50, SLOW_CALL, LONG_OPEN_TIME);
+
+		for (int i = 0; i < 20; i++) {
+			CircuitBreaker.Permit permit = breaker.tryAcquire();
+			if (i % 3 == 0) {
+				permit.onFailure(0);
+			} else {
+				permit.onSuccess(0);
+			}
+		}
+
+		assertEquals("CLOSED", breaker.getState());
+	}
+
+	@Test
+	public void slowCallsCountAsFailed() {
+		CircuitBreaker breaker = new CircuitBreaker("test", 4, 50, SLOW_CALL, LONG_OPEN_TIME);
+
+		breaker.tryAcquire().onSuccess(SLOW_CALL + 1);
+		breaker.tryAcquire().onSuccess(SLOW_CALL + 1);
+
+		assertEquals("OPEN", breaker.getState());
+		assertEquals(2, breaker.getSlowCalls());
+		assertEquals(0, breaker.getFailedCalls());
+	}
+
+	@Test
+	public void refusesCallsWhileOpen() {
+		CircuitBreaker breaker = new CircuitBreaker("test", 2, 50, SLOW_CALL, LONG_OPEN_TIME);
+		breaker.tryAcquire().onFailure(0);
+
+		assertNull(breaker.tryAcquire());
+		assertNull(breaker.tryAcquire());
+		assertEquals(2, breaker.getRejectedCalls());
+		assertTrue(breaker.getRetryAfter() > LONG_OPEN_TIME / 2);
+	}
+
+	@Test
+	public void successfulProbeClosesTheBreaker() {
+		CircuitBreaker breaker = new CircuitBreaker("test", 2, 50, SLOW_CALL, 0);
+		breaker.tryAcquire().onFailure(0);
+		assertEquals("OPEN", breaker.getState());
+
+		CircuitBreaker.Permit probe = breaker.tryAcquire();
+		assertNotNull(probe);
+		assertEquals("HALF_OPEN", breaker.getState());
+
+		probe.onSuccess(0);
+		assertEquals("CLOSED", breaker.getState());
+		assertNotNull(breaker.tryAcquire());
+	}
+
+	@Test
+	public void failedProbeOpensTheBreakerAgain() {
+		CircuitBreaker breaker = new CircuitBreaker("test", 2, 50, SLOW_CALL, 0);
+		breaker.tryAcquire().onFailure(0);
+		CircuitBreaker.Permit probe = breaker.tryAcquire();
+
+		// a slow probe fails as well
+		probe.onSuccess(SLOW_CALL + 1);
+
+		assertEquals("OPEN", breaker.getState());
+		assertEquals(2, breaker.getTimesOpened());
+	}
+
+	@Test
+	public void lateOutcomesDontDecideTheProbe() {
+		CircuitBreaker breaker = new CircuitBreaker("test", 2, 50, SLOW_CALL, 0);
+		CircuitBreaker.Permit late = breaker.tryAcquire();
+		breaker.tryAcquire().onFailure(0);
+		assertEquals("OPEN", breaker.getState());
+
+		assertNotNull(breaker.tryAcquire());
+		late.onSuccess(0);
+		assertEquals("HALF_OPEN", breaker.getState());
+		assertEquals(1, breaker.getTimesOpened());
+	}
+
+	@Test
+	public void replacedProbesDontDecide() {
+		CircuitBreaker breaker = new CircuitBreaker("test", 2, 50, SLOW_CALL, 0);
+		breaker.tryAcquire().onFailure(0);
+
+		// the first probe never reported back in time
+		CircuitBreaker.Permit stuck = breaker.tryAcquire();
+		CircuitBreaker.Permit probe = breaker.tryAcquire();
+
+		stuck.onFailure(0);
+		assertEquals("HALF_OPEN", breaker.getState());
+		probe.onSuccess(0);
+		assertEquals("CLOSED", breaker.getState());
+	}
+
+	@Test
+	public void zeroThresholdNeverOpens() {
+		CircuitBreaker breaker = new CircuitBreaker("test", 2, 0, SLOW_CALL, LONG_OPEN_TIME);
+
+		for (int i = 0; i < 10; i++) {
+			breaker.tryAcquire().onFailure(0);
+		}
+
+		assertEquals("CLOSED", breaker.getState());
+		assertEquals(10, breaker.getFailedCalls());
+	}
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright 2012 buddycloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.buddycloud.mediaserver.commons.concurrent;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.Properties;
+
+import javax.management.ObjectName;
+
+import org.junit.Test;
+
+import com.buddycloud.mediaserver.commons.MediaServerConfiguration;
+
+public class CircuitBreakersTest {
+
+	@Test
+	public void leastRecentlyUsedBreakersAreDropped() throws Exception {
+		Properties configuration = new Properties();
+		configuration.setProperty(MediaServerConfiguration.XMPP_BREAKER_WINDOW, "20");
+		configuration.setProperty(MediaServerConfiguration.XMPP_BREAKER_FAILURE_RATE, "50");
+		configuration.setProperty(MediaServerConfiguration.XMPP_BREAKER_SLOW_CALL, "5000");
+		configuration.setProperty(MediaServerConfiguration.XMPP_BREAKER_OPEN_TIME, "30");
+		configuration.setProperty(MediaServerConfiguration.XMPP_BREAKER_MAX_ENTRIES, "2");
+		CircuitBreakers breakers = new CircuitBreakers(configuration);
+
+		CircuitBreaker first = breakers.get("pubsub-a.lit");
+		assertSame(first, breakers.get("pubsub-a.lit"));
+		assertTrue(isPublished("pubsub-a.lit"));
+
+		breakers.get("pubsub-b.lit");
+		breakers.get("pubsub-c.lit");
+
+		assertFalse(isPublished("pubsub-a.lit"));
+		assertTrue(isPublished("pubsub-c.lit"));
+		assertNotSame(first, breakers.get("pubsub-a.lit"));
+	}
+
+	private boolean isPublished(String name) throws Exception {
+		return ManagementFactory.getPlatformMBeanServer().isRegistered(new ObjectName(
+				"com.buddycloud.mediaserver:type=CircuitBreaker,name=" + ObjectName.quote(name)));
+	}
+}
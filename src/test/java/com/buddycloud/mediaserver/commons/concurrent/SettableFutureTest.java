@@ -0,0 +1,79 @@
+/*
+ * Copyright 2012 buddycloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.buddycloud.mediaserver.commons.concurrent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+public class SettableFutureTest {
+
+	@Test
+	public void listenersRunBeforeWaitersAreReleased() throws Exception {
+		final SettableFuture<String> future = new SettableFuture<String>();
+		final AtomicBoolean listened = new AtomicBoolean();
+		final CountDownLatch listening = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		future.addListener(new Runnable() {
+			public void run() {
+				listening.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				listened.set(true);
+			}
+		});
+
+		new Thread() {
+			public void run() {
+				future.set("value");
+			}
+		}.start();
+
+		assertTrue(listening.await(5, TimeUnit.SECONDS));
+		release.countDown();
+
+		assertEquals("value", future.get(5, TimeUnit.SECONDS));
+		assertTrue(listened.get());
+	}
+
+	@Test
+	public void listenersCanGetTheValue() throws Exception {
+		final SettableFuture<String> future = new SettableFuture<String>();
+		final StringBuilder seen = new StringBuilder();
+		future.addListener(new Runnable() {
+			public void run() {
+				try {
+					seen.append(future.get());
+				} catch (Exception e) {
+					seen.append(e);
+				}
+			}
+		});
+
+		assertTrue(future.set("value"));
+		assertFalse(future.set("other"));
+		assertEquals("value", seen.toString());
+	}
+}
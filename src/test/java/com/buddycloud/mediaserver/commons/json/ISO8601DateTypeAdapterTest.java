@@ -0,0 +1,60 @@
+/*
+ * Copyright 2012 buddycloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.buddycloud.mediaserver.commons.json;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.Date;
+
+import org.junit.Test;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonSyntaxException;
+
+public class ISO8601DateTypeAdapterTest {
+
+	private Gson gson = new GsonBuilder().registerTypeHierarchyAdapter(Date.class,
+			new ISO8601DateTypeAdapter()).create();
+
+	@Test
+	public void writesUTCWithMillis() {
+		assertEquals("\"1970-01-01T00:00:01.234Z\"", gson.toJson(new Date(1234), Date.class));
+	}
+
+	@Test
+	public void roundTrips() {
+		Date date = new Date(1393669230123L);
+		assertEquals(date, gson.fromJson(gson.toJson(date, Date.class), Date.class));
+	}
+
+	@Test
+	public void parsesWithoutMillis() {
+		assertEquals(new Date(1000), ISO8601DateTypeAdapter.parse("1970-01-01T00:00:01Z"));
+		assertNull(ISO8601DateTypeAdapter.parse("1970-01-01T00:00:01"));
+	}
+
+	@Test
+	public void readsNull() {
+		assertNull(gson.fromJson("null", Date.class));
+	}
+
+	@Test(expected = JsonSyntaxException.class)
+	public void rejectsOtherFormats() {
+		gson.fromJson("\"Saturday, March 1, 2014\"", Date.class);
+	}
+}
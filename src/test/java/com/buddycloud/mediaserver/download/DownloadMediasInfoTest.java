@@ -20,6 +20,8 @@ import com.buddycloud.mediaserver.business.model.Media;
 import com.buddycloud.mediaserver.commons.MediaServerConfiguration;
 import com.buddycloud.mediaserver.xmpp.AuthVerifier;
 import com.buddycloud.mediaserver.xmpp.pubsub.PubSubClient;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
 import com.google.gson.reflect.TypeToken;
 import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.io.FileUtils;
@@ -27,13 +29,18 @@ import org.easymock.EasyMock;
 import org.junit.Test;
 import org.restlet.data.ChallengeScheme;
 import org.restlet.data.MediaType;
+import org.restlet.engine.header.Header;
 import org.restlet.representation.Representation;
 import org.restlet.resource.ClientResource;
+import org.restlet.util.Series;
 
 import java.io.File;
 import java.util.List;
 
 import static junit.framework.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 public class DownloadMediasInfoTest extends MediaServerTest {
@@ -178,15 +185,96 @@ public class DownloadMediasInfoTest extends MediaServerTest {
 
 	@Test
 	public void downloadMediasInfoAfter() throws Exception {
-		int max = 1;
-		ClientResource client = new ClientResource(URL + "?max=" + max + "&after=" + MEDIA_ID1);
+		expectChannelChecks(2);
+
+		ClientResource client = new ClientResource(URL + "?max=1");
 		client.setChallengeResponse(ChallengeScheme.HTTP_BASIC, BASE_USER,
 				BASE_TOKEN);
 
 		Representation result = client.get(MediaType.APPLICATION_JSON);
-		List<Media> medias = gson.fromJson(result.getText(),  new TypeToken<List<Media>>(){}.getType());
+		List<Media> firstPage = gson.fromJson(result.getText(),  new TypeToken<List<Media>>(){}.getType());
+		String cursor = getNextCursor(client);
 
-		assertTrue(medias.size() == 1);
+		assertTrue(firstPage.size() == 1);
+		assertNotNull(cursor);
+
+		client = new ClientResource(URL + "?max=1&after=" + cursor);
+		client.setChallengeResponse(ChallengeScheme.HTTP_BASIC, BASE_USER,
+				BASE_TOKEN);
+
+		result = client.get(MediaType.APPLICATION_JSON);
+		List<Media> secondPage = gson.fromJson(result.getText(),  new TypeToken<List<Media>>(){}.getType());
+
+		assertTrue(secondPage.size() == 1);
+		assertFalse(firstPage.get(0).getId().equals(secondPage.get(0).getId()));
+	}
+
+	@Test
+	public void downloadMediasInfoAfterMediaId() throws Exception {
+		expectChannelChecks(2);
+
+		ClientResource client = new ClientResource(URL + "?max=1");
+		client.setChallengeResponse(ChallengeScheme.HTTP_BASIC, BASE_USER,
+				BASE_TOKEN);
+
+		Representation result = client.get(MediaType.APPLICATION_JSON);
+		List<Media> firstPage = gson.fromJson(result.getText(),  new TypeToken<List<Media>>(){}.getType());
+
+		client = new ClientResource(URL + "?max=10&after=" + firstPage.get(0).getId());
+		client.setChallengeResponse(ChallengeScheme.HTTP_BASIC, BASE_USER,
+				BASE_TOKEN);
+
+		result = client.get(MediaType.APPLICATION_JSON);
+		List<Media> secondPage = gson.fromJson(result.getText(),  new TypeToken<List<Media>>(){}.getType());
+
+		assertTrue(secondPage.size() == 1);
+		assertFalse(firstPage.get(0).getId().equals(secondPage.get(0).getId()));
+		assertNull(getNextCursor(client));
+	}
+
+	@Test
+	public void downloadMediaChangesSince() throws Exception {
+		expectChannelChecks(2);
+
+		ClientResource client = new ClientResource(URL);
+		client.setChallengeResponse(ChallengeScheme.HTTP_BASIC, BASE_USER,
+				BASE_TOKEN);
+		client.get(MediaType.APPLICATION_JSON);
+		String token = getHeader(client, "X-Sync-Token");
+
+		assertNotNull(token);
+
+		dataSource.deleteMedia(MEDIA_ID2);
+
+		client = new ClientResource(URL + "?since=" + token);
+		client.setChallengeResponse(ChallengeScheme.HTTP_BASIC, BASE_USER,
+				BASE_TOKEN);
+
+		Representation result = client.get(MediaType.APPLICATION_JSON);
+		JsonObject changes = new JsonParser().parse(result.getText()).getAsJsonObject();
+
+		assertEquals(0, changes.getAsJsonArray("changed").size());
+		assertEquals(1, changes.getAsJsonArray("deleted").size());
+		assertEquals(MEDIA_ID2, changes.getAsJsonArray("deleted").get(0).getAsString());
+		assertFalse(token.equals(changes.get("token").getAsString()));
+	}
+
+	private void expectChannelChecks(int requests) {
+		EasyMock.reset(pubSubClient);
+		EasyMock.expect(pubSubClient.isChannelPublic(EasyMock.matches(BASE_CHANNEL)))
+				.andReturn(true).times(requests);
+		EasyMock.replay(pubSubClient);
+	}
+
+	private String getNextCursor(ClientResource client) {
+		return getHeader(client, "X-Next-Cursor");
+	}
+
+	@SuppressWarnings("unchecked")
+	private String getHeader(ClientResource client, String name) {
+		Series<Header> headers = (Series<Header>) client.getResponseAttributes().get(
+				"org.restlet.http.headers");
+		return headers.getFirstValue(name, true);
 	}
 
 }
\ No newline at end of file
@@ -98,6 +98,7 @@ public class UploadAvatarTest extends MediaServerTest {
 
 		// delete metadata
 		dataSource.deleteEntityAvatar(media.getEntityId());
+		dataSource.deletePreviewsFromMedia(media.getId());
 		dataSource.deleteMedia(media.getId());
 	}
 	
@@ -126,6 +127,7 @@ public class UploadAvatarTest extends MediaServerTest {
 
 		// delete metadata
 		dataSource.deleteEntityAvatar(media.getEntityId());
+		dataSource.deletePreviewsFromMedia(media.getId());
 		dataSource.deleteMedia(media.getId());
 	}
 
@@ -157,6 +159,7 @@ public class UploadAvatarTest extends MediaServerTest {
 
 		// delete metadata
 		dataSource.deleteEntityAvatar(media.getEntityId());
+		dataSource.deletePreviewsFromMedia(media.getId());
 		dataSource.deleteMedia(media.getId());
 	}
 	
@@ -188,6 +191,7 @@ public class UploadAvatarTest extends MediaServerTest {
 
 		// delete metadata
 		dataSource.deleteEntityAvatar(media.getEntityId());
+		dataSource.deletePreviewsFromMedia(media.getId());
 		dataSource.deleteMedia(media.getId());
 
     }
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2012 buddycloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.buddycloud.mediaserver.web.representation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.Collections;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+public class MultipartRepresentationTest {
+
+	@Test
+	public void writesEveryPartBetweenBoundaries() throws Exception {
+		MultipartRepresentation multipart = new MultipartRepresentation();
+		multipart.addPart("image/png", "abc".getBytes("ISO-8859-1"),
+				Collections.singletonMap("Content-Location", "/a@domain.com/avatar"));
+		multipart.addPart("image/jpeg", "de".getBytes("ISO-8859-1"), null);
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		multipart.write(out);
+		String body = out.toString("ISO-8859-1");
+
+		String boundary = body.substring(2, body.indexOf("\r\n"));
+		String expected = "--" + boundary + "\r\n"
+				+ "Content-Type: image/png\r\n"
+				+ "Content-Location: /a@domain.com/avatar\r\n"
+				+ "Content-Length: 3\r\n\r\n"
+				+ "abc\r\n"
+				+ "--" + boundary + "\r\n"
+				+ "Content-Type: image/jpeg\r\n"
+				+ "Content-Length: 2\r\n\r\n"
+				+ "de\r\n"
+				+ "--" + boundary + "--\r\n";
+
+		assertEquals(expected, body);
+		assertTrue(boundary.length() > 0);
+	}
+
+	@Test
+	public void filePartsAreStreamedFromDisk() throws Exception {
+		File file = File.createTempFile("avatar", "");
+		file.deleteOnExit();
+		FileUtils.writeStringToFile(file, "abcd", "ISO-8859-1");
+
+		MultipartRepresentation multipart = new MultipartRepresentation();
+		multipart.addPart("image/png", file, null);
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		multipart.write(out);
+		String body = out.toString("ISO-8859-1");
+
+		String boundary = body.substring(2, body.indexOf("\r\n"));
+		String expected = "--" + boundary + "\r\n"
+				+ "Content-Type: image/png\r\n"
+				+ "Content-Length: 4\r\n\r\n"
+				+ "abcd\r\n"
+				+ "--" + boundary + "--\r\n";
+
+		assertEquals(expected, body);
+	}
+
+}
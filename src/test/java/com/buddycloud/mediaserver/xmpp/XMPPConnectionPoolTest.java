@@ -0,0 +1,174 @@
+/*
+ * Copyright 2012 buddycloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.buddycloud.mediaserver.xmpp;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.jivesoftware.smack.Connection;
+import org.jivesoftware.smack.ConnectionListener;
+import org.jivesoftware.smack.PacketListener;
+import org.jivesoftware.smack.XMPPException;
+import org.jivesoftware.smack.filter.PacketFilter;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+
+public class XMPPConnectionPoolTest {
+
+	private List<Connection> connections;
+	private XMPPConnectionPool.ConnectionFactory factory;
+	private XMPPConnectionPool pool;
+
+	@Before
+	public void setUp() {
+		connections = new ArrayList<Connection>();
+		factory = new XMPPConnectionPool.ConnectionFactory() {
+			public Connection create(int index) {
+				Connection connection = Mockito.mock(Connection.class);
+				connections.add(connection);
+				return connection;
+			}
+		};
+	}
+
+	@After
+	public void tearDown() {
+		if (pool != null) {
+			pool.shutdown();
+		}
+	}
+
+	@Test
+	public void callsGoToTheLeastLoadedConnection() throws Exception {
+		pool = new XMPPConnectionPool(factory, 2, 10,
+				XMPPConnectionPool.Strategy.LEAST_LOADED, 1000);
+		pool.start();
+
+		CountDownLatch release = new CountDownLatch(1);
+		Connection busy = hold(release);
+
+		for (int i = 0; i < 5; i++) {
+			assertNotSame(busy, pool.execute("capulet.lit", new ConnectionCall()));
+		}
+		release.countDown();
+	}
+
+	@Test
+	public void domainsStickToTheirConnection() throws Exception {
+		pool = new XMPPConnectionPool(factory, 4, 10,
+				XMPPConnectionPool.Strategy.DOMAIN_HASH, 1000);
+		pool.start();
+
+		Connection connection = pool.execute("capulet.lit", new ConnectionCall());
+		for (int i = 0; i < 5; i++) {
+			assertSame(connection, pool.execute("capulet.lit", new ConnectionCall()));
+		}
+	}
+
+	@Test
+	public void inFlightCallsAreLimited() throws Exception {
+		pool = new XMPPConnectionPool(factory, 1, 1,
+				XMPPConnectionPool.Strategy.LEAST_LOADED, 50);
+		pool.start();
+
+		CountDownLatch release = new CountDownLatch(1);
+		hold(release);
+		assertArrayEquals(new int[] {1}, pool.getInFlight());
+
+		try {
+			pool.execute("capulet.lit", new ConnectionCall());
+			fail();
+		} catch (XMPPException e) {
+			// expected
+		}
+		release.countDown();
+	}
+
+	@Test
+	public void failedConnectionsAreReplaced() throws Exception {
+		pool = new XMPPConnectionPool(factory, 1, 10,
+				XMPPConnectionPool.Strategy.LEAST_LOADED, 1000);
+		pool.start();
+		PacketListener listener = Mockito.mock(PacketListener.class);
+		PacketFilter filter = Mockito.mock(PacketFilter.class);
+		pool.addPacketListener(listener, filter);
+
+		Connection failed = connections.get(0);
+		ArgumentCaptor<ConnectionListener> connectionListener =
+				ArgumentCaptor.forClass(ConnectionListener.class);
+		Mockito.verify(failed).addConnectionListener(connectionListener.capture());
+		connectionListener.getValue().connectionClosedOnError(new Exception());
+
+		long deadline = System.currentTimeMillis() + 5000;
+		while (connections.size() < 2 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		Thread.sleep(50);
+
+		Connection replacement = connections.get(1);
+		assertEquals(replacement, pool.execute("capulet.lit", new ConnectionCall()));
+		Mockito.verify(replacement).addPacketListener(listener, filter);
+		Mockito.verify(failed).disconnect();
+	}
+
+	/**
+	 * Starts a call that holds its connection until {@code release}.
+	 */
+	private Connection hold(final CountDownLatch release) throws Exception {
+		final CountDownLatch started = new CountDownLatch(1);
+		final Connection[] held = new Connection[1];
+		new Thread() {
+			public void run() {
+				try {
+					pool.execute("montague.lit", new XMPPConnectionPool.Call<Void>() {
+						public Void call(Connection connection) {
+							held[0] = connection;
+							started.countDown();
+							try {
+								release.await();
+							} catch (InterruptedException e) {
+								// done
+							}
+							return null;
+						}
+					});
+				} catch (XMPPException e) {
+					// not expected
+				}
+			}
+		}.start();
+
+		started.await(5, TimeUnit.SECONDS);
+		return held[0];
+	}
+
+	private static class ConnectionCall implements XMPPConnectionPool.Call<Connection> {
+		public Connection call(Connection connection) {
+			return connection;
+		}
+	}
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright 2012 buddycloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.buddycloud.mediaserver.xmpp.pubsub;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jivesoftware.smack.XMPPException;
+import org.jivesoftware.smackx.pubsub.Affiliation;
+import org.junit.Before;
+import org.junit.Test;
+
+public class AffiliationIndexTest {
+
+	private static final String NODE = "/user/juliet@capulet.lit/posts";
+
+	private Map<String, Affiliation.Type> affiliations;
+	private CountingLoader loader;
+
+	@Before
+	public void setUp() {
+		affiliations = new HashMap<String, Affiliation.Type>();
+		affiliations.put("romeo@montague.lit", Affiliation.Type.member);
+		affiliations.put("nurse@capulet.lit", Affiliation.Type.moderator);
+		loader = new CountingLoader();
+	}
+
+	@Test
+	public void affiliationsAreFetchedOnce() throws Exception {
+		AffiliationIndex index = new AffiliationIndex(10, 0, 60000);
+
+		assertEquals(Affiliation.Type.member, index.getAffiliation(NODE, "romeo@montague.lit", loader));
+		assertEquals(Affiliation.Type.moderator, index.getAffiliation(NODE, "nurse@capulet.lit", loader));
+		assertEquals(1, loader.loads);
+	}
+
+	@Test
+	public void updatesAreApplied() throws Exception {
+		AffiliationIndex index = new AffiliationIndex(10, 0, 60000);
+		index.getAffiliation(NODE, "romeo@montague.lit", loader);
+
+		index.update(NODE, "romeo@montague.lit", Affiliation.Type.outcast);
+		index.update(NODE, "nurse@capulet.lit", Affiliation.Type.none);
+		index.update(NODE, "tybalt@capulet.lit", Affiliation.Type.publisher);
+
+		assertEquals(Affiliation.Type.outcast, index.getAffiliation(NODE, "romeo@montague.lit", loader));
+		assertEquals(Affiliation.Type.publisher, index.getAffiliation(NODE, "tybalt@capulet.lit", loader));
+		assertNull(index.getAffiliation(NODE, "nurse@capulet.lit", loader));
+		assertEquals(1, loader.loads);
+	}
+
+	@Test
+	public void unknownUserRefetchesStaleAffiliations() throws Exception {
+		AffiliationIndex index = new AffiliationIndex(10, 0, 0);
+		assertNull(index.getAffiliation(NODE, "tybalt@capulet.lit", loader));
+		assertEquals(2, loader.loads);
+
+		affiliations.put("tybalt@capulet.lit", Affiliation.Type.member);
+		assertEquals(Affiliation.Type.member, index.getAffiliation(NODE, "tybalt@capulet.lit", loader));
+	}
+
+	@Test
+	public void expiredAffiliationsAreFetchedAgain() throws Exception {
+		AffiliationIndex index = new AffiliationIndex(10, 1, 60000);
+		index.getAffiliation(NODE, "romeo@montague.lit", loader);
+
+		Thread.sleep(10);
+		affiliations.put("romeo@montague.lit", Affiliation.Type.publisher);
+
+		assertEquals(Affiliation.Type.publisher, index.getAffiliation(NODE, "romeo@montague.lit", loader));
+		assertEquals(2, loader.loads);
+	}
+
+	@Test
+	public void concurrentRequestsShareOneFetch() throws Exception {
+		final AffiliationIndex index = new AffiliationIndex(10, 0, 60000);
+		final CountDownLatch release = new CountDownLatch(1);
+		final AtomicInteger loads = new AtomicInteger();
+		final AffiliationIndex.Loader slowLoader = new AffiliationIndex.Loader() {
+			public Map<String, Affiliation.Type> load(String nodeId) throws XMPPException {
+				loads.incrementAndGet();
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					throw new XMPPException(e);
+				}
+				return new HashMap<String, Affiliation.Type>(affiliations);
+			}
+		};
+
+		final List<Affiliation.Type> types = Collections.synchronizedList(new ArrayList<Affiliation.Type>());
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < 8; i++) {
+			Thread thread = new Thread() {
+				public void run() {
+					try {
+						types.add(index.getAffiliation(NODE, "romeo@montague.lit", slowLoader));
+					} catch (XMPPException e) {
+						// counted as missing
+					}
+				}
+			};
+			thread.start();
+			threads.add(thread);
+		}
+
+		Thread.sleep(100);
+		release.countDown();
+		for (Thread thread : threads) {
+			thread.join(5000);
+		}
+
+		assertEquals(8, types.size());
+		assertEquals(Collections.nCopies(8, Affiliation.Type.member), types);
+		assertEquals(1, loads.get());
+	}
+
+	private class CountingLoader implements AffiliationIndex.Loader {
+		private int loads;
+
+		public Map<String, Affiliation.Type> load(String nodeId) throws XMPPException {
+			loads++;
+			return new HashMap<String, Affiliation.Type>(affiliations);
+		}
+	}
+}
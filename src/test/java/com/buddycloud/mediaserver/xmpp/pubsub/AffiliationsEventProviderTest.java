@@ -0,0 +1,76 @@
+/*
+ * Copyright 2012 buddycloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.buddycloud.mediaserver.xmpp.pubsub;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.StringReader;
+
+import org.jivesoftware.smack.packet.PacketExtension;
+import org.jivesoftware.smackx.pubsub.Affiliation;
+import org.junit.Test;
+import org.xmlpull.mxp1.MXParser;
+import org.xmlpull.v1.XmlPullParser;
+
+public class AffiliationsEventProviderTest {
+
+	private static final String NS = "http://jabber.org/protocol/pubsub#event";
+
+	@Test
+	public void affiliationsAreParsed() throws Exception {
+		PacketExtension event = parse("<event xmlns='" + NS + "'>"
+				+ "<affiliations node='/user/a@example.com/posts'>"
+				+ "<affiliation jid='b@example.com' affiliation='publisher'/>"
+				+ "</affiliations></event>");
+
+		assertTrue(event instanceof AffiliationsEvent);
+		AffiliationsEvent affiliations = (AffiliationsEvent) event;
+		assertEquals("/user/a@example.com/posts", affiliations.getNode());
+		assertEquals(1, affiliations.getAffiliations().size());
+		assertEquals(Affiliation.Type.publisher, affiliations.getAffiliations().get(0).getType());
+	}
+
+	@Test
+	public void unknownChildrenAreSkipped() throws Exception {
+		XmlPullParser parser = createParser("<message><event xmlns='" + NS + "'>"
+				+ "<unknown><affiliations node='nested'/><event/></unknown>"
+				+ "</event><body>after</body></message>");
+
+		assertNull(new AffiliationsEventProvider().parseExtension(parser));
+
+		// the parser stopped at the end of the event, not inside the unknown child
+		assertEquals(XmlPullParser.END_TAG, parser.getEventType());
+		assertEquals("event", parser.getName());
+		assertEquals(XmlPullParser.START_TAG, parser.next());
+		assertEquals("body", parser.getName());
+	}
+
+	private PacketExtension parse(String xml) throws Exception {
+		return new AffiliationsEventProvider().parseExtension(createParser(xml));
+	}
+
+	private XmlPullParser createParser(String xml) throws Exception {
+		XmlPullParser parser = new MXParser();
+		parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, true);
+		parser.setInput(new StringReader(xml));
+		while (!"event".equals(parser.getName())) {
+			parser.next();
+		}
+		return parser;
+	}
+}
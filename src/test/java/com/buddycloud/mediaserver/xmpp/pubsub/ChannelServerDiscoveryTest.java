@@ -0,0 +1,206 @@
+/*
+ * Copyright 2012 buddycloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.buddycloud.mediaserver.xmpp.pubsub;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jivesoftware.smack.XMPPException;
+import org.jivesoftware.smackx.packet.DiscoverInfo;
+import org.jivesoftware.smackx.packet.DiscoverItems;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.buddycloud.mediaserver.commons.MediaServerConfiguration;
+
+public class ChannelServerDiscoveryTest {
+
+	private static final String DOMAIN = "capulet.lit";
+	private static final String CHANNEL_SERVER = "channels.capulet.lit";
+
+	private Properties configuration;
+	private FakeDiscovery discovery;
+
+	@Before
+	public void setUp() {
+		configuration = new Properties();
+		configuration.setProperty(MediaServerConfiguration.XMPP_DISCOVERY_NEGATIVE_TTL, "300");
+		configuration.setProperty(MediaServerConfiguration.XMPP_DISCOVERY_DEADLINE, "2000");
+		configuration.setProperty(MediaServerConfiguration.XMPP_DISCOVERY_THREADS, "8");
+		discovery = new FakeDiscovery(configuration);
+	}
+
+	@After
+	public void tearDown() {
+		discovery.shutdown();
+	}
+
+	@Test
+	public void itemsAreAskedInParallel() throws Exception {
+		discovery.items = new String[] {"a.capulet.lit", "b.capulet.lit", "c.capulet.lit", CHANNEL_SERVER};
+		discovery.infoDelay = 300;
+
+		long start = System.currentTimeMillis();
+		assertEquals(CHANNEL_SERVER, discovery.getServer(DOMAIN));
+		assertTrue(System.currentTimeMillis() - start < 4 * 300);
+
+		// discovered servers are kept
+		assertEquals(CHANNEL_SERVER, discovery.getServer(DOMAIN));
+		assertEquals(1, discovery.itemsRequests.get());
+	}
+
+	@Test
+	public void domainsWithoutChannelServerAreCached() throws Exception {
+		discovery.items = new String[] {"a.capulet.lit"};
+
+		assertNull(discovery.getServer(DOMAIN));
+		assertNull(discovery.getServer(DOMAIN));
+		assertEquals(1, discovery.itemsRequests.get());
+	}
+
+	@Test
+	public void negativeEntriesExpire() throws Exception {
+		configuration.setProperty(MediaServerConfiguration.XMPP_DISCOVERY_NEGATIVE_TTL, "0");
+		discovery.items = new String[] {"a.capulet.lit"};
+
+		assertNull(discovery.getServer(DOMAIN));
+		Thread.sleep(5);
+		assertNull(discovery.getServer(DOMAIN));
+		assertEquals(2, discovery.itemsRequests.get());
+	}
+
+	@Test
+	public void forgedSendersAreNotTheServer() throws Exception {
+		discovery.items = new String[] {CHANNEL_SERVER};
+
+		// not discovered yet, and not discovered by the check
+		assertFalse(discovery.isServer(DOMAIN, CHANNEL_SERVER));
+		assertEquals(0, discovery.itemsRequests.get());
+
+		assertEquals(CHANNEL_SERVER, discovery.getServer(DOMAIN));
+		assertTrue(discovery.isServer(DOMAIN, CHANNEL_SERVER));
+		assertFalse(discovery.isServer(DOMAIN, "romeo@montague.lit"));
+		assertFalse(discovery.isServer(DOMAIN, "channels.montague.lit"));
+		assertFalse(discovery.isServer("montague.lit", CHANNEL_SERVER));
+	}
+
+	@Test
+	public void slowItemsAreGivenUpAtTheDeadline() throws Exception {
+		configuration.setProperty(MediaServerConfiguration.XMPP_DISCOVERY_DEADLINE, "100");
+		discovery.items = new String[] {CHANNEL_SERVER};
+		discovery.infoDelay = 1000;
+
+		long start = System.currentTimeMillis();
+		assertNull(discovery.getServer(DOMAIN));
+		assertTrue(System.currentTimeMillis() - start < 1000);
+
+		// a discovery without an answer is not kept
+		discovery.infoDelay = 0;
+		assertEquals(CHANNEL_SERVER, discovery.getServer(DOMAIN));
+		assertEquals(2, discovery.itemsRequests.get());
+	}
+
+	@Test
+	public void failedDiscoveriesAreNotCached() throws Exception {
+		discovery.items = new String[] {"a.capulet.lit", CHANNEL_SERVER};
+		discovery.failItems = true;
+		assertNull(discovery.getServer(DOMAIN));
+
+		discovery.failItems = false;
+		discovery.failInfo = CHANNEL_SERVER;
+		assertNull(discovery.getServer(DOMAIN));
+
+		discovery.failInfo = null;
+		assertEquals(CHANNEL_SERVER, discovery.getServer(DOMAIN));
+		assertEquals(3, discovery.itemsRequests.get());
+	}
+
+	@Test
+	public void concurrentRequestsShareOneDiscovery() throws Exception {
+		discovery.items = new String[] {CHANNEL_SERVER};
+		discovery.infoDelay = 200;
+
+		final CountDownLatch done = new CountDownLatch(10);
+		final AtomicInteger found = new AtomicInteger();
+		for (int i = 0; i < 10; i++) {
+			new Thread() {
+				public void run() {
+					if (CHANNEL_SERVER.equals(discovery.getServer(DOMAIN))) {
+						found.incrementAndGet();
+					}
+					done.countDown();
+				}
+			}.start();
+		}
+
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+		assertEquals(10, found.get());
+		assertEquals(1, discovery.itemsRequests.get());
+	}
+
+	private static class FakeDiscovery extends ChannelServerDiscovery {
+		private String[] items = new String[0];
+		private volatile long infoDelay;
+		private volatile boolean failItems;
+		private volatile String failInfo;
+		private AtomicInteger itemsRequests = new AtomicInteger();
+
+		private FakeDiscovery(Properties configuration) {
+			super(null, null, configuration);
+		}
+
+		@Override
+		protected DiscoverItems discoverItems(String domain) throws XMPPException {
+			itemsRequests.incrementAndGet();
+			if (failItems) {
+				throw new XMPPException("remote-server-timeout");
+			}
+
+			DiscoverItems discoverItems = new DiscoverItems();
+			for (String item : items) {
+				discoverItems.addItem(new DiscoverItems.Item(item));
+			}
+			return discoverItems;
+		}
+
+		@Override
+		protected DiscoverInfo discoverInfo(String entityID) throws XMPPException {
+			try {
+				Thread.sleep(infoDelay);
+			} catch (InterruptedException e) {
+				throw new XMPPException(e);
+			}
+			if (entityID.equals(failInfo)) {
+				throw new XMPPException("remote-server-not-found");
+			}
+
+			DiscoverInfo discoverInfo = new DiscoverInfo();
+			DiscoverInfo.Identity identity = new DiscoverInfo.Identity(
+					entityID.equals(CHANNEL_SERVER) ? "pubsub" : "server", null);
+			identity.setType(entityID.equals(CHANNEL_SERVER) ? "channels" : "im");
+			discoverInfo.addIdentity(identity);
+			return discoverInfo;
+		}
+	}
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2012 buddycloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.buddycloud.mediaserver.xmpp.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.xmpp.packet.JID;
+import org.xmpp.packet.Message;
+import org.xmpp.packet.Packet;
+
+import com.buddycloud.mediaserver.commons.concurrent.CircuitBreaker;
+import com.buddycloud.mediaserver.commons.concurrent.SettableFuture;
+import com.buddycloud.mediaserver.commons.exception.XMPPException;
+
+public class ReplyRegistryTest {
+
+	private static final JID USER = new JID("user@example.com");
+
+	private ReplyRegistry registry;
+
+	@Before
+	public void setUp() {
+		registry = new ReplyRegistry();
+	}
+
+	@After
+	public void tearDown() {
+		registry.shutdown();
+	}
+
+	@Test
+	public void replyCompletesItsWaiter() throws Exception {
+		SettableFuture<Packet> reply = registry.expect(USER, "tid", 10000);
+		SettableFuture<Packet> other = registry.expect(USER, "other", 10000);
+		assertEquals(2, registry.size());
+
+		Message message = new Message();
+		assertTrue(registry.complete(new JID("user@example.com/client"), "tid", message));
+
+		assertSame(message, reply.get(1, TimeUnit.SECONDS));
+		assertFalse(other.isDone());
+		assertEquals(1, registry.size());
+	}
+
+	@Test
+	public void replyFromAnotherUserIsIgnored() {
+		SettableFuture<Packet> reply = registry.expect(USER, "tid", 10000);
+
+		assertFalse(registry.complete(new JID("intruder@example.com"), "tid", new Message()));
+		assertFalse(registry.complete(null, "tid", new Message()));
+		assertFalse(reply.isDone());
+	}
+
+	@Test
+	public void unansweredWaiterTimesOut() throws Exception {
+		SettableFuture<Packet> reply = registry.expect(USER, "tid", 200);
+
+		try {
+			reply.get(5, TimeUnit.SECONDS);
+			fail();
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof XMPPException);
+		}
+		assertEquals(0, registry.size());
+		assertFalse(registry.complete(USER, "tid", new Message()));
+	}
+
+	@Test
+	public void abandonedReplyFailsItsWaiter() throws Exception {
+		SettableFuture<Packet> reply = registry.expect(USER, "tid", 10000);
+		registry.abandon(USER, "tid", new XMPPException("not sent"));
+
+		try {
+			reply.get(1, TimeUnit.SECONDS);
+			fail();
+		} catch (ExecutionException e) {
+			assertEquals("not sent", e.getCause().getMessage());
+		}
+		assertEquals(0, registry.size());
+	}
+
+	@Test
+	public void outcomesAreReportedToTheBreaker() throws Exception {
+		CircuitBreaker breaker = new CircuitBreaker("test", 4, 50, 0, 60000);
+
+		SettableFuture<Packet> answered = registry.expect(USER, "answered", 10000,
+				breaker.tryAcquire());
+		SettableFuture<Packet> unanswered = registry.expect(USER, "unanswered", 100,
+				breaker.tryAcquire());
+		registry.complete(USER, "answered", new Message());
+		answered.get(1, TimeUnit.SECONDS);
+		try {
+			unanswered.get(5, TimeUnit.SECONDS);
+			fail();
+		} catch (ExecutionException e) {
+			// timed out
+		}
+
+		assertEquals(2, breaker.getCalls());
+		assertEquals(1, breaker.getFailedCalls());
+		assertEquals(0, breaker.getSlowCalls());
+		assertEquals("OPEN", breaker.getState());
+	}
+}